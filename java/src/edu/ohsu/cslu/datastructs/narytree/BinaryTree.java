@@ -737,6 +737,84 @@ public class BinaryTree<E> implements Tree<E>, Serializable, Cloneable {
         }
     }
 
+    /**
+     * Appends the unfactored tree (see {@link #unfactor(GrammarFormatType)}) to a {@link StringBuilder} in standard
+     * parenthesis-bracketed representation. Equivalent to <code>unfactor(grammarFormatType).toString()</code>, but
+     * serializes directly from the binary tree, without constructing the intermediate {@link NaryTree}.
+     * 
+     * @param sb Output buffer
+     * @param grammarFormatType Grammar format
+     */
+    public void appendUnfactored(final StringBuilder sb, final GrammarFormatType grammarFormatType) {
+
+        if (leftChild == null && rightChild == null) {
+            sb.append(grammarFormatType.getBaseNT(label.toString(), false));
+            return;
+        }
+
+        sb.append('(');
+        sb.append(grammarFormatType.getBaseNT(label.toString(), false));
+        if (leftChild != null) {
+            leftChild.appendUnfactoredChildren(sb, grammarFormatType);
+        }
+        if (rightChild != null) {
+            rightChild.appendUnfactoredChildren(sb, grammarFormatType);
+        }
+        sb.append(')');
+    }
+
+    /**
+     * Appends this subtree as the child (or, if factored, children) of an unfactored node. Mirrors
+     * {@link #unfactorChildren(NaryTree, GrammarFormatType)}.
+     */
+    private void appendUnfactoredChildren(final StringBuilder sb, final GrammarFormatType grammarFormatType) {
+
+        // Don't try to unfactor leaves
+        if (leftChild == null) {
+            sb.append(' ');
+            sb.append(label.toString());
+            return;
+        }
+
+        if (grammarFormatType.isFactored(label.toString()) || label.equals(NULL_LABEL)) {
+            leftChild.appendUnfactoredChildren(sb, grammarFormatType);
+            if (rightChild != null) {
+                rightChild.appendUnfactoredChildren(sb, grammarFormatType);
+            }
+        } else {
+            sb.append(' ');
+            appendUnfactored(sb, grammarFormatType);
+        }
+    }
+
+    /**
+     * Appends the tree to a {@link StringBuilder} in standard parenthesis-bracketed representation. Equivalent to
+     * {@link #toString()}, without the overhead of a {@link Writer}.
+     * 
+     * @param sb Output buffer
+     */
+    public void appendTo(final StringBuilder sb) {
+
+        if (size > 1) {
+            sb.append('(');
+            sb.append(label.toString());
+
+            if (leftChild != null) {
+                sb.append(' ');
+                leftChild.appendTo(sb);
+            }
+
+            if (rightChild != null) {
+                sb.append(' ');
+                rightChild.appendTo(sb);
+            }
+
+            sb.append(')');
+        } else {
+            sb.append(label.toString());
+        }
+    }
+
     /**
      * Writes the tree to a standard parenthesis-bracketed representation
      * 
@@ -396,6 +396,17 @@ public class TestStringBinaryTree {
         assertEquals(stringSimpleTree, writer.toString());
     }
 
+    @Test
+    public void testAppendTo() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sampleTree.appendTo(sb);
+        assertEquals(stringSampleTree, sb.toString());
+
+        sb = new StringBuilder();
+        new BinaryTree<String>("a", null).appendTo(sb);
+        assertEquals("a", sb.toString());
+    }
+
     @Test
     public void testEquals() throws Exception {
         final BinaryTree<String> tree1 = new BinaryTree<String>("a", null);
@@ -471,6 +482,29 @@ public class TestStringBinaryTree {
                 + "(NP (NN today))))))) (. .)))", String.class), binaryTree.unfactor(GrammarFormatType.CSLU));
     }
 
+    @Test
+    public void testAppendUnfactored() throws Exception {
+        assertAppendUnfactored("(A B C)", GrammarFormatType.Berkeley);
+        assertAppendUnfactored("(A B (@A C D))", GrammarFormatType.Berkeley);
+        assertAppendUnfactored("(A (@A B C) D)", GrammarFormatType.Berkeley);
+        assertAppendUnfactored("(ROOT_0 (NP_31 (@NP_29 (@NP_40 (:_3 --) (NNP_0 C.E.)) (NNP_9 Friedman)) (._3 .)))",
+                GrammarFormatType.Berkeley);
+        assertAppendUnfactored("(ROOT_0 (NP (NN_31 http://foo.com/foo_bar)))", GrammarFormatType.Berkeley);
+        assertAppendUnfactored("(ROOT (S (-NULL- (NP (NN a)) (VP (VB b)))))", GrammarFormatType.CSLU);
+        assertAppendUnfactored("(TOP (S^<TOP> (S|<NP-VP>^<TOP> (NP^<S> (NP^<NP> (JJ Little) (NN chance))"
+                + " (PP^<NP> (IN that) (NP^<PP> (NNP Shane) (NNP Longman))))"
+                + " (VP^<S> (AUX is) (VP^<VP> (VBG going) (S^<VP> (VP^<S> (TO to)"
+                + " (VP^<VP> (VB recoup) (NP^<VP> (NN today)))))))) (. .)))", GrammarFormatType.CSLU);
+        assertAppendUnfactored("(NP^<S> a)", GrammarFormatType.CSLU);
+    }
+
+    private void assertAppendUnfactored(final String tree, final GrammarFormatType grammarFormatType) {
+        final BinaryTree<String> binaryTree = BinaryTree.read(tree, String.class);
+        final StringBuilder sb = new StringBuilder();
+        binaryTree.appendUnfactored(sb, grammarFormatType);
+        assertEquals(binaryTree.unfactor(grammarFormatType).toString(), sb.toString());
+    }
+
     @Test
     public void testMaxUnaryChainLength() {
         assertEquals(0, BinaryTree.read("(a b)", String.class).maxUnaryChainLength());
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.grammar;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.parser.ParserDriver;
+
+/**
+ * A {@link LeftCscSparseMatrixGrammar} which additionally stores the binary rule matrix in tiles, for use by parsers
+ * which iterate over the cartesian product of two child cells one tile at a time (see
+ * {@link edu.ohsu.cslu.parser.ml.BlockedCphSpmlParser}).
+ * 
+ * Parents are divided into blocks of {@link #parentBlockSize} consecutive non-terminals, and left children into
+ * blocks of {@link #leftChildBlockSize}. The rules of each parent block are stored as a separate CSC matrix (indexed
+ * by child pair, as {@link #cscBinaryColumnOffsets}). Since child pairs are packed in left-child order, the rules of
+ * a tile (a parent block and a left-child block) occupy a contiguous range of that matrix, and a parser which
+ * processes one tile at a time touches only that range and the parent block's range of the temporary cell arrays.
+ * With a latent-variable grammar of several thousand non-terminals, those working sets fit in L2 cache, where a
+ * traversal of the entire matrix for each child pair does not.
+ * 
+ * Block sizes are configurable with {@link ParserDriver#OPT_PARENT_BLOCK_SIZE} and
+ * {@link ParserDriver#OPT_LEFT_CHILD_BLOCK_SIZE}.
+ */
+public class BlockedCscSparseMatrixGrammar extends LeftCscSparseMatrixGrammar {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of parents in a block */
+    public final static int DEFAULT_PARENT_BLOCK_SIZE = 256;
+
+    /** Default number of left children in a block */
+    public final static int DEFAULT_LEFT_CHILD_BLOCK_SIZE = 64;
+
+    /** Number of consecutive parents in each block */
+    public final int parentBlockSize;
+
+    /** Number of consecutive left children in each block */
+    public final int leftChildBlockSize;
+
+    /**
+     * Index of each child pair in {@link #cscBinaryPopulatedColumns}, or -1 for child pairs which occur in no binary
+     * rule; indexed by packed child pair. The blocked matrices store column offsets only for populated columns, indexed
+     * by this index (the populated columns of the factored-only matrix are a subset of those of the full matrix).
+     */
+    public final int[] populatedColumnIndices;
+
+    /** Binary rule matrix, split by parent block */
+    public final BlockedMatrix blockedBinaryMatrix;
+
+    /** Factored-only binary rule matrix, split by parent block */
+    public final BlockedMatrix factoredBlockedBinaryMatrix;
+
+    public BlockedCscSparseMatrixGrammar(final Reader grammarFile, final TokenClassifier tokenClassifier,
+            final Class<? extends PackingFunction> packingFunctionClass) throws IOException {
+        super(grammarFile, tokenClassifier, packingFunctionClass);
+
+        this.parentBlockSize = GlobalConfigProperties.singleton().getIntProperty(ParserDriver.OPT_PARENT_BLOCK_SIZE,
+                DEFAULT_PARENT_BLOCK_SIZE);
+        this.leftChildBlockSize = GlobalConfigProperties.singleton().getIntProperty(
+                ParserDriver.OPT_LEFT_CHILD_BLOCK_SIZE, DEFAULT_LEFT_CHILD_BLOCK_SIZE);
+        if (parentBlockSize < 1 || leftChildBlockSize < 1) {
+            throw new IllegalArgumentException("Illegal block size: " + parentBlockSize + " parents, "
+                    + leftChildBlockSize + " left children");
+        }
+
+        this.populatedColumnIndices = new int[packingFunction.packedArraySize()];
+        Arrays.fill(populatedColumnIndices, -1);
+        for (int i = 0; i < cscBinaryPopulatedColumns.length; i++) {
+            populatedColumnIndices[cscBinaryPopulatedColumns[i]] = i;
+        }
+
+        this.blockedBinaryMatrix = new BlockedMatrix(cscBinaryPopulatedColumns, cscBinaryPopulatedColumnOffsets,
+                cscBinaryRowIndices, cscBinaryProbabilities);
+        this.factoredBlockedBinaryMatrix = new BlockedMatrix(factoredCscBinaryPopulatedColumns,
+                factoredCscBinaryPopulatedColumnOffsets, factoredCscBinaryRowIndices, factoredCscBinaryProbabilities);
+    }
+
+    public BlockedCscSparseMatrixGrammar(final Reader grammarFile, final TokenClassifier tokenClassifier)
+            throws IOException {
+        this(grammarFile, tokenClassifier, null);
+    }
+
+    /**
+     * @return The number of parent blocks
+     */
+    public final int parentBlocks() {
+        return (numNonTerms() + parentBlockSize - 1) / parentBlockSize;
+    }
+
+    /**
+     * @return The number of left-child blocks
+     */
+    public final int leftChildBlocks() {
+        return (numNonTerms() + leftChildBlockSize - 1) / leftChildBlockSize;
+    }
+
+    /**
+     * A binary rule matrix stored as one CSC matrix per parent block, over the populated columns of the grammar. The
+     * rules of parent block b for the child pair with populated-column index p (see {@link #populatedColumnIndices})
+     * are stored in indices columnOffsets[b * (columns + 1) + p]..columnOffsets[b * (columns + 1) + p + 1]-1 of
+     * {@link #rowIndices} and {@link #probabilities}, sorted by parent.
+     */
+    public final class BlockedMatrix implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Number of columns (populated child pairs) in each parent block */
+        public final int columns;
+
+        /** Offsets into {@link #rowIndices} of the first rule of each populated column of each parent block */
+        public final int[] columnOffsets;
+
+        /** Parents, grouped by parent block and then by column */
+        public final short[] rowIndices;
+
+        /** Rule probabilities, parallel to {@link #rowIndices} */
+        public final float[] probabilities;
+
+        /**
+         * Number of rules in each tile, indexed by parent block *
+         * {@link BlockedCscSparseMatrixGrammar#leftChildBlocks()} + left-child block. Allows parsers to skip empty
+         * tiles without examining each child pair.
+         */
+        public final int[] tileRules;
+
+        /**
+         * Splits a CSC matrix by parent block.
+         * 
+         * @param populatedColumns Populated columns of the CSC matrix
+         * @param populatedColumnOffsets Offset of the first entry of each populated column (length is 1 greater than
+         *            the number of populated columns)
+         * @param cscRowIndices Row indices (parents), sorted within each column
+         * @param cscProbabilities Rule probabilities
+         */
+        BlockedMatrix(final int[] populatedColumns, final int[] populatedColumnOffsets, final short[] cscRowIndices,
+                final float[] cscProbabilities) {
+
+            final int parentBlocks = parentBlocks();
+            final int leftChildBlocks = leftChildBlocks();
+            this.columns = cscBinaryPopulatedColumns.length;
+            this.columnOffsets = new int[parentBlocks * (columns + 1) + 1];
+            this.rowIndices = new short[cscRowIndices.length];
+            this.probabilities = new float[cscProbabilities.length];
+            this.tileRules = new int[parentBlocks * leftChildBlocks];
+
+            // Count the rules in each column of each parent block (offset by one entry), and convert to offsets
+            for (int i = 0; i < populatedColumns.length; i++) {
+                final int column = populatedColumnIndices[populatedColumns[i]];
+                final int leftChildBlock = packingFunction.unpackLeftChild(populatedColumns[i]) / leftChildBlockSize;
+                for (int j = populatedColumnOffsets[i]; j < populatedColumnOffsets[i + 1]; j++) {
+                    final int parentBlock = cscRowIndices[j] / parentBlockSize;
+                    columnOffsets[parentBlock * (columns + 1) + column + 1]++;
+                    tileRules[parentBlock * leftChildBlocks + leftChildBlock]++;
+                }
+            }
+            for (int i = 1; i < columnOffsets.length; i++) {
+                columnOffsets[i] += columnOffsets[i - 1];
+            }
+
+            // Copy each rule into its parent block. Rules are sorted by parent within each column, so they remain
+            // sorted within each column of each block.
+            final int[] nextIndex = new int[parentBlocks];
+            for (int i = 0; i < populatedColumns.length; i++) {
+                final int column = populatedColumnIndices[populatedColumns[i]];
+                for (int j = populatedColumnOffsets[i]; j < populatedColumnOffsets[i + 1]; j++) {
+                    final int parentBlock = cscRowIndices[j] / parentBlockSize;
+                    final int k = columnOffsets[parentBlock * (columns + 1) + column] + nextIndex[parentBlock]++;
+                    rowIndices[k] = cscRowIndices[j];
+                    probabilities[k] = cscProbabilities[j];
+                }
+                for (int b = 0; b < parentBlocks; b++) {
+                    nextIndex[b] = 0;
+                }
+            }
+        }
+    }
+}
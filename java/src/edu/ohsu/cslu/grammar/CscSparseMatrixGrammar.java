@@ -287,13 +287,15 @@ public abstract class CscSparseMatrixGrammar extends SparseMatrixGrammar {
 
     @Override
     public ArrayList<Production> getBinaryProductions() {
-        final ArrayList<Production> binaryProductions = new ArrayList<Production>(cscUnaryProbabilities.length);
+        final ArrayList<Production> binaryProductions = new ArrayList<Production>(cscBinaryProbabilities.length);
 
-        for (int childPair = 0; childPair < cscBinaryColumnOffsets.length - 1; childPair++) {
+        // Iterate only over populated columns; most of the packed child-pair space is empty
+        for (int c = 0; c < cscBinaryPopulatedColumns.length; c++) {
+            final int childPair = cscBinaryPopulatedColumns[c];
             final short leftChild = (short) packingFunction.unpackLeftChild(childPair);
             final short rightChild = packingFunction.unpackRightChild(childPair);
 
-            for (int i = cscBinaryColumnOffsets[childPair]; i < cscBinaryColumnOffsets[childPair + 1]; i++) {
+            for (int i = cscBinaryPopulatedColumnOffsets[c]; i < cscBinaryPopulatedColumnOffsets[c + 1]; i++) {
                 binaryProductions.add(new Production(cscBinaryRowIndices[i], leftChild, rightChild,
                         cscBinaryProbabilities[i], this));
             }
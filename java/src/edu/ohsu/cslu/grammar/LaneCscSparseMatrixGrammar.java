@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.grammar;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A {@link LeftCscSparseMatrixGrammar} which additionally stores the binary and unary rule matrices in a `lane-blocked'
+ * layout, for use by parsers which process runs of adjacent parents with a fixed-width loop (see
+ * {@link edu.ohsu.cslu.parser.ml.LaneCphSpmlParser}).
+ * 
+ * Within each matrix column (child pair or unary child), parents are grouped into blocks of {@link #LANES} consecutive
+ * non-terminals. Blocks with at least {@link #MIN_LANE_POPULATION} populated parents are stored densely, with
+ * unpopulated lanes padded with negative infinity; the remaining rules are stored as in standard CSC format. Latent-
+ * variable grammars usually contain many rules differing only in the parent's latent annotation, and since we sort
+ * non-terminals so that the splits of each unannotated non-terminal are adjacent, most of the rules in such grammars
+ * fall into dense blocks. The fixed-width block loop requires no row-index lookup per rule, and is amenable to loop
+ * unrolling by the JIT.
+ */
+public class LaneCscSparseMatrixGrammar extends LeftCscSparseMatrixGrammar {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of adjacent parents stored in each dense block */
+    public final static int LANES = 8;
+
+    /** Minimum number of rules in a block of {@link #LANES} parents to store it as a dense block */
+    public final static int MIN_LANE_POPULATION = 4;
+
+    /** Lane-blocked binary rule matrix, indexed by child pair (as {@link #cscBinaryColumnOffsets}) */
+    public final LaneMatrix laneBinaryMatrix;
+
+    /** Lane-blocked factored-only binary rule matrix (as {@link #factoredCscBinaryColumnOffsets}) */
+    public final LaneMatrix factoredLaneBinaryMatrix;
+
+    /** Lane-blocked unary rule matrix, indexed by child (as {@link #cscUnaryColumnOffsets}) */
+    public final LaneMatrix laneUnaryMatrix;
+
+    public LaneCscSparseMatrixGrammar(final Reader grammarFile, final TokenClassifier tokenClassifier,
+            final Class<? extends PackingFunction> packingFunctionClass) throws IOException {
+        super(grammarFile, tokenClassifier, packingFunctionClass);
+
+        this.laneBinaryMatrix = new LaneMatrix(cscBinaryColumnOffsets, cscBinaryRowIndices, cscBinaryProbabilities,
+                numNonTerms());
+        this.factoredLaneBinaryMatrix = new LaneMatrix(factoredCscBinaryColumnOffsets, factoredCscBinaryRowIndices,
+                factoredCscBinaryProbabilities, numNonTerms());
+        this.laneUnaryMatrix = new LaneMatrix(cscUnaryColumnOffsets, cscUnaryRowIndices, cscUnaryProbabilities,
+                numNonTerms());
+    }
+
+    public LaneCscSparseMatrixGrammar(final Reader grammarFile, final TokenClassifier tokenClassifier)
+            throws IOException {
+        this(grammarFile, tokenClassifier, null);
+    }
+
+    /**
+     * A rule matrix stored in lane-blocked format. For each column c, dense blocks are stored in indices
+     * blockOffsets[c]..blockOffsets[c+1]-1 of {@link #blockParents} (and at {@link LaneCscSparseMatrixGrammar#LANES}
+     * times those indices in {@link #blockProbabilities}), and the remaining rules in indices
+     * ruleOffsets[c]..ruleOffsets[c+1]-1 of {@link #rowIndices} and {@link #probabilities}.
+     */
+    public final static class LaneMatrix implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Offsets into {@link #blockParents} of the first dense block of each column */
+        public final int[] blockOffsets;
+
+        /** First (lowest) parent of each dense block */
+        public final short[] blockParents;
+
+        /** Rule probabilities of each dense block, padded with negative infinity for unpopulated lanes */
+        public final float[] blockProbabilities;
+
+        /** Offsets into {@link #rowIndices} of the first sparse rule of each column */
+        public final int[] ruleOffsets;
+
+        /** Parents of rules not included in dense blocks */
+        public final short[] rowIndices;
+
+        /** Probabilities of rules not included in dense blocks */
+        public final float[] probabilities;
+
+        /**
+         * Converts a CSC matrix into lane-blocked format.
+         * 
+         * @param cscColumnOffsets Offset of the first entry of each column. The final column extends to the end of
+         *            the matrix.
+         * @param cscRowIndices Row indices (parents), sorted within each column
+         * @param cscProbabilities Rule probabilities
+         * @param rows Number of rows (non-terminals) in the matrix
+         */
+        public LaneMatrix(final int[] cscColumnOffsets, final short[] cscRowIndices, final float[] cscProbabilities,
+                final int rows) {
+
+            final int columns = cscColumnOffsets.length;
+            // Dense blocks must lie entirely within the matrix rows
+            final int minLanePopulation = rows >= LANES ? MIN_LANE_POPULATION : Integer.MAX_VALUE;
+            this.blockOffsets = new int[columns + 1];
+            this.ruleOffsets = new int[columns + 1];
+
+            // Size the arrays in a first pass over the matrix, and populate them in a second
+            int blocks = 0, rules = 0;
+            for (int column = 0; column < columns; column++) {
+                final int end = column < columns - 1 ? cscColumnOffsets[column + 1] : cscRowIndices.length;
+                for (int i = cscColumnOffsets[column]; i < end;) {
+                    final int blockEnd = blockEnd(cscRowIndices, i, end, rows);
+                    if (blockEnd - i >= minLanePopulation) {
+                        blocks++;
+                    } else {
+                        rules += blockEnd - i;
+                    }
+                    i = blockEnd;
+                }
+            }
+
+            this.blockParents = new short[blocks];
+            this.blockProbabilities = new float[blocks * LANES];
+            Arrays.fill(blockProbabilities, Float.NEGATIVE_INFINITY);
+            this.rowIndices = new short[rules];
+            this.probabilities = new float[rules];
+
+            blocks = 0;
+            rules = 0;
+            for (int column = 0; column < columns; column++) {
+                blockOffsets[column] = blocks;
+                ruleOffsets[column] = rules;
+
+                final int end = column < columns - 1 ? cscColumnOffsets[column + 1] : cscRowIndices.length;
+                for (int i = cscColumnOffsets[column]; i < end;) {
+                    final int blockEnd = blockEnd(cscRowIndices, i, end, rows);
+
+                    if (blockEnd - i >= minLanePopulation) {
+                        final int firstParent = blockStart(cscRowIndices[i], rows);
+                        blockParents[blocks] = (short) firstParent;
+                        for (int j = i; j < blockEnd; j++) {
+                            blockProbabilities[blocks * LANES + cscRowIndices[j] - firstParent] = cscProbabilities[j];
+                        }
+                        blocks++;
+                    } else {
+                        for (int j = i; j < blockEnd; j++) {
+                            rowIndices[rules] = cscRowIndices[j];
+                            probabilities[rules++] = cscProbabilities[j];
+                        }
+                    }
+                    i = blockEnd;
+                }
+            }
+            blockOffsets[columns] = blocks;
+            ruleOffsets[columns] = rules;
+        }
+
+        /**
+         * @return The first parent of a block containing the specified parent. Blocks start at their first parent,
+         *         unless that would extend them beyond the last row.
+         */
+        private static int blockStart(final int parent, final int rows) {
+            return java.lang.Math.max(0, java.lang.Math.min(parent, rows - LANES));
+        }
+
+        /**
+         * @return The index of the first entry (after <code>start</code>) not included in the block beginning with the
+         *         entry at <code>start</code>
+         */
+        private static int blockEnd(final short[] cscRowIndices, final int start, final int end, final int rows) {
+            final int limit = blockStart(cscRowIndices[start], rows) + LANES;
+            int i = start + 1;
+            while (i < end && cscRowIndices[i] < limit) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * @return The fraction of rules stored in dense blocks
+         */
+        public float denseFraction() {
+            int denseRules = 0;
+            for (final float p : blockProbabilities) {
+                if (p != Float.NEGATIVE_INFINITY) {
+                    denseRules++;
+                }
+            }
+            return denseRules == 0 ? 0 : denseRules * 1f / (denseRules + rowIndices.length);
+        }
+    }
+}
@@ -22,6 +22,7 @@
 package edu.ohsu.cslu.grammar;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -40,9 +41,11 @@ import cltool4j.args4j.Option;
 import edu.ohsu.cslu.parser.fom.BoundaryPosModel;
 import edu.ohsu.cslu.parser.fom.FigureOfMeritModel.FOMType;
 import edu.ohsu.cslu.parser.fom.FigureOfMeritModel.FigureOfMerit;
+import edu.ohsu.cslu.util.BinaryModelFile;
 
 /**
- * Command-line tool to convert textual grammar formats to Java serialized object format.
+ * Command-line tool to convert textual grammar formats to Java serialized object format, or (with '-binary') to the
+ * memory-mappable {@link BinaryModelFile} format.
  * 
  * TODO Not validated in several years.
  * 
@@ -69,6 +72,9 @@ public class SerializeModel extends BaseCommandlineTool {
     @Option(name = "-ser", required = true, metaVar = "filename", usage = "Serialized output file")
     private String serializedOutputFile;
 
+    @Option(name = "-binary", usage = "Write the memory-mappable binary model format instead of Java serialization")
+    private boolean binary;
+
     public static void main(final String[] args) {
         run(args);
     }
@@ -86,11 +92,20 @@ public class SerializeModel extends BaseCommandlineTool {
         // Try to create the output stream before we read in the source files. At least it will fail a little
         // sooner if
         // the path is invalid
-        OutputStream os = new FileOutputStream(serializedOutputFile);
-        if (serializedOutputFile.endsWith(".gz")) {
-            os = new GZIPOutputStream(os);
+        final ObjectOutputStream oos;
+        if (binary) {
+            // Binary model files are memory-mapped when loaded, so they cannot be compressed
+            if (serializedOutputFile.endsWith(".gz")) {
+                throw new IllegalArgumentException("Binary model files cannot be gzipped");
+            }
+            oos = new BinaryModelFile.Writer(new File(serializedOutputFile));
+        } else {
+            OutputStream os = new FileOutputStream(serializedOutputFile);
+            if (serializedOutputFile.endsWith(".gz")) {
+                os = new GZIPOutputStream(os);
+            }
+            oos = new ObjectOutputStream(os);
         }
-        final ObjectOutputStream oos = new ObjectOutputStream(os);
 
         BaseLogger.singleton().info("Reading grammar...");
         Grammar g = new ListGrammar(grammarReader, new DecisionTreeTokenClassifier());
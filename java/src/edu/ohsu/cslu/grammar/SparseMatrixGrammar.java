@@ -23,13 +23,13 @@ package edu.ohsu.cslu.grammar;
 
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2IntRBTreeMap;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.shorts.Short2FloatOpenHashMap;
 import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -47,10 +47,18 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import cltool4j.BaseLogger;
 import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.datastructs.narytree.NaryTree.Binarization;
+import edu.ohsu.cslu.hash.PerfectHashTables;
 import edu.ohsu.cslu.lela.FractionalCountGrammar;
 import edu.ohsu.cslu.parser.ParserDriver;
 import edu.ohsu.cslu.parser.Util;
@@ -160,6 +168,9 @@ public abstract class SparseMatrixGrammar extends Grammar {
      */
     private StringPool tmpStringPool;
 
+    /** Number of rule lines parsed by each task when reading a text grammar (see {@link #readPcfgAndLexicon}) */
+    private final static int GRAMMAR_LOAD_CHUNK_SIZE = 4096;
+
     /**
      * Temporary storage of binary productions, used only in constructors and removed to save memory after
      * initialization
@@ -178,8 +189,8 @@ public abstract class SparseMatrixGrammar extends Grammar {
     public SparseMatrixGrammar(final Reader grammarFile, final TokenClassifier tokenClassifier,
             final Class<? extends PackingFunction> functionClass) throws IOException {
 
-        final List<StringProduction> pcfgRules = new LinkedList<StringProduction>();
-        final List<StringProduction> lexicalRules = new LinkedList<StringProduction>();
+        final ArrayList<StringProduction> pcfgRules = new ArrayList<StringProduction>();
+        final ArrayList<StringProduction> lexicalRules = new ArrayList<StringProduction>();
 
         BaseLogger.singleton().finer("INFO: Reading grammar ... ");
         this.tmpStringPool = new StringPool();
@@ -395,8 +406,9 @@ public abstract class SparseMatrixGrammar extends Grammar {
     }
 
     // Read in the grammar file.
-    private GrammarFormatType readPcfgAndLexicon(final Reader grammarFile, final List<StringProduction> pcfgRules,
-            final List<StringProduction> lexicalRules) throws IOException {
+    private GrammarFormatType readPcfgAndLexicon(final Reader grammarFile,
+            final ArrayList<StringProduction> pcfgRules, final ArrayList<StringProduction> lexicalRules)
+            throws IOException {
 
         GrammarFormatType gf;
         final BufferedReader br = new BufferedReader(grammarFile);
@@ -435,44 +447,139 @@ public abstract class SparseMatrixGrammar extends Grammar {
             throw new IllegalArgumentException("Unexpected first line of grammar file: " + firstLine);
         }
 
-        for (String line = br.readLine(); !line.equals(LEXICON_DELIMITER); line = br.readLine()) {
-            final String[] tokens = Strings.splitOnSpace(line);
+        // Parse rule lines in parallel. This thread reads (and decompresses) the grammar file and dispatches chunks of
+        // lines to the thread pool; the parsed chunks are concatenated in input order.
+        final int threads = GlobalConfigProperties.singleton().getIntProperty(ParserDriver.OPT_GRAMMAR_LOAD_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final ConcurrentHashMap<String, String> internMap = new ConcurrentHashMap<String, String>(50000, .75f,
+                java.lang.Math.max(threads, 1));
 
-            if ((tokens.length > 0 && tokens[0].equals("#")) || line.trim().equals("")) {
-                // '#' indicates a comment. Skip line.
-            } else if (tokens.length == 4) {
-                // Unary production: expecting: A -> B prob
-                // TODO: Should we make sure there aren't any duplicates?
-                pcfgRules.add(new StringProduction(tokens[0], tokens[2], Float.parseFloat(tokens[3])));
-            } else if (tokens.length == 5) {
-                // Binary production: expecting: A -> B C prob
-                pcfgRules.add(new BinaryStringProduction(tmpStringPool.intern(tokens[0]), tmpStringPool
-                        .intern(tokens[2]), tmpStringPool.intern(tokens[3]), Float.parseFloat(tokens[4])));
-            } else {
-                throw new IllegalArgumentException("Unexpected line in grammar PCFG\n\t" + line);
+        try {
+            final List<Future<ArrayList<StringProduction>>> pcfgChunks =
+                    new ArrayList<Future<ArrayList<StringProduction>>>();
+            final List<Future<ArrayList<StringProduction>>> lexicalChunks =
+                    new ArrayList<Future<ArrayList<StringProduction>>>();
+
+            ArrayList<String> lines = new ArrayList<String>(GRAMMAR_LOAD_CHUNK_SIZE);
+            String line = br.readLine();
+            for (; line != null && !line.equals(LEXICON_DELIMITER); line = br.readLine()) {
+                lines.add(line);
+                if (lines.size() == GRAMMAR_LOAD_CHUNK_SIZE) {
+                    pcfgChunks.add(submit(executor, new RuleParser(lines, false, internMap)));
+                    lines = new ArrayList<String>(GRAMMAR_LOAD_CHUNK_SIZE);
+                }
+            }
+            pcfgChunks.add(submit(executor, new RuleParser(lines, false, internMap)));
+            if (line == null) {
+                throw new IllegalArgumentException("No lexicon found in grammar file (expected " + LEXICON_DELIMITER
+                        + ")");
+            }
+
+            // Read Lexicon after finding DELIMITER
+            lines = new ArrayList<String>(GRAMMAR_LOAD_CHUNK_SIZE);
+            for (line = br.readLine(); line != null; line = br.readLine()) {
+                lines.add(line);
+                if (lines.size() == GRAMMAR_LOAD_CHUNK_SIZE) {
+                    lexicalChunks.add(submit(executor, new RuleParser(lines, true, internMap)));
+                    lines = new ArrayList<String>(GRAMMAR_LOAD_CHUNK_SIZE);
+                }
+            }
+            lexicalChunks.add(submit(executor, new RuleParser(lines, true, internMap)));
+
+            for (final Future<ArrayList<StringProduction>> chunk : pcfgChunks) {
+                pcfgRules.addAll(chunk.get());
+            }
+            for (final Future<ArrayList<StringProduction>> chunk : lexicalChunks) {
+                lexicalRules.addAll(chunk.get());
+            }
+        } catch (final InterruptedException e) {
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
             }
         }
 
-        // Read Lexicon after finding DELIMITER
-        for (String line = br.readLine(); line != null || lexicalRules.size() == 0; line = br.readLine()) {
-            if (line != null) {
+        br.close();
+
+        return gf;
+    }
+
+    /**
+     * Executes the parsing task on the supplied executor, or in the current thread if the executor is null.
+     */
+    private static Future<ArrayList<StringProduction>> submit(final ExecutorService executor, final RuleParser task) {
+        if (executor != null) {
+            return executor.submit(task);
+        }
+        final FutureTask<ArrayList<StringProduction>> f = new FutureTask<ArrayList<StringProduction>>(task);
+        f.run();
+        return f;
+    }
+
+    /**
+     * Parses a chunk of lines from the PCFG or lexicon section of a text grammar file. Binary rule labels are interned
+     * in a pool shared by all chunks, so the non-terminal sets built from the rules contain a single instance of each
+     * label.
+     */
+    private final static class RuleParser implements Callable<ArrayList<StringProduction>> {
+
+        private final ArrayList<String> lines;
+        private final boolean lexicon;
+        private final ConcurrentHashMap<String, String> internMap;
+
+        public RuleParser(final ArrayList<String> lines, final boolean lexicon,
+                final ConcurrentHashMap<String, String> internMap) {
+            this.lines = lines;
+            this.lexicon = lexicon;
+            this.internMap = internMap;
+        }
+
+        @Override
+        public ArrayList<StringProduction> call() {
+            final ArrayList<StringProduction> rules = new ArrayList<StringProduction>(lines.size());
+
+            for (final String line : lines) {
                 final String[] tokens = Strings.splitOnSpace(line);
-                // if ((tokens.length > 0 && tokens[0].equals("#")) || line.trim().equals("")) {
-                // NB: There are lexical productions that start with '#', namely '# -> #'
-                if (line.trim().equals("")) {
-                    // skip blank lines
+
+                if (lexicon) {
+                    // NB: There are lexical productions that start with '#', namely '# -> #'
+                    if (line.trim().equals("")) {
+                        // skip blank lines
+                    } else if (tokens.length == 4) {
+                        // expecting: A -> B prob
+                        rules.add(new StringProduction(tokens[0], tokens[2], Float.parseFloat(tokens[3])));
+                    } else {
+                        throw new IllegalArgumentException("Unexpected line in grammar lexicon\n\t" + line);
+                    }
+
+                } else if ((tokens.length > 0 && tokens[0].equals("#")) || line.trim().equals("")) {
+                    // '#' indicates a comment. Skip line.
                 } else if (tokens.length == 4) {
-                    // expecting: A -> B prob
-                    lexicalRules.add(new StringProduction(tokens[0], tokens[2], Float.parseFloat(tokens[3])));
+                    // Unary production: expecting: A -> B prob
+                    // TODO: Should we make sure there aren't any duplicates?
+                    rules.add(new StringProduction(tokens[0], tokens[2], Float.parseFloat(tokens[3])));
+                } else if (tokens.length == 5) {
+                    // Binary production: expecting: A -> B C prob
+                    rules.add(new BinaryStringProduction(intern(tokens[0]), intern(tokens[2]), intern(tokens[3]), Float
+                            .parseFloat(tokens[4])));
                 } else {
-                    throw new IllegalArgumentException("Unexpected line in grammar lexicon\n\t" + line);
+                    throw new IllegalArgumentException("Unexpected line in grammar PCFG\n\t" + line);
                 }
             }
+            return rules;
         }
 
-        br.close();
-
-        return gf;
+        private String intern(final String s) {
+            final String internedString = internMap.putIfAbsent(s, s);
+            return internedString != null ? internedString : s;
+        }
     }
 
     private Binarization binarization(final Collection<Production> binaryProds) {
@@ -489,26 +596,29 @@ public abstract class SparseMatrixGrammar extends Grammar {
     /**
      * Populates lexicalLogProbabilities and lexicalParents
      */
-    private void initLexicalProbabilitiesFromStringProductions(final Collection<StringProduction> lexicalRules) {
-        @SuppressWarnings("unchecked")
-        final LinkedList<StringProduction>[] lexicalProdsByChild = new LinkedList[lexSet.size()];
+    private void initLexicalProbabilitiesFromStringProductions(final ArrayList<StringProduction> lexicalRules) {
 
-        for (int i = 0; i < lexicalProdsByChild.length; i++) {
-            lexicalProdsByChild[i] = new LinkedList<StringProduction>();
+        // Bin rules by child with a counting sort, rather than allocating a list per child
+        final int[] children = new int[lexicalRules.size()];
+        final int[] counts = new int[lexSet.size()];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = lexSet.getIndex(lexicalRules.get(i).leftChild);
+            counts[children[i]]++;
+        }
+        for (int child = 0; child < counts.length; child++) {
+            lexicalParents[child] = new short[counts[child]];
+            lexicalLogProbabilities[child] = new float[counts[child]];
         }
 
-        for (final StringProduction p : lexicalRules) {
-            lexicalProdsByChild[lexSet.getIndex(p.leftChild)].add(p);
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < children.length; i++) {
+            final StringProduction p = lexicalRules.get(i);
+            final int j = counts[children[i]]++;
+            lexicalParents[children[i]][j] = (short) nonTermSet.getIndex(p.parent);
+            lexicalLogProbabilities[children[i]][j] = p.probability;
         }
 
-        for (int child = 0; child < lexicalProdsByChild.length; child++) {
-            lexicalParents[child] = new short[lexicalProdsByChild[child].size()];
-            lexicalLogProbabilities[child] = new float[lexicalProdsByChild[child].size()];
-            int j = 0;
-            for (final StringProduction p : lexicalProdsByChild[child]) {
-                lexicalParents[child][j] = (short) nonTermSet.getIndex(p.parent);
-                lexicalLogProbabilities[child][j++] = p.probability;
-            }
+        for (int child = 0; child < lexSet.size(); child++) {
             edu.ohsu.cslu.util.Arrays.sort(lexicalParents[child], lexicalLogProbabilities[child]);
         }
     }
@@ -885,6 +995,18 @@ public abstract class SparseMatrixGrammar extends Grammar {
      * @return A {@link Grammar} instance (of the same class as <b>this</b>), with all non-terminal splits collapsed.
      */
     public Grammar toUnsplitGrammar() {
+        return toUnsplitGrammar(getClass());
+    }
+
+    /**
+     * Returns a {@link Grammar} instance of the specified class, with all non-terminal splits collapsed. Used when the
+     * unsplit grammar is consumed by a different parser implementation than the split grammar (e.g., a coarse
+     * inside-outside pass preceding a fine Viterbi parse).
+     * 
+     * @param grammarClass {@link SparseMatrixGrammar} subclass to construct
+     * @return A {@link Grammar} instance of the specified class, with all non-terminal splits collapsed.
+     */
+    public Grammar toUnsplitGrammar(final Class<? extends SparseMatrixGrammar> grammarClass) {
         final Vocabulary baseVocabulary = nonTermSet.baseVocabulary();
         final FractionalCountGrammar unsplitGrammar = new FractionalCountGrammar(baseVocabulary, lexSet, null, null,
                 null, 0, 0);
@@ -909,7 +1031,7 @@ public abstract class SparseMatrixGrammar extends Grammar {
         }
 
         try {
-            return getClass().getConstructor(
+            return grammarClass.getConstructor(
                     new Class[] { ArrayList.class, ArrayList.class, ArrayList.class, MutableEnumeration.class, MutableEnumeration.class,
                             GrammarFormatType.class, TokenClassifier.class, Class.class, boolean.class }).newInstance(
                     new Object[] { unsplitGrammar.binaryProductions(Float.NEGATIVE_INFINITY),
@@ -918,7 +1040,7 @@ public abstract class SparseMatrixGrammar extends Grammar {
                             grammarFormat, this.tokenClassifier, this.packingFunction.getClass(), true });
         } catch (final Exception e) {
             try {
-                return getClass().getConstructor(
+                return grammarClass.getConstructor(
                         new Class[] { ArrayList.class, ArrayList.class, ArrayList.class, MutableEnumeration.class,
                                 MutableEnumeration.class, GrammarFormatType.class, TokenClassifier.class }).newInstance(
                         new Object[] { unsplitGrammar.binaryProductions(Float.NEGATIVE_INFINITY),
@@ -927,7 +1049,7 @@ public abstract class SparseMatrixGrammar extends Grammar {
                                 grammarFormat, this.tokenClassifier });
 
             } catch (final Exception e2) {
-                throw new UnsupportedOperationException(getClass() + " does not support this operation");
+                throw new UnsupportedOperationException(grammarClass + " does not support this operation");
             }
         }
     }
@@ -1663,186 +1785,22 @@ public abstract class SparseMatrixGrammar extends Grammar {
                 childPairs[1][k++] = p.rightChild;
             }
 
-            // System.out.println("Hashed grammar: " + perfectHash.toString());
-
-            final int parallelArraySize = numNonTerms() + 1; // Math.max(childPairs[0]) + 1;
-
-            // Find unique k2 values for each k1
-            final IntOpenHashSet[] k2Sets = new IntOpenHashSet[parallelArraySize];
-            for (int i = 0; i < k2Sets.length; i++) {
-                k2Sets[i] = new IntOpenHashSet();
-            }
-            for (int i = 0; i < childPairs[0].length; i++) {
-                k2Sets[childPairs[0][i]].add(childPairs[1][i]);
-            }
-
-            // Calculate total key pair count
-            int tmpSize = 0;
-            for (int i = 0; i < k2Sets.length; i++) {
-                tmpSize += k2Sets[i].size();
-            }
-            this.size = tmpSize;
-
-            this.maxKey2 = new int[parallelArraySize];
-
-            // Indexed by k1
-            final int[][] k2s = new int[parallelArraySize][];
-            for (int i = 0; i < k2s.length; i++) {
-                k2s[i] = k2Sets[i].toIntArray();
-                maxKey2[i] = Math.max(k2s[i]);
-            }
-
-            this.k2Shifts = new int[parallelArraySize];
-            this.k2Masks = new int[parallelArraySize];
-            this.hashtableOffsets = new int[parallelArraySize + 1];
-            this.displacementTableOffsets = new int[parallelArraySize + 1];
-
-            final int tmpArraySize = parallelArraySize * Math.max(childPairs[1]) + 1;
-            final short[] tmpHashtable = new short[tmpArraySize];
-            final int[] tmpDisplacementTable = new int[tmpArraySize];
+            // Construct the hash (or retrieve a cached copy for the same child-pair set)
+            final String cacheDirectory = GlobalConfigProperties.singleton().getProperty(
+                    ParserDriver.OPT_PERFECT_HASH_CACHE, null);
+            final PerfectHashTables tables = PerfectHashTables.create(childPairs, numNonTerms() + 1,
+                    cacheDirectory != null ? new File(cacheDirectory) : null);
 
-            for (int k1 = 0; k1 < k2s.length; k1++) {
-
-                final HashtableSegment hs = createPerfectHash(k2s[k1]);
-
-                this.k2Masks[k1] = hs.hashMask;
-                this.k2Shifts[k1] = hs.hashShift;
-
-                // Record the offsets
-                hashtableOffsets[k1 + 1] = hashtableOffsets[k1] + hs.hashtableSegment.length;
-                displacementTableOffsets[k1 + 1] = displacementTableOffsets[k1] + hs.displacementTableSegment.length;
-
-                // Copy the segment into the temporary hash and displacement arrays
-                System.arraycopy(hs.hashtableSegment, 0, tmpHashtable, hashtableOffsets[k1], hs.hashtableSegment.length);
-
-                for (int j = 0; j < hs.displacementTableSegment.length; j++) {
-                    tmpDisplacementTable[displacementTableOffsets[k1] + j] = hashtableOffsets[k1]
-                            + hs.displacementTableSegment[j];
-                }
-            }
-
-            this.hashtable = new short[hashtableOffsets[parallelArraySize]];
-            System.arraycopy(tmpHashtable, 0, this.hashtable, 0, this.hashtable.length);
-            this.displacementTable = new int[displacementTableOffsets[parallelArraySize]];
-            System.arraycopy(tmpDisplacementTable, 0, this.displacementTable, 0, this.displacementTable.length);
+            this.size = tables.size;
+            this.maxKey2 = tables.maxKey2;
+            this.k2Shifts = tables.k2Shifts;
+            this.k2Masks = tables.k2Masks;
+            this.hashtableOffsets = tables.hashtableOffsets;
+            this.hashtable = tables.hashtable;
+            this.displacementTable = tables.displacementTable;
+            this.displacementTableOffsets = tables.displacementTableOffsets;
 
             this.packedArraySize = hashtableSize();
-
-            // Compute the starting offset in binary grammar arrays of each column
-            final Int2IntRBTreeMap childPairCounts = new Int2IntRBTreeMap();
-            childPairCounts.defaultReturnValue(0);
-            for (final Production p : binaryProductions) {
-                final int column = pack((short) p.leftChild, (short) p.rightChild);
-                childPairCounts.put(column, childPairCounts.get(column) + 1);
-            }
-        }
-
-        private int findDisplacement(final short[] target, final short[] merge) {
-            for (int s = 0; s <= target.length - merge.length; s++) {
-                if (!shiftCollides(target, merge, s)) {
-                    return s;
-                }
-            }
-            throw new RuntimeException("Unable to find a successful shift");
-        }
-
-        private HashtableSegment createPerfectHash(final int[] k2s) {
-
-            // If there are no k2 entries for this k1, return a single-entry hash segment, with a shift and
-            // mask that will always resolve to the single (empty) entry
-            if (k2s.length == 0) {
-                return new HashtableSegment(new short[] { Short.MIN_VALUE }, 1, new int[] { 0 }, 1, 32, 0x0,
-                        new short[][] { { Short.MIN_VALUE } });
-            }
-
-            // Compute the size of the square matrix (m)
-            final int m = Math.nextPowerOf2((int) java.lang.Math.sqrt(Math.max(k2s)) + 1);
-            final int n = m;
-
-            // Allocate a temporary hashtable of the maximum possible size
-            final short[] hashtableSegment = new short[m * n];
-            Arrays.fill(hashtableSegment, Short.MIN_VALUE);
-
-            // Allocate the displacement table (r in Getty's notation)
-            final int[] displacementTableSegment = new int[m];
-
-            // Compute shift and mask (for hashing k2, prior to displacement)
-            final int hashBitShift = Math.logBase2(m);
-            int tmp = 0;
-            for (int j = 0; j < hashBitShift; j++) {
-                tmp = tmp << 1 | 0x01;
-            }
-            final int hashMask = tmp;
-
-            // Initialize the matrix
-            final int[] rowIndices = new int[m];
-            final int[] rowCounts = new int[m];
-            final short[][] tmpMatrix = new short[m][n];
-            for (int i = 0; i < m; i++) {
-                rowIndices[i] = i;
-                Arrays.fill(tmpMatrix[i], Short.MIN_VALUE);
-            }
-
-            // Populate the matrix, and count population of each row.
-            for (int i = 0; i < k2s.length; i++) {
-                final int k2 = k2s[i];
-                final int x = k2 >> hashBitShift;
-                final int y = k2 & hashMask;
-                tmpMatrix[x][y] = (short) k2;
-                rowCounts[x]++;
-            }
-
-            // Sort rows in ascending order by population (we'll iterate through the array in reverse order)
-            edu.ohsu.cslu.util.Arrays.sort(rowCounts, rowIndices);
-
-            /*
-             * Store matrix rows in a single array, using the first-fit descending method. For each non-empty row:
-             * 
-             * 1. Displace the row right until none of its items collide with any of the items in previous rows.
-             * 
-             * 2. Record the displacement amount in displacementTableSegment.
-             * 
-             * 3. Insert this row into hashtableSegment.
-             */
-            for (int i = m - 1; i >= 0; i--) {
-                final int row = rowIndices[i];
-                displacementTableSegment[row] = findDisplacement(hashtableSegment, tmpMatrix[row]);
-                for (int col = 0; col < m; col++) {
-                    if (tmpMatrix[row][col] != Short.MIN_VALUE) {
-                        hashtableSegment[displacementTableSegment[row] + col] = tmpMatrix[row][col];
-                    }
-                }
-            }
-
-            // Find the length of the segment (highest populated index in tmpHashtable + n)
-            int maxPopulatedIndex = 0;
-            for (int i = 0; i < hashtableSegment.length; i++) {
-                if (hashtableSegment[i] != Short.MIN_VALUE) {
-                    maxPopulatedIndex = i;
-                }
-            }
-            final int segmentLength = maxPopulatedIndex + n;
-
-            return new HashtableSegment(hashtableSegment, segmentLength, displacementTableSegment, m, hashBitShift,
-                    hashMask, tmpMatrix);
-        }
-
-        /**
-         * Returns true if the merged array, when shifted by s, will `collide' with the target array; i.e., if we
-         * right-shift merge by s, are any populated elements of merge also populated elements of target.
-         * 
-         * @param target
-         * @param merge
-         * @param s
-         * @return
-         */
-        private boolean shiftCollides(final short[] target, final short[] merge, final int s) {
-            for (int i = 0; i < merge.length; i++) {
-                if (merge[i] != Short.MIN_VALUE && target[s + i] != Short.MIN_VALUE) {
-                    return true;
-                }
-            }
-            return false;
         }
 
         @Override
@@ -1885,14 +1843,17 @@ public abstract class SparseMatrixGrammar extends Grammar {
                 return -childPair - 1;
             }
 
-            // Linear search hashtable offsets for index of next-lower offset
-            // A binary search might be a bit more efficient, but this shouldn't be a major time consumer
-            for (int k1 = 0; k1 < hashtableOffsets.length - 1; k1++) {
-                if (childPair >= hashtableOffsets[k1] && childPair < hashtableOffsets[k1 + 1]) {
-                    return k1;
+            // Binary search hashtable offsets for the last offset <= childPair (offsets of empty segments repeat)
+            int low = 0, high = hashtableOffsets.length - 1;
+            while (low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if (hashtableOffsets[mid] <= childPair) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
                 }
             }
-            return hashtableOffsets.length - 1;
+            return low;
         }
 
         @Override
@@ -1929,63 +1890,6 @@ public abstract class SparseMatrixGrammar extends Grammar {
                             * 2 + displacementTable.length * 4);
         }
 
-        private final class HashtableSegment {
-
-            final short[] hashtableSegment;
-            final int[] displacementTableSegment;
-            final int hashShift;
-            final int hashMask;
-
-            final short[][] squareMatrix;
-
-            public HashtableSegment(final short[] hashtableSegment, final int segmentLength,
-                    final int[] displacementTableSegment, final int displacementTableSegmentLength,
-                    final int hashShift, final int hashMask, final short[][] squareMatrix) {
-
-                this.hashtableSegment = new short[segmentLength];
-                System.arraycopy(hashtableSegment, 0, this.hashtableSegment, 0, segmentLength);
-                this.displacementTableSegment = new int[displacementTableSegmentLength];
-                System.arraycopy(displacementTableSegment, 0, this.displacementTableSegment, 0,
-                        displacementTableSegmentLength);
-                this.hashShift = hashShift;
-                this.hashMask = hashMask;
-                this.squareMatrix = squareMatrix;
-            }
-
-            @Override
-            public String toString() {
-                final StringBuilder sb = new StringBuilder();
-                sb.append("   |");
-                for (int col = 0; col < squareMatrix.length; col++) {
-                    sb.append(String.format(" %2d", col));
-                }
-                sb.append('\n');
-                sb.append(Strings.fill('-', squareMatrix.length * 3 + 4));
-                sb.append('\n');
-                for (int row = 0; row < squareMatrix.length; row++) {
-                    sb.append(String.format("%2d |", row));
-                    for (int col = 0; col < squareMatrix.length; col++) {
-                        sb.append(String.format(
-                                " %2s",
-                                squareMatrix[row][col] == Short.MIN_VALUE ? "-" : Short
-                                        .toString(squareMatrix[row][col])));
-                    }
-                    sb.append('\n');
-                }
-                sb.append("index: ");
-                for (int i = 0; i < hashtableSegment.length; i++) {
-                    sb.append(String.format(" %2d", i));
-                }
-                sb.append("\nkeys : ");
-                for (int i = 0; i < hashtableSegment.length; i++) {
-                    sb.append(String.format(" %2s",
-                            hashtableSegment[i] == Short.MIN_VALUE ? "-" : Short.toString(hashtableSegment[i])));
-                }
-                sb.append('\n');
-                return sb.toString();
-            }
-        }
-
         @Override
         public int packedArraySize() {
             return packedArraySize;
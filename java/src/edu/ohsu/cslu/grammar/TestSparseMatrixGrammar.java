@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.grammar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.cjunit.FilteredRunner;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link SparseMatrixGrammar} (and {@link CscSparseMatrixGrammar}) initialization.
+ */
+@RunWith(FilteredRunner.class)
+public class TestSparseMatrixGrammar {
+
+    @After
+    public void tearDown() {
+        GlobalConfigProperties.singleton().clear();
+    }
+
+    /**
+     * Verifies that a grammar parsed with multiple threads is identical to one parsed in a single thread.
+     */
+    @Test
+    public void testParallelLoad() throws IOException {
+
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_GRAMMAR_LOAD_THREADS, "1");
+        final LeftCscSparseMatrixGrammar g1 = loadGrammar();
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_GRAMMAR_LOAD_THREADS, "4");
+        final LeftCscSparseMatrixGrammar g4 = loadGrammar();
+
+        assertEquals(g1.numNonTerms(), g4.numNonTerms());
+        for (short nt = 0; nt < g1.numNonTerms(); nt++) {
+            assertEquals(g1.nonTermSet.getSymbol(nt), g4.nonTermSet.getSymbol(nt));
+        }
+
+        assertArrayEquals(g1.cscBinaryPopulatedColumns, g4.cscBinaryPopulatedColumns);
+        assertArrayEquals(g1.cscBinaryPopulatedColumnOffsets, g4.cscBinaryPopulatedColumnOffsets);
+        assertArrayEquals(g1.cscBinaryRowIndices, g4.cscBinaryRowIndices);
+        assertArrayEquals(g1.cscBinaryProbabilities, g4.cscBinaryProbabilities, 0f);
+
+        assertArrayEquals(g1.factoredCscBinaryPopulatedColumns, g4.factoredCscBinaryPopulatedColumns);
+        assertArrayEquals(g1.factoredCscBinaryRowIndices, g4.factoredCscBinaryRowIndices);
+        assertArrayEquals(g1.factoredCscBinaryProbabilities, g4.factoredCscBinaryProbabilities, 0f);
+
+        assertArrayEquals(g1.cscUnaryColumnOffsets, g4.cscUnaryColumnOffsets);
+        assertArrayEquals(g1.cscUnaryRowIndices, g4.cscUnaryRowIndices);
+        assertArrayEquals(g1.cscUnaryProbabilities, g4.cscUnaryProbabilities, 0f);
+
+        assertEquals(g1.numLexProds(), g4.numLexProds());
+        for (int child = 0; child < g1.lexicalParents.length; child++) {
+            assertArrayEquals(g1.lexicalParents[child], g4.lexicalParents[child]);
+            assertArrayEquals(g1.lexicalLogProbabilities[child], g4.lexicalLogProbabilities[child], 0f);
+        }
+    }
+
+    /**
+     * Verifies that {@link CscSparseMatrixGrammar#getBinaryProductions()} returns all binary rules, and that each
+     * populated column unpacks to the child pair it was packed from.
+     */
+    @Test
+    public void testBinaryProductions() throws IOException {
+        final LeftCscSparseMatrixGrammar g = loadGrammar();
+        final PerfectIntPairHashPackingFunction pf = (PerfectIntPairHashPackingFunction) g.packingFunction();
+
+        final ArrayList<Production> binaryProductions = g.getBinaryProductions();
+        assertEquals(g.numBinaryProds(), binaryProductions.size());
+
+        for (int c = 0, i = 0; c < g.cscBinaryPopulatedColumns.length; c++) {
+            for (; i < g.cscBinaryPopulatedColumnOffsets[c + 1]; i++) {
+                final Production p = binaryProductions.get(i);
+                assertEquals(g.cscBinaryPopulatedColumns[c], pf.pack((short) p.leftChild, (short) p.rightChild));
+                assertEquals(g.cscBinaryRowIndices[i], p.parent);
+                assertEquals(g.cscBinaryProbabilities[i], p.prob, 0f);
+            }
+        }
+
+        for (final int childPair : g.cscBinaryPopulatedColumns) {
+            assertEquals(childPair, pf.pack((short) pf.unpackLeftChild(childPair), pf.unpackRightChild(childPair)));
+        }
+    }
+
+    private LeftCscSparseMatrixGrammar loadGrammar() throws IOException {
+        return new LeftCscSparseMatrixGrammar(JUnit.unitTestDataAsReader("grammars/eng.R2.gr.gz"),
+                new DecisionTreeTokenClassifier(), PerfectIntPairHashPackingFunction.class);
+    }
+}
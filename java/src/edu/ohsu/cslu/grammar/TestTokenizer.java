@@ -23,12 +23,18 @@ package edu.ohsu.cslu.grammar;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Random;
+
 import org.junit.Test;
 
+import edu.ohsu.cslu.tests.JUnit;
+
 /**
- * Unit tests for {@link TokenClassifier}
- * 
- * TODO Add a lot more unit tests before optimizing the tokenization routines
+ * Unit tests for {@link Tokenizer}. {@link Tokenizer#treebankTokenize(String)} is compared against
+ * {@link #referenceTreebankTokenize(String)}, the original regular-expression implementation, over the development
+ * corpus and a large set of random strings.
  * 
  * @author Aaron Dunlop
  */
@@ -58,6 +64,69 @@ public class TestTokenizer {
         assertEquals("`` Ouch ! '' said Fred .", Tokenizer.treebankTokenize("\"Ouch!\" said Fred."));
     }
 
+    @Test
+    public void testTreebankTokenizeEdgeCases() {
+        assertEquals("", Tokenizer.treebankTokenize(""));
+        assertEquals("", Tokenizer.treebankTokenize(" \t\r\n"));
+        assertEquals("`` `` a ''", Tokenizer.treebankTokenize("\"\"a\""));
+        assertEquals("-LRB- `` a '' -RRB-", Tokenizer.treebankTokenize("(\"a\")"));
+        assertEquals("-RRB --", Tokenizer.treebankTokenize(")-"));
+        assertEquals("Wait ... and", Tokenizer.treebankTokenize("Wait.. . and"));
+        assertEquals("He said . ' -RRB-", Tokenizer.treebankTokenize("He said. ')\n"));
+        assertEquals("I can not , Gim me , D' ye , T is", Tokenizer.treebankTokenize("I cannot, Gimme, D'ye, 'Tis"));
+        assertEquals("J. R. R. Tolkien", Tokenizer.treebankTokenize("J. R. R. Tolkien"));
+        assertEquals("the cats ' toys", Tokenizer.treebankTokenize("the cats' toys"));
+    }
+
+    @Test
+    public void testEntryPoints() {
+        final String sentence = "He said, \"The children's parents won't go.\"";
+        final String expected = Tokenizer.treebankTokenize(sentence);
+
+        assertEquals(expected, Tokenizer.treebankTokenize(new StringBuilder(sentence)));
+
+        final char[] buf = ("xx" + sentence + "yy").toCharArray();
+        assertEquals(expected, Tokenizer.treebankTokenize(buf, 2, sentence.length()));
+    }
+
+    /**
+     * Compares tokenization of the (detokenized) development corpus with the reference implementation
+     */
+    @Test
+    public void testTreebankTokenizeCorpus() throws IOException {
+        final BufferedReader br = new BufferedReader(JUnit.unitTestDataAsReader("parsing/wsj.24.tokens.1-20"));
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+            final String sentence = Tokenizer.treebankDetokenize(line);
+            assertEquals(sentence, referenceTreebankTokenize(sentence), Tokenizer.treebankTokenize(sentence));
+            assertEquals(line, referenceTreebankTokenize(line), Tokenizer.treebankTokenize(line));
+        }
+        br.close();
+    }
+
+    /**
+     * Compares tokenization of random strings with the reference implementation. The strings are built from
+     * characters and fragments matched by the tokenization rules, so most of them exercise several rules at once.
+     */
+    @Test
+    public void testTreebankTokenizeRandom() {
+        final String[] fragments = new String[] { " ", " ", " ", "  ", "\"", "'", "''", "``", ".", "..", "...", ". .",
+                ".. .", ",", ";", "?", "!", "$", "%", "&", "@", "#", "(", ")", "[", "]", "{", "}", "<", "-", "--",
+                "\t", "\n", "\r", "\r\n", "\u0085", "\u2028", "a", "b", "the", "A", "J", "Ph.D.", "'s", "'S", "'m",
+                "'d", "'ll", "'re", "'ve", "n't", "'LL", "'RE", "'VE", "N'T", "cannot", "Cannot", "d'ye", "gimme",
+                "Gonna", "gotta", "lemme", "more'n", "'tis", "'Twas", "wanna", "s", "D" };
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                sb.append(fragments[random.nextInt(fragments.length)]);
+            }
+            final String sentence = sb.toString();
+            assertEquals(sentence, referenceTreebankTokenize(sentence), Tokenizer.treebankTokenize(sentence));
+        }
+    }
+
     @Test
     public void testTreebankDetokenize() {
         assertEquals(
@@ -70,4 +139,51 @@ public class TestTokenizer {
                 Tokenizer
                         .treebankDetokenize("do n't wo n't would n't it 's Mitchell 's they 're he 'd I 'm I 'll we 're you 'd they 'll I 've you 've you 'd "));
     }
+
+
+    /**
+     * The original regular-expression implementation of {@link Tokenizer#treebankTokenize(String)}
+     */
+    private static String referenceTreebankTokenize(final String sentence) {
+        String s = sentence;
+        s = s.replaceAll("^\"", "`` ");
+        s = s.replaceAll("([ \\(\\[{<])\"", "$1 `` ");
+        s = s.replaceAll("\"", " ''");
+        s = s.replaceAll("([,;@#$%&?!\\]])", " $1 ");
+        s = s.replaceAll("[.]$", " .");
+        s = s.replaceAll("[.] ([\\[\\({}\\)\\]\"']*)$", " . $1");
+        s = s.replaceAll("Ph\\.D\\.", "Ph. D.");
+        s = s.replaceAll("\\.\\. ?\\.", " ...");
+        s = s.replaceAll(" *\\(", " -LRB- ");
+        s = s.replaceAll("\\)", " -RRB-");
+        s = s.replaceAll(" *\\[", " -LSB- ");
+        s = s.replaceAll("\\]", " -RSB-");
+        s = s.replaceAll(" *\\{", " -LCB- ");
+        s = s.replaceAll("\\}", " -RCB-");
+        s = s.replaceAll("--", " -- ");
+        s = s.replaceAll("$", " ");
+        s = s.replaceAll("^", " ");
+        s = s.replaceAll("([^'])' ", "$1 ' ");
+        s = s.replaceAll("'([sSmMdD]) ", " '$1 ");
+        s = s.replaceAll("'ll ", " 'll ");
+        s = s.replaceAll("'re ", " 're ");
+        s = s.replaceAll("'ve ", " 've ");
+        s = s.replaceAll("n't ", " n't ");
+        s = s.replaceAll("'LL ", " 'LL ");
+        s = s.replaceAll("'RE ", " 'RE ");
+        s = s.replaceAll("'VE ", " 'VE ");
+        s = s.replaceAll("N'T ", " N'T ");
+        s = s.replaceAll(" ([Cc])annot ", " $1an not ");
+        s = s.replaceAll(" ([Dd])'ye ", " $1' ye ");
+        s = s.replaceAll(" ([Gg])imme ", " $1im me ");
+        s = s.replaceAll(" ([Gg])onna ", " $1on na ");
+        s = s.replaceAll(" ([Gg])otta ", " $1ot ta ");
+        s = s.replaceAll(" ([Ll])emme ", " $1em me ");
+        s = s.replaceAll(" ([Mm])ore'n ", " $1ore 'n ");
+        s = s.replaceAll(" '([Tt])is ", " $1 is ");
+        s = s.replaceAll(" '([Tt])was ", " $1 was ");
+        s = s.replaceAll(" ([Ww])anna ", " $1an na ");
+        s = s.replaceAll(" ([A-Z]) \\.", " $1. ");
+        return s.replaceAll("\\s+", " ").trim();
+    }
 }
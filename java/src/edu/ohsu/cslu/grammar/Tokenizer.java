@@ -28,82 +28,59 @@ package edu.ohsu.cslu.grammar;
  */
 public class Tokenizer {
 
+    /** Placeholder for the captured character in the replacement strings of {@link TokenBuffer#replace} */
+    private final static char CAPTURED = '\0';
+
+    private final static String UPPERCASE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private final static ThreadLocal<TokenBuffer> threadLocalBuffer = new ThreadLocal<TokenBuffer>() {
+        @Override
+        protected TokenBuffer initialValue() {
+            return new TokenBuffer();
+        }
+    };
+
     /**
      * Performs standard Penn-Treebank-style tokenization, including marking special characters such as brackets,
      * quotes, etc. The behavior is similar to that of the sed script at
      * http://www.cis.upenn.edu/~treebank/tokenizer.sed, but adds some additional tokenizations targeted at
      * non-canonical genres.
      * 
-     * Note: this implementation uses a lot of on-the-fly regex operations, so it isn't very efficient. It's not a
-     * bottleneck for parsing, but probably is for finite-state operations like POS tagging.
-     * 
-     * TODO Add a lot more unit tests before optimizing the tokenization routines
-     * 
      * @param sentence A single untokenized sentence.
      * @return Tokenized sentence, with tokens separated by single spaces
      */
     public static String treebankTokenize(final String sentence) {
-        String s = sentence;
-        // Directional open and close quotes
-        s = s.replaceAll("^\"", "`` ");
-        s = s.replaceAll("([ \\(\\[{<])\"", "$1 `` ");
-        s = s.replaceAll("\"", " ''");
-
-        // Add spaces around question marks, exclamation points, and other punctuation (excluding periods)
-        s = s.replaceAll("([,;@#$%&?!\\]])", " $1 ");
-
-        // Split _final_ periods only
-        s = s.replaceAll("[.]$", " .");
-        s = s.replaceAll("[.] ([\\[\\({}\\)\\]\"']*)$", " . $1");
-
-        // The Penn Treebank splits Ph.D. -> 'Ph. D.', so we'll special-case that
-        s = s.replaceAll("Ph\\.D\\.", "Ph. D.");
-
-        // Segment ellipses and re-collapse if it was split
-        s = s.replaceAll("\\.\\. ?\\.", " ...");
-
-        // Parentheses, brackets, etc.
-        s = s.replaceAll(" *\\(", " -LRB- ");
-        s = s.replaceAll("\\)", " -RRB-");
-        s = s.replaceAll(" *\\[", " -LSB- ");
-        s = s.replaceAll("\\]", " -RSB-");
-        s = s.replaceAll(" *\\{", " -LCB- ");
-        s = s.replaceAll("\\}", " -RCB-");
-        s = s.replaceAll("--", " -- ");
-
-        s = s.replaceAll("$", " ");
-        s = s.replaceAll("^", " ");
-
-        s = s.replaceAll("([^'])' ", "$1 ' ");
-
-        // Possessives, contractions, etc.
-        s = s.replaceAll("'([sSmMdD]) ", " '$1 ");
-        s = s.replaceAll("'ll ", " 'll ");
-        s = s.replaceAll("'re ", " 're ");
-        s = s.replaceAll("'ve ", " 've ");
-        s = s.replaceAll("n't ", " n't ");
-        s = s.replaceAll("'LL ", " 'LL ");
-        s = s.replaceAll("'RE ", " 'RE ");
-        s = s.replaceAll("'VE ", " 'VE ");
-        s = s.replaceAll("N'T ", " N'T ");
-
-        // Contractions and pseudo-words
-        s = s.replaceAll(" ([Cc])annot ", " $1an not ");
-        s = s.replaceAll(" ([Dd])'ye ", " $1' ye ");
-        s = s.replaceAll(" ([Gg])imme ", " $1im me ");
-        s = s.replaceAll(" ([Gg])onna ", " $1on na ");
-        s = s.replaceAll(" ([Gg])otta ", " $1ot ta ");
-        s = s.replaceAll(" ([Ll])emme ", " $1em me ");
-        s = s.replaceAll(" ([Mm])ore'n ", " $1ore 'n ");
-        s = s.replaceAll(" '([Tt])is ", " $1 is ");
-        s = s.replaceAll(" '([Tt])was ", " $1 was ");
-        s = s.replaceAll(" ([Ww])anna ", " $1an na ");
+        final TokenBuffer buffer = threadLocalBuffer.get();
+        buffer.load(sentence);
+        return buffer.treebankTokenize();
+    }
 
-        // Remove spaces from abbreviations
-        s = s.replaceAll(" ([A-Z]) \\.", " $1. ");
+    /**
+     * Performs standard Penn-Treebank-style tokenization (see {@link #treebankTokenize(String)}), without first copying
+     * the input to a {@link String}.
+     * 
+     * @param sentence A single untokenized sentence.
+     * @return Tokenized sentence, with tokens separated by single spaces
+     */
+    public static String treebankTokenize(final CharSequence sentence) {
+        final TokenBuffer buffer = threadLocalBuffer.get();
+        buffer.load(sentence);
+        return buffer.treebankTokenize();
+    }
 
-        // Collapse multiple spaces and trim whitespace from beginning and end
-        return s.replaceAll("\\s+", " ").trim();
+    /**
+     * Performs standard Penn-Treebank-style tokenization (see {@link #treebankTokenize(String)}) of a range of a
+     * character array (e.g., a line read into a reusable I/O buffer).
+     * 
+     * @param sentence Character array containing a single untokenized sentence
+     * @param offset Offset of the sentence in the array
+     * @param length Length of the sentence
+     * @return Tokenized sentence, with tokens separated by single spaces
+     */
+    public static String treebankTokenize(final char[] sentence, final int offset, final int length) {
+        final TokenBuffer buffer = threadLocalBuffer.get();
+        buffer.load(sentence, offset, length);
+        return buffer.treebankTokenize();
     }
 
     /**
@@ -179,4 +156,459 @@ public class Tokenizer {
         // Collapse multiple spaces and trim whitespace from beginning and end
         return s.replaceAll("\\s+", " ").trim();
     }
+
+    /**
+     * Reusable storage for {@link Tokenizer#treebankTokenize(String)}. Each tokenization rule is a hand-written linear
+     * scan, copying from {@link #chars} into {@link #scratch} (and then swapping the two) only if the rule matches.
+     * The rules are applied in sequence, since many of them match text inserted by earlier rules (e.g. the spaces
+     * surrounding punctuation, or the hyphens of '-RRB-' followed by '-'). Each has the semantics of the
+     * corresponding {@link String#replaceAll(String, String)} in the original regular-expression implementation,
+     * including leftmost, non-overlapping matching and the treatment of a trailing line terminator by '$'.
+     */
+    private final static class TokenBuffer {
+
+        private char[] chars = new char[256];
+        private int length;
+
+        private char[] scratch = new char[256];
+        private int scratchLength;
+
+        void load(final CharSequence sentence) {
+            length = 0;
+            ensureCapacity(sentence.length());
+            if (sentence instanceof String) {
+                ((String) sentence).getChars(0, sentence.length(), chars, 0);
+            } else {
+                for (int i = 0; i < sentence.length(); i++) {
+                    chars[i] = sentence.charAt(i);
+                }
+            }
+            length = sentence.length();
+        }
+
+        void load(final char[] sentence, final int offset, final int sentenceLength) {
+            length = 0;
+            ensureCapacity(sentenceLength);
+            System.arraycopy(sentence, offset, chars, 0, sentenceLength);
+            length = sentenceLength;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (chars.length < capacity) {
+                chars = new char[java.lang.Math.max(capacity, chars.length * 2)];
+            }
+        }
+
+        String treebankTokenize() {
+
+            // Directional open and close quotes, and spaces around question marks, exclamation points, and other
+            // punctuation (excluding periods)
+            quotesAndPunctuation();
+
+            // Split _final_ periods only
+            finalPeriods();
+
+            // The Penn Treebank splits Ph.D. -> 'Ph. D.', so we'll special-case that
+            replace("Ph.D.", -1, null, "Ph. D.");
+
+            // Segment ellipses and re-collapse if it was split
+            ellipses();
+
+            // Parentheses, brackets, etc.
+            openBracket('(', " -LRB- ");
+            replace(")", -1, null, " -RRB-");
+            openBracket('[', " -LSB- ");
+            replace("]", -1, null, " -RSB-");
+            openBracket('{', " -LCB- ");
+            replace("}", -1, null, " -RCB-");
+            replace("--", -1, null, " -- ");
+
+            pad();
+
+            splitQuotes();
+
+            // Possessives, contractions, etc.
+            replace("'s ", 1, "sSmMdD", " '" + CAPTURED + " ");
+            replace("'ll ", -1, null, " 'll ");
+            replace("'re ", -1, null, " 're ");
+            replace("'ve ", -1, null, " 've ");
+            replace("n't ", -1, null, " n't ");
+            replace("'LL ", -1, null, " 'LL ");
+            replace("'RE ", -1, null, " 'RE ");
+            replace("'VE ", -1, null, " 'VE ");
+            replace("N'T ", -1, null, " N'T ");
+
+            // Contractions and pseudo-words
+            replace(" cannot ", 1, "Cc", " " + CAPTURED + "an not ");
+            replace(" d'ye ", 1, "Dd", " " + CAPTURED + "' ye ");
+            replace(" gimme ", 1, "Gg", " " + CAPTURED + "im me ");
+            replace(" gonna ", 1, "Gg", " " + CAPTURED + "on na ");
+            replace(" gotta ", 1, "Gg", " " + CAPTURED + "ot ta ");
+            replace(" lemme ", 1, "Ll", " " + CAPTURED + "em me ");
+            replace(" more'n ", 1, "Mm", " " + CAPTURED + "ore 'n ");
+            replace(" 'tis ", 2, "Tt", " " + CAPTURED + " is ");
+            replace(" 'twas ", 2, "Tt", " " + CAPTURED + " was ");
+            replace(" wanna ", 1, "Ww", " " + CAPTURED + "an na ");
+
+            // Remove spaces from abbreviations
+            replace(" X .", 1, UPPERCASE, " " + CAPTURED + ". ");
+
+            // Collapse multiple spaces and trim whitespace from beginning and end
+            return collapseWhitespace();
+        }
+
+        /**
+         * Prepares {@link #scratch} to receive the output of a rule
+         * 
+         * @param maxLength Maximum length of the output
+         */
+        private void beginRule(final int maxLength) {
+            if (scratch.length < maxLength) {
+                scratch = new char[java.lang.Math.max(maxLength, scratch.length * 2)];
+            }
+            scratchLength = 0;
+        }
+
+        private void emit(final char c) {
+            scratch[scratchLength++] = c;
+        }
+
+        private void emit(final String s) {
+            s.getChars(0, s.length(), scratch, scratchLength);
+            scratchLength += s.length();
+        }
+
+        private void emit(final int start, final int end) {
+            System.arraycopy(chars, start, scratch, scratchLength, end - start);
+            scratchLength += end - start;
+        }
+
+        /**
+         * Swaps the output of a rule into {@link #chars}
+         */
+        private void endRule() {
+            final char[] tmp = chars;
+            chars = scratch;
+            length = scratchLength;
+            scratch = tmp;
+        }
+
+        /**
+         * Inserts a single character into {@link #chars}
+         */
+        private void insert(final int index, final char c) {
+            beginRule(length + 1);
+            emit(0, index);
+            emit(c);
+            emit(index, length);
+            endRule();
+        }
+
+        /**
+         * @return The index at which '$' matches (the end of the buffer, or before a final line terminator)
+         */
+        private int endOfInput() {
+            if (length >= 2 && chars[length - 2] == '\r' && chars[length - 1] == '\n') {
+                return length - 2;
+            }
+            if (length >= 1) {
+                final char c = chars[length - 1];
+                if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                    return length - 1;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * <pre>
+         * ^"                 -> ``
+         * ([ \(\[{<])"        -> $1 ``
+         * "                  ->  ''
+         * ([,;@#$%&?!\]])     ->  $1
+         * </pre>
+         * 
+         * The replacements do not overlap the other patterns, so we can apply all 4 in a single scan.
+         */
+        private void quotesAndPunctuation() {
+            beginRule(length * 3);
+
+            for (int i = 0; i < length; i++) {
+                final char c = chars[i];
+                switch (c) {
+
+                case '"':
+                    if (i == 0) {
+                        emit("`` ");
+                    } else if ((i == 1 && chars[0] == '"') || isOpenQuoteContext(chars[i - 1])) {
+                        // The opening quote replacement above inserts a space, which may precede another quote
+                        emit(" `` ");
+                    } else {
+                        emit(" ''");
+                    }
+                    break;
+
+                case ',':
+                case ';':
+                case '@':
+                case '#':
+                case '$':
+                case '%':
+                case '&':
+                case '?':
+                case '!':
+                case ']':
+                    emit(' ');
+                    emit(c);
+                    emit(' ');
+                    break;
+
+                default:
+                    emit(c);
+                }
+            }
+            endRule();
+        }
+
+        private boolean isOpenQuoteContext(final char c) {
+            return c == ' ' || c == '(' || c == '[' || c == '{' || c == '<';
+        }
+
+        /**
+         * <pre>
+         * [.]$                            ->  .
+         * [.] ([\[\({}\)\]"']*)$          ->  . $1
+         * </pre>
+         */
+        private void finalPeriods() {
+            int end = endOfInput();
+            if (end > 0 && chars[end - 1] == '.') {
+                insert(end - 1, ' ');
+                end++;
+            }
+
+            int suffixStart = end;
+            while (suffixStart > 0 && isFinalPunctuation(chars[suffixStart - 1])) {
+                suffixStart--;
+            }
+            if (suffixStart >= 2 && chars[suffixStart - 1] == ' ' && chars[suffixStart - 2] == '.') {
+                insert(suffixStart - 2, ' ');
+            }
+        }
+
+        private boolean isFinalPunctuation(final char c) {
+            return c == '[' || c == '(' || c == '{' || c == '}' || c == ')' || c == ']' || c == '"' || c == '\'';
+        }
+
+        /**
+         * <pre>
+         * \.\. ?\.   ->  ...
+         * </pre>
+         */
+        private void ellipses() {
+            int i = indexOf('.', 0);
+            if (i < 0) {
+                return;
+            }
+
+            beginRule(length + length / 3 + 1);
+            emit(0, i);
+            while (i < length) {
+                if (chars[i] == '.' && i + 2 < length && chars[i + 1] == '.') {
+                    if (chars[i + 2] == '.') {
+                        emit(" ...");
+                        i += 3;
+                        continue;
+                    } else if (chars[i + 2] == ' ' && i + 3 < length && chars[i + 3] == '.') {
+                        emit(" ...");
+                        i += 4;
+                        continue;
+                    }
+                }
+                emit(chars[i++]);
+            }
+            endRule();
+        }
+
+        /**
+         * Replaces an opening bracket and any spaces preceding it (' *\(')
+         * 
+         * @param bracket
+         * @param replacement
+         */
+        private void openBracket(final char bracket, final String replacement) {
+            if (indexOf(bracket, 0) < 0) {
+                return;
+            }
+
+            beginRule(length * replacement.length());
+            for (int i = 0; i < length;) {
+                if (chars[i] == ' ') {
+                    int j = i + 1;
+                    while (j < length && chars[j] == ' ') {
+                        j++;
+                    }
+                    if (j < length && chars[j] == bracket) {
+                        emit(replacement);
+                        i = j + 1;
+                    } else {
+                        emit(i, j);
+                        i = j;
+                    }
+                } else if (chars[i] == bracket) {
+                    emit(replacement);
+                    i++;
+                } else {
+                    emit(chars[i++]);
+                }
+            }
+            endRule();
+        }
+
+        /**
+         * <pre>
+         * $  ->  ' '
+         * ^  ->  ' '
+         * </pre>
+         * 
+         * Note that '$' matches both before a final line terminator and at the end of the input.
+         */
+        private void pad() {
+            final int end = endOfInput();
+            beginRule(length + 3);
+            emit(' ');
+            emit(0, end);
+            emit(' ');
+            if (end < length) {
+                emit(end, length);
+                emit(' ');
+            }
+            endRule();
+        }
+
+        /**
+         * <pre>
+         * ([^'])'   ->  $1 '
+         * </pre>
+         */
+        private void splitQuotes() {
+            int i = indexOf('\'', 1);
+            if (i < 0) {
+                return;
+            }
+
+            beginRule(length * 2);
+            emit(0, i - 1);
+            for (i = i - 1; i < length;) {
+                if (i + 2 < length && chars[i] != '\'' && chars[i + 1] == '\'' && chars[i + 2] == ' ') {
+                    emit(chars[i]);
+                    emit(" ' ");
+                    i += 3;
+                } else {
+                    emit(chars[i++]);
+                }
+            }
+            endRule();
+        }
+
+        /**
+         * Replaces all (non-overlapping) occurrences of a pattern, optionally including one character class.
+         * 
+         * @param pattern Literal pattern
+         * @param classIndex Index of the character class in the pattern (-1 if none)
+         * @param characterClass Characters matched at <code>classIndex</code>
+         * @param replacement Replacement, in which {@link Tokenizer#CAPTURED} is replaced by the character matched
+         *            at <code>classIndex</code>
+         */
+        private void replace(final String pattern, final int classIndex, final String characterClass,
+                final String replacement) {
+
+            int i = find(pattern, classIndex, characterClass, 0);
+            if (i < 0) {
+                return;
+            }
+
+            beginRule(length / pattern.length() * replacement.length() + length);
+            int copied = 0;
+            while (i >= 0) {
+                emit(copied, i);
+                for (int j = 0; j < replacement.length(); j++) {
+                    final char c = replacement.charAt(j);
+                    emit(c == CAPTURED ? chars[i + classIndex] : c);
+                }
+                copied = i + pattern.length();
+                i = find(pattern, classIndex, characterClass, copied);
+            }
+            emit(copied, length);
+            endRule();
+        }
+
+        /**
+         * @return The index of the first match of the pattern at or after <code>start</code>, or -1 if none
+         */
+        private int find(final String pattern, final int classIndex, final String characterClass, final int start) {
+            // None of the patterns start with a character class, so we can scan for the first character
+            final char first = pattern.charAt(0);
+            final int last = length - pattern.length();
+            for (int i = start; i <= last; i++) {
+                if (chars[i] == first && matches(pattern, classIndex, characterClass, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(final String pattern, final int classIndex, final String characterClass,
+                final int start) {
+            for (int j = 1; j < pattern.length(); j++) {
+                if (j == classIndex ? characterClass.indexOf(chars[start + j]) < 0
+                        : chars[start + j] != pattern.charAt(j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int indexOf(final char c, final int start) {
+            for (int i = start; i < length; i++) {
+                if (chars[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Collapses whitespace ('\s+' -> ' ') and trims the result (per {@link String#trim()}).
+         */
+        private String collapseWhitespace() {
+            beginRule(length);
+            for (int i = 0; i < length;) {
+                if (isWhitespace(chars[i])) {
+                    while (i < length && isWhitespace(chars[i])) {
+                        i++;
+                    }
+                    emit(' ');
+                } else {
+                    emit(chars[i++]);
+                }
+            }
+
+            int start = 0, end = scratchLength;
+            while (start < end && scratch[start] <= ' ') {
+                start++;
+            }
+            while (end > start && scratch[end - 1] <= ' ') {
+                end--;
+            }
+            return new String(scratch, start, end - start);
+        }
+
+        /**
+         * @return True if the character matches '\s' (<code>[ \t\n\x0B\f\r]</code>)
+         */
+        private boolean isWhitespace(final char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+    }
 }
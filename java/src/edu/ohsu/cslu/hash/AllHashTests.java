@@ -26,7 +26,7 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ TestBasicInt2IntHash.class, TestPerfectInt2IntHash.class, TestBasicIntPair2IntHash.class,
-        TestPerfectIntPair2IntHash.class, TestSegmentedPerfectIntPair2IntHash.class })
+        TestPerfectIntPair2IntHash.class, TestSegmentedPerfectIntPair2IntHash.class, TestPerfectHashTables.class })
 public class AllHashTests {
 
 }
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.hash;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import cltool4j.BaseLogger;
+import edu.ohsu.cslu.util.BinaryModelFile;
+import edu.ohsu.cslu.util.Math;
+
+/**
+ * The tables of a segmented perfect hash over integer key pairs: a separate hash-and-displace perfect hash of the key-2
+ * values for each key-1 value, stored in a single parallel array (see {@link SegmentedPerfectIntPair2IntHash} for
+ * details of the hashing method). Shared by {@link SegmentedPerfectIntPair2IntHash} and
+ * {@link edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction}.
+ * 
+ * The displacement search dominates construction time, so the segments (one per key-1) are constructed in parallel.
+ * The resulting tables depend only on the set of key pairs, so completed tables are cached, keyed by a digest of that
+ * set. The most recently used tables are cached in memory, and if a cache directory is specified, tables are also
+ * stored there as binary model files (see {@link BinaryModelFile}), and reused by later processes.
+ */
+public final class PerfectHashTables implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tables retained in the in-memory cache */
+    private final static int MEMORY_CACHE_ENTRIES = 8;
+
+    /** Number of segments constructed by each parallel task */
+    private final static int SEGMENTS_PER_TASK = 16;
+
+    private final static String CACHE_FILE_SUFFIX = ".pfh";
+
+    private final static Map<String, PerfectHashTables> memoryCache = new LinkedHashMap<String, PerfectHashTables>(
+            MEMORY_CACHE_ENTRIES * 2, .75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, PerfectHashTables> eldest) {
+            return size() > MEMORY_CACHE_ENTRIES;
+        }
+    };
+
+    /** Digest of the key-pair set */
+    public final String digest;
+
+    /** Total number of key pairs */
+    public final int size;
+
+    /** Parallel arrays, indexed by k1 */
+    public final int[] maxKey2;
+    public final int[] k2Shifts;
+    public final int[] k2Masks;
+
+    /** Offsets of each perfect hash `segment' within {@link #hashtable}, indexed by k1. */
+    public final int[] hashtableOffsets;
+    public final short[] hashtable;
+
+    /** Offsets of each perfect hash `segment' within {@link #displacementTableOffsets}, indexed by k1. */
+    public final int[] displacementTable;
+    public final int[] displacementTableOffsets;
+
+    private PerfectHashTables(final String digest, final int[][] k2s) {
+
+        this.digest = digest;
+        final int parallelArraySize = k2s.length;
+
+        // Construct the segments in parallel
+        final HashtableSegment[] segments = createSegments(k2s);
+
+        int tmpSize = 0;
+        this.maxKey2 = new int[parallelArraySize];
+        this.k2Shifts = new int[parallelArraySize];
+        this.k2Masks = new int[parallelArraySize];
+        this.hashtableOffsets = new int[parallelArraySize + 1];
+        this.displacementTableOffsets = new int[parallelArraySize + 1];
+
+        for (int k1 = 0; k1 < parallelArraySize; k1++) {
+            final HashtableSegment hs = segments[k1];
+            tmpSize += k2s[k1].length;
+            maxKey2[k1] = Math.max(k2s[k1]);
+            k2Masks[k1] = hs.hashMask;
+            k2Shifts[k1] = hs.hashShift;
+
+            // Record the offsets
+            hashtableOffsets[k1 + 1] = hashtableOffsets[k1] + hs.hashtableSegment.length;
+            displacementTableOffsets[k1 + 1] = displacementTableOffsets[k1] + hs.displacementTableSegment.length;
+        }
+        this.size = tmpSize;
+
+        // Copy the segments into the hash and displacement arrays
+        this.hashtable = new short[hashtableOffsets[parallelArraySize]];
+        this.displacementTable = new int[displacementTableOffsets[parallelArraySize]];
+        for (int k1 = 0; k1 < parallelArraySize; k1++) {
+            final HashtableSegment hs = segments[k1];
+            System.arraycopy(hs.hashtableSegment, 0, hashtable, hashtableOffsets[k1], hs.hashtableSegment.length);
+
+            for (int j = 0; j < hs.displacementTableSegment.length; j++) {
+                displacementTable[displacementTableOffsets[k1] + j] = hashtableOffsets[k1]
+                        + hs.displacementTableSegment[j];
+            }
+        }
+    }
+
+    /**
+     * Returns perfect hash tables for the specified key pairs, from the in-memory or on-disk cache if available, or
+     * constructs (and caches) them if not.
+     * 
+     * @param keyPairs Key pairs, as parallel arrays of key-1 and key-2 values. Duplicate pairs are permitted.
+     * @param parallelArraySize Size of the parallel arrays (1 greater than the maximum key-1 value)
+     * @param cacheDirectory Directory in which to store and find cached tables. If null, tables are only cached in
+     *            memory.
+     * @return Perfect hash tables for the specified key pairs
+     */
+    public static PerfectHashTables create(final int[][] keyPairs, final int parallelArraySize,
+            final File cacheDirectory) {
+
+        // Find the unique k2 values for each k1. The order of k2s doesn't affect the tables, but we sort them so the
+        // digest depends only on the key-pair set.
+        final IntOpenHashSet[] k2Sets = new IntOpenHashSet[parallelArraySize];
+        for (int i = 0; i < k2Sets.length; i++) {
+            k2Sets[i] = new IntOpenHashSet();
+        }
+        for (int i = 0; i < keyPairs[0].length; i++) {
+            k2Sets[keyPairs[0][i]].add(keyPairs[1][i]);
+        }
+
+        final int[][] k2s = new int[parallelArraySize][];
+        for (int i = 0; i < k2s.length; i++) {
+            k2s[i] = k2Sets[i].toIntArray();
+            Arrays.sort(k2s[i]);
+        }
+        final String digest = digest(k2s);
+
+        synchronized (memoryCache) {
+            final PerfectHashTables tables = memoryCache.get(digest);
+            if (tables != null) {
+                return tables;
+            }
+        }
+
+        final File cacheFile = cacheDirectory != null ? new File(cacheDirectory, digest + CACHE_FILE_SUFFIX) : null;
+        PerfectHashTables tables = cacheFile != null && cacheFile.exists() ? read(cacheFile, k2s) : null;
+
+        if (tables == null) {
+            tables = new PerfectHashTables(digest, k2s);
+            if (cacheFile != null) {
+                write(tables, cacheFile);
+            }
+        }
+
+        synchronized (memoryCache) {
+            memoryCache.put(digest, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Clears the in-memory cache
+     */
+    public static void clearMemoryCache() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+        }
+    }
+
+    /**
+     * @return Hex-encoded MD5 digest of the key-pair set
+     */
+    private static String digest(final int[][] k2s) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("MD5");
+            final ByteBuffer bb = ByteBuffer.allocate(4);
+            md.update(bb.putInt(0, k2s.length).array());
+            for (int k1 = 0; k1 < k2s.length; k1++) {
+                md.update(bb.putInt(0, k2s[k1].length).array());
+                for (final int k2 : k2s[k1]) {
+                    md.update(bb.putInt(0, k2).array());
+                }
+            }
+            final StringBuilder sb = new StringBuilder(32);
+            for (final byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // All JVMs are required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads cached tables, and verifies that they hash each of the expected key pairs.
+     * 
+     * @return Cached tables, or null if the file cannot be read or does not match the key pairs
+     */
+    private static PerfectHashTables read(final File cacheFile, final int[][] k2s) {
+        try {
+            final ObjectInputStream ois = BinaryModelFile.open(cacheFile);
+            try {
+                final PerfectHashTables tables = (PerfectHashTables) ois.readObject();
+                if (tables.matches(k2s)) {
+                    return tables;
+                }
+                BaseLogger.singleton().log(Level.WARNING, "Ignoring mismatched perfect hash cache file " + cacheFile);
+            } finally {
+                ois.close();
+            }
+        } catch (final Exception e) {
+            BaseLogger.singleton().log(Level.WARNING,
+                    "Unable to read perfect hash cache file " + cacheFile + ": " + e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Writes tables to the cache directory. Writes to a temporary file first, so concurrent readers never see a partial
+     * file.
+     */
+    private static void write(final PerfectHashTables tables, final File cacheFile) {
+        try {
+            cacheFile.getParentFile().mkdirs();
+            final File tmpFile = File.createTempFile(tables.digest, ".tmp", cacheFile.getParentFile());
+            final ObjectOutputStream oos = new BinaryModelFile.Writer(tmpFile);
+            oos.writeObject(tables);
+            oos.close();
+            if (!tmpFile.renameTo(cacheFile)) {
+                tmpFile.delete();
+            }
+        } catch (final IOException e) {
+            BaseLogger.singleton().log(Level.WARNING,
+                    "Unable to write perfect hash cache file " + cacheFile + ": " + e.toString());
+        }
+    }
+
+    /**
+     * @return True if these tables contain exactly the specified k2 values for each k1
+     */
+    private boolean matches(final int[][] k2s) {
+        if (k2s.length != maxKey2.length) {
+            return false;
+        }
+        int count = 0;
+        for (int k1 = 0; k1 < k2s.length; k1++) {
+            for (final int k2 : k2s[k1]) {
+                if (hashcode(k1, k2) < 0) {
+                    return false;
+                }
+                count++;
+            }
+        }
+        return count == size;
+    }
+
+    private int hashcode(final int k1, final int k2) {
+        if (k2 > maxKey2[k1]) {
+            return Integer.MIN_VALUE;
+        }
+        final int mask = k2Masks[k1];
+        final int x = k2 >> k2Shifts[k1] & mask;
+        final int y = k2 & mask;
+        final int hashcode = displacementTable[displacementTableOffsets[k1] + x] + y;
+        return hashtable[hashcode] == k2 ? hashcode : Integer.MIN_VALUE;
+    }
+
+    /**
+     * Constructs a hash segment for each k1, using all available CPUs.
+     */
+    private static HashtableSegment[] createSegments(final int[][] k2s) {
+        final HashtableSegment[] segments = new HashtableSegment[k2s.length];
+        final int threads = java.lang.Math.min(Runtime.getRuntime().availableProcessors(), k2s.length
+                / SEGMENTS_PER_TASK);
+
+        if (threads <= 1) {
+            for (int k1 = 0; k1 < k2s.length; k1++) {
+                segments[k1] = createPerfectHash(k2s[k1]);
+            }
+            return segments;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int start = 0; start < k2s.length; start += SEGMENTS_PER_TASK) {
+                final int taskStart = start;
+                final int taskEnd = java.lang.Math.min(start + SEGMENTS_PER_TASK, k2s.length);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int k1 = taskStart; k1 < taskEnd; k1++) {
+                            segments[k1] = createPerfectHash(k2s[k1]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> f : futures) {
+                f.get();
+            }
+        } catch (final InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return segments;
+    }
+
+    private static int findDisplacement(final short[] target, final short[] merge) {
+        for (int s = 0; s <= target.length - merge.length; s++) {
+            if (!shiftCollides(target, merge, s)) {
+                return s;
+            }
+        }
+        throw new RuntimeException("Unable to find a successful shift");
+    }
+
+    private static HashtableSegment createPerfectHash(final int[] k2s) {
+
+        // If there are no k2 entries for this k1, return a single-entry hash segment, with a shift and mask
+        // that will always resolve to the single (empty) entry
+        if (k2s.length == 0) {
+            return new HashtableSegment(new short[] { Short.MIN_VALUE }, 1, new int[] { 0 }, 1, 32, 0x0);
+        }
+
+        // Compute the size of the square matrix (m)
+        final int m = Math.nextPowerOf2((int) java.lang.Math.sqrt(Math.max(k2s)) + 1);
+        final int n = m;
+
+        // Allocate a temporary hashtable of the maximum possible size
+        final short[] hashtableSegment = new short[m * n];
+        Arrays.fill(hashtableSegment, Short.MIN_VALUE);
+
+        // Allocate the displacement table (r in Getty's notation)
+        final int[] displacementTableSegment = new int[m];
+
+        // Compute shift and mask (for hashing k2, prior to displacement)
+        final int hashBitShift = Math.logBase2(m);
+        int tmp = 0;
+        for (int j = 0; j < hashBitShift; j++) {
+            tmp = tmp << 1 | 0x01;
+        }
+        final int hashMask = tmp;
+
+        // Initialize the matrix
+        final int[] rowIndices = new int[m];
+        final int[] rowCounts = new int[m];
+        final short[][] tmpMatrix = new short[m][n];
+        for (int i = 0; i < m; i++) {
+            rowIndices[i] = i;
+            Arrays.fill(tmpMatrix[i], Short.MIN_VALUE);
+        }
+
+        // Populate the matrix, and count population of each row.
+        for (int i = 0; i < k2s.length; i++) {
+            final int k2 = k2s[i];
+            final int x = k2 >> hashBitShift;
+            final int y = k2 & hashMask;
+            tmpMatrix[x][y] = (short) k2;
+            rowCounts[x]++;
+        }
+
+        // Sort rows in ascending order by population (we'll iterate through the array in reverse order)
+        edu.ohsu.cslu.util.Arrays.sort(rowCounts, rowIndices);
+
+        /*
+         * Store matrix rows in a single array, using the first-fit descending method. For each non-empty row:
+         * 
+         * 1. Displace the row right until none of its items collide with any of the items in previous rows.
+         * 
+         * 2. Record the displacement amount in displacementTableSegment.
+         * 
+         * 3. Insert this row into hashtableSegment.
+         */
+        for (int i = m - 1; i >= 0; i--) {
+            final int row = rowIndices[i];
+            displacementTableSegment[row] = findDisplacement(hashtableSegment, tmpMatrix[row]);
+            for (int col = 0; col < m; col++) {
+                if (tmpMatrix[row][col] != Short.MIN_VALUE) {
+                    hashtableSegment[displacementTableSegment[row] + col] = tmpMatrix[row][col];
+                }
+            }
+        }
+
+        // Find the length of the segment (highest populated index in tmpHashtable + n)
+        int maxPopulatedIndex = 0;
+        for (int i = 0; i < hashtableSegment.length; i++) {
+            if (hashtableSegment[i] != Short.MIN_VALUE) {
+                maxPopulatedIndex = i;
+            }
+        }
+        final int segmentLength = maxPopulatedIndex + n;
+
+        return new HashtableSegment(hashtableSegment, segmentLength, displacementTableSegment, m, hashBitShift,
+                hashMask);
+    }
+
+    /**
+     * Returns true if the merged array, when shifted by s, will `collide' with the target array; i.e., if we
+     * right-shift merge by s, are any populated elements of merge also populated elements of target.
+     * 
+     * @param target
+     * @param merge
+     * @param s
+     * @return
+     */
+    private static boolean shiftCollides(final short[] target, final short[] merge, final int s) {
+        for (int i = 0; i < merge.length; i++) {
+            if (merge[i] != Short.MIN_VALUE && target[s + i] != Short.MIN_VALUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("keys: %d hashtable size: %d occupancy: %.2f%% shift-table size: %d totalMem: %d", size,
+                hashtable.length, size * 100f / hashtable.length, displacementTable.length, hashtable.length * 2
+                        + displacementTable.length * 4);
+    }
+
+    private final static class HashtableSegment {
+
+        final short[] hashtableSegment;
+        final int[] displacementTableSegment;
+        final int hashShift;
+        final int hashMask;
+
+        public HashtableSegment(final short[] hashtableSegment, final int segmentLength,
+                final int[] displacementTableSegment, final int displacementTableSegmentLength, final int hashShift,
+                final int hashMask) {
+
+            this.hashtableSegment = new short[segmentLength];
+            System.arraycopy(hashtableSegment, 0, this.hashtableSegment, 0, segmentLength);
+            this.displacementTableSegment = new int[displacementTableSegmentLength];
+            System.arraycopy(displacementTableSegment, 0, this.displacementTableSegment, 0,
+                    displacementTableSegmentLength);
+            this.hashShift = hashShift;
+            this.hashMask = hashMask;
+        }
+    }
+}
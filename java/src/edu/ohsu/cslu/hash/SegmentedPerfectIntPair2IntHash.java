@@ -21,12 +21,9 @@
  */
 package edu.ohsu.cslu.hash;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-
-import java.util.Arrays;
+import java.io.File;
 
 import edu.ohsu.cslu.util.Math;
-import edu.ohsu.cslu.util.Strings;
 
 /**
  * Implementation of {@link ImmutableIntPair2IntHash} which creates separate perfect-hashes for each key 1 value
@@ -46,6 +43,8 @@ import edu.ohsu.cslu.util.Strings;
  * operations. The matrix sizes (and thus the shifts and masks) vary for each k1, based on the maximum k2 observed for
  * that k1.
  * 
+ * The tables themselves are constructed (in parallel) and cached by {@link PerfectHashTables}.
+ * 
  * TODO Try using a non-square matrix (many hashes are fairly sparse, so a narrower matrix often results in a denser
  * hash).
  * 
@@ -74,175 +73,27 @@ public class SegmentedPerfectIntPair2IntHash implements ImmutableIntPair2IntHash
     private final int size;
 
     public SegmentedPerfectIntPair2IntHash(final int[][] keyPairs) {
-
-        final int parallelArraySize = Math.max(keyPairs[0]) + 1;
-
-        // Find unique k2 values for each k1
-        final IntOpenHashSet[] k2Sets = new IntOpenHashSet[parallelArraySize];
-        for (int i = 0; i < k2Sets.length; i++) {
-            k2Sets[i] = new IntOpenHashSet();
-        }
-        for (int i = 0; i < keyPairs[0].length; i++) {
-            k2Sets[keyPairs[0][i]].add(keyPairs[1][i]);
-        }
-
-        // Calculate total key pair count
-        int tmpSize = 0;
-        for (int i = 0; i < k2Sets.length; i++) {
-            tmpSize += k2Sets[i].size();
-        }
-        this.size = tmpSize;
-
-        this.maxKey2 = new int[parallelArraySize];
-
-        // Indexed by k1
-        final int[][] k2s = new int[parallelArraySize][];
-        for (int i = 0; i < k2s.length; i++) {
-            k2s[i] = k2Sets[i].toIntArray();
-            maxKey2[i] = Math.max(k2s[i]);
-        }
-
-        this.k2Shifts = new int[parallelArraySize];
-        this.k2Masks = new int[parallelArraySize];
-        this.hashtableOffsets = new int[parallelArraySize + 1];
-        this.displacementTableOffsets = new int[parallelArraySize + 1];
-
-        final int tmpArraySize = parallelArraySize * Math.max(keyPairs[1]) + 1;
-        final short[] tmpHashtable = new short[tmpArraySize];
-        final int[] tmpDisplacementTable = new int[tmpArraySize];
-
-        for (int k1 = 0; k1 < k2s.length; k1++) {
-
-            final HashtableSegment hs = createPerfectHash(k2s[k1]);
-
-            this.k2Masks[k1] = hs.hashMask;
-            this.k2Shifts[k1] = hs.hashShift;
-
-            // Record the offsets
-            hashtableOffsets[k1 + 1] = hashtableOffsets[k1] + hs.hashtableSegment.length;
-            displacementTableOffsets[k1 + 1] = displacementTableOffsets[k1] + hs.displacementTableSegment.length;
-
-            // Copy the segment into the temporary hash and displacement arrays
-            System.arraycopy(hs.hashtableSegment, 0, tmpHashtable, hashtableOffsets[k1], hs.hashtableSegment.length);
-
-            for (int j = 0; j < hs.displacementTableSegment.length; j++) {
-                tmpDisplacementTable[displacementTableOffsets[k1] + j] = hashtableOffsets[k1]
-                        + hs.displacementTableSegment[j];
-            }
-        }
-
-        this.hashtable = new short[hashtableOffsets[parallelArraySize]];
-        System.arraycopy(tmpHashtable, 0, this.hashtable, 0, this.hashtable.length);
-        this.displacementTable = new int[displacementTableOffsets[parallelArraySize]];
-        System.arraycopy(tmpDisplacementTable, 0, this.displacementTable, 0, this.displacementTable.length);
-    }
-
-    private int findDisplacement(final short[] target, final short[] merge) {
-        for (int s = 0; s <= target.length - merge.length; s++) {
-            if (!shiftCollides(target, merge, s)) {
-                return s;
-            }
-        }
-        throw new RuntimeException("Unable to find a successful shift");
-    }
-
-    private HashtableSegment createPerfectHash(final int[] k2s) {
-
-        // If there are no k2 entries for this k1, return a single-entry hash segment, with a shift and mask
-        // that will always resolve to the single (empty) entry
-        if (k2s.length == 0) {
-            return new HashtableSegment(new short[] { Short.MIN_VALUE }, 1, new int[] { 0 }, 1, 32, 0x0,
-                    new short[][] { { Short.MIN_VALUE } });
-        }
-
-        // Compute the size of the square matrix (m)
-        final int m = Math.nextPowerOf2((int) java.lang.Math.sqrt(Math.max(k2s)) + 1);
-        final int n = m;
-
-        // Allocate a temporary hashtable of the maximum possible size
-        final short[] hashtableSegment = new short[m * n];
-        Arrays.fill(hashtableSegment, Short.MIN_VALUE);
-
-        // Allocate the displacement table (r in Getty's notation)
-        final int[] displacementTableSegment = new int[m];
-
-        // Compute shift and mask (for hashing k2, prior to displacement)
-        final int hashBitShift = Math.logBase2(m);
-        int tmp = 0;
-        for (int j = 0; j < hashBitShift; j++) {
-            tmp = tmp << 1 | 0x01;
-        }
-        final int hashMask = tmp;
-
-        // Initialize the matrix
-        final int[] rowIndices = new int[m];
-        final int[] rowCounts = new int[m];
-        final short[][] tmpMatrix = new short[m][n];
-        for (int i = 0; i < m; i++) {
-            rowIndices[i] = i;
-            Arrays.fill(tmpMatrix[i], Short.MIN_VALUE);
-        }
-
-        // Populate the matrix, and count population of each row.
-        for (int i = 0; i < k2s.length; i++) {
-            final int k2 = k2s[i];
-            final int x = k2 >> hashBitShift;
-            final int y = k2 & hashMask;
-            tmpMatrix[x][y] = (short) k2;
-            rowCounts[x]++;
-        }
-
-        // Sort rows in ascending order by population (we'll iterate through the array in reverse order)
-        edu.ohsu.cslu.util.Arrays.sort(rowCounts, rowIndices);
-
-        /*
-         * Store matrix rows in a single array, using the first-fit descending method. For each non-empty row:
-         * 
-         * 1. Displace the row right until none of its items collide with any of the items in previous rows.
-         * 
-         * 2. Record the displacement amount in displacementTableSegment.
-         * 
-         * 3. Insert this row into hashtableSegment.
-         */
-        for (int i = m - 1; i >= 0; i--) {
-            final int row = rowIndices[i];
-            displacementTableSegment[row] = findDisplacement(hashtableSegment, tmpMatrix[row]);
-            for (int col = 0; col < m; col++) {
-                if (tmpMatrix[row][col] != Short.MIN_VALUE) {
-                    hashtableSegment[displacementTableSegment[row] + col] = tmpMatrix[row][col];
-                }
-            }
-        }
-
-        // Find the length of the segment (highest populated index in tmpHashtable + n)
-        int maxPopulatedIndex = 0;
-        for (int i = 0; i < hashtableSegment.length; i++) {
-            if (hashtableSegment[i] != Short.MIN_VALUE) {
-                maxPopulatedIndex = i;
-            }
-        }
-        final int segmentLength = maxPopulatedIndex + n;
-
-        return new HashtableSegment(hashtableSegment, segmentLength, displacementTableSegment, m, hashBitShift,
-                hashMask, tmpMatrix);
+        this(keyPairs, null);
     }
 
     /**
-     * Returns true if the merged array, when shifted by s, will `collide' with the target array; i.e., if we
-     * right-shift merge by s, are any populated elements of merge also populated elements of target.
-     * 
-     * @param target
-     * @param merge
-     * @param s
-     * @return
+     * @param keyPairs Key pairs, as parallel arrays of key-1 and key-2 values
+     * @param cacheDirectory Directory in which to store and find cached hash tables (see {@link PerfectHashTables}).
+     *            If null, tables are only cached in memory.
      */
-    private boolean shiftCollides(final short[] target, final short[] merge, final int s) {
-        for (int i = 0; i < merge.length; i++) {
-            if (merge[i] != Short.MIN_VALUE && target[s + i] != Short.MIN_VALUE) {
-                return true;
-            }
-        }
-        return false;
+    public SegmentedPerfectIntPair2IntHash(final int[][] keyPairs, final File cacheDirectory) {
+
+        final PerfectHashTables tables = PerfectHashTables.create(keyPairs, Math.max(keyPairs[0]) + 1,
+                cacheDirectory);
+
+        this.size = tables.size;
+        this.maxKey2 = tables.maxKey2;
+        this.k2Shifts = tables.k2Shifts;
+        this.k2Masks = tables.k2Masks;
+        this.hashtableOffsets = tables.hashtableOffsets;
+        this.hashtable = tables.hashtable;
+        this.displacementTable = tables.displacementTable;
+        this.displacementTableOffsets = tables.displacementTableOffsets;
     }
 
     @Override
@@ -308,58 +159,4 @@ public class SegmentedPerfectIntPair2IntHash implements ImmutableIntPair2IntHash
                 hashtableSize(), size * 100f / hashtableSize(), displacementTable.length, hashtable.length * 2
                         + displacementTable.length * 4);
     }
-
-    private final class HashtableSegment {
-        final short[] hashtableSegment;
-        final int[] displacementTableSegment;
-        final int hashShift;
-        final int hashMask;
-
-        final short[][] squareMatrix;
-
-        public HashtableSegment(final short[] hashtableSegment, final int segmentLength,
-                final int[] displacementTableSegment, final int displacementTableSegmentLength, final int hashShift,
-                final int hashMask, final short[][] squareMatrix) {
-
-            this.hashtableSegment = new short[segmentLength];
-            System.arraycopy(hashtableSegment, 0, this.hashtableSegment, 0, segmentLength);
-            this.displacementTableSegment = new int[displacementTableSegmentLength];
-            System.arraycopy(displacementTableSegment, 0, this.displacementTableSegment, 0,
-                    displacementTableSegmentLength);
-            this.hashShift = hashShift;
-            this.hashMask = hashMask;
-            this.squareMatrix = squareMatrix;
-        }
-
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder();
-            sb.append("   |");
-            for (int col = 0; col < squareMatrix.length; col++) {
-                sb.append(String.format(" %2d", col));
-            }
-            sb.append('\n');
-            sb.append(Strings.fill('-', squareMatrix.length * 3 + 4));
-            sb.append('\n');
-            for (int row = 0; row < squareMatrix.length; row++) {
-                sb.append(String.format("%2d |", row));
-                for (int col = 0; col < squareMatrix.length; col++) {
-                    sb.append(String.format(" %2s",
-                            squareMatrix[row][col] == Short.MIN_VALUE ? "-" : Short.toString(squareMatrix[row][col])));
-                }
-                sb.append('\n');
-            }
-            sb.append("index: ");
-            for (int i = 0; i < hashtableSegment.length; i++) {
-                sb.append(String.format(" %2d", i));
-            }
-            sb.append("\nkeys : ");
-            for (int i = 0; i < hashtableSegment.length; i++) {
-                sb.append(String.format(" %2s",
-                        hashtableSegment[i] == Short.MIN_VALUE ? "-" : Short.toString(hashtableSegment[i])));
-            }
-            sb.append('\n');
-            return sb.toString();
-        }
-    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.hash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link PerfectHashTables} caching
+ */
+public class TestPerfectHashTables {
+
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        PerfectHashTables.clearMemoryCache();
+        cacheDirectory = Files.createTempDirectory("perfect-hash").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        PerfectHashTables.clearMemoryCache();
+        for (final File f : cacheDirectory.listFiles()) {
+            f.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void testMemoryCache() throws IOException {
+        final int[][] keyPairs = keyPairs("hash/berkeley.rm");
+        final PerfectHashTables tables = PerfectHashTables.create(keyPairs, 1 + keyMax(keyPairs[0]), null);
+        assertSame(tables, PerfectHashTables.create(keyPairs, 1 + keyMax(keyPairs[0]), null));
+        assertEquals(0, cacheDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testDiskCache() throws IOException {
+        final int[][] keyPairs = keyPairs("hash/berkeley.rm");
+        final PerfectHashTables tables = PerfectHashTables.create(keyPairs, 1 + keyMax(keyPairs[0]), cacheDirectory);
+        assertTrue(new File(cacheDirectory, tables.digest + ".pfh").exists());
+
+        // Force a read from the disk cache
+        PerfectHashTables.clearMemoryCache();
+        final PerfectHashTables cachedTables = PerfectHashTables.create(keyPairs, 1 + keyMax(keyPairs[0]),
+                cacheDirectory);
+        assertNotSame(tables, cachedTables);
+        assertTablesEqual(tables, cachedTables);
+    }
+
+    /**
+     * Verifies that a cache file containing tables for a different key-pair set is ignored
+     */
+    @Test
+    public void testMismatchedCacheFile() throws IOException {
+        final int[][] berkeleyKeyPairs = keyPairs("hash/berkeley.rm");
+        final int[][] r2KeyPairs = keyPairs("hash/f2_21_R2.rm");
+
+        final PerfectHashTables berkeleyTables = PerfectHashTables.create(berkeleyKeyPairs,
+                1 + keyMax(berkeleyKeyPairs[0]), cacheDirectory);
+        final PerfectHashTables r2Tables = PerfectHashTables.create(r2KeyPairs, 1 + keyMax(r2KeyPairs[0]),
+                cacheDirectory);
+
+        // Overwrite the R2 tables with the Berkeley tables
+        Files.copy(new File(cacheDirectory, berkeleyTables.digest + ".pfh").toPath(), new File(cacheDirectory,
+                r2Tables.digest + ".pfh").toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        PerfectHashTables.clearMemoryCache();
+        assertTablesEqual(r2Tables, PerfectHashTables.create(r2KeyPairs, 1 + keyMax(r2KeyPairs[0]), cacheDirectory));
+    }
+
+    private void assertTablesEqual(final PerfectHashTables expected, final PerfectHashTables actual) {
+        assertEquals(expected.digest, actual.digest);
+        assertEquals(expected.size, actual.size);
+        assertArrayEquals(expected.maxKey2, actual.maxKey2);
+        assertArrayEquals(expected.k2Shifts, actual.k2Shifts);
+        assertArrayEquals(expected.k2Masks, actual.k2Masks);
+        assertArrayEquals(expected.hashtableOffsets, actual.hashtableOffsets);
+        assertArrayEquals(expected.hashtable, actual.hashtable);
+        assertArrayEquals(expected.displacementTable, actual.displacementTable);
+        assertArrayEquals(expected.displacementTableOffsets, actual.displacementTableOffsets);
+    }
+
+    private int keyMax(final int[] keys) {
+        return edu.ohsu.cslu.util.Math.max(keys);
+    }
+
+    private int[][] keyPairs(final String filename) throws IOException {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(JUnit.unitTestDataAsStream(filename)));
+        final IntArrayList k1s = new IntArrayList();
+        final IntArrayList k2s = new IntArrayList();
+
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+            final String[] split = line.split(",");
+            k1s.add(Integer.parseInt(split[0]));
+            k2s.add(Integer.parseInt(split[1]));
+        }
+        br.close();
+        return new int[][] { k1s.toIntArray(), k2s.toIntArray() };
+    }
+}
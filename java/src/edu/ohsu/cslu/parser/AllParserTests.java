@@ -26,7 +26,11 @@ import org.junit.runners.Suite;
 
 import edu.ohsu.cslu.dep.AllDependencyTests;
 import edu.ohsu.cslu.grammar.AllGrammarTests;
+import edu.ohsu.cslu.parser.cellselector.TestCoarseToFineModel;
+import edu.ohsu.cslu.parser.chart.TestBinaryForest;
 import edu.ohsu.cslu.parser.chart.TestChart;
+import edu.ohsu.cslu.parser.chart.TestKBestExtractor;
+import edu.ohsu.cslu.parser.chart.TestNgramCellMemo;
 import edu.ohsu.cslu.parser.ecp.TestECPCellCrossHash;
 import edu.ohsu.cslu.parser.ecp.TestECPCellCrossList;
 import edu.ohsu.cslu.parser.ecp.TestECPCellCrossMatrix;
@@ -37,9 +41,11 @@ import edu.ohsu.cslu.parser.spmv.AllSparseMatrixVectorParserTests;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ AllGrammarTests.class, AllDependencyTests.class, TestChart.class, TestParser.class,
-        TestECPGramLoop.class, TestECPGramLoopBerkFilter.class, TestECPCellCrossHash.class, TestECPCellCrossList.class,
+        TestParseCache.class, TestNgramCellMemo.class, TestKBestExtractor.class, TestBinaryForest.class,
+        TestReparseStageModel.class, TestPruneGrammar.class, TestCoarseToFineModel.class, TestECPGramLoop.class,
+        TestECPGramLoopBerkFilter.class, TestECPCellCrossHash.class, TestECPCellCrossList.class,
         TestECPCellCrossMatrix.class, AllSparseMatrixVectorParserTests.class, AllMatrixLoopParserTests.class,
-        TestParserDriver.class })
+        TestParserDriver.class, TestParseServer.class })
 public class AllParserTests {
 
 }
@@ -52,8 +52,8 @@ public abstract class ChartParser<G extends Grammar, C extends Chart> extends Pa
     }
 
     @Override
-    public ParseTask parseSentence(final String input, final RecoveryStrategy recoveryStrategy) {
-        final ParseTask task = super.parseSentence(input, recoveryStrategy);
+    public ParseTask parseSentence(final String input, final RecoveryStrategy recoveryStrategy, final long deadline) {
+        final ParseTask task = super.parseSentence(input, recoveryStrategy, deadline);
         if (task.binaryParse == null && recoveryStrategy != null) {
             task.recoveryParse = chart.extractRecoveryParse(recoveryStrategy);
         }
@@ -129,19 +129,36 @@ public abstract class ChartParser<G extends Grammar, C extends Chart> extends Pa
     }
 
     /**
-     * Executes the inside / viterbi parsing pass
+     * Executes the inside / viterbi parsing pass. If the parse deadline expires (see
+     * {@link Parser#PROPERTY_PARSE_DEADLINE_MS}), abandons the pass at the end of the current chart row.
      */
     protected void insidePass() {
+        int currentSpan = 1;
         while (cellSelector.hasNext()) {
             final short[] startAndEnd = cellSelector.next();
-            final ChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
-            if (startAndEnd[1] - startAndEnd[0] == 1) {
-                addLexicalProductions(cell);
+            if (startAndEnd[1] - startAndEnd[0] > currentSpan) {
+                if (chart.parseTask.deadlineExpired()) {
+                    return;
+                }
+                currentSpan = startAndEnd[1] - startAndEnd[0];
             }
-            computeInsideProbabilities(cell);
+            populateCell(chart.getCell(startAndEnd[0], startAndEnd[1]));
         }
     }
 
+    /**
+     * Populates a single chart cell: adds lexical productions (in span-1 cells) and performs grammar intersection (see
+     * {@link #computeInsideProbabilities(ChartCell)}).
+     * 
+     * @param cell The cell to populate
+     */
+    protected void populateCell(final ChartCell cell) {
+        if (cell.end() - cell.start() == 1) {
+            addLexicalProductions(cell);
+        }
+        computeInsideProbabilities(cell);
+    }
+
     protected final BinaryTree<String> extract(final RecoveryStrategy recoveryStrategy) {
         if (collectDetailedStatistics) {
             final long t3 = System.currentTimeMillis();
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cjunit.FilteredRunner;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.runner.RunWith;
+
+import cltool4j.ConfigProperties;
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.Parser.InputFormat;
+import edu.ohsu.cslu.parser.cellselector.LeftRightBottomTopTraversal;
+import edu.ohsu.cslu.parser.fom.InsideProb;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Shared fixture for tests which parse WSJ section 24 sentences with a {@link CartesianProductHashSpmlParser} and the
+ * R2 grammar. The grammar and sentences are loaded once, and shared by all subclasses. Pruning parameters set with
+ * {@link #setPruningParameters()} are removed after each test.
+ * 
+ * Subclasses must not hide {@link #loadGrammar()} or {@link #removePruningParameters()} (e.g., with their own
+ * <code>suiteSetUp</code> or <code>tearDown</code> methods of the same names).
+ */
+@RunWith(FilteredRunner.class)
+public abstract class CphParserTestCase {
+
+    protected static LeftCscSparseMatrixGrammar grammar;
+
+    /** The first 20 sentences of WSJ section 24 */
+    protected final static List<String> sentences = new ArrayList<String>();
+
+    @BeforeClass
+    public static void loadGrammar() throws IOException {
+        if (grammar == null) {
+            grammar = new LeftCscSparseMatrixGrammar(JUnit.unitTestDataAsReader("grammars/eng.R2.gr.gz"),
+                    new DecisionTreeTokenClassifier(), PerfectIntPairHashPackingFunction.class);
+        }
+
+        if (sentences.isEmpty()) {
+            final BufferedReader br = new BufferedReader(JUnit.unitTestDataAsReader("parsing/wsj.24.tokens.1-20"));
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                sentences.add(line);
+            }
+            br.close();
+        }
+    }
+
+    @After
+    public void removePruningParameters() {
+        final ConfigProperties props = GlobalConfigProperties.singleton();
+        props.remove(Parser.PROPERTY_MAX_BEAM_WIDTH);
+        props.remove(Parser.PROPERTY_LEXICAL_ROW_BEAM_WIDTH);
+        props.remove(Parser.PROPERTY_LEXICAL_ROW_UNARIES);
+    }
+
+    /**
+     * Configures a moderate beam (wide enough to find the Viterbi parse of most test sentences, but narrow enough that
+     * pruning affects the chart)
+     */
+    protected static void setPruningParameters() {
+        setPruningParameters(20, 40, 10);
+    }
+
+    protected static void setPruningParameters(final int beamWidth, final int lexicalRowBeamWidth,
+            final int lexicalRowUnaries) {
+        final ConfigProperties props = GlobalConfigProperties.singleton();
+        props.setProperty(Parser.PROPERTY_MAX_BEAM_WIDTH, Integer.toString(beamWidth));
+        props.setProperty(Parser.PROPERTY_LEXICAL_ROW_BEAM_WIDTH, Integer.toString(lexicalRowBeamWidth));
+        props.setProperty(Parser.PROPERTY_LEXICAL_ROW_UNARIES, Integer.toString(lexicalRowUnaries));
+    }
+
+    /**
+     * @return Options for parsing tokenized input with an inside-probability FOM and left-to-right bottom-to-top
+     *         traversal. Tests may modify the returned instance before creating a parser.
+     */
+    protected static ParserDriver parserOptions() {
+        final ParserDriver opts = new ParserDriver();
+        opts.inputFormat = InputFormat.Token;
+        opts.fomModel = new InsideProb();
+        opts.cellSelectorModel = LeftRightBottomTopTraversal.MODEL;
+        return opts;
+    }
+
+    protected static CartesianProductHashSpmlParser createParser(final ParserDriver opts) {
+        return new CartesianProductHashSpmlParser(opts, grammar);
+    }
+
+    protected static CartesianProductHashSpmlParser createParser() {
+        return createParser(parserOptions());
+    }
+}
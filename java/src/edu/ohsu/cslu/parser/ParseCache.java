@@ -0,0 +1,375 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
+import edu.ohsu.cslu.grammar.Grammar;
+import edu.ohsu.cslu.parser.Parser.DecodeMethod;
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy;
+import edu.ohsu.cslu.parser.cellselector.CellSelectorModel;
+import edu.ohsu.cslu.parser.fom.FigureOfMeritModel;
+
+/**
+ * A bounded cache of parse results, keyed by the sentence as mapped into the lexicon ({@link ParseTask#tokens}).
+ * Repeated sentences (boilerplate, headers, templated text, etc.) are then parsed only once. Enabled by
+ * {@link ParserDriver#OPT_PARSE_CACHE_SIZE}.
+ * 
+ * Each entry stores the binary parse tree and inside probability. The tree is copied on insertion and on retrieval,
+ * since callers relabel the leaves of the tree they own (see {@link ParseTask#parseBracketString(boolean)}). We cache
+ * only successful parses completed within the parse deadline (if any); failed or timed-out parses will be re-parsed
+ * if repeated.
+ * 
+ * Parse results depend on the grammar and on the pruning and decoding configuration, as well as on the input. Each
+ * parser captures a {@link Configuration} describing its state when it is constructed, and that configuration
+ * accompanies every lookup and insertion. The cache is cleared whenever a parser with a different configuration uses
+ * it (e.g., after the grammar is replaced, or a different figure-of-merit or cell-selector model is installed).
+ * Parsing from gold trees or tagged input may constrain the parse, so the input tree or tags are included in the cache
+ * key when present.
+ * 
+ * Only the 1-best parse is cached, so the cache is not used when the output consumes the chart (see
+ * {@link ParserDriver#parseCacheSupported()}).
+ * 
+ * Entries are evicted in least-recently-used order once the cache reaches its capacity. All methods are thread-safe.
+ */
+public class ParseCache {
+
+    /**
+     * Approximate size of the fixed overhead of each entry (the map entry, key, and value objects), used in
+     * {@link #estimatedBytes()}
+     */
+    private final static int ENTRY_BYTES = 128;
+
+    /** Approximate size of each node in a cached {@link BinaryTree} */
+    private final static int TREE_NODE_BYTES = 40;
+
+    private final int capacity;
+
+    private final LinkedHashMap<Key, Entry> map;
+
+    /** The configuration under which all current entries were parsed */
+    private Configuration configuration;
+
+    private long hits, misses, evictions, invalidations;
+    private long estimatedBytes;
+
+    /**
+     * @param capacity Maximum number of cached parses
+     */
+    public ParseCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Illegal parse cache capacity: " + capacity);
+        }
+        this.capacity = capacity;
+
+        // Access-ordered, so iteration (and eviction) order is least-recently-used first
+        this.map = new LinkedHashMap<Key, Entry>(java.lang.Math.min(capacity, 1024) * 4 / 3 + 1, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+                if (size() > ParseCache.this.capacity) {
+                    evictions++;
+                    estimatedBytes -= eldest.getValue().bytes;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Populates the parse result of a task from the cache, if the same sentence has been parsed under the same
+     * configuration.
+     * 
+     * @param task A task which has not been parsed
+     * @param config The current parser configuration
+     * @return True if the task was found in the cache (and populated)
+     */
+    public boolean lookup(final ParseTask task, final Configuration config) {
+        final Key key = new Key(task);
+        final Entry entry;
+
+        synchronized (this) {
+            validate(config);
+            entry = map.get(key);
+            if (entry == null) {
+                misses++;
+                return false;
+            }
+            hits++;
+        }
+
+        // Cached trees are never modified, so we can copy outside the lock
+        task.binaryParse = copy(entry.binaryParse);
+        task.insideProbability = entry.insideProbability;
+        task.cacheHit = true;
+        return true;
+    }
+
+    /**
+     * Adds the parse result of a task to the cache. Failed parses and parses abandoned at the parse deadline are not
+     * cached.
+     * 
+     * @param task A parsed task
+     * @param config The configuration used to parse the task
+     */
+    public void store(final ParseTask task, final Configuration config) {
+        if (task.binaryParse == null || task.deadlineStage != null) {
+            return;
+        }
+
+        final Key key = new Key(task);
+        final Entry entry = new Entry(copy(task.binaryParse), task.insideProbability, key);
+
+        synchronized (this) {
+            validate(config);
+            final Entry previous = map.put(key, entry);
+            if (previous != null) {
+                estimatedBytes -= previous.bytes;
+            }
+            estimatedBytes += entry.bytes;
+        }
+    }
+
+    /**
+     * Removes all cached parses (e.g., when the grammar is replaced)
+     */
+    public synchronized void clear() {
+        if (!map.isEmpty()) {
+            invalidations++;
+        }
+        map.clear();
+        estimatedBytes = 0;
+    }
+
+    /**
+     * Clears the cache if the configuration has changed. Callers must synchronize on the cache.
+     * 
+     * @param config
+     */
+    private void validate(final Configuration config) {
+        if (!config.equals(configuration)) {
+            clear();
+            configuration = config;
+        }
+    }
+
+    /**
+     * @return Hit and miss counts, hit rate, evictions, and the current size of the cache, formatted for logging.
+     */
+    public synchronized String statsString() {
+        return String.format(
+                "parseCacheHits=%d parseCacheMisses=%d parseCacheHitRate=%.3f parseCacheEvictions=%d "
+                        + "parseCacheInvalidations=%d parseCacheEntries=%d parseCacheMb=%.1f", hits, misses,
+                hitRate(), evictions, invalidations, map.size(), estimatedBytes / 1048576f);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return Fraction of lookups which found a cached parse (0 if no lookups have been performed)
+     */
+    public synchronized float hitRate() {
+        return hits + misses == 0 ? 0 : (float) hits / (hits + misses);
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return The number of times the cache has been cleared due to a configuration change (or an explicit call to
+     *         {@link #clear()}) while non-empty
+     */
+    public synchronized long invalidations() {
+        return invalidations;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Approximate memory footprint of the cached parses (in bytes). Tree labels are shared with the grammar's
+     *         symbol tables, and are not included.
+     */
+    public synchronized long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return A deep copy of the tree
+     */
+    private static BinaryTree<String> copy(final BinaryTree<String> tree) {
+        final BinaryTree<String> copy = new BinaryTree<String>(tree.label());
+        copyChildren(tree, copy);
+        return copy;
+    }
+
+    private static void copyChildren(final BinaryTree<String> from, final BinaryTree<String> to) {
+        if (from.leftChild() != null) {
+            copyChildren(from.leftChild(), to.addChild(from.leftChild().label()));
+        }
+        if (from.rightChild() != null) {
+            copyChildren(from.rightChild(), to.addChild(from.rightChild().label()));
+        }
+    }
+
+    /**
+     * The parser state which determines the result of parsing a sentence: the grammar, parser implementation, pruning
+     * models, decoding and reparsing methods, and configuration properties. Models and the grammar are compared by
+     * identity.
+     */
+    public final static class Configuration {
+
+        private final Grammar grammar;
+        private final Class<?> parserClass;
+        private final FigureOfMeritModel fomModel;
+        private final CellSelectorModel cellSelectorModel;
+        private final ReparseStageModel reparseStageModel;
+        private final DecodeMethod decodeMethod;
+        private final ReparseStrategy reparseStrategy;
+        private final boolean parseFromInputTags;
+        private final HashMap<Object, Object> properties;
+
+        private final int hashCode;
+
+        /**
+         * Captures the current configuration of a parser
+         * 
+         * @param parser
+         */
+        public Configuration(final Parser<?> parser) {
+            this.grammar = parser.grammar;
+            this.parserClass = parser.getClass();
+            this.fomModel = parser.opts.fomModel;
+            this.cellSelectorModel = parser.opts.cellSelectorModel;
+            this.reparseStageModel = parser.opts.reparseStageModel;
+            this.decodeMethod = parser.opts.decodeMethod;
+            this.reparseStrategy = parser.opts.reparseStrategy;
+            this.parseFromInputTags = ParserDriver.parseFromInputTags;
+
+            this.properties = new HashMap<Object, Object>(GlobalConfigProperties.singleton());
+            // Populated by parser instances at runtime, and has no effect on the parse itself
+            this.properties.remove(ParserDriver.RUNTIME_CONFIGURED_THREAD_COUNT);
+
+            this.hashCode = System.identityHashCode(grammar) * 31 + parserClass.hashCode() * 17
+                    + properties.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Configuration)) {
+                return false;
+            }
+            final Configuration c = (Configuration) o;
+            return grammar == c.grammar && parserClass == c.parserClass && fomModel == c.fomModel
+                    && cellSelectorModel == c.cellSelectorModel && reparseStageModel == c.reparseStageModel
+                    && decodeMethod == c.decodeMethod && reparseStrategy == c.reparseStrategy
+                    && parseFromInputTags == c.parseFromInputTags && properties.equals(c.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Cache key: the sentence mapped into the lexicon, and any gold input (tree or tags) which might constrain the
+     * parse
+     */
+    private final static class Key {
+
+        private final int[] tokens;
+        private final int[] inputTags;
+        private final String inputTree;
+        private final int hashCode;
+
+        public Key(final ParseTask task) {
+            this.tokens = task.tokens;
+            this.inputTags = task.inputTags;
+            this.inputTree = task.inputTree != null ? task.inputTree.toString() : null;
+
+            int h = Arrays.hashCode(tokens);
+            if (inputTags != null) {
+                h = h * 31 + Arrays.hashCode(inputTags);
+            }
+            if (inputTree != null) {
+                h = h * 31 + inputTree.hashCode();
+            }
+            this.hashCode = h;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            return hashCode == k.hashCode && Arrays.equals(tokens, k.tokens) && Arrays.equals(inputTags, k.inputTags)
+                    && (inputTree == null ? k.inputTree == null : inputTree.equals(k.inputTree));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        int bytes() {
+            return 16 + tokens.length * 4 + (inputTags != null ? 16 + inputTags.length * 4 : 0)
+                    + (inputTree != null ? 40 + inputTree.length() * 2 : 0);
+        }
+    }
+
+    private final static class Entry {
+
+        private final BinaryTree<String> binaryParse;
+        private final float insideProbability;
+        private final int bytes;
+
+        public Entry(final BinaryTree<String> binaryParse, final float insideProbability, final Key key) {
+            this.binaryParse = binaryParse;
+            this.insideProbability = insideProbability;
+            this.bytes = ENTRY_BYTES + key.bytes() + binaryParse.size() * TREE_NODE_BYTES;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import cltool4j.BaseLogger;
+import cltool4j.Threadable;
+import cltool4j.args4j.Option;
+
+/**
+ * Long-running BUBS parse server. Accepts the same options as {@link ParserDriver} (including '-O' configuration
+ * options), but instead of parsing STDIN, loads the grammar and pruning models once and then serves parse requests over
+ * a socket.
+ * 
+ * Protocol: clients send newline-delimited sentences (in any input format accepted by {@link ParserDriver}) and
+ * receive one line per input line, containing the parse tree in the same format the command-line parser writes to
+ * STDOUT ('()' if the sentence could not be parsed). With '-kbest', each response is instead the k best parses, one
+ * per line (each preceded by its log probability and a tab), terminated by a blank line. Evaluation results and
+ * per-sentence statistics are never written to the client (statistics are logged at '-v FINE'). A client may send
+ * many sentences over a single connection; all sentences received before the client pauses are dispatched to the
+ * parser threads together and answered in input order.
+ * 
+ * Parser instances (and their charts) are created once per parsing thread at startup (the '-xt' option controls the
+ * number of threads), and reused for all requests, so steady-state requests incur no parser or chart construction.
+ * Clients connecting simultaneously share the same bounded set of parser threads.
+ * 
+ * e.g.:
+ * 
+ * <pre>
+ * parse-server -g grammar.gz -fom fom.gz -ccClassifier cc.mdl -xt 8 -port 9000
+ * </pre>
+ */
+@Threadable(defaultThreads = 1)
+public class ParseServer extends ParserDriver {
+
+    @Option(name = "-port", metaVar = "port", usage = "Port to listen on")
+    int port = 9000;
+
+    @Option(name = "-bind", metaVar = "address", usage = "Address to bind to (defaults to the loopback interface)")
+    private String bindAddress = null;
+
+    @Option(name = "-backlog", hidden = true, metaVar = "connections", usage = "Maximum queued client connections")
+    private int backlog = 50;
+
+    private volatile ServerSocket serverSocket;
+
+    /** Released once the server socket is bound (see {@link #localPort()}) */
+    private final CountDownLatch listening = new CountDownLatch(1);
+
+    /** Parsing threads; each owns a single (thread-local) parser instance for the lifetime of the server */
+    private ExecutorService parserThreads;
+
+    /** Reads requests and writes responses for each client connection */
+    private ExecutorService connectionThreads;
+
+    public static void main(final String[] args) {
+        run(args);
+    }
+
+    @Override
+    protected void run() throws Exception {
+
+        parserThreads = Executors.newFixedThreadPool(maxThreads);
+        warmParsers();
+
+        connectionThreads = Executors.newCachedThreadPool();
+        serverSocket = new ServerSocket(port, backlog, bindAddress != null ? InetAddress.getByName(bindAddress)
+                : InetAddress.getLoopbackAddress());
+        listening.countDown();
+
+        // Stop accepting connections and allow current requests to complete on shutdown (e.g. SIGTERM)
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shutdownServer();
+            }
+        });
+
+        BaseLogger.singleton().info(
+                "INFO: Listening on " + serverSocket.getInetAddress().getHostAddress() + ":"
+                        + serverSocket.getLocalPort() + " with " + maxThreads + " parser threads");
+
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket = serverSocket.accept();
+                connectionThreads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (final SocketException e) {
+            // The server socket was closed by shutdownServer()
+        } finally {
+            shutdownServer();
+            connectionThreads.awaitTermination(60, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Creates a parser instance on each parsing thread before the first request arrives. The barrier ensures each pool
+     * thread executes exactly one of the initialization tasks.
+     */
+    private void warmParsers() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(maxThreads);
+        final ArrayList<Future<?>> initTasks = new ArrayList<Future<?>>();
+        for (int i = 0; i < maxThreads; i++) {
+            initTasks.add(parserThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    getLocal();
+                    try {
+                        barrier.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (final BrokenBarrierException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (final Future<?> f : initTasks) {
+            f.get();
+        }
+    }
+
+    /**
+     * Handles a single client connection, parsing each input line and writing the result.
+     * 
+     * @param socket Client connection
+     */
+    private void serve(final Socket socket) {
+        try {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    Charset.forName("UTF-8")));
+            final BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                    Charset.forName("UTF-8")));
+
+            final ArrayList<FutureTask<ParseTask>> pendingTasks = new ArrayList<FutureTask<ParseTask>>();
+
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                final FutureTask<ParseTask> task = lineTask(line);
+                parserThreads.execute(task);
+                pendingTasks.add(task);
+
+                // Respond once we've dispatched all the sentences the client has sent so far
+                if (!br.ready()) {
+                    for (final FutureTask<ParseTask> pendingTask : pendingTasks) {
+                        bw.write(response(pendingTask));
+                        bw.write('\n');
+                    }
+                    bw.flush();
+                    pendingTasks.clear();
+                }
+            }
+        } catch (final Exception e) {
+            BaseLogger.singleton().log(Level.WARNING, "Error serving client: " + e.toString());
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Formats the response to a single request (see the protocol description above). A request which fails with an
+     * exception is answered with an empty parse, so the client's remaining responses stay aligned with its requests.
+     * 
+     * @param task Parse task for the request
+     * @return Response, without a trailing newline
+     * @throws InterruptedException if interrupted while waiting for the parse
+     */
+    String response(final FutureTask<ParseTask> task) throws InterruptedException {
+        ParseTask parseTask = null;
+        final StringBuilder response = new StringBuilder(256);
+        try {
+            parseTask = task.get();
+            formatParse(parseTask, response);
+        } catch (final ExecutionException e) {
+            BaseLogger.singleton().log(Level.SEVERE, "Error parsing request: " + e.getCause().toString());
+            response.setLength(0);
+            formatParse(null, response);
+        } catch (final RuntimeException e) {
+            BaseLogger.singleton().log(Level.SEVERE, "Error formatting response: " + e.toString());
+            response.setLength(0);
+            formatParse(null, response);
+        }
+
+        // Terminate each k-best list with a blank line
+        if (kBest > 1) {
+            response.append('\n');
+        }
+
+        if (parseTask != null && BaseLogger.singleton().isLoggable(Level.FINE)) {
+            BaseLogger.singleton().fine(parseTask.statsString().trim());
+        }
+        recordStatistics(parseTask);
+        return response.toString();
+    }
+
+    /**
+     * Waits until the server is accepting connections (primarily for unit tests, which bind to an ephemeral port).
+     * 
+     * @return The port the server is listening on
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int localPort() throws InterruptedException {
+        listening.await();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and shuts down the connection and parser threads (current requests are allowed to
+     * complete)
+     */
+    synchronized void shutdownServer() {
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (final IOException ignore) {
+        }
+        if (connectionThreads != null) {
+            connectionThreads.shutdown();
+        }
+        if (parserThreads != null) {
+            parserThreads.shutdown();
+        }
+    }
+}
@@ -21,7 +21,10 @@
  */
 package edu.ohsu.cslu.parser;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 
 import cltool4j.BaseLogger;
@@ -33,7 +36,11 @@ import edu.ohsu.cslu.grammar.Grammar;
 import edu.ohsu.cslu.grammar.Tokenizer;
 import edu.ohsu.cslu.parser.Parser.DecodeMethod;
 import edu.ohsu.cslu.parser.Parser.InputFormat;
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy.Stage;
+import edu.ohsu.cslu.parser.chart.BinaryForest;
 import edu.ohsu.cslu.parser.chart.Chart.RecoveryStrategy;
+import edu.ohsu.cslu.parser.chart.KBestExtractor;
+import edu.ohsu.cslu.parser.chart.KBestExtractor.ScoredParse;
 import edu.ohsu.cslu.parser.fom.BoundaryPosModel.BoundaryPosFom;
 import edu.ohsu.cslu.parser.fom.FigureOfMeritModel.FigureOfMerit;
 import edu.ohsu.cslu.parser.fom.InsideProb;
@@ -74,6 +81,18 @@ public class ParseTask {
     private EvalbResult evalb = null;
     public String chartStats = ""; // move all of these stats into this class
 
+    /**
+     * Lazy k-best enumerator over the pruned chart; populated only if k-best output is requested (see ParserDriver
+     * '-kbest')
+     */
+    KBestExtractor kBestExtractor = null;
+
+    /**
+     * Serialized parse forest (see {@link BinaryForest}); populated only if forest output is requested (see ParserDriver
+     * '-forest')
+     */
+    public ByteBuffer forest = null;
+
     /** Recovery strategy in case of parse failure */
     public final RecoveryStrategy recoveryStrategy;
     /** Recovery parse (only populated in case of parse failure) */
@@ -119,8 +138,33 @@ public class ParseTask {
     /** The number of reparsing stages required to find a valid parse */
     public short reparseStages = 0;
 
+    /**
+     * Index of the last reparsing stage attempted (the successful stage, if a parse was found) in the
+     * {@link Parser.ReparseStrategy}. Equal to {@link #reparseStages} unless stages were skipped (see
+     * {@link ReparseStageModel}).
+     */
+    public short stage = 0;
+
     long startTime;
 
+    /** Time (in milliseconds since the epoch) after which parsing should be abandoned; 0 if unlimited */
+    long deadline = 0;
+
+    /** Fraction of chart cells left open by the cell selector (NaN if not computed) */
+    public float openCellFraction = Float.NaN;
+
+    /** Mean beam width of open cells, as predicted by the cell selector (NaN if not computed) */
+    public float meanCellBeamWidth = Float.NaN;
+
+    /**
+     * The reparsing stage in progress when the deadline ({@link Parser#PROPERTY_PARSE_DEADLINE_MS}) expired. Null if
+     * parsing completed (successfully or not) within the deadline.
+     */
+    public Stage deadlineStage = null;
+
+    /** True if the parse result was retrieved from the {@link ParseCache} */
+    public boolean cacheHit = false;
+
     /**
      * Default constructor, used during regular inference by most {@link Parser} implementations.
      * 
@@ -241,8 +285,14 @@ public class ParseTask {
 
     public String statsString() {
         final StringBuilder result = new StringBuilder(128);
-        result.append(String.format("\nINFO: sentLen=%d time=%d inside=%.5f reparses=%d%s", sentenceLength(),
-                parseTimeMs, insideProbability, reparseStages, chartStats.length() > 0 ? " " + chartStats : ""));
+        result.append(String.format("\nINFO: sentLen=%d time=%d inside=%.5f reparses=%d%s%s%s", sentenceLength(),
+                parseTimeMs, insideProbability, reparseStages, deadlineStage != null ? " deadline=" + deadlineStage
+                        : "", cacheHit ? " cached" : "", chartStats.length() > 0 ? " " + chartStats : ""));
+        // Inputs to the starting reparse-stage model (see ReparseStageModel)
+        if (!Float.isNaN(openCellFraction)) {
+            result.append(String.format(" stage=%d unkRate=%.3f openCells=%.3f cellBeam=%.1f", stage, unkRate(),
+                    openCellFraction, meanCellBeamWidth));
+        }
         if (evalb != null) {
             result.append(String.format(" f1=%.2f prec=%.2f recall=%.2f matched=%d goldBrackets=%d parseBrackets=%d",
                     evalb.f1() * 100, evalb.precision() * 100, evalb.recall() * 100, evalb.matchedBrackets,
@@ -275,12 +325,58 @@ public class ParseTask {
     public String parseBracketString(final boolean binaryTree, final boolean printUnkLabels, final boolean addTokens,
             final HeadPercolationRuleset headRules) {
 
-    	if (binaryParse == null) {
+        final StringBuilder sb = new StringBuilder(256);
+        appendParseBracketString(sb, binaryTree, printUnkLabels, addTokens, headRules);
+        return sb.toString();
+    }
+
+    /**
+     * Appends a bracketed-tree representation of the parse result to a {@link StringBuilder} (see
+     * {@link #parseBracketString(boolean, boolean, boolean, HeadPercolationRuleset)}). Unless head labels are
+     * requested, the tree is serialized directly from the binary parse, without constructing an unfactored
+     * {@link NaryTree}.
+     * 
+     * @param sb Output buffer
+     * @param binaryTree Leave the tree binarized (if false, the binary tree is un-binarized)
+     * @param printUnkLabels Return UNK-class labels in place of any unknown tokens from the original sentence
+     * @param addTokens Combine tokens and UNK-class labels in the form 'UNK-class|token'. Ignored if
+     *            <code>printUnkLabels<code> is false.
+     * @param headRules Head-percolation ruleset. If supplied, the string representation will include pointers to
+     *            lexical heads
+     */
+    public void appendParseBracketString(final StringBuilder sb, final boolean binaryTree,
+            final boolean printUnkLabels, final boolean addTokens, final HeadPercolationRuleset headRules) {
+
+        if (binaryParse == null) {
             if (recoveryStrategy != null) {
-                return naryParse().toString();
+                sb.append(naryParse().toString());
+            } else {
+                sb.append("()");
             }
-            return "()";
+            return;
         }
+        appendParseBracketString(sb, binaryParse, binaryTree, printUnkLabels, addTokens, headRules);
+    }
+
+    /**
+     * Appends a bracketed-tree representation of a parse of this sentence (e.g., one of the {@link #kBest(int)}
+     * parses) to a {@link StringBuilder} (see
+     * {@link #appendParseBracketString(StringBuilder, boolean, boolean, boolean, HeadPercolationRuleset)}). Leaf labels
+     * of the tree are replaced in place.
+     * 
+     * @param sb Output buffer
+     * @param parse Binary parse tree
+     * @param binaryTree Leave the tree binarized (if false, the binary tree is un-binarized)
+     * @param printUnkLabels Return UNK-class labels in place of any unknown tokens from the original sentence
+     * @param addTokens Combine tokens and UNK-class labels in the form 'UNK-class|token'. Ignored if
+     *            <code>printUnkLabels<code> is false.
+     * @param headRules Head-percolation ruleset. If supplied, the string representation will include pointers to
+     *            lexical heads
+     */
+    public void appendParseBracketString(final StringBuilder sb, final BinaryTree<String> parse,
+            final boolean binaryTree, final boolean printUnkLabels, final boolean addTokens,
+            final HeadPercolationRuleset headRules) {
+
         if (printUnkLabels) {
             // The binary parse already contains the UNK labels, so if we're printing just those, we don't need to do
             // anything
@@ -288,7 +384,7 @@ public class ParseTask {
                 final String[] originalTokens = Strings.splitOnSpace(sentence);
 
                 int i = 0;
-                for (final Iterator<BinaryTree<String>> leafIterator = binaryParse.leafTraversal().iterator(); leafIterator
+                for (final Iterator<BinaryTree<String>> leafIterator = parse.leafTraversal().iterator(); leafIterator
                         .hasNext(); i++) {
                     final BinaryTree<String> leaf = leafIterator.next();
                     if (!grammar.lexSet.containsKey(originalTokens[i])) {
@@ -299,19 +395,36 @@ public class ParseTask {
         } else {
             // The normal case is that we want to replace UNK labels with the original sentence tokens
             // TODO We could save a little time here by storing the input tokens as Strings
-            binaryParse.replaceLeafLabels(Strings.splitOnSpace(sentence));
-        }
-        if (binaryTree) {
-            return binaryParse.toString();
+            parse.replaceLeafLabels(Strings.splitOnSpace(sentence));
         }
 
-        if (headRules != null) {
+        if (binaryTree) {
+            parse.appendTo(sb);
+        } else if (headRules != null) {
             // Output head rules
-            return naryParseWithHeadLabels(headRules).toString();
+            sb.append(addHeadLabels(parse.unfactor(grammar.grammarFormat), headRules).toString());
+        } else {
+            // Otherwise, just output the nary parse tree
+            parse.appendUnfactored(sb, grammar.grammarFormat);
         }
+    }
 
-        // Otherwise, just return the nary parse tree
-        return naryParse().toString();
+    /**
+     * Returns the k best parses found for the sentence, in order of decreasing score. Alternate parses are available
+     * only when the parser was configured for k-best output (see ParserDriver '-kbest'), and are limited to the
+     * configured k; otherwise, the returned list contains only the 1-best parse.
+     * 
+     * @param k Maximum number of parses to return
+     * @return The k best parses, in order of decreasing score (empty if parsing failed)
+     */
+    public List<ScoredParse> kBest(final int k) {
+        if (kBestExtractor != null) {
+            return kBestExtractor.kBest(k);
+        }
+        if (binaryParse == null || k < 1) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new ScoredParse(binaryParse, insideProbability));
     }
 
     public String parseBracketString(final boolean binaryTree) {
@@ -319,8 +432,10 @@ public class ParseTask {
     }
 
     public NaryTree<String> naryParseWithHeadLabels(final HeadPercolationRuleset headRules) {
-        final NaryTree<String> tree = naryParse();
+        return addHeadLabels(naryParse(), headRules);
+    }
 
+    private NaryTree<String> addHeadLabels(final NaryTree<String> tree, final HeadPercolationRuleset headRules) {
         for (final NaryTree<String> node : tree.preOrderTraversal()) {
             // Skip leaf and preterminal nodes
             if (node.height() > 2) {
@@ -345,10 +460,30 @@ public class ParseTask {
         parseTimeMs = System.currentTimeMillis() - startTime;
     }
 
+    /**
+     * @return True if a parse deadline was specified (see {@link Parser#PROPERTY_PARSE_DEADLINE_MS}) and has passed
+     */
+    public boolean deadlineExpired() {
+        return deadline > 0 && System.currentTimeMillis() > deadline;
+    }
+
     public int sentenceLength() {
         return tokens.length;
     }
 
+    /**
+     * @return The fraction of tokens not found in the lexicon (i.e., mapped to an unknown-word class)
+     */
+    public float unkRate() {
+        int unks = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (grammar.mapLexicalEntry(tokens[i]).startsWith("UNK")) {
+                unks++;
+            }
+        }
+        return (float) unks / tokens.length;
+    }
+
     public boolean parseFailed() {
         // If we fell all the way back to the 'recovery' parse, even though we output a parse structure, we count
         // that as a failed parse
@@ -25,6 +25,7 @@ import java.util.logging.Level;
 
 import cltool4j.BaseCommandlineTool;
 import cltool4j.BaseLogger;
+import cltool4j.GlobalConfigProperties;
 import cltool4j.args4j.EnumAliasMap;
 import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
 import edu.ohsu.cslu.grammar.Grammar;
@@ -53,6 +54,7 @@ import edu.ohsu.cslu.parser.ecp.ECPGrammarLoop;
 import edu.ohsu.cslu.parser.ecp.ECPGrammarLoopBerkFilter;
 import edu.ohsu.cslu.parser.ecp.ECPInsideOutside;
 import edu.ohsu.cslu.parser.fom.FigureOfMeritModel.FigureOfMerit;
+import edu.ohsu.cslu.parser.ml.BlockedCphSpmlParser;
 import edu.ohsu.cslu.parser.ml.CartesianProductBinarySearchLeftChildSpmlParser;
 import edu.ohsu.cslu.parser.ml.CartesianProductBinarySearchSpmlParser;
 import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
@@ -110,6 +112,13 @@ public abstract class Parser<G extends Grammar> {
     /** Use the geometric mean of the Inside score. Only used by agenda parsers */
     public final static String PROPERTY_GEOMETRIC_INSIDE_NORM = "geometricInsideNorm";
 
+    /**
+     * Per-sentence time limit (in milliseconds, 0 = unlimited). Chart parsers check the deadline between chart rows and
+     * between reparsing stages; once it has passed, they abandon the current stage, skip any further reparsing, and
+     * fall back to the {@link RecoveryStrategy} (if any). See {@link ParseTask#deadlineStage}.
+     */
+    public final static String PROPERTY_PARSE_DEADLINE_MS = "parseDeadlineMs";
+
     /** Parser configuration */
     public ParserDriver opts;
 
@@ -124,11 +133,19 @@ public abstract class Parser<G extends Grammar> {
      */
     protected final boolean collectDetailedStatistics;
 
+    /** Cache of parse results shared by all parser threads (null if disabled). See {@link ParseCache}. */
+    private final ParseCache parseCache;
+
+    /** The configuration of this parser, captured at construction. Accompanies all {@link #parseCache} operations. */
+    private final ParseCache.Configuration parseCacheConfiguration;
+
     public Parser(final ParserDriver opts, final G grammar) {
         this.grammar = grammar;
         this.opts = opts;
         this.figureOfMerit = opts.fomModel != null ? opts.fomModel.createFOM() : null;
         this.cellSelector = opts.cellSelectorModel.createCellSelector();
+        this.parseCache = opts.parseCache();
+        this.parseCacheConfiguration = parseCache != null ? new ParseCache.Configuration(this) : null;
 
         this.collectDetailedStatistics = BaseLogger.singleton().isLoggable(Level.FINER);
     }
@@ -168,7 +185,22 @@ public abstract class Parser<G extends Grammar> {
      * @param recoveryStrategy Recovery strategy in case of parse failure
      * @return Parse output and state
      */
-    public ParseTask parseSentence(String input, final RecoveryStrategy recoveryStrategy) {
+    public ParseTask parseSentence(final String input, final RecoveryStrategy recoveryStrategy) {
+        return parseSentence(input, recoveryStrategy, 0);
+    }
+
+    /**
+     * Wraps parse tree from findBestParse() with additional stats and cleans up output for consumption, abandoning the
+     * parse at the specified deadline. Input can be a sentence string or a parse tree. The input format is set to
+     * {@link InputFormat#Tree} if the input string starts with '((', '(TOP', or '(ROOT'.
+     * 
+     * @param input
+     * @param recoveryStrategy Recovery strategy in case of parse failure
+     * @param deadline Time (in milliseconds since the epoch) after which parsing should be abandoned (see
+     *            {@link ParseTask#deadlineStage}); 0 to use the configured {@link #PROPERTY_PARSE_DEADLINE_MS}
+     * @return Parse output and state
+     */
+    public ParseTask parseSentence(String input, final RecoveryStrategy recoveryStrategy, final long deadline) {
 
         input = input.trim();
         if (input.length() == 0) {
@@ -195,11 +227,27 @@ public abstract class Parser<G extends Grammar> {
         } else {
             task.startTime();
 
+            if (parseCache != null && parseCache.lookup(task, parseCacheConfiguration)) {
+                task.stopTime();
+                return task;
+            }
+
+            final int deadlineMs = GlobalConfigProperties.singleton().getIntProperty(PROPERTY_PARSE_DEADLINE_MS, 0);
+            if (deadline > 0) {
+                task.deadline = deadline;
+            } else if (deadlineMs > 0) {
+                task.deadline = task.startTime + deadlineMs;
+            }
+
             task.binaryParse = findBestParse(task);
 
             task.stopTime();
             task.insideProbability = getInside(0, task.sentenceLength(), grammar.startSymbol);
             task.chartStats = getStats();
+
+            if (parseCache != null) {
+                parseCache.store(task, parseCacheConfiguration);
+            }
         }
 
         return task;
@@ -273,6 +321,7 @@ public abstract class Parser<G extends Grammar> {
         CartesianProductBinarySearchLeftChildMl(CartesianProductBinarySearchLeftChildSpmlParser.class.getName(),
                 "cplbs"),
         CartesianProductHashMl(CartesianProductHashSpmlParser.class.getName(), "cph"),
+        BlockedCartesianProductHashMl(BlockedCphSpmlParser.class.getName(), "cphblock"),
         CartesianProductLeftChildHashMl(CartesianProductLeftChildHashSpmlParser.class.getName(), "cplch"),
         InsideOutsideCartesianProductHash(InsideOutsideCphSpmlParser.class.getName(), "iocph"),
         RealInsideOutsideCartesianProductHash(RealInsideOutsideCphParser.class.getName(), "realio"),
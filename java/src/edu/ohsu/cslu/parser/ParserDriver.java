@@ -21,16 +21,27 @@
  */
 package edu.ohsu.cslu.parser;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Reader;
 import java.lang.reflect.Constructor;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 
@@ -42,6 +53,7 @@ import cltool4j.Threadable;
 import cltool4j.args4j.Option;
 import edu.ohsu.cslu.datastructs.narytree.CharniakHeadPercolationRuleset;
 import edu.ohsu.cslu.datastructs.narytree.HeadPercolationRuleset;
+import edu.ohsu.cslu.grammar.BlockedCscSparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.ChildMatrixGrammar;
 import edu.ohsu.cslu.grammar.ClusterTaggerTokenClassifier;
 import edu.ohsu.cslu.grammar.CoarseGrammar;
@@ -61,6 +73,7 @@ import edu.ohsu.cslu.grammar.SparseMatrixGrammar.Int2IntHashPackingFunction;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.LeftShiftFunction;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
 import edu.ohsu.cslu.grammar.TokenClassifier;
+import edu.ohsu.cslu.hash.PerfectHashTables;
 import edu.ohsu.cslu.parser.Parser.DecodeMethod;
 import edu.ohsu.cslu.parser.Parser.InputFormat;
 import edu.ohsu.cslu.parser.Parser.ParserType;
@@ -68,12 +81,18 @@ import edu.ohsu.cslu.parser.Parser.ReparseStrategy;
 import edu.ohsu.cslu.parser.Parser.ResearchParserType;
 import edu.ohsu.cslu.parser.cellselector.AdaptiveBeamModel;
 import edu.ohsu.cslu.parser.cellselector.CellSelectorModel;
+import edu.ohsu.cslu.parser.cellselector.CoarseToFineModel;
 import edu.ohsu.cslu.parser.cellselector.CompleteClosureModel;
 import edu.ohsu.cslu.parser.cellselector.LeftRightBottomTopTraversal;
 import edu.ohsu.cslu.parser.cellselector.LimitedSpanTraversalModel;
 import edu.ohsu.cslu.parser.cellselector.OHSUCellConstraintsModel;
 import edu.ohsu.cslu.parser.cellselector.PerceptronBeamWidthModel;
+import edu.ohsu.cslu.parser.chart.BinaryForest;
 import edu.ohsu.cslu.parser.chart.Chart.RecoveryStrategy;
+import edu.ohsu.cslu.parser.chart.ChartArrayPool;
+import edu.ohsu.cslu.parser.chart.KBestExtractor;
+import edu.ohsu.cslu.parser.chart.KBestExtractor.ScoredParse;
+import edu.ohsu.cslu.parser.chart.NgramCellMemo;
 import edu.ohsu.cslu.parser.fom.BoundaryLex;
 import edu.ohsu.cslu.parser.fom.BoundaryPosModel;
 import edu.ohsu.cslu.parser.fom.FigureOfMeritModel;
@@ -84,8 +103,10 @@ import edu.ohsu.cslu.parser.spmv.SparseMatrixVectorParser;
 import edu.ohsu.cslu.parser.spmv.SparseMatrixVectorParser.PackingFunctionType;
 import edu.ohsu.cslu.perceptron.AdaptiveBeamClassifier;
 import edu.ohsu.cslu.perceptron.CompleteClosureClassifier;
+import edu.ohsu.cslu.util.BinaryModelFile;
 import edu.ohsu.cslu.util.Evalb.BracketEvaluator;
 import edu.ohsu.cslu.util.Evalb.EvalbResult;
+import edu.ohsu.cslu.util.Strings;
 
 /**
  * BUBS Parser
@@ -120,22 +141,69 @@ import edu.ohsu.cslu.util.Evalb.EvalbResult;
  * maxBeamWidth : 30
  * lexicalRowBeamWidth : 60
  * lexicalRowUnaries : 20
+ * parseDeadlineMs : 0 (unlimited)
+ * chartPoolMb : 0 (disabled)
+ * parseCacheSize : 0 (disabled)
+ * cellMemoMb : 0 (disabled)
+ * outputBatchSize : 1
+ * grammarLoadThreads : (number of CPU cores)
+ * perfectHashCache : (none)
+ * parentBlockSize : 256
+ * leftChildBlockSize : 64
  * </pre>
  * 
  * These beam limits assume a boundary FOM and Beam Confidence Model (see below). maxBeamWidth applies to cells of span
  * > 1. For span-1 cells, we allow a larger beam width, and reserve some space for unary productions. These default
  * options are tuned on a WSJ development set. Parsing out-of-domain text may require wider beam widths.
  * 
+ * parseDeadlineMs bounds the time spent on any one sentence. When it expires, the parser stops reparsing and outputs
+ * the recovery parse (see '-recovery'), if any.
+ * 
+ * chartPoolMb enables a pool of chart arrays shared by all parsing threads, bounded at the specified size. Charts are
+ * reused between sentences whenever they are large enough; the pool avoids allocating new arrays when a longer
+ * sentence or a wider reparsing beam requires a larger chart.
+ * 
+ * parseCacheSize enables a cache of parse results, shared by all parsing threads and bounded at the specified number of
+ * sentences (least-recently-used sentences are evicted first). Repeated sentences are parsed only once. The cache is
+ * keyed on the input tokens and cleared if the grammar or pruning configuration changes. A cached entry retains only
+ * the 1-best parse, so the cache is disabled when k-best ('-kbest') or forest ('-forest') output is requested.
+ * 
+ * cellMemoMb enables memoization of span-1 and span-2 chart cells across sentences, keyed by the word or word pair
+ * each cell covers, and bounded at the specified size. Supported by the CPH parsers ('-rp cph' and its variants), in
+ * exhaustive search or when pruning with a context-free FOM ('-fom Inside'). With a context-dependent FOM (e.g., a
+ * boundary-POS model), cells are computed normally.
+ * 
+ * outputBatchSize sets the number of parsed sentences buffered before output is written and flushed. By default, each
+ * sentence is written as soon as it is parsed (e.g., for interactive use or pipelines). Larger batches reduce
+ * per-sentence output overhead when bulk-parsing with many threads, but delay output until a batch is complete.
+ * 
+ * grammarLoadThreads controls the number of threads used to parse rule lines when reading a text-format grammar.
+ * 
+ * perfectHashCache specifies a directory (e.g., the directory containing the grammar) in which to store the perfect
+ * hash of the grammar's child pairs, so later runs with the same grammar skip constructing it.
+ * 
+ * parentBlockSize and leftChildBlockSize set the tile dimensions of the blocked grammar used by '-rp cphblock'. Each
+ * tile should be small enough that its rules and the parent range of the cell under construction fit in L2 cache.
+ * 
+ * ctfBeamWidth sets the beam width of the coarse pass used by coarse-to-fine pruning ('-ctf'). The coarse chart is
+ * dense, so a narrow beam (the default is 20) is usually much cheaper than an exhaustive coarse pass and prunes nearly
+ * as accurately. 0 parses the coarse grammar exhaustively.
+ * 
  * 
  * == Multithreading ==
  * 
  * The BUBS parser supports threading at several levels. Sentence-level threading assigns each sentence of the input to
  * a separate thread as one becomes available). The number of threads is controlled by the '-xt <count>' option. In
  * general, if threading only at the sentence level, you want to use the same number of threads as CPU cores (or
- * slightly lower, to reserve some CPU capacity for OS or other simultaneous tasks).
+ * slightly lower, to reserve some CPU capacity for OS or other simultaneous tasks). By default, sentences are dispatched
+ * to threads in input order; the '-schedule <window>' option dispatches the longest sentences in each window of input
+ * first, which balances load across threads when sentence lengths vary widely (output order is unchanged).
  * 
  * Cell-level and grammar-level threading are also supported. Cell-level threading assigns the processing of individual
- * chart cells to threads (again, as threads become available in the thread pool).
+ * chart cells to threads (again, as threads become available in the thread pool). The default (Matrix) parser schedules
+ * each cell as soon as its child cells are complete, rather than completing each chart row before starting the next.
+ * The inside-outside parsers ('-rp iocph' and its Viterbi variant) similarly parallelize the outside pass, working
+ * downward from the top cell.
  * 
  * Grammar-level threading subdivides the grammar intersection operation within an individual cell and splits those
  * tasks across threads.
@@ -190,6 +258,7 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     //
     public CellSelectorModel cellSelectorModel = LeftRightBottomTopTraversal.MODEL;
     public FigureOfMeritModel fomModel = null;
+    public ReparseStageModel reparseStageModel = null;
 
     // == Parser options ==
     @Option(name = "-p", metaVar = "parser type", optionalChoiceGroup = "parserType", usage = "Parser implementation")
@@ -204,7 +273,7 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
 
     // == Grammar options ==
     @Option(name = "-g", metaVar = "grammar file", choiceGroup = "grammar", usage = "Grammar file (text, gzipped text, or binary serialized)")
-    private String grammarFile = null;
+    String grammarFile = null;
 
     /**
      * Required by some prioritization (FOM) models. Primarily for experimental usage - to this point, a coarse FOM has
@@ -213,7 +282,10 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     @Option(name = "-coarseGrammar", hidden = true, metaVar = "model file", usage = "Coarse grammar file (text, gzipped text, or binary serialized)")
     private String coarseGrammarFile = null;
 
-    /** A single model, serialized with {@link SerializeModel} */
+    /**
+     * A single model, serialized with {@link SerializeModel}, either in Java serialized form or in the
+     * memory-mappable {@link BinaryModelFile} format (detected automatically).
+     */
     @Option(name = "-m", metaVar = "model file", choiceGroup = "grammar", usage = "Combined model file, combining grammar and pruning models (binary serialized)")
     private File modelFile = null;
 
@@ -245,6 +317,25 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     @Option(name = "-decode", metaVar = "method", hidden = true, usage = "Method to extract best tree from forest")
     public DecodeMethod decodeMethod = DecodeMethod.ViterbiMax;
 
+    /**
+     * Outputs the k best parses of each sentence (e.g., for reranking), one per line, each preceded by its log
+     * probability and a tab, with a blank line following each sentence. Alternate parses are enumerated lazily from the
+     * pruned chart (see {@link KBestExtractor}), so they are limited to derivations within the beam. Supported by
+     * Viterbi decoding in the matrix-loop parsers (e.g. '-rp cph'); other parsers output only the 1-best parse.
+     */
+    @Option(name = "-kbest", metaVar = "k", usage = "Output the k best parses of each sentence")
+    public int kBest = 1;
+
+    /**
+     * Writes the pruned parse forest of each sentence (populated non-terminals, inside and outside probabilities, and
+     * Viterbi backpointers) to a binary file for downstream rescoring, in input order (see {@link BinaryForest} for
+     * the layout). Supported by the matrix-loop parsers. Inside-outside parsers ('-p IO') include outside
+     * probabilities, but do not record backpointers. An empty forest is written for sentences which could not be
+     * parsed. Forest output disables the parse cache ('-O parseCacheSize').
+     */
+    @Option(name = "-forest", metaVar = "file", usage = "Write the pruned parse forest of each sentence to a binary file")
+    public File forestFile;
+
     /**
      * Provides a fallback in case of parse failures. Currently, the only implemented strategy is biased for
      * right-branching languages, and combines all completed subtrees at the right periphery.
@@ -262,6 +353,13 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     @Option(name = "-reparse", metaVar = "strategy", hidden = true, usage = "If no solution, loosen constraints and reparse using the specified strategy or double-beam-width n times")
     public ReparseStrategy reparseStrategy = ReparseStrategy.Escalate;
 
+    /**
+     * Predicts the reparsing stage at which to start each sentence, skipping initial stages at which the sentence is
+     * likely to fail. These models are trained using {@link TrainReparseStageModel}.
+     */
+    @Option(name = "-reparseModel", hidden = true, metaVar = "model file", usage = "Starting reparse-stage model (Java Serialized)")
+    private File reparseStageModelFile = null;
+
     @Option(name = "-parseFromInputTags", hidden = true, usage = "Parse from input POS tags given by tagged or tree input.  Replaces 1-best tags from BoundaryInOut FOM if also specified.")
     public static boolean parseFromInputTags = false;
 
@@ -269,7 +367,7 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     private String fomTypeOrModel = "Inside";
 
     @Option(name = "-pf", hidden = true, metaVar = "function", usage = "Packing function (only used for SpMV parsers)")
-    private PackingFunctionType packingFunctionType = PackingFunctionType.PerfectHash;
+    PackingFunctionType packingFunctionType = PackingFunctionType.PerfectHash;
 
     // TODO Remove - obsoleted by -abModel
     @Option(name = "-beamModel", metaVar = "model file", usage = "Beam-width prediction model (Bodenstab et al., 2011)")
@@ -314,6 +412,14 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     @Option(name = "-maxSubtreeSpan", hidden = true, metaVar = "span", usage = "Maximum subtree span for limited-depth parsing")
     private int maxSubtreeSpan;
 
+    /**
+     * Coarse-to-fine pruning: parses each sentence first with the unsplit projection of the grammar and prunes fine
+     * chart entries whose base category falls below the specified log max-marginal in the coarse chart (see
+     * {@link CoarseToFineModel}). Applied before any complete-closure constraints ('-ccClassifier').
+     */
+    @Option(name = "-ctf", hidden = true, metaVar = "threshold", usage = "Coarse-to-fine pruning threshold (log max-marginal of base categories, e.g. -7. 0 = disabled)")
+    private float coarseToFineThreshold = 0f;
+
     /**
      * Specifies a ruleset and performs head-finding (thus labeling dependency structure as well as constituency). This
      * head-finding approach is fairly simplistic, but much faster than the more accurate Stanford parser approach.
@@ -325,6 +431,16 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
     @Option(name = "-debug", hidden = true, usage = "Exit on error with trace (by default, a parse error outputs '()' and continues)")
     public boolean debug = false;
 
+    /**
+     * Length-aware sentence scheduling for sentence-level threading ('-xt'). Parsing cost grows cubically with sentence
+     * length, so when sentences are dispatched in input order, a few very long sentences near the end of a batch can
+     * leave most threads idle. With this option, we read ahead a window of input lines and dispatch the longest
+     * sentences in each window first. Output is still written in input order; at most 2 windows of results are
+     * buffered. Ignored when parsing with a single thread.
+     */
+    @Option(name = "-schedule", hidden = true, metaVar = "window", usage = "Dispatch sentences longest-first within windows of n input lines (0 = input order)")
+    int scheduleWindow = 0;
+
     /**
      * Specifies the number of cell-level threads. We handle threading at three levels; threading per-sentence is
      * handled by the command-line tool infrastructure and specified with the standard '-xt' parameter. Cell-level and
@@ -407,19 +523,100 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
      */
     public final static String OPT_LOCAL_MAXRULE_DECODING = "localMaxrule";
 
+    /**
+     * Maximum size (in MB) of the shared pool of chart arrays (see {@link ChartArrayPool}). When enabled, charts
+     * replaced to accommodate longer sentences or wider reparsing beams return their arrays to the pool, and new charts
+     * borrow arrays from it. Default is 0 (pooling disabled). Not supported by the OpenCL parsers.
+     */
+    public final static String OPT_CHART_POOL_MB = "chartPoolMb";
+
+    /**
+     * Maximum number of sentences retained in the parse-result cache (see {@link ParseCache}). Default is 0 (caching
+     * disabled).
+     */
+    public final static String OPT_PARSE_CACHE_SIZE = "parseCacheSize";
+
+    /**
+     * Maximum size (in MB) of the memo of span-1 and span-2 chart cells (see {@link NgramCellMemo}). Default is 0
+     * (memoization disabled).
+     */
+    public final static String OPT_CELL_MEMO_MB = "cellMemoMb";
+
+    /**
+     * Number of sentences buffered before parse output is written to stdout and flushed (see
+     * {@link #output(ParseTask)}). Default is 1 (flush after each sentence).
+     */
+    public final static String OPT_OUTPUT_BATCH_SIZE = "outputBatchSize";
+
+    private final static int DEFAULT_OUTPUT_BATCH_SIZE = 1;
+
+    /** Buffered output is flushed early if it exceeds this size, regardless of the batch size */
+    private final static int MAX_OUTPUT_BUFFER_CHARS = 1 << 16;
+
+    /**
+     * Number of threads used to parse a text-format grammar file (see {@link SparseMatrixGrammar}). Default is the
+     * number of available CPU cores; 1 parses in the reading thread.
+     */
+    public final static String OPT_GRAMMAR_LOAD_THREADS = "grammarLoadThreads";
+
+    /**
+     * Directory in which to cache the perfect hashes constructed for grammar child pairs (see
+     * {@link PerfectHashTables}). Subsequent loads of the same grammar reuse the cached hash instead of repeating the
+     * displacement search. By default, hashes are only cached in memory.
+     */
+    public final static String OPT_PERFECT_HASH_CACHE = "perfectHashCache";
+
+    /**
+     * Number of consecutive parents in each tile of a {@link BlockedCscSparseMatrixGrammar}. Default is
+     * {@link BlockedCscSparseMatrixGrammar#DEFAULT_PARENT_BLOCK_SIZE}.
+     */
+    public final static String OPT_PARENT_BLOCK_SIZE = "parentBlockSize";
+
+    /**
+     * Number of consecutive left children in each tile of a {@link BlockedCscSparseMatrixGrammar}. Default is
+     * {@link BlockedCscSparseMatrixGrammar#DEFAULT_LEFT_CHILD_BLOCK_SIZE}.
+     */
+    public final static String OPT_LEFT_CHILD_BLOCK_SIZE = "leftChildBlockSize";
+
+    /**
+     * Beam width of the coarse pass when pruning coarse-to-fine (see '-ctf' and {@link CoarseToFineModel}). 0 parses
+     * the coarse grammar exhaustively. Default = 20.
+     */
+    public final static String OPT_CTF_BEAM_WIDTH = "ctfBeamWidth";
+
     //
     // Corpus-wide statistics and timings
     //
     private long parseStartTime;
     private volatile int sentencesParsed = 0, wordsParsed = 0, failedParses = 0, reparsedSentences = 0,
             totalReparses = 0;
+    /**
+     * Histogram of per-sentence parse times (in ms), used to report tail latency. Bounded, so long-running use (e.g.
+     * {@link ParseServer}) does not accumulate memory; times of {@link #MAX_HISTOGRAM_MS} or longer share the final
+     * bucket.
+     */
+    private final int[] parseTimeHistogram = new int[MAX_HISTOGRAM_MS + 1];
+    private int maxParseTimeMs = 0;
+    private final static int MAX_HISTOGRAM_MS = 60000;
 
     //
     // ParserDriver state
     //
-    private Grammar grammar;
+    Grammar grammar;
     private LinkedList<Parser<?>> parserInstances = new LinkedList<Parser<?>>();
     private final BracketEvaluator evaluator = new BracketEvaluator();
+    /** Shared by all parser instances. Created on first use; see {@link #parseCache()} */
+    private ParseCache parseCache;
+    /** Shared by all parser instances. Created on first use; see {@link #cellMemo()} */
+    private NgramCellMemo cellMemo;
+
+    /** Formatted parse output not yet written to stdout. Reused for all sentences; guarded by its own lock. */
+    private final StringBuilder outputBuffer = new StringBuilder(MAX_OUTPUT_BUFFER_CHARS);
+    private int bufferedSentences;
+    private int outputBatchSize = DEFAULT_OUTPUT_BATCH_SIZE;
+
+    /** Binary forest output (see '-forest'); written in input order, under the output buffer lock */
+    private FileChannel forestChannel;
 
     public static void main(final String[] args) {
         run(args);
@@ -438,6 +635,13 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
                 "INFO: parser=" + researchParserType + " fom=" + fomTypeOrModel + " decode=" + decodeMethod);
         BaseLogger.singleton().info("INFO: " + commandLineArguments());
 
+        outputBatchSize = Math.max(1,
+                GlobalConfigProperties.singleton().getIntProperty(OPT_OUTPUT_BATCH_SIZE, DEFAULT_OUTPUT_BATCH_SIZE));
+
+        if (forestFile != null) {
+            forestChannel = new FileOutputStream(forestFile).getChannel();
+        }
+
         if (headRules != null) {
             if (headRules.equalsIgnoreCase("charniak")) {
                 headPercolationRuleset = new CharniakHeadPercolationRuleset();
@@ -450,7 +654,8 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
                 tokenClassifierModel) : new DecisionTreeTokenClassifier();
 
         if (modelFile != null) {
-            final ObjectInputStream ois = new ObjectInputStream(fileAsInputStream(modelFile));
+            final ObjectInputStream ois = BinaryModelFile.isBinaryModelFile(modelFile) ? BinaryModelFile
+                    .open(modelFile) : new ObjectInputStream(fileAsInputStream(modelFile));
             @SuppressWarnings("unused")
             final String metadata = (String) ois.readObject();
             final ConfigProperties props = (ConfigProperties) ois.readObject();
@@ -461,24 +666,13 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
 
             BaseLogger.singleton().finer("Reading FOM...");
             fomModel = (FigureOfMeritModel) ois.readObject();
+            ois.close();
 
         } else {
             this.grammar = createGrammar(fileAsBufferedReader(grammarFile), researchParserType, tokenClassifier,
                     packingFunctionType);
 
-            if (fomTypeOrModel.equals("Inside")) {
-                fomModel = new InsideProb();
-
-            } else if (fomTypeOrModel.equals("InsideWithFwdBkwd")) {
-                // fomModel = new BoundaryInOut(FOMType.InsideWithFwdBkwd);
-                throw new IllegalArgumentException("FOM InsideWithFwdBkwd no longer supported");
-
-            } else if (new File(fomTypeOrModel).exists()) {
-                fomModel = readFomModel(fomTypeOrModel, coarseGrammarFile, grammar);
-
-            } else {
-                throw new IllegalArgumentException("-fom value '" + fomTypeOrModel + "' not valid.");
-            }
+            fomModel = createFomModel(grammar);
 
             boolean defaultCellSelector = true;
             OHSUCellConstraintsModel cellConstraints = null;
@@ -514,6 +708,16 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
                 defaultCellSelector = false;
             }
 
+            if (coarseToFineThreshold < 0) {
+                if (!(grammar instanceof SparseMatrixGrammar)) {
+                    throw new IllegalArgumentException("Coarse-to-fine pruning requires a matrix grammar");
+                }
+                cellSelectorModel = new CoarseToFineModel((SparseMatrixGrammar) grammar, coarseToFineThreshold,
+                        GlobalConfigProperties.singleton().getIntProperty(OPT_CTF_BEAM_WIDTH, 20),
+                        defaultCellSelector ? null : cellSelectorModel);
+                defaultCellSelector = false;
+            }
+
             if (completeClosureClassifierFile != null) {
                 cellSelectorModel = defaultCellSelector ? new CompleteClosureModel(completeClosureClassifierFile, null)
                         : new CompleteClosureModel(completeClosureClassifierFile, cellSelectorModel);
@@ -525,11 +729,41 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
             }
         }
 
+        if (reparseStageModelFile != null) {
+            final ObjectInputStream ois = new ObjectInputStream(fileAsInputStream(reparseStageModelFile));
+            reparseStageModel = (ReparseStageModel) ois.readObject();
+            ois.close();
+        }
+
         BaseLogger.singleton().fine(grammar.getStats());
 
         parseStartTime = System.currentTimeMillis();
     }
 
+    /**
+     * Creates the figure-of-merit model specified by '-fom' for the supplied grammar. Used in {@link #setup()} and by
+     * tools which parse with more than one grammar (e.g. {@link PruneGrammar}).
+     * 
+     * @param g Grammar
+     * @return Figure-of-merit model
+     * @throws IOException if the model file cannot be read
+     */
+    FigureOfMeritModel createFomModel(final Grammar g) throws IOException {
+
+        if (fomTypeOrModel.equals("Inside")) {
+            return new InsideProb();
+
+        } else if (fomTypeOrModel.equals("InsideWithFwdBkwd")) {
+            // return new BoundaryInOut(FOMType.InsideWithFwdBkwd);
+            throw new IllegalArgumentException("FOM InsideWithFwdBkwd no longer supported");
+
+        } else if (new File(fomTypeOrModel).exists()) {
+            return readFomModel(fomTypeOrModel, coarseGrammarFile, g);
+        }
+
+        throw new IllegalArgumentException("-fom value '" + fomTypeOrModel + "' not valid.");
+    }
+
     public static FigureOfMeritModel readFomModel(final String fomModel, final String coarseGrammarFile,
             final Grammar grammar) throws IOException {
 
@@ -670,6 +904,16 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
             default:
                 throw new IllegalArgumentException("Unsupported packing-function type: " + packingFunctionType);
             }
+        case BlockedCartesianProductHashMl:
+            switch (packingFunctionType) {
+            case Simple:
+                return new BlockedCscSparseMatrixGrammar(grammarFile, tokenClassifier, LeftShiftFunction.class);
+            case PerfectHash:
+                return new BlockedCscSparseMatrixGrammar(grammarFile, tokenClassifier,
+                        PerfectIntPairHashPackingFunction.class);
+            default:
+                throw new IllegalArgumentException("Unsupported packing-function type: " + packingFunctionType);
+            }
         case RightChildMl:
             return new RightCscSparseMatrixGrammar(grammarFile, tokenClassifier, LeftShiftFunction.class);
         case GrammarLoopMl:
@@ -719,6 +963,74 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
         }
     }
 
+    @Override
+    protected void run() throws Exception {
+        try {
+            if (scheduleWindow > 0 && maxThreads > 1) {
+                runLengthScheduled(inputAsBufferedReader());
+            } else {
+                super.run();
+            }
+        } finally {
+            flushOutput();
+        }
+    }
+
+    /**
+     * Parses the input with length-aware scheduling (see {@link #scheduleWindow}). We dispatch each window before
+     * waiting on the results of the previous window, so threads are not left idle at window boundaries.
+     */
+    void runLengthScheduled(final BufferedReader input) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+
+        try {
+            for (ArrayList<FutureTask<ParseTask>> window = dispatchWindow(input, executor); !window.isEmpty();) {
+                final ArrayList<FutureTask<ParseTask>> nextWindow = dispatchWindow(input, executor);
+                for (final FutureTask<ParseTask> task : window) {
+                    output(task.get());
+                }
+                window = nextWindow;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads up to {@link #scheduleWindow} lines and submits them to the executor, longest sentences first.
+     * 
+     * @return Tasks for the lines read, in input order
+     */
+    ArrayList<FutureTask<ParseTask>> dispatchWindow(final BufferedReader input, final Executor executor)
+            throws IOException {
+
+        final ArrayList<FutureTask<ParseTask>> tasks = new ArrayList<FutureTask<ParseTask>>(scheduleWindow);
+        final IntArrayList lengths = new IntArrayList(scheduleWindow);
+
+        for (String line = null; tasks.size() < scheduleWindow && (line = input.readLine()) != null;) {
+            tasks.add(lineTask(line));
+            // Approximate the sentence length by the number of whitespace-delimited fields. That overestimates
+            // tree-formatted input, but consistently, and the ordering is all we need.
+            lengths.add(Strings.splitOnSpace(line.trim()).length);
+        }
+
+        final Integer[] order = new Integer[tasks.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                return lengths.getInt(o2) - lengths.getInt(o1);
+            }
+        });
+
+        for (final Integer i : order) {
+            executor.execute(tasks.get(i));
+        }
+        return tasks;
+    }
+
     @Override
     protected FutureTask<ParseTask> lineTask(final String input) {
         return new FutureTask<ParseTask>(new Callable<ParseTask>() {
@@ -738,35 +1050,158 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
         });
     }
 
+    /**
+     * Formats the parse result into a shared output buffer, which is written to stdout in batches of
+     * {@link #OPT_OUTPUT_BATCH_SIZE} sentences. Batching replaces a synchronized write and flush per sentence with one
+     * per batch.
+     */
     @Override
     protected void output(final ParseTask parseTask) {
-        // We'll count the sentence even if it failed with an exception (and record it as failed below). However, we
-        // don't currently include the words of such sentences in wordsParsed. That's a bit of an inconsistency, but
-        // it's OK for now.
-        sentencesParsed++;
-        if (parseTask != null) {
-            final StringBuilder output = new StringBuilder(512);
+        synchronized (outputBuffer) {
+            formatOutput(parseTask, outputBuffer);
+            outputBuffer.append('\n');
+            if (forestChannel != null) {
+                writeForest(parseTask);
+            }
+            if (++bufferedSentences >= outputBatchSize || outputBuffer.length() >= MAX_OUTPUT_BUFFER_CHARS) {
+                flushOutput();
+            }
+        }
+        recordStatistics(parseTask);
+    }
 
-            if (addUnkLabels) {
-                output.append(parseTask.parseBracketString(binaryTreeOutput, true, true, headPercolationRuleset));
-            } else {
-                output.append(parseTask.parseBracketString(binaryTreeOutput, printUnkLabels, false,
-                        headPercolationRuleset));
+    /**
+     * Writes the parse forest of a completed {@link ParseTask} to the forest file, or an empty forest if the parse
+     * failed (or the parser does not support forest output).
+     */
+    private void writeForest(final ParseTask parseTask) {
+        try {
+            BinaryForest.write(parseTask != null && parseTask.forest != null ? parseTask.forest : BinaryForest
+                    .serializeEmpty(), forestChannel);
+        } catch (final IOException e) {
+            BaseLogger.singleton().log(Level.SEVERE, "Error writing parse forest: " + e.toString());
+        }
+    }
+
+    /**
+     * Writes any buffered parse output to stdout
+     */
+    protected void flushOutput() {
+        synchronized (outputBuffer) {
+            if (outputBuffer.length() > 0) {
+                System.out.print(outputBuffer);
+                outputBuffer.setLength(0);
             }
+            bufferedSentences = 0;
+            System.out.flush();
+        }
+    }
 
-            try {
+    /**
+     * Formats a completed {@link ParseTask} for output (including evaluation and statistics at higher verbosity
+     * levels). Shared by {@link #output(ParseTask)} and {@link ParseServer}.
+     * 
+     * @param parseTask Completed task (<code>null</code> if parsing failed with an exception)
+     * @return String representation of the parse result, without a trailing newline
+     */
+    protected String formatOutput(final ParseTask parseTask) {
+        final StringBuilder output = new StringBuilder(512);
+        formatOutput(parseTask, output);
+        return output.toString();
+    }
+
+    /**
+     * Appends a completed {@link ParseTask} to an output buffer (see {@link #formatOutput(ParseTask)}).
+     * 
+     * @param parseTask Completed task (<code>null</code> if parsing failed with an exception)
+     * @param output Buffer to append to. No trailing newline is appended.
+     */
+    protected void formatOutput(final ParseTask parseTask, final StringBuilder output) {
+        formatParse(parseTask, output);
+        if (parseTask == null) {
+            if (kBest > 1) {
+                output.append('\n');
+            }
+            return;
+        }
+
+        try {
+            synchronized (evaluator) {
                 parseTask.evaluate(evaluator);
-            } catch (final Exception e) {
-                if (BaseLogger.singleton().isLoggable(Level.SEVERE)) {
-                    output.append("\nERROR: Evaluation failed: " + e.toString());
-                }
             }
+        } catch (final Exception e) {
+            if (BaseLogger.singleton().isLoggable(Level.SEVERE)) {
+                output.append("\nERROR: Evaluation failed: " + e.toString());
+            }
+        }
+
+        if (BaseLogger.singleton().isLoggable(Level.FINE)) {
+            output.append(parseTask.statsString());
+        }
+
+        // Separate the k-best lists of successive sentences with a blank line
+        if (kBest > 1) {
+            output.append('\n');
+        }
+    }
+
+    /**
+     * Appends the parse of a completed {@link ParseTask} (or with '-kbest', the k best parses, one per line), without
+     * evaluation or statistics.
+     * 
+     * @param parseTask Completed task (<code>null</code> if parsing failed with an exception)
+     * @param output Buffer to append to. No trailing newline is appended.
+     */
+    protected void formatParse(final ParseTask parseTask, final StringBuilder output) {
+        if (parseTask == null) {
+            output.append("()");
+        } else if (kBest > 1) {
+            formatKBestOutput(parseTask, output);
+        } else if (addUnkLabels) {
+            parseTask.appendParseBracketString(output, binaryTreeOutput, true, true, headPercolationRuleset);
+        } else {
+            parseTask.appendParseBracketString(output, binaryTreeOutput, printUnkLabels, false,
+                    headPercolationRuleset);
+        }
+    }
 
-            if (BaseLogger.singleton().isLoggable(Level.FINE)) {
-                output.append(parseTask.statsString());
+    /**
+     * Appends the k best parses of a completed {@link ParseTask} (see '-kbest'), one per line, each preceded by its log
+     * probability.
+     */
+    private void formatKBestOutput(final ParseTask parseTask, final StringBuilder output) {
+        final List<ScoredParse> parses = parseTask.kBest(kBest);
+        if (parses.isEmpty()) {
+            output.append("()");
+            return;
+        }
+        for (int i = 0; i < parses.size(); i++) {
+            final ScoredParse parse = parses.get(i);
+            if (i > 0) {
+                output.append('\n');
             }
+            output.append(String.format("%.5f\t", parse.score));
+            if (addUnkLabels) {
+                parseTask.appendParseBracketString(output, parse.tree, binaryTreeOutput, true, true,
+                        headPercolationRuleset);
+            } else {
+                parseTask.appendParseBracketString(output, parse.tree, binaryTreeOutput, printUnkLabels, false,
+                        headPercolationRuleset);
+            }
+        }
+    }
 
-            System.out.println(output.toString());
+    /**
+     * Accumulates corpus-wide statistics reported by {@link #cleanup()}.
+     * 
+     * @param parseTask Completed task (<code>null</code> if parsing failed with an exception)
+     */
+    protected synchronized void recordStatistics(final ParseTask parseTask) {
+        // We'll count the sentence even if it failed with an exception (and record it as failed below). However, we
+        // don't currently include the words of such sentences in wordsParsed. That's a bit of an inconsistency, but
+        // it's OK for now.
+        sentencesParsed++;
+        if (parseTask != null) {
             wordsParsed += parseTask.sentenceLength();
             if (parseTask.parseFailed()) {
                 failedParses++;
@@ -774,15 +1209,39 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
                 reparsedSentences++;
             }
             totalReparses += parseTask.reparseStages;
+            parseTimeHistogram[(int) Math.min(parseTask.parseTimeMs, MAX_HISTOGRAM_MS)]++;
+            maxParseTimeMs = (int) Math.max(maxParseTimeMs, parseTask.parseTimeMs);
 
         } else {
             failedParses++;
-            System.out.println("()");
         }
     }
 
+    /**
+     * @param rank Rank (0-based) in the sorted list of parse times
+     * @return The parse time (in ms) at the specified rank
+     */
+    private int parseTimePercentile(final int rank) {
+        int count = 0;
+        for (int ms = 0; ms < MAX_HISTOGRAM_MS; ms++) {
+            count += parseTimeHistogram[ms];
+            if (count > rank) {
+                return ms;
+            }
+        }
+        return maxParseTimeMs;
+    }
+
     @Override
     protected void cleanup() {
+        flushOutput();
+        if (forestChannel != null) {
+            try {
+                forestChannel.close();
+            } catch (final IOException e) {
+                BaseLogger.singleton().log(Level.SEVERE, "Error closing parse forest file: " + e.toString());
+            }
+        }
         final float parseTime = (System.currentTimeMillis() - parseStartTime) / 1000f;
 
         // If the individual parser configured a thread count (e.g. CellParallelCsrSpmvParser), compute
@@ -799,11 +1258,39 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
                         sentencesParsed, failedParses, reparsedSentences, totalReparses, parseTime, cpuTime, parseTime
                                 / sentencesParsed, wordsParsed / parseTime));
 
+        // Tail latency (per-sentence parse time, in ms)
+        int timedSentences = 0;
+        for (final int count : parseTimeHistogram) {
+            timedSentences += count;
+        }
+        if (timedSentences > 0) {
+            sb.append(String.format(" p50MsPerSent=%d p95MsPerSent=%d p99MsPerSent=%d maxMsPerSent=%d",
+                    parseTimePercentile((timedSentences - 1) / 2),
+                    parseTimePercentile((int) ((timedSentences - 1) * .95f)),
+                    parseTimePercentile((int) ((timedSentences - 1) * .99f)), maxParseTimeMs));
+        }
+
         if (!parserInstances.isEmpty() && parserInstances.getFirst() instanceof SparseMatrixVectorParser) {
             sb.append(String.format(" totalXProductTime=%d totalBinarySpMVTime=%d",
                     SparseMatrixVectorParser.totalCartesianProductTime, SparseMatrixVectorParser.totalBinarySpmvNs));
         }
 
+        final ChartArrayPool chartArrayPool = ChartArrayPool.sharedPool();
+        if (chartArrayPool != null) {
+            sb.append(' ');
+            sb.append(chartArrayPool.statsString());
+        }
+
+        if (parseCache != null) {
+            sb.append(' ');
+            sb.append(parseCache.statsString());
+        }
+
+        if (cellMemo != null) {
+            sb.append(' ');
+            sb.append(cellMemo.statsString());
+        }
+
         if (inputFormat == InputFormat.Tree) {
             final EvalbResult evalbResult = evaluator.accumulatedResult();
             sb.append(String.format(" f1=%.2f prec=%.2f recall=%.2f", evalbResult.f1() * 100,
@@ -831,6 +1318,51 @@ public class ParserDriver extends ThreadLocalLinewiseClTool<Parser<?>, ParseTask
      */
     public void setGrammar(final Grammar g) {
         this.grammar = g;
+        synchronized (this) {
+            if (parseCache != null) {
+                parseCache.clear();
+            }
+            if (cellMemo != null) {
+                cellMemo.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The parse-result cache shared by all parser instances, or null if caching is disabled (see
+     *         {@link #OPT_PARSE_CACHE_SIZE} and {@link #parseCacheSupported()})
+     */
+    public synchronized ParseCache parseCache() {
+        if (parseCache == null && parseCacheSupported()) {
+            final int size = GlobalConfigProperties.singleton().getIntProperty(OPT_PARSE_CACHE_SIZE, 0);
+            if (size > 0) {
+                parseCache = new ParseCache(size);
+            }
+        }
+        return parseCache;
+    }
+
+    /**
+     * @return True if parse results may be served from a {@link ParseCache}. Cached entries retain only the 1-best
+     *         parse, so output which consumes the chart of each sentence (k-best lists and forests) cannot be
+     *         cached. Subclasses which consume the chart themselves should override.
+     */
+    protected boolean parseCacheSupported() {
+        return kBest <= 1 && forestFile == null;
+    }
+
+    /**
+     * @return The chart-cell memo shared by all parser instances, or null if memoization is disabled (see
+     *         {@link #OPT_CELL_MEMO_MB})
+     */
+    public synchronized NgramCellMemo cellMemo() {
+        if (cellMemo == null) {
+            final float mb = GlobalConfigProperties.singleton().getFloatProperty(OPT_CELL_MEMO_MB, 0);
+            if (mb > 0) {
+                cellMemo = new NgramCellMemo((long) (mb * 1024 * 1024));
+            }
+        }
+        return cellMemo;
     }
 
     static public ParserDriver defaultTestOptions() {
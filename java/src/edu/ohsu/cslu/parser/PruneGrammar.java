@@ -0,0 +1,461 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import cltool4j.BaseLogger;
+import cltool4j.args4j.Option;
+import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
+import edu.ohsu.cslu.grammar.Grammar;
+import edu.ohsu.cslu.grammar.Production;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.parser.Parser.InputFormat;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart;
+import edu.ohsu.cslu.parser.fom.FigureOfMeritModel;
+import edu.ohsu.cslu.util.Evalb.BracketEvaluator;
+import edu.ohsu.cslu.util.Evalb.EvalbResult;
+import edu.ohsu.cslu.util.Strings;
+
+/**
+ * Reduces a grammar to the rules which are actually used when parsing a representative corpus. Accepts the same
+ * options as {@link ParserDriver} (including '-O' configuration options), and parses the input with that (pruned)
+ * configuration, recording the binary and unary rules which appear in the chart. A rule is counted once for each
+ * finalized chart cell in which it is the best derivation of a non-terminal ('-usage Chart', the default), or once
+ * for each occurrence in a 1-best parse ('-usage Parse'). Rules used fewer than '-t' times are dropped, and the
+ * remaining rules are written (with their original probabilities) to a grammar file usable with
+ * <code>ParserDriver -g</code>.
+ * 
+ * The lexicon is retained in full, as is every non-terminal of the original grammar (if all productions of a
+ * non-terminal fall below the threshold, we retain its most probable production), so figure-of-merit and pruning
+ * models trained with the original grammar remain compatible with the reduced grammar.
+ * 
+ * The '-report' option evaluates a list of usage thresholds, reparsing a development set (or the input corpus) with
+ * each reduced grammar and reporting the size of the grammar, throughput, and (for tree input) F1. A threshold of 0
+ * retains all rules, and serves as a baseline. e.g.:
+ * 
+ * <pre>
+ * prune-grammar -g eng.gr.gz -fom eng.fom.gz -ccClassifier cc.mdl -if Tree -t 2 -o eng.pruned.gr.gz \
+ *     -report 0,1,2,5,10 -dev wsj.24.trees &lt; wsj.02-21.trees
+ * </pre>
+ * 
+ * Only text-format grammars ('-g') are supported, and chart usage is only available for matrix-loop parsers, which
+ * store the chart in a {@link PackedArrayChart}.
+ */
+public class PruneGrammar extends ParserDriver {
+
+    @Option(name = "-o", required = true, metaVar = "file", usage = "Output grammar file (gzipped if the filename ends in '.gz')")
+    private File outputFile;
+
+    @Option(name = "-t", metaVar = "count", usage = "Usage threshold. Rules used fewer times are removed.")
+    private int threshold = 1;
+
+    @Option(name = "-usage", metaVar = "source", usage = "Count rule usage in finalized chart cells or in 1-best parses")
+    private UsageSource usageSource = UsageSource.Chart;
+
+    @Option(name = "-report", metaVar = "thresholds", usage = "Report grammar size, throughput, and accuracy at each of these usage thresholds (comma-separated)")
+    private String reportThresholds = null;
+
+    @Option(name = "-dev", metaVar = "file", usage = "Development set for '-report' (by default, the input corpus)")
+    private File devSet = null;
+
+    private RuleUsage ruleUsage;
+
+    /** Input sentences, retained for the trade-off report if no development set is specified */
+    private final List<String> corpus = Collections.synchronizedList(new ArrayList<String>());
+
+    public static void main(final String[] args) {
+        run(args);
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (grammarFile == null) {
+            throw new IllegalArgumentException("Grammar pruning requires a text-format grammar ('-g')");
+        }
+        super.setup();
+        ruleUsage = new RuleUsage(grammar, usageSource);
+    }
+
+    @Override
+    protected void run() throws Exception {
+        // Parse the input corpus, recording rule usage (in lineTask())
+        super.run();
+
+        final Grammar originalGrammar = grammar;
+        final FigureOfMeritModel originalFomModel = fomModel;
+        BaseLogger.singleton().info(
+                String.format("INFO: observedNonTerminals=%d/%d observedBinaryRules=%d/%d observedUnaryRules=%d/%d",
+                        ruleUsage.observedNonTerminals(), originalGrammar.numNonTerms(),
+                        ruleUsage.binaryCounts.size(), originalGrammar.numBinaryProds(),
+                        ruleUsage.unaryCounts.size(), originalGrammar.numUnaryProds()));
+
+        final Writer output = new BufferedWriter(new OutputStreamWriter(outputStream(outputFile),
+                Charset.forName("UTF-8")));
+        writePrunedGrammar(fileAsBufferedReader(grammarFile), output, ruleUsage, threshold);
+        output.close();
+
+        if (reportThresholds != null) {
+            final List<String> devSentences = devSet != null ? readLines(fileAsBufferedReader(devSet)) : corpus;
+            for (final String t : reportThresholds.split(",")) {
+                report(Integer.parseInt(t.trim()), devSentences);
+            }
+            setGrammar(originalGrammar);
+            fomModel = originalFomModel;
+        }
+    }
+
+    @Override
+    protected FutureTask<ParseTask> lineTask(final String input) {
+        if (reportThresholds != null && devSet == null) {
+            corpus.add(input);
+        }
+
+        final FutureTask<ParseTask> parseTask = super.lineTask(input);
+        return new FutureTask<ParseTask>(new Callable<ParseTask>() {
+
+            @Override
+            public ParseTask call() throws Exception {
+                parseTask.run();
+                final ParseTask result = parseTask.get();
+                if (result != null && !result.parseFailed()) {
+                    ruleUsage.record(getLocal(), result);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Chart usage is recorded from the chart of each sentence, which a cached parse would not populate
+     */
+    @Override
+    protected boolean parseCacheSupported() {
+        return usageSource == UsageSource.Parse && super.parseCacheSupported();
+    }
+
+    /**
+     * Records corpus statistics, but does not output the parse trees (the output of this tool is the reduced grammar)
+     */
+    @Override
+    protected void output(final ParseTask parseTask) {
+        recordStatistics(parseTask);
+    }
+
+    /**
+     * Reparses the development set with the grammar reduced at the specified threshold, and reports grammar size,
+     * throughput, and (for tree input) F1
+     */
+    private void report(final int reportThreshold, final List<String> devSentences) throws Exception {
+
+        final StringWriter prunedGrammar = new StringWriter();
+        writePrunedGrammar(fileAsBufferedReader(grammarFile), prunedGrammar, ruleUsage, reportThreshold);
+
+        final Grammar g = createGrammar(new StringReader(prunedGrammar.toString()), researchParserType,
+                grammar.tokenClassifier, packingFunctionType);
+        setGrammar(g);
+        fomModel = createFomModel(g);
+        final Parser<?> parser = createLocal();
+
+        final BracketEvaluator evaluator = new BracketEvaluator();
+        int words = 0, failures = 0;
+        final long startTime = System.currentTimeMillis();
+
+        for (final String sentence : devSentences) {
+            final ParseTask parseTask = parser.parseSentence(sentence, recoveryStrategy);
+            words += parseTask.sentenceLength();
+            if (parseTask.parseFailed()) {
+                failures++;
+            }
+            parseTask.evaluate(evaluator);
+        }
+        final float seconds = (System.currentTimeMillis() - startTime) / 1000f;
+
+        final StringBuilder sb = new StringBuilder(String.format(
+                "INFO: threshold=%d nonTerminals=%d binaryRules=%d unaryRules=%d sentences=%d failures=%d"
+                        + " seconds=%.3f wordsPerSec=%.3f", reportThreshold, g.numNonTerms(), g.numBinaryProds(),
+                g.numUnaryProds(), devSentences.size(), failures, seconds, words / seconds));
+        if (inputFormat == InputFormat.Tree) {
+            final EvalbResult evalbResult = evaluator.accumulatedResult();
+            sb.append(String.format(" f1=%.2f prec=%.2f recall=%.2f", evalbResult.f1() * 100,
+                    evalbResult.precision() * 100, evalbResult.recall() * 100));
+        }
+        BaseLogger.singleton().info(sb.toString());
+    }
+
+    /**
+     * Writes a reduced grammar, including the binary and unary productions of the original grammar used at least
+     * <code>minCount</code> times. The header line (if any) and the lexicon are copied unchanged, except for the
+     * updated production counts in the header. If all productions of a parent non-terminal fall below the threshold,
+     * its most probable production is retained, so the reduced grammar includes all non-terminals of the original.
+     * 
+     * @param originalGrammar The text-format grammar from which the usage statistics were collected
+     * @param output Writer for the reduced grammar
+     * @param usage Rule usage counts
+     * @param minCount Usage threshold (0 retains all productions)
+     * @throws IOException if reading or writing fails
+     */
+    static void writePrunedGrammar(final BufferedReader originalGrammar, final Writer output, final RuleUsage usage,
+            final int minCount) throws IOException {
+
+        String header = originalGrammar.readLine();
+        final ArrayList<String> rules = new ArrayList<String>();
+        if (header.contains(" -> ")) {
+            // No header line (e.g. Roark-format)
+            rules.add(header);
+            header = null;
+        }
+
+        for (String line = originalGrammar.readLine(); !line.equals(Grammar.LEXICON_DELIMITER); line = originalGrammar
+                .readLine()) {
+            if (line.trim().length() > 0) {
+                rules.add(line);
+            }
+        }
+
+        // Select productions above the threshold, and the most probable production of each parent
+        final boolean[] retain = new boolean[rules.size()];
+        final HashSet<String> retainedParents = new HashSet<String>();
+        final Object2IntOpenHashMap<String> bestRule = new Object2IntOpenHashMap<String>();
+        bestRule.defaultReturnValue(-1);
+        final float[] probabilities = new float[rules.size()];
+
+        for (int i = 0; i < rules.size(); i++) {
+            final String[] tokens = Strings.splitOnSpace(rules.get(i));
+            final String parent = tokens[0];
+            probabilities[i] = Float.parseFloat(tokens[tokens.length - 1]);
+
+            if (tokens.length == 5) {
+                retain[i] = usage.binaryCount(tokens[0], tokens[2], tokens[3]) >= minCount;
+            } else if (tokens.length == 4) {
+                retain[i] = usage.unaryCount(tokens[0], tokens[2]) >= minCount;
+            } else {
+                throw new IllegalArgumentException("Unexpected line in grammar PCFG\n\t" + rules.get(i));
+            }
+
+            if (retain[i]) {
+                retainedParents.add(parent);
+            }
+            final int best = bestRule.getInt(parent);
+            if (best < 0 || probabilities[i] > probabilities[best]) {
+                bestRule.put(parent, i);
+            }
+        }
+
+        for (final String parent : bestRule.keySet()) {
+            if (!retainedParents.contains(parent)) {
+                retain[bestRule.getInt(parent)] = true;
+            }
+        }
+
+        int binaryRules = 0, unaryRules = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            if (retain[i]) {
+                if (Strings.splitOnSpace(rules.get(i)).length == 5) {
+                    binaryRules++;
+                } else {
+                    unaryRules++;
+                }
+            }
+        }
+
+        if (header != null) {
+            output.write(header.replaceFirst("nBinary=[0-9]+", "nBinary=" + binaryRules).replaceFirst(
+                    "nUnary=[0-9]+", "nUnary=" + unaryRules));
+            output.write('\n');
+        }
+        for (int i = 0; i < rules.size(); i++) {
+            if (retain[i]) {
+                output.write(rules.get(i));
+                output.write('\n');
+            }
+        }
+
+        // Copy the lexicon
+        output.write(Grammar.LEXICON_DELIMITER);
+        output.write('\n');
+        for (String line = originalGrammar.readLine(); line != null; line = originalGrammar.readLine()) {
+            output.write(line);
+            output.write('\n');
+        }
+        output.flush();
+        originalGrammar.close();
+    }
+
+    private static OutputStream outputStream(final File file) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        return file.getName().endsWith(".gz") ? new GZIPOutputStream(os) : os;
+    }
+
+    private static List<String> readLines(final BufferedReader br) throws IOException {
+        final ArrayList<String> lines = new ArrayList<String>();
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+            lines.add(line);
+        }
+        br.close();
+        return lines;
+    }
+
+    public static enum UsageSource {
+        /** Count the best derivation of each non-terminal in each finalized chart cell */
+        Chart,
+
+        /** Count rules occurring in the 1-best parse */
+        Parse;
+    }
+
+    /**
+     * Accumulates binary and unary rule usage counts over a parsed corpus. Counts are keyed by the non-terminal indices
+     * of the grammar used during parsing.
+     */
+    static class RuleUsage {
+
+        private final Grammar grammar;
+        private final UsageSource source;
+
+        final Long2IntOpenHashMap binaryCounts = new Long2IntOpenHashMap();
+        final Int2IntOpenHashMap unaryCounts = new Int2IntOpenHashMap();
+        final int[] nonTerminalCounts;
+
+        public RuleUsage(final Grammar grammar, final UsageSource source) {
+            this.grammar = grammar;
+            this.source = source;
+            this.nonTerminalCounts = new int[grammar.numNonTerms()];
+        }
+
+        /**
+         * Records the rules used in a completed parse.
+         * 
+         * @param parser The parser which produced <code>parseTask</code> (with its chart still populated)
+         * @param parseTask Completed parse
+         */
+        public synchronized void record(final Parser<?> parser, final ParseTask parseTask) {
+            if (source == UsageSource.Parse) {
+                recordParse(parseTask.binaryParse);
+                return;
+            }
+
+            if (!(parser instanceof ChartParser) || !(((ChartParser<?, ?>) parser).chart instanceof PackedArrayChart)) {
+                throw new IllegalArgumentException("Chart usage statistics are not supported for "
+                        + parser.getClass().getName() + " (use '-usage Parse')");
+            }
+            recordChart((PackedArrayChart) ((ChartParser<?, ?>) parser).chart);
+        }
+
+        private void recordChart(final PackedArrayChart chart) {
+            final PackingFunction pf = chart.sparseMatrixGrammar.packingFunction();
+            final int[] numNonTerminals = chart.numNonTerminals();
+
+            for (int start = 0; start < chart.size(); start++) {
+                for (int end = start + 1; end <= chart.size(); end++) {
+                    final int cellIndex = chart.cellIndex(start, end);
+                    final int offset = chart.offset(cellIndex);
+
+                    for (int i = offset; i < offset + numNonTerminals[cellIndex]; i++) {
+                        final short parent = chart.nonTerminalIndices[i];
+                        nonTerminalCounts[parent]++;
+
+                        final short rightChild = pf.unpackRightChild(chart.packedChildren[i]);
+                        if (rightChild == Production.UNARY_PRODUCTION) {
+                            unaryCounts.addTo(unaryKey(parent, pf.unpackLeftChild(chart.packedChildren[i])), 1);
+                        } else if (rightChild != Production.LEXICAL_PRODUCTION) {
+                            binaryCounts.addTo(
+                                    binaryKey(parent, pf.unpackLeftChild(chart.packedChildren[i]), rightChild), 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void recordParse(final BinaryTree<String> parse) {
+            for (final BinaryTree<String> node : parse.preOrderTraversal()) {
+                if (node.isLeafOrPreterminal()) {
+                    continue;
+                }
+                final short parent = grammar.mapNonterminal(node.label());
+                final short leftChild = grammar.mapNonterminal(node.leftChild().label());
+                // Labels may not be found in the grammar if the decoding method unsplits or otherwise relabels them
+                if (parent < 0 || leftChild < 0) {
+                    continue;
+                }
+                nonTerminalCounts[parent]++;
+
+                if (node.rightChild() == null) {
+                    unaryCounts.addTo(unaryKey(parent, leftChild), 1);
+                } else {
+                    final short rightChild = grammar.mapNonterminal(node.rightChild().label());
+                    if (rightChild >= 0) {
+                        binaryCounts.addTo(binaryKey(parent, leftChild, rightChild), 1);
+                    }
+                }
+            }
+        }
+
+        public int binaryCount(final String parent, final String leftChild, final String rightChild) {
+            return binaryCounts.get(binaryKey(grammar.mapNonterminal(parent), grammar.mapNonterminal(leftChild),
+                    grammar.mapNonterminal(rightChild)));
+        }
+
+        public int unaryCount(final String parent, final String child) {
+            return unaryCounts.get(unaryKey(grammar.mapNonterminal(parent), grammar.mapNonterminal(child)));
+        }
+
+        public int observedNonTerminals() {
+            int count = 0;
+            for (int i = 0; i < nonTerminalCounts.length; i++) {
+                if (nonTerminalCounts[i] > 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static long binaryKey(final int parent, final int leftChild, final int rightChild) {
+            return ((long) parent << 32) | ((leftChild & 0xffff) << 16) | (rightChild & 0xffff);
+        }
+
+        private static int unaryKey(final int parent, final int child) {
+            return (parent << 16) | (child & 0xffff);
+        }
+    }
+}
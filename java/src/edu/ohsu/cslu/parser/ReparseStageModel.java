@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import java.io.Serializable;
+
+import edu.ohsu.cslu.datastructs.vectors.SparseBitVector;
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy;
+import edu.ohsu.cslu.parser.cellselector.AdaptiveBeamModel;
+import edu.ohsu.cslu.parser.cellselector.CellSelector;
+import edu.ohsu.cslu.parser.cellselector.CompleteClosureModel;
+import edu.ohsu.cslu.perceptron.AveragedPerceptron;
+import edu.ohsu.cslu.perceptron.Perceptron.LossFunction;
+
+/**
+ * Predicts the {@link ReparseStrategy} stage at which to begin parsing a sentence, so that sentences likely to fail
+ * at the initial beam settings skip directly to a wider beam instead of discarding one or more complete inside passes.
+ * 
+ * The prediction is made after the {@link CellSelector} is initialized, and uses only features which are already
+ * available at that point: sentence length, the fraction of unknown words, and the cell selector's outputs (the
+ * fraction of cells left open by a {@link CompleteClosureModel} and the mean beam width predicted by an
+ * {@link AdaptiveBeamModel}). Each is quantized into bins, and classified with an averaged perceptron.
+ * 
+ * Models are trained offline with {@link TrainReparseStageModel}, from the per-sentence statistics logged by
+ * {@link ParserDriver} (at '-v 1' or higher). The class predicted is an index into the stages of the reparse strategy
+ * in use when the log was produced, so the model should be used with the same strategy (generally
+ * {@link ReparseStrategy#Escalate}).
+ */
+public class ReparseStageModel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final static int LENGTH_BIN_SIZE = 5;
+    private final static int LENGTH_BINS = 13;
+    private final static int FRACTION_BINS = 11;
+    private final static int BEAM_BINS = 12;
+
+    private final static int LENGTH_OFFSET = 1;
+    private final static int UNK_OFFSET = LENGTH_OFFSET + LENGTH_BINS;
+    private final static int OPEN_CELL_OFFSET = UNK_OFFSET + FRACTION_BINS;
+    private final static int BEAM_OFFSET = OPEN_CELL_OFFSET + FRACTION_BINS;
+    private final static int FEATURES = BEAM_OFFSET + BEAM_BINS;
+
+    private final AveragedPerceptron perceptron;
+    private final int stages;
+
+    /**
+     * @param stages The number of stages in the {@link ReparseStrategy} (i.e., the number of classes)
+     * @param lossFunction Loss function used in training. Generally, predicting too late a stage (which can change the
+     *            parse output as well as increasing parse time) should be penalized more heavily than predicting too
+     *            early a stage (which only wastes an inside pass)
+     */
+    public ReparseStageModel(final int stages, final LossFunction lossFunction) {
+        this.perceptron = new AveragedPerceptron(lossFunction, stages, FEATURES);
+        this.stages = stages;
+    }
+
+    /**
+     * @return The number of stages (classes) in this model
+     */
+    public int stages() {
+        return stages;
+    }
+
+    /**
+     * Predicts the index of the reparsing stage at which to start parsing the specified sentence.
+     * {@link ParseTask#openCellFraction} and {@link ParseTask#meanCellBeamWidth} must already be populated.
+     * 
+     * @param parseTask
+     * @return The index of the reparsing stage at which to start
+     */
+    public int classify(final ParseTask parseTask) {
+        return classify(parseTask.sentenceLength(), parseTask.unkRate(), parseTask.openCellFraction,
+                parseTask.meanCellBeamWidth);
+    }
+
+    public int classify(final int sentenceLength, final float unkRate, final float openCellFraction,
+            final float meanCellBeamWidth) {
+        return perceptron.classify(featureVector(sentenceLength, unkRate, openCellFraction, meanCellBeamWidth));
+    }
+
+    public void train(final int goldStage, final int sentenceLength, final float unkRate,
+            final float openCellFraction, final float meanCellBeamWidth) {
+        perceptron.train(goldStage, featureVector(sentenceLength, unkRate, openCellFraction, meanCellBeamWidth));
+    }
+
+    /**
+     * Completes averaging of the perceptron weights. Must be called after training and before the model is used (or
+     * serialized), since classification may otherwise update the averaged weights (and is then not thread-safe).
+     */
+    public void finalizeModel() {
+        perceptron.averageAllFeatures();
+    }
+
+    private SparseBitVector featureVector(final int sentenceLength, final float unkRate, final float openCellFraction,
+            final float meanCellBeamWidth) {
+
+        // Unknown-word rates are generally low, so we use finer-grained bins (0.025) for UNK rate than for open-cell
+        // fraction (0.1). Beam widths are binned logarithmically.
+        return new SparseBitVector(FEATURES, new int[] { 0,
+                LENGTH_OFFSET + Math.min(sentenceLength / LENGTH_BIN_SIZE, LENGTH_BINS - 1),
+                UNK_OFFSET + fractionBin(unkRate * 4), OPEN_CELL_OFFSET + fractionBin(openCellFraction),
+                BEAM_OFFSET + Math.min(32 - Integer.numberOfLeadingZeros((int) meanCellBeamWidth), BEAM_BINS - 1) });
+    }
+
+    private static int fractionBin(final float fraction) {
+        return Math.max(0, Math.min((int) (fraction * (FRACTION_BINS - 1)), FRACTION_BINS - 1));
+    }
+}
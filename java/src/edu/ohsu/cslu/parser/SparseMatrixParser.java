@@ -33,10 +33,13 @@ import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
 import edu.ohsu.cslu.parser.Parser.ReparseStrategy.Stage;
+import edu.ohsu.cslu.parser.chart.BinaryForest;
 import edu.ohsu.cslu.parser.chart.BoundedPriorityQueue;
 import edu.ohsu.cslu.parser.chart.Chart;
 import edu.ohsu.cslu.parser.chart.Chart.ChartCell;
 import edu.ohsu.cslu.parser.chart.DenseVectorChart.DenseVectorChartCell;
+import edu.ohsu.cslu.parser.chart.KBestExtractor;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart.TemporaryChartCell;
 import edu.ohsu.cslu.parser.chart.ParallelArrayChart;
@@ -59,7 +62,7 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
      */
     public final static String PROPERTY_UNARY_ITERATIONS = "unaryIterations";
 
-    private final static int UNARY_ITERATIONS = GlobalConfigProperties.singleton().getIntProperty(
+    protected final static int UNARY_ITERATIONS = GlobalConfigProperties.singleton().getIntProperty(
             PROPERTY_UNARY_ITERATIONS, 1);
 
     /** The amount to increase {@link #maxLocalDelta} at each reparsing stage */
@@ -75,6 +78,10 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
     protected final ThreadLocal<float[]> threadLocalTmpFoms;
     protected final ThreadLocal<TemporaryChartCell> threadLocalQueueEdges;
 
+    /** Non-terminals and FOMs of the edges surviving {@link #maxLocalDelta}, from which the beam is selected */
+    protected final ThreadLocal<short[]> threadLocalCandidateNts;
+    protected final ThreadLocal<float[]> threadLocalCandidateFoms;
+
     public SparseMatrixParser(final ParserDriver opts, final G grammar) {
         super(opts, grammar);
 
@@ -101,11 +108,25 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
                     return new TemporaryChartCell(grammar, false);
                 }
             };
+            this.threadLocalCandidateNts = new ThreadLocal<short[]>() {
+                @Override
+                protected short[] initialValue() {
+                    return new short[grammar.numNonTerms()];
+                }
+            };
+            this.threadLocalCandidateFoms = new ThreadLocal<float[]>() {
+                @Override
+                protected float[] initialValue() {
+                    return new float[grammar.numNonTerms()];
+                }
+            };
 
         } else {
             this.threadLocalBoundedPriorityQueue = null;
             this.threadLocalTmpFoms = null;
             this.threadLocalQueueEdges = null;
+            this.threadLocalCandidateNts = null;
+            this.threadLocalCandidateFoms = null;
         }
     }
 
@@ -138,10 +159,17 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
 
         final Stage[] reparseStages = GlobalConfigProperties.singleton().getIntProperty(PROPERTY_MAX_BEAM_WIDTH,
                 Integer.MAX_VALUE) == 0 ? new Stage[] { Stage.EXHAUSTIVE } : opts.reparseStrategy.stages();
-        for (final Parser.ReparseStrategy.Stage stage : reparseStages) {
 
+        // Record the cell selector's predictions (logged, and used to train and apply a ReparseStageModel)
+        parseTask.openCellFraction = cellSelector.openCellFraction();
+        parseTask.meanCellBeamWidth = cellSelector.meanBeamWidth(grammar.numNonTerms());
+        final int firstStage = opts.reparseStageModel != null && reparseStages.length > 1 ? Math.min(
+                opts.reparseStageModel.classify(parseTask), reparseStages.length - 1) : 0;
+
+        for (int i = 0; i < reparseStages.length; i++) {
+
+            final Stage stage = reparseStages[i];
             final long stageStartTime = System.currentTimeMillis();
-            parseTask.reparseStages++;
 
             switch (stage) {
             case NORMAL:
@@ -149,8 +177,6 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
                 break;
 
             case FIXED_BEAM:
-                initSentence(parseTask, beamWidth, lexicalRowBeamWidth, lexicalRowUnaries, maxLocalDelta);
-                cellSelector.reset(false);
                 break;
 
             case DOUBLE:
@@ -159,18 +185,31 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
                 if ((beamWidth << 1) >= grammar.nonTermSet.size()) {
                     continue;
                 }
-                initSentence(parseTask, beamWidth << 1, lexicalRowBeamWidth << 1, lexicalRowUnaries << 1, maxLocalDelta
+                setPruningParams(beamWidth << 1, lexicalRowBeamWidth << 1, lexicalRowUnaries << 1, maxLocalDelta
                         * MAX_LOCAL_DELTA_MULTIPLIER);
-                cellSelector.reset(false);
                 break;
 
             case EXHAUSTIVE:
-                initSentence(parseTask, grammar.nonTermSet.size(), grammar.nonTermSet.size(),
-                        grammar.nonTermSet.size(), Float.MAX_VALUE);
-                cellSelector.reset(false);
+                setPruningParams(grammar.nonTermSet.size(), grammar.nonTermSet.size(), grammar.nonTermSet.size(),
+                        Float.MAX_VALUE);
                 break;
             }
 
+            // Stages preceding the predicted starting stage only accumulate their pruning parameters (e.g., the beam
+            // width of a chain of doublings). We initialize the chart once, for the first stage we actually parse.
+            if (i < firstStage) {
+                continue;
+            }
+
+            parseTask.reparseStages++;
+            parseTask.stage = (short) i;
+
+            // The chart was initialized for the default pruning parameters by initChart()
+            if (stage != Stage.NORMAL) {
+                initSentence(parseTask, beamWidth, lexicalRowBeamWidth, lexicalRowUnaries, maxLocalDelta);
+                cellSelector.reset(false);
+            }
+
             insidePass();
 
             if (BaseLogger.singleton().isLoggable(Level.ALL)) {
@@ -181,25 +220,59 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
                 BaseLogger.singleton().finer(
                         String.format("INFO: stage=%s time=%d success=true", stage.toString(),
                                 System.currentTimeMillis() - stageStartTime));
-                return chart.extractBestParse(grammar.startSymbol);
+                final BinaryTree<String> parseTree = decodeCompleteParse(parseTask);
+                if (opts.forestFile != null) {
+                    parseTask.forest = BinaryForest.serialize(chart, outsideProbabilitiesComputed(),
+                            backpointersComputed());
+                }
+                return parseTree;
             }
             BaseLogger.singleton().finer(
                     String.format("INFO: stage=%s time=%d success=false", stage.toString(), System.currentTimeMillis()
                             - stageStartTime));
+
+            // Stop escalating once the deadline has passed, and fall back to the recovery strategy (if any)
+            if (parseTask.deadlineExpired()) {
+                parseTask.deadlineStage = stage;
+                break;
+            }
         }
 
         return extract(parseTask.recoveryStrategy);
     }
 
+    /**
+     * Decodes the parse from a chart populated by a successful reparse stage (see {@link #findBestParse(ParseTask)}).
+     * Subclasses may perform additional passes before decoding (e.g., the outside pass of an inside-outside parser),
+     * which need only be run for the successful stage.
+     * 
+     * @param parseTask
+     * @return The decoded parse tree
+     */
+    protected BinaryTree<String> decodeCompleteParse(final ParseTask parseTask) {
+        // Snapshot the chart for k-best enumeration before it is reused for another sentence
+        if (opts.kBest > 1 && chart instanceof PackedArrayChart) {
+            parseTask.kBestExtractor = new KBestExtractor((PackedArrayChart) chart, grammar.startSymbol, opts.kBest);
+        }
+        return chart.extractBestParse(grammar.startSymbol);
+    }
+
     @Override
     protected void initSentence(final ParseTask parseTask) {
         initSentence(parseTask, beamWidth, lexicalRowBeamWidth, lexicalRowUnaries, maxLocalDelta);
     }
 
-    protected void initSentence(final ParseTask parseTask, final int newBeamWidth, final int newLexicalRowBeamWidth,
+    /**
+     * Sets the beam width parameters for the next inside pass, without initializing the chart
+     * 
+     * @param newBeamWidth
+     * @param newLexicalRowBeamWidth
+     * @param newLexicalRowUnaries
+     * @param newMaxLocalDelta
+     */
+    private void setPruningParams(final int newBeamWidth, final int newLexicalRowBeamWidth,
             final int newLexicalRowUnaries, final float newMaxLocalDelta) {
 
-        // Set beam width parameters
         if (newBeamWidth >= grammar.nonTermSet.size()) {
             this.beamWidth = this.lexicalRowBeamWidth = this.lexicalRowUnaries = grammar.nonTermSet.size();
             this.exhaustiveSearch = true;
@@ -216,13 +289,24 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
             threadLocalBoundedPriorityQueue.set(new BoundedPriorityQueue(
                     Math.max(newBeamWidth, newLexicalRowBeamWidth), grammar));
         }
+    }
+
+    protected void initSentence(final ParseTask parseTask, final int newBeamWidth, final int newLexicalRowBeamWidth,
+            final int newLexicalRowUnaries, final float newMaxLocalDelta) {
+
+        setPruningParams(newBeamWidth, newLexicalRowBeamWidth, newLexicalRowUnaries, newMaxLocalDelta);
 
         if (chart != null
-                && chart.chartArraySize() >= ParallelArrayChart.chartArraySize(parseTask.sentenceLength(),
+                && chart.chartArrayCapacity() >= ParallelArrayChart.chartArraySize(parseTask.sentenceLength(),
                         this.beamWidth, this.lexicalRowBeamWidth)
                 && chart.maxCells >= parseTask.sentenceLength() * (parseTask.sentenceLength() + 1) / 1) {
             chart.reset(parseTask, this.beamWidth, this.lexicalRowBeamWidth);
         } else {
+            // Return the old chart's arrays to the pool (if pooling is enabled) before allocating a larger chart
+            if (chart != null) {
+                chart.release();
+            }
+
             // Construct a chart of the appropriate type
             try {
                 final Class<C> chartClass = chartClass();
@@ -255,6 +339,18 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
         }
     }
 
+    /**
+     * Releases the current chart (see {@link ParallelArrayChart#release()}).
+     */
+    @Override
+    public void shutdown() {
+        if (chart != null) {
+            chart.release();
+            chart = null;
+        }
+        super.shutdown();
+    }
+
     @Override
     protected void addLexicalProductions(final ChartCell cell) {
         if (ParserDriver.parseFromInputTags) {
@@ -297,16 +393,48 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
             final PackedArrayChartCell packedArrayCell = (PackedArrayChartCell) chartCell;
             packedArrayCell.allocateTemporaryStorage();
 
+            if (cellSelector.hasNonTerminalConstraints()) {
+                applyNonTerminalConstraints(packedArrayCell.tmpCell.insideProbabilities, 0, chartCell.start(),
+                        chartCell.end());
+            }
             unarySpmv(packedArrayCell.tmpCell.packedChildren, packedArrayCell.tmpCell.insideProbabilities,
                     packedArrayCell.tmpCell.midpoints, 0, chartCell.end());
         } else {
             final DenseVectorChartCell denseVectorCell = (DenseVectorChartCell) chartCell;
 
+            if (cellSelector.hasNonTerminalConstraints()) {
+                applyNonTerminalConstraints(chart.insideProbabilities, denseVectorCell.offset(), chartCell.start(),
+                        chartCell.end());
+            }
             unarySpmv(chart.packedChildren, chart.insideProbabilities, chart.midpoints, denseVectorCell.offset(),
                     chartCell.end());
         }
     }
 
+    /**
+     * Removes non-terminals disallowed by the cell selector (see {@link CellSelector#isNonTerminalOpen}) from a cell
+     * under construction, by resetting their inside probabilities to negative infinity. Callers should first check
+     * {@link CellSelector#hasNonTerminalConstraints()}.
+     * 
+     * Constraints are applied to binary and lexical entries, before unary processing; unary parents of the remaining
+     * entries are retained (removing them afterward could orphan the backpointers of unary chains).
+     * 
+     * @param chartCellProbabilities
+     * @param offset
+     * @param start
+     * @param end
+     */
+    protected final void applyNonTerminalConstraints(final float[] chartCellProbabilities, final int offset,
+            final short start, final short end) {
+
+        for (short nt = 0; nt < grammar.numNonTerms(); nt++) {
+            if (chartCellProbabilities[offset + nt] != Float.NEGATIVE_INFINITY
+                    && !cellSelector.isNonTerminalOpen(start, end, nt)) {
+                chartCellProbabilities[offset + nt] = Float.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
     protected void unarySpmv(final int[] chartCellChildren, final float[] chartCellProbabilities,
             final short[] chartCellMidpoints, final int offset, final short chartCellEnd) {
 
@@ -348,6 +476,9 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
         final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
 
         final TemporaryChartCell tmpCell = spvChartCell.tmpCell;
+        if (cellSelector.hasNonTerminalConstraints()) {
+            applyNonTerminalConstraints(tmpCell.insideProbabilities, 0, start, end);
+        }
 
         final int cellBeamWidth = Math.min(cellSelector.getBeamWidth(spvChartCell.cellIndex),
                 (end - start == 1 ? lexicalRowBeamWidth : beamWidth));
@@ -412,58 +543,69 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
          * C) A parallel array of edges. We will pop a limited number of edges off the priority queue into this array,
          * so this storage represents the actual cell population. (parallel array in tmpCell)
          * 
-         * First, we push all binary edges onto the priority queue (if we're pruning significantly, most will not make
-         * the queue). We then begin popping edges off the queue. With each edge popped, we 1) Add the edge to the array
-         * of cell edges (C); and 2) Iterate through unary grammar rules with the edge parent as a child, inserting any
-         * resulting unary edges to the queue. This insertion replaces the existing queue entry for the parent
-         * non-terminal, if greater, and updates the inside probability and backpointer in (A).
+         * First, we select the binary edges with the highest FOMs onto the priority queue (if we're pruning
+         * significantly, most will not make the queue). We then begin popping edges off the queue. With each edge
+         * popped, we 1) Add the edge to the array of cell edges (C); and 2) Iterate through unary grammar rules with the
+         * edge parent as a child, inserting any resulting unary edges to the queue. This insertion replaces the existing
+         * queue entry for the parent non-terminal, if greater, and updates the inside probability and backpointer in
+         * (A).
          */
 
-        // Push all binary or lexical edges onto a bounded priority queue
-        final BoundedPriorityQueue q = threadLocalBoundedPriorityQueue.get();
-        q.clear(cellBeamWidth);
+        // Select the best binary or lexical edges into a bounded priority queue
+        BoundedPriorityQueue q = threadLocalBoundedPriorityQueue.get();
+        // initSentence() only replaces the queue of the thread which initiated the parse; when cells are populated
+        // concurrently, this thread may still hold a queue sized for an earlier (narrower) reparsing stage
+        if (q.nts.length < Math.max(beamWidth, lexicalRowBeamWidth)) {
+            q = new BoundedPriorityQueue(Math.max(beamWidth, lexicalRowBeamWidth), grammar);
+            threadLocalBoundedPriorityQueue.set(q);
+        }
 
         // Packed children and probabilities currently on the queue. Initially copied from cell temporary storage, but
         // updated as unaries are pushed onto the queue
         final TemporaryChartCell queueEdges = threadLocalQueueEdges.get();
 
-        if (end - start == 1) { // Lexical Row (span = 1)
-
-            // Limit the queue to the number of non-unary productions allowed
-            q.setMaxSize(lexicalRowBeamWidth - lexicalRowUnaries);
+        // Collect the edges which meet the maximum delta, and their FOMs
+        final short[] candidateNts = threadLocalCandidateNts.get();
+        final float[] candidateFoms = threadLocalCandidateFoms.get();
+        int candidates = 0;
 
+        if (end - start == 1) { // Lexical Row (span = 1)
             for (short nt = 0; nt < grammar.numNonTerms(); nt++) {
                 // Skip edges that don't meet the maximum delta
                 if (tmpCell.insideProbabilities[nt] > minInsideProbability) {
-                    final float fom = figureOfMerit.calcLexicalFOM(start, end, nt, tmpCell.insideProbabilities[nt]);
-                    // Skip storing edges that didn't make it into the bounded queue
-                    if (q.insert(nt, fom)) {
-                        queueEdges.packedChildren[nt] = tmpCell.packedChildren[nt];
-                        queueEdges.insideProbabilities[nt] = tmpCell.insideProbabilities[nt];
-                        queueEdges.midpoints[nt] = tmpCell.midpoints[nt];
-                    }
+                    candidateNts[candidates] = nt;
+                    candidateFoms[candidates++] = figureOfMerit.calcLexicalFOM(start, end, nt,
+                            tmpCell.insideProbabilities[nt]);
                 }
             }
-
-            // Now that all lexical productions are on the queue, expand it a bit to allow space for unary productions
-            if (allowUnaries) {
-                q.setMaxSize(lexicalRowBeamWidth);
-            }
+            // Limit the queue to the number of non-unary productions allowed
+            q.clear(lexicalRowBeamWidth - lexicalRowUnaries);
 
         } else { // Span >= 2
             for (short nt = 0; nt < grammar.numNonTerms(); nt++) {
-
                 // Skip edges that don't meet the maximum delta
                 if (tmpCell.insideProbabilities[nt] > minInsideProbability) {
-                    final float fom = figureOfMerit.calcFOM(start, end, nt, tmpCell.insideProbabilities[nt]);
-                    // Skip storing edges that didn't make it into the bounded queue
-                    if (q.insert(nt, fom)) {
-                        queueEdges.packedChildren[nt] = tmpCell.packedChildren[nt];
-                        queueEdges.insideProbabilities[nt] = tmpCell.insideProbabilities[nt];
-                        queueEdges.midpoints[nt] = tmpCell.midpoints[nt];
-                    }
+                    candidateNts[candidates] = nt;
+                    candidateFoms[candidates++] = figureOfMerit.calcFOM(start, end, nt,
+                            tmpCell.insideProbabilities[nt]);
                 }
             }
+            q.clear(cellBeamWidth);
+        }
+
+        q.select(candidateNts, candidateFoms, candidates);
+
+        // Store copies of the selected edges
+        for (int i = q.headIndex(); i >= 0 && i <= q.tailIndex(); i++) {
+            final short nt = q.nts[i];
+            queueEdges.packedChildren[nt] = tmpCell.packedChildren[nt];
+            queueEdges.insideProbabilities[nt] = tmpCell.insideProbabilities[nt];
+            queueEdges.midpoints[nt] = tmpCell.midpoints[nt];
+        }
+
+        // Now that all lexical productions are on the queue, expand it a bit to allow space for unary productions
+        if (end - start == 1 && allowUnaries && q.size() > 0) {
+            q.setMaxSize(lexicalRowBeamWidth);
         }
 
         if (q.size() == 0) {
@@ -539,6 +681,22 @@ public abstract class SparseMatrixParser<G extends SparseMatrixGrammar, C extend
         }
     }
 
+    /**
+     * @return True if this {@link Parser} implementation populates outside probabilities during decoding (defaults to
+     *         false and overridden by inside-outside parsers)
+     */
+    protected boolean outsideProbabilitiesComputed() {
+        return false;
+    }
+
+    /**
+     * @return True if this {@link Parser} implementation records a backpointer (children and midpoint) for each chart
+     *         entry (defaults to true and overridden by inside-outside parsers, which do not)
+     */
+    protected boolean backpointersComputed() {
+        return true;
+    }
+
     /**
      * @return True if this {@link Parser} implementation does implicit pruning (regardless of configuration
      *         properties); e.g. {@link ConstrainedCphSpmlParser}.
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.parser.fom.InsideProb;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+
+/**
+ * Unit tests for {@link ParseCache}
+ */
+public class TestParseCache extends CphParserTestCase {
+
+    private final static String[] SENTENCES = new String[] { "The economy 's temperature will be taken .",
+            "Stocks fell sharply yesterday .", "The company said it expects a loss ." };
+
+    @After
+    public void tearDown() {
+        GlobalConfigProperties.singleton().remove(ParserDriver.OPT_PARSE_CACHE_SIZE);
+    }
+
+    private static CartesianProductHashSpmlParser createParser(final int cacheSize) {
+        return createParser(createOpts(cacheSize));
+    }
+
+    private static ParserDriver createOpts(final int cacheSize) {
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_PARSE_CACHE_SIZE, Integer.toString(cacheSize));
+        return parserOptions();
+    }
+
+    @Test
+    public void testCachedParses() {
+        final CartesianProductHashSpmlParser parser = createParser(10);
+        final ParseCache cache = parser.opts.parseCache();
+        assertNotNull(cache);
+
+        final String[] parses = new String[SENTENCES.length];
+        final float[] insideProbabilities = new float[SENTENCES.length];
+        for (int i = 0; i < SENTENCES.length; i++) {
+            final ParseTask task = parser.parseSentence(SENTENCES[i]);
+            assertFalse(task.cacheHit);
+            parses[i] = task.binaryParse.toString();
+            insideProbabilities[i] = task.insideProbability;
+
+            // Output replaces the leaf labels of the tree; that should not affect the cached copy
+            task.parseBracketString(false, false, false, null);
+        }
+        assertEquals(0, cache.hits());
+        assertEquals(3, cache.misses());
+        assertEquals(3, cache.size());
+        assertTrue(cache.estimatedBytes() > 0);
+
+        for (int i = 0; i < SENTENCES.length; i++) {
+            final ParseTask task = parser.parseSentence(SENTENCES[i]);
+            assertTrue(task.cacheHit);
+            assertEquals(parses[i], task.binaryParse.toString());
+            assertEquals(insideProbabilities[i], task.insideProbability, 0f);
+            assertNotSame(parser.parseSentence(SENTENCES[i]).binaryParse, task.binaryParse);
+        }
+        assertEquals(6, cache.hits());
+        assertEquals(.667f, cache.hitRate(), .001f);
+        parser.shutdown();
+    }
+
+    /**
+     * Unknown words which map to the same unknown-word class produce the same cache key, but the output should still
+     * contain the original words
+     */
+    @Test
+    public void testUnknownWords() {
+        final CartesianProductHashSpmlParser parser = createParser(10);
+        parser.parseSentence("The zorblat will be taken .");
+        final ParseTask task = parser.parseSentence("The quarvix will be taken .");
+        assertTrue(task.cacheHit);
+        assertTrue(task.parseBracketString(false).contains("quarvix"));
+        assertFalse(task.parseBracketString(false).contains("zorblat"));
+        parser.shutdown();
+    }
+
+    @Test
+    public void testEviction() {
+        final CartesianProductHashSpmlParser parser = createParser(2);
+        final ParseCache cache = parser.opts.parseCache();
+
+        for (final String sentence : SENTENCES) {
+            parser.parseSentence(sentence);
+        }
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+
+        // The least-recently-used sentence (the first) should have been evicted
+        assertTrue(parser.parseSentence(SENTENCES[2]).cacheHit);
+        assertFalse(parser.parseSentence(SENTENCES[0]).cacheHit);
+        // And now the second
+        assertFalse(parser.parseSentence(SENTENCES[1]).cacheHit);
+        assertTrue(parser.parseSentence(SENTENCES[0]).cacheHit);
+        parser.shutdown();
+    }
+
+    /**
+     * Parsers constructed with a different decoding or pruning configuration, and changes to the grammar, should
+     * invalidate cached parses
+     */
+    @Test
+    public void testInvalidation() {
+        final ParserDriver opts = createOpts(10);
+        final ParseCache cache = opts.parseCache();
+
+        final CartesianProductHashSpmlParser parser = createParser(opts);
+        parser.parseSentence(SENTENCES[0]);
+        assertTrue(parser.parseSentence(SENTENCES[0]).cacheHit);
+
+        opts.fomModel = new InsideProb();
+        final CartesianProductHashSpmlParser parser2 = createParser(opts);
+        assertFalse(parser2.parseSentence(SENTENCES[0]).cacheHit);
+        assertEquals(1, cache.invalidations());
+
+        // Unchanged configuration
+        assertTrue(parser2.parseSentence(SENTENCES[0]).cacheHit);
+        assertTrue(createParser(opts).parseSentence(SENTENCES[0]).cacheHit);
+
+        GlobalConfigProperties.singleton().setProperty(Parser.PROPERTY_MAX_BEAM_WIDTH, "5");
+        try {
+            assertFalse(createParser(opts).parseSentence(SENTENCES[0]).cacheHit);
+        } finally {
+            GlobalConfigProperties.singleton().remove(Parser.PROPERTY_MAX_BEAM_WIDTH);
+        }
+        assertEquals(2, cache.invalidations());
+
+        opts.setGrammar(grammar);
+        assertEquals(0, cache.size());
+        parser.shutdown();
+        parser2.shutdown();
+    }
+
+    /**
+     * k-best and forest output consume the chart of each sentence, so parses should not be served from the cache
+     */
+    @Test
+    public void testDisabledForChartOutput() throws Exception {
+        final ParserDriver opts = createOpts(10);
+        opts.kBest = 5;
+        assertNull(opts.parseCache());
+        final CartesianProductHashSpmlParser parser = createParser(opts);
+        parser.parseSentence(SENTENCES[0]);
+        assertFalse(parser.parseSentence(SENTENCES[0]).cacheHit);
+        parser.shutdown();
+
+        final ParserDriver forestOpts = createOpts(10);
+        forestOpts.forestFile = File.createTempFile("forest", ".bin");
+        try {
+            assertNull(forestOpts.parseCache());
+        } finally {
+            forestOpts.forestFile.delete();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+
+import org.cjunit.FilteredRunner;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import cltool4j.BaseLogger;
+
+/**
+ * Round-trip tests of {@link ParseServer} over a local socket.
+ */
+@RunWith(FilteredRunner.class)
+public class TestParseServer {
+
+    private final static String M0_GRAMMAR = "unit-test-data/grammars/eng.R0.gr.gz";
+
+    private final static String[] SENTENCES = { "The report is due out tomorrow .",
+            "The economy 's temperature will be taken from several vantage points this week ." };
+
+    /** Requests containing this token fail with an exception (see {@link #startServer(int)}) */
+    private final static String FAILURE = "FAIL";
+
+    private ParseServer server;
+    private Thread serverThread;
+    private volatile Exception serverException;
+
+    private Socket socket;
+    private Writer w;
+    private BufferedReader br;
+
+    /**
+     * Starts a server on an ephemeral port and connects to it
+     * 
+     * @param kBest Number of parses returned for each request (see '-kbest')
+     */
+    private void startServer(final int kBest) throws Exception {
+        server = new ParseServer() {
+            @Override
+            protected FutureTask<ParseTask> lineTask(final String input) {
+                if (!input.contains(FAILURE)) {
+                    return super.lineTask(input);
+                }
+                return new FutureTask<ParseTask>(new Callable<ParseTask>() {
+                    @Override
+                    public ParseTask call() {
+                        throw new IllegalStateException("Simulated parse failure");
+                    }
+                });
+            }
+        };
+        server.grammarFile = M0_GRAMMAR;
+        server.port = 0;
+        server.kBest = kBest;
+        server.setup();
+
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (final Exception e) {
+                    serverException = e;
+                }
+            }
+        };
+        serverThread.start();
+
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.localPort());
+        w = new OutputStreamWriter(socket.getOutputStream(), Charset.forName("UTF-8"));
+        br = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.forName("UTF-8")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        server.shutdownServer();
+        serverThread.join(60000);
+        assertNull(serverException);
+    }
+
+    private void send(final String... sentences) throws Exception {
+        for (final String sentence : sentences) {
+            w.write(sentence + '\n');
+        }
+        w.flush();
+    }
+
+    /**
+     * @return The response the server should return for a sentence, parsed locally
+     */
+    private String expectedResponse(final String sentence) {
+        final StringBuilder sb = new StringBuilder();
+        server.formatParse(server.getLocal().parseSentence(sentence), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Sends several sentences over a single connection, and verifies that each is answered in input order with the
+     * same parse the command-line parser would produce.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        startServer(1);
+        send(SENTENCES);
+        for (final String sentence : SENTENCES) {
+            final String response = br.readLine();
+            assertTrue(response.startsWith("(ROOT"));
+            assertEquals(expectedResponse(sentence), response);
+        }
+
+        // A second request on the same connection is answered as well
+        send(SENTENCES[0]);
+        assertEquals(expectedResponse(SENTENCES[0]), br.readLine());
+
+        socket.shutdownOutput();
+        assertNull(br.readLine());
+    }
+
+    /**
+     * Per-sentence statistics (logged at FINE) must not be written to the client, or responses would span multiple
+     * lines
+     */
+    @Test
+    public void testVerboseLogging() throws Exception {
+        final Level previousLevel = BaseLogger.singleton().getLevel();
+        BaseLogger.singleton().setLevel(Level.FINE);
+        try {
+            startServer(1);
+            send(SENTENCES);
+            send(SENTENCES[1]);
+            assertEquals(expectedResponse(SENTENCES[0]), br.readLine());
+            assertEquals(expectedResponse(SENTENCES[1]), br.readLine());
+            assertEquals(expectedResponse(SENTENCES[1]), br.readLine());
+        } finally {
+            BaseLogger.singleton().setLevel(previousLevel);
+        }
+    }
+
+    /**
+     * With '-kbest', each response is a list of k parses terminated by a blank line
+     */
+    @Test
+    public void testKBest() throws Exception {
+        startServer(3);
+        send(SENTENCES);
+        for (final String sentence : SENTENCES) {
+            final String[] expected = expectedResponse(sentence).split("\n");
+            assertEquals(3, expected.length);
+            for (final String line : expected) {
+                assertTrue(line.contains("\t(ROOT"));
+                assertEquals(line, br.readLine());
+            }
+            assertEquals("", br.readLine());
+        }
+    }
+
+    /**
+     * A request which fails with an exception is answered with an empty parse, and the connection remains usable
+     */
+    @Test
+    public void testFailedRequest() throws Exception {
+        startServer(1);
+        send(SENTENCES[0], FAILURE, SENTENCES[1]);
+        assertEquals(expectedResponse(SENTENCES[0]), br.readLine());
+        assertEquals("()", br.readLine());
+        assertEquals(expectedResponse(SENTENCES[1]), br.readLine());
+
+        send(SENTENCES[0]);
+        assertEquals(expectedResponse(SENTENCES[0]), br.readLine());
+    }
+
+    /**
+     * Clients connecting sequentially share the same parser threads
+     */
+    @Test
+    public void testMultipleConnections() throws Exception {
+        startServer(1);
+        socket.close();
+
+        for (int i = 0; i < 3; i++) {
+            final Socket s = new Socket(InetAddress.getLoopbackAddress(), server.localPort());
+            final Writer sw = new OutputStreamWriter(s.getOutputStream(), Charset.forName("UTF-8"));
+            final BufferedReader sr = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                    Charset.forName("UTF-8")));
+            sw.write(SENTENCES[i % SENTENCES.length] + '\n');
+            sw.flush();
+            assertTrue(sr.readLine().startsWith("(ROOT"));
+            s.close();
+        }
+    }
+}
@@ -23,12 +23,22 @@
 package edu.ohsu.cslu.parser;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.cjunit.FilteredRunner;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import cltool4j.ToolTestCase;
+import edu.ohsu.cslu.parser.Parser.InputFormat;
 
 /**
  * Tests {@link ParserDriver} itself, particularly options which cannot be tested outside of the driver class.
@@ -164,6 +174,79 @@ public class TestParserDriver extends ToolTestCase {
         assertEquals(expectedOutput.toString(), treeOutput(output));
     }
 
+    /**
+     * Length-aware scheduling ('-schedule') dispatches the longest sentences of each window first, but returns tasks in
+     * input order
+     */
+    @Test
+    public void testDispatchWindow() throws Exception {
+        final ParserDriver driver = new ParserDriver();
+        driver.scheduleWindow = 3;
+
+        final ArrayList<Runnable> dispatched = new ArrayList<Runnable>();
+        final Executor recordingExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                dispatched.add(command);
+            }
+        };
+
+        final BufferedReader input = new BufferedReader(new StringReader("a b\na b c d\na\na b c\na b c d e\n"));
+
+        // First window: lines 0-2, dispatched in order 1, 0, 2
+        List<FutureTask<ParseTask>> window = driver.dispatchWindow(input, recordingExecutor);
+        assertEquals(3, window.size());
+        assertEquals(Arrays.asList(window.get(1), window.get(0), window.get(2)), dispatched);
+
+        // Second (partial) window: lines 3-4, dispatched in order 4, 3
+        dispatched.clear();
+        window = driver.dispatchWindow(input, recordingExecutor);
+        assertEquals(2, window.size());
+        assertEquals(Arrays.asList(window.get(1), window.get(0)), dispatched);
+
+        // End of input
+        assertEquals(0, driver.dispatchWindow(input, recordingExecutor).size());
+    }
+
+    /**
+     * Parses with length-aware scheduling and multiple threads, and verifies that results are output in input order
+     */
+    @Test
+    public void testLengthScheduledOutputOrder() throws Exception {
+        final ArrayList<ParseTask> results = new ArrayList<ParseTask>();
+        final ParserDriver driver = new ParserDriver() {
+            {
+                maxThreads = 2;
+            }
+
+            @Override
+            protected void output(final ParseTask parseTask) {
+                results.add(parseTask);
+            }
+        };
+        driver.grammarFile = M0_GRAMMAR;
+        driver.inputFormat = InputFormat.Token;
+        driver.scheduleWindow = 3;
+        driver.setup();
+
+        final String[] sentences = new String[] { "The report is due out tomorrow .",
+                "The economy 's temperature will be taken from several vantage points this week .", "Yes .",
+                "The most troublesome report may be the August merchandise trade deficit due out tomorrow .",
+                "Trade figures ." };
+        final StringBuilder input = new StringBuilder();
+        for (final String sentence : sentences) {
+            input.append(sentence).append('\n');
+        }
+
+        driver.runLengthScheduled(new BufferedReader(new StringReader(input.toString())));
+
+        assertEquals(sentences.length, results.size());
+        for (int i = 0; i < sentences.length; i++) {
+            assertEquals(sentences[i], results.get(i).sentence);
+            assertTrue(results.get(i).binaryParse != null);
+        }
+    }
+
     private String treeOutput(final String output) {
         final StringBuilder treeOutput = new StringBuilder(512);
         for (final String outputLine : output.split("\n")) {
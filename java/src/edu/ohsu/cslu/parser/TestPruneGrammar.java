@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.PruneGrammar.RuleUsage;
+import edu.ohsu.cslu.parser.PruneGrammar.UsageSource;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link PruneGrammar}.
+ */
+public class TestPruneGrammar extends CphParserTestCase {
+
+    private final static int SENTENCES = 10;
+    private static ArrayList<String> parses = new ArrayList<String>();
+
+    @BeforeClass
+    public static void parseSentences() {
+        final CartesianProductHashSpmlParser parser = createParser();
+        for (final String sentence : sentences.subList(0, SENTENCES)) {
+            parses.add(parser.parseSentence(sentence).binaryParse.toString());
+        }
+        parser.shutdown();
+    }
+
+    /**
+     * Records rule usage over the test sentences, and returns the grammar pruned at the specified threshold
+     */
+    private LeftCscSparseMatrixGrammar prunedGrammar(final UsageSource source, final int threshold)
+            throws IOException {
+
+        final RuleUsage usage = new RuleUsage(grammar, source);
+        final CartesianProductHashSpmlParser parser = createParser();
+        for (final String sentence : sentences.subList(0, SENTENCES)) {
+            usage.record(parser, parser.parseSentence(sentence));
+        }
+        parser.shutdown();
+
+        final StringWriter prunedGrammar = new StringWriter();
+        PruneGrammar.writePrunedGrammar(new BufferedReader(JUnit.unitTestDataAsReader("grammars/eng.R2.gr.gz")),
+                prunedGrammar, usage, threshold);
+        return new LeftCscSparseMatrixGrammar(new StringReader(prunedGrammar.toString()),
+                new DecisionTreeTokenClassifier(), PerfectIntPairHashPackingFunction.class);
+    }
+
+    /**
+     * Verifies that the reduced grammar retains the full non-terminal set and lexicon, and that it reproduces the
+     * parses from which it was derived (every rule of the Viterbi parse is also the best derivation of its cell entry,
+     * and is thus retained).
+     */
+    private void verifyPrunedGrammar(final LeftCscSparseMatrixGrammar prunedGrammar) {
+        assertTrue(prunedGrammar.numBinaryProds() < grammar.numBinaryProds());
+        assertEquals(grammar.numNonTerms(), prunedGrammar.numNonTerms());
+        assertEquals(grammar.numLexProds(), prunedGrammar.numLexProds());
+
+        final CartesianProductHashSpmlParser parser = new CartesianProductHashSpmlParser(parserOptions(),
+                prunedGrammar);
+        for (int i = 0; i < SENTENCES; i++) {
+            assertEquals("Failed on sentence " + (i + 1), parses.get(i), parser.parseSentence(sentences.get(i))
+                    .binaryParse.toString());
+        }
+        parser.shutdown();
+    }
+
+    @Test
+    public void testChartUsage() throws IOException {
+        verifyPrunedGrammar(prunedGrammar(UsageSource.Chart, 1));
+    }
+
+    @Test
+    public void testParseUsage() throws IOException {
+        final LeftCscSparseMatrixGrammar prunedGrammar = prunedGrammar(UsageSource.Parse, 1);
+        verifyPrunedGrammar(prunedGrammar);
+
+        // Rules observed in 1-best parses are a small subset of those used in the chart
+        assertTrue(prunedGrammar.numBinaryProds() < prunedGrammar(UsageSource.Chart, 1).numBinaryProds());
+    }
+
+    @Test
+    public void testZeroThreshold() throws IOException {
+        final LeftCscSparseMatrixGrammar prunedGrammar = prunedGrammar(UsageSource.Parse, 0);
+        assertEquals(grammar.numBinaryProds(), prunedGrammar.numBinaryProds());
+        assertEquals(grammar.numUnaryProds(), prunedGrammar.numUnaryProds());
+        assertEquals(grammar.numLexProds(), prunedGrammar.numLexProds());
+    }
+}
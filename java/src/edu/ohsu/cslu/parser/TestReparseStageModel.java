@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy;
+import edu.ohsu.cslu.parser.TrainReparseStageModel.Example;
+import edu.ohsu.cslu.parser.cellselector.CellSelector;
+import edu.ohsu.cslu.parser.cellselector.CellSelectorModel;
+import edu.ohsu.cslu.parser.cellselector.LeftRightBottomTopTraversal;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+import edu.ohsu.cslu.perceptron.Perceptron.OverUnderLoss;
+
+/**
+ * Unit tests for {@link ReparseStageModel} and {@link TrainReparseStageModel}.
+ */
+public class TestReparseStageModel extends CphParserTestCase {
+
+    @Test
+    public void testReadExamples() throws Exception {
+        final String log = "INFO: sentLen=12 time=15 inside=-85.12345 reparses=0"
+                + " stage=0 unkRate=0.083 openCells=0.410 cellBeam=7.5\n"
+                + "INFO: sentLen=3 time=1 inside=-12.00000 reparses=0\n"
+                + "Some other output\n"
+                + "INFO: sentLen=40 time=350 inside=-310.50000 reparses=2"
+                + " stage=2 unkRate=0.150 openCells=0.120 cellBeam=3.2\n"
+                // A stage-model parse starting at stage 3 and succeeding there executes only one inside pass
+                + "INFO: sentLen=35 time=210 inside=-280.25000 reparses=0"
+                + " stage=3 unkRate=0.100 openCells=0.150 cellBeam=4.0\n"
+                // Logs predating the 'stage' key
+                + "INFO: sentLen=20 time=80 inside=-150.00000 reparses=1"
+                + " unkRate=0.050 openCells=0.300 cellBeam=5.0\n";
+
+        final ArrayList<Example> examples = TrainReparseStageModel.readExamples(new BufferedReader(new StringReader(
+                log)));
+
+        // The second line doesn't include cell-selector features, and should be skipped
+        assertEquals(4, examples.size());
+        assertEquals(12, examples.get(0).sentenceLength);
+        assertEquals(0, examples.get(0).stage);
+        assertEquals(0.083f, examples.get(0).unkRate, .0001f);
+        assertEquals(0.41f, examples.get(0).openCellFraction, .0001f);
+        assertEquals(7.5f, examples.get(0).meanCellBeamWidth, .0001f);
+
+        assertEquals(40, examples.get(1).sentenceLength);
+        assertEquals(2, examples.get(1).stage);
+        assertEquals(3, examples.get(2).stage);
+        assertEquals(1, examples.get(3).stage);
+    }
+
+    /**
+     * Trains on a separable synthetic set, in which short sentences with many open cells succeed at the first stage
+     * and long sentences with heavily-pruned charts require 2 reparses.
+     */
+    @Test
+    public void testTrain() {
+        final ArrayList<Example> examples = new ArrayList<Example>();
+        for (int i = 0; i < 20; i++) {
+            examples.add(new Example(0, 5 + i % 10, .01f, .6f, 20));
+            examples.add(new Example(2, 50 + i % 10, .2f, .1f, 2));
+        }
+        final ReparseStageModel model = TrainReparseStageModel.train(examples, 4, 5, new OverUnderLoss(2f, 1f));
+
+        assertEquals(4, model.stages());
+        assertEquals(0, model.classify(8, 0f, .6f, 20));
+        assertEquals(2, model.classify(55, .2f, .1f, 2));
+    }
+
+    /**
+     * Verifies that when the model predicts a later starting stage, the parser skips the preceding inside passes,
+     * initializing the chart and resetting the cell selector only once, for the predicted stage.
+     */
+    @Test
+    public void testSkippedStages() throws Exception {
+        setPruningParameters(10, 10, 5);
+
+        final ResetCountingModel cellSelectorModel = new ResetCountingModel();
+        final ParserDriver opts = parserOptions();
+        opts.cellSelectorModel = cellSelectorModel;
+        opts.reparseStrategy = ReparseStrategy.DoubleBeam2x;
+        opts.reparseStageModel = new ReparseStageModel(3, new OverUnderLoss(2f, 1f)) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public int classify(final ParseTask parseTask) {
+                return 2;
+            }
+        };
+
+        final CartesianProductHashSpmlParser parser = createParser(opts);
+        final ParseTask task = parser.parseSentence("The economy 's temperature will be taken from several vantage"
+                + " points this week .");
+        parser.shutdown();
+
+        assertNotNull(task.binaryParse);
+        // A single inside pass, at the second doubling of the beam
+        assertEquals(0, task.reparseStages);
+        assertEquals(2, task.stage);
+        assertEquals(40, parser.beamWidth);
+        assertEquals(1, cellSelectorModel.cellSelector.resets);
+    }
+
+    /**
+     * Counts {@link CellSelector#reset(boolean)} calls following sentence initialization
+     */
+    private static class ResetCountingModel implements CellSelectorModel {
+
+        private static final long serialVersionUID = 1L;
+
+        private ResetCountingTraversal cellSelector;
+
+        @Override
+        public CellSelector createCellSelector() {
+            cellSelector = new ResetCountingTraversal();
+            return cellSelector;
+        }
+    }
+
+    private static class ResetCountingTraversal extends LeftRightBottomTopTraversal {
+
+        private int resets;
+
+        public ResetCountingTraversal() {
+            super(null);
+        }
+
+        @Override
+        public void initSentence(final ChartParser<?, ?> p, final ParseTask task) {
+            super.initSentence(p, task);
+            resets = 0;
+        }
+
+        @Override
+        public void reset(final boolean enableConstraints) {
+            super.reset(enableConstraints);
+            resets++;
+        }
+    }
+}
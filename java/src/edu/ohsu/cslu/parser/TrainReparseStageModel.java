@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import cltool4j.BaseCommandlineTool;
+import cltool4j.BaseLogger;
+import cltool4j.args4j.Option;
+import edu.ohsu.cslu.perceptron.Perceptron.OverUnderLoss;
+
+/**
+ * Trains a {@link ReparseStageModel} from {@link ParserDriver} logs. Input is the output of a parsing run at '-v 1' or
+ * higher (e.g. on a development set), which includes the reparse stage at which each sentence succeeded ('stage', or
+ * in older logs, 'reparses'), along with the features used by the model. e.g.:
+ * 
+ * <pre>
+ * parse -v 1 -g grammar.gz -fom fom.gz -ccClassifier cc.mdl &lt; dev.txt | train-reparse -m reparse.mdl
+ * </pre>
+ * 
+ * All lines except the per-sentence statistics lines are ignored. The training log should be produced without a
+ * reparse-stage model ('-reparseModel'), so that each sentence is labeled with the first stage at which it succeeded.
+ */
+public class TrainReparseStageModel extends BaseCommandlineTool {
+
+    @Option(name = "-m", required = true, metaVar = "file", usage = "Output model file (Java serialized object)")
+    private File modelFile;
+
+    @Option(name = "-ti", metaVar = "iterations", usage = "Training iterations")
+    private int trainingIterations = 10;
+
+    @Option(name = "-over", metaVar = "penalty", usage = "Training penalty for predicting too late a stage")
+    private float overPenalty = 2f;
+
+    @Option(name = "-under", metaVar = "penalty", usage = "Training penalty for predicting too early a stage")
+    private float underPenalty = 1f;
+
+    public static void main(final String[] args) {
+        run(args);
+    }
+
+    @Override
+    protected void run() throws Exception {
+
+        final ArrayList<Example> examples = readExamples(inputAsBufferedReader());
+        if (examples.isEmpty()) {
+            throw new IllegalArgumentException("No per-sentence statistics found in input (parse with '-v 1')");
+        }
+
+        int stages = 1;
+        for (final Example example : examples) {
+            stages = Math.max(stages, example.stage + 1);
+        }
+
+        final ReparseStageModel model = train(examples, stages, trainingIterations, new OverUnderLoss(overPenalty,
+                underPenalty));
+
+        final ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(modelFile));
+        oos.writeObject(model);
+        oos.close();
+    }
+
+    static ReparseStageModel train(final ArrayList<Example> examples, final int stages, final int iterations,
+            final OverUnderLoss lossFunction) {
+
+        final ReparseStageModel model = new ReparseStageModel(stages, lossFunction);
+
+        for (int i = 1; i <= iterations; i++) {
+            for (final Example example : examples) {
+                model.train(example.stage, example.sentenceLength, example.unkRate, example.openCellFraction,
+                        example.meanCellBeamWidth);
+            }
+        }
+        model.finalizeModel();
+
+        // Report training-set accuracy, along with the number of inside passes saved (skipped stages which would have
+        // failed) and wasted (sentences which would have succeeded at an earlier stage)
+        int correct = 0, savedPasses = 0, overPredicted = 0;
+        for (final Example example : examples) {
+            final int prediction = model.classify(example.sentenceLength, example.unkRate, example.openCellFraction,
+                    example.meanCellBeamWidth);
+            if (prediction == example.stage) {
+                correct++;
+            }
+            if (prediction > example.stage) {
+                overPredicted++;
+            }
+            savedPasses += Math.min(prediction, example.stage);
+        }
+        BaseLogger.singleton().info(
+                String.format("INFO: sentences=%d accuracy=%.3f savedPasses=%d overPredicted=%d", examples.size(),
+                        correct * 1f / examples.size(), savedPasses, overPredicted));
+
+        return model;
+    }
+
+    static ArrayList<Example> readExamples(final BufferedReader input) throws IOException {
+
+        final ArrayList<Example> examples = new ArrayList<Example>();
+
+        for (String line = input.readLine(); line != null; line = input.readLine()) {
+            if (!line.startsWith("INFO: sentLen=") || !line.contains(" openCells=")) {
+                continue;
+            }
+
+            int sentenceLength = 0, stage = -1, reparses = 0;
+            float unkRate = 0, openCellFraction = 0, meanCellBeamWidth = 0;
+
+            for (final String token : line.substring(6).split(" ")) {
+                final int split = token.indexOf('=');
+                if (split < 0) {
+                    continue;
+                }
+                final String key = token.substring(0, split);
+                final String value = token.substring(split + 1);
+
+                if (key.equals("sentLen")) {
+                    sentenceLength = Integer.parseInt(value);
+                } else if (key.equals("stage")) {
+                    stage = Integer.parseInt(value);
+                } else if (key.equals("reparses")) {
+                    reparses = Integer.parseInt(value);
+                } else if (key.equals("unkRate")) {
+                    unkRate = Float.parseFloat(value);
+                } else if (key.equals("openCells")) {
+                    openCellFraction = Float.parseFloat(value);
+                } else if (key.equals("cellBeam")) {
+                    meanCellBeamWidth = Float.parseFloat(value);
+                }
+            }
+            examples.add(new Example(stage >= 0 ? stage : reparses, sentenceLength, unkRate, openCellFraction, meanCellBeamWidth));
+        }
+        return examples;
+    }
+
+    static class Example {
+        final int stage;
+        final int sentenceLength;
+        final float unkRate;
+        final float openCellFraction;
+        final float meanCellBeamWidth;
+
+        public Example(final int stage, final int sentenceLength, final float unkRate, final float openCellFraction,
+                final float meanCellBeamWidth) {
+            this.stage = stage;
+            this.sentenceLength = sentenceLength;
+            this.unkRate = unkRate;
+            this.openCellFraction = openCellFraction;
+            this.meanCellBeamWidth = meanCellBeamWidth;
+        }
+    }
+}
@@ -197,6 +197,28 @@ public abstract class CellSelector implements CellClosureClassifier, Iterator<sh
         return true;
     }
 
+    /**
+     * @return True if this {@link CellSelector} (or a child) constrains the non-terminals populated in individual cells
+     *         (see {@link #isNonTerminalOpen(short, short, short)}). Parsers only consult per-non-terminal constraints
+     *         when this method returns true.
+     */
+    public boolean hasNonTerminalConstraints() {
+        return childCellSelector != null && childCellSelector.hasNonTerminalConstraints();
+    }
+
+    /**
+     * Returns false if the specified non-terminal should not be populated in the cell. Consulted only if
+     * {@link #hasNonTerminalConstraints()} returns true.
+     * 
+     * @param start
+     * @param end
+     * @param nonTerminal
+     * @return False if the specified non-terminal should not be populated in the cell
+     */
+    public boolean isNonTerminalOpen(final short start, final short end, final short nonTerminal) {
+        return childCellSelector == null || childCellSelector.isNonTerminalOpen(start, end, nonTerminal);
+    }
+
     public int getMidStart(final short start, final short end) {
         if ((end - start) < 2 || !isCellOnlyFactored(start, end) || isGrammarLeftBinarized())
             return start + 1;
@@ -246,6 +268,33 @@ public abstract class CellSelector implements CellClosureClassifier, Iterator<sh
         return getBeamWidth(Chart.cellIndex(start, end, parseTask.sentenceLength()));
     }
 
+    /**
+     * @return The fraction of chart cells left open for the current sentence
+     */
+    public float openCellFraction() {
+        final int sentenceLength = parseTask.sentenceLength();
+        return openCells * 2f / (sentenceLength * (sentenceLength + 1));
+    }
+
+    /**
+     * Returns the mean beam width (see {@link #getBeamWidth(short, short)}) over all open cells in the current
+     * sentence.
+     * 
+     * @param maxBeamWidth Upper bound on the beam width of any individual cell (e.g. the number of non-terminals in the
+     *            grammar, for cell selectors which do not predict beam widths)
+     * @return The mean beam width over all open cells
+     */
+    public float meanBeamWidth(final int maxBeamWidth) {
+        if (openCells == 0) {
+            return 0;
+        }
+        long totalBeamWidth = 0;
+        for (int i = 0; i < openCells; i++) {
+            totalBeamWidth += Math.min(getBeamWidth(cellIndices[i << 1], cellIndices[(i << 1) + 1]), maxBeamWidth);
+        }
+        return (float) totalBeamWidth / openCells;
+    }
+
     protected final boolean isGrammarLeftBinarized() {
         return parser.grammar.binarization() == Binarization.LEFT;
     }
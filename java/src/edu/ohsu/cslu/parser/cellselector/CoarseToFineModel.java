@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+
+package edu.ohsu.cslu.parser.cellselector;
+
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import cltool4j.BaseLogger;
+import edu.ohsu.cslu.grammar.InsideOutsideCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar;
+import edu.ohsu.cslu.parser.ChartParser;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.cellselector.CellSelector.ChainableCellSelector;
+import edu.ohsu.cslu.parser.chart.Chart;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart;
+import edu.ohsu.cslu.parser.fom.InsideProb;
+import edu.ohsu.cslu.parser.ml.ViterbiInOutCphSpmlParser;
+
+/**
+ * Implements coarse-to-fine pruning (as in Charniak et al., 2006 and Petrov and Klein, 2007). Each sentence is first
+ * parsed with an unsplit projection of the grammar (see {@link SparseMatrixGrammar#toUnsplitGrammar()}), computing
+ * Viterbi inside and outside scores. A split non-terminal is then permitted in a cell of the fine chart only if the
+ * max-marginal of its unsplit (base) category in the corresponding coarse cell (the score of the best coarse parse
+ * including that entry, relative to the best coarse parse overall) exceeds a threshold. Cells in which no base
+ * category survives are closed entirely.
+ * 
+ * The coarse chart is dense (nearly every base category is populated in every cell), so an exhaustive coarse pass costs
+ * nearly as much as an exhaustive fine parse. By default, we prune the coarse pass with a narrow beam as well (see
+ * {@link ParserDriver#OPT_CTF_BEAM_WIDTH}); Viterbi max-marginals are also considerably cheaper than summed posteriors,
+ * and in our trials, prune about as accurately.
+ * 
+ * Cell constraints are honored by all chart parsers; non-terminal constraints are applied by
+ * {@link edu.ohsu.cslu.parser.SparseMatrixParser} implementations (see
+ * {@link CellSelector#isNonTerminalOpen(short, short, short)}). Like other {@link ChainableCellSelectorModel}s, this
+ * model can be intersected with further constraints (e.g. {@link CompleteClosureModel}). If the coarse parse fails,
+ * the fine parse proceeds unconstrained.
+ */
+public class CoarseToFineModel extends ChainableCellSelectorModel implements CellSelectorModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private final InsideOutsideCscSparseMatrixGrammar coarseGrammar;
+
+    /** Maps each non-terminal of the fine grammar to its base (unsplit) non-terminal in the coarse grammar */
+    private final short[] fineToCoarse;
+
+    /** Minimum log max-marginal of a coarse non-terminal, relative to the best coarse parse */
+    private final float logThreshold;
+
+    /** Beam width of the coarse pass (0 = exhaustive) */
+    private final int coarseBeamWidth;
+
+    /**
+     * @param fineGrammar Grammar used by the (fine) parser
+     * @param logThreshold Minimum log max-marginal of a base non-terminal in the coarse chart, relative to the best
+     *            coarse parse (e.g. -7)
+     * @param coarseBeamWidth Beam width of the coarse pass (0 = exhaustive)
+     * @param childModel Child model (optional, may be null)
+     */
+    public CoarseToFineModel(final SparseMatrixGrammar fineGrammar, final float logThreshold,
+            final int coarseBeamWidth, final CellSelectorModel childModel) {
+        super(childModel);
+        this.coarseGrammar = (InsideOutsideCscSparseMatrixGrammar) fineGrammar
+                .toUnsplitGrammar(InsideOutsideCscSparseMatrixGrammar.class);
+        this.logThreshold = logThreshold;
+        this.coarseBeamWidth = coarseBeamWidth;
+
+        this.fineToCoarse = new short[fineGrammar.numNonTerms()];
+        for (short nt = 0; nt < fineToCoarse.length; nt++) {
+            fineToCoarse[nt] = fineGrammar.nonTermSet.getBaseIndex(nt);
+        }
+    }
+
+    public CellSelector createCellSelector() {
+        return new CoarseToFineSelector(childModel != null ? childModel.createCellSelector() : null);
+    }
+
+    public InsideOutsideCscSparseMatrixGrammar coarseGrammar() {
+        return coarseGrammar;
+    }
+
+    public class CoarseToFineSelector extends ChainableCellSelector {
+
+        /** Created lazily, on the thread using this selector */
+        private CoarseParser coarseParser;
+
+        private short sentenceLength;
+
+        /** True if the coarse parse succeeded for the current sentence (and constraints are therefore available) */
+        private boolean coarseParsed;
+
+        /** Open cells, indexed by cell index */
+        private boolean[] openCellFlags;
+
+        /** Open base non-terminals, indexed by cell index * coarse non-terminal count + base non-terminal */
+        private boolean[] openNonTerminals;
+
+        /** Open cells, as (start, end) pairs. {@link #cellIndices} is a copy, since reparsing may replace it. */
+        private short[] constrainedCellIndices;
+
+        /**
+         * The sentence and coarse beam width for which the current constraints were computed. The constraints are
+         * reused if the selector is re-initialized for the same sentence (e.g., by a later parsing stage).
+         */
+        private ParseTask constrainedTask;
+        private int constrainedBeamWidth;
+
+        public CoarseToFineSelector(final CellSelector child) {
+            super(child);
+        }
+
+        @Override
+        public void initSentence(final ChartParser<?, ?> p, final ParseTask task) {
+            super.initSentence(p, task);
+            this.sentenceLength = (short) p.chart.size();
+
+            if (task != constrainedTask || coarseBeamWidth != constrainedBeamWidth) {
+                computeConstraints(task);
+            }
+            this.cellIndices = constrainedCellIndices.clone();
+            this.openCells = cellIndices.length / 2;
+
+            if (BaseLogger.singleton().isLoggable(Level.FINE)) {
+                BaseLogger.singleton().fine(
+                        String.format("Sentence length: %d. Total cells: %d  Open cells: %d", sentenceLength,
+                                sentenceLength * (sentenceLength + 1) / 2, openCells));
+            }
+        }
+
+        /**
+         * Parses the sentence with the coarse grammar, and populates cell and non-terminal constraints from the coarse
+         * max-marginals
+         * 
+         * @param task
+         */
+        protected void computeConstraints(final ParseTask task) {
+            final int cells = sentenceLength * (sentenceLength + 1) / 2;
+
+            if (coarseParser == null) {
+                final ParserDriver coarseOpts = new ParserDriver();
+                coarseOpts.fomModel = new InsideProb();
+                coarseParser = new CoarseParser(coarseOpts, coarseGrammar, coarseBeamWidth);
+            }
+            final PackedArrayChart coarseChart = coarseParser.parse(new ParseTask(task.tokens, coarseGrammar));
+            final float sentenceInside = coarseChart.getInside(0, sentenceLength, coarseGrammar.startSymbol);
+            this.coarseParsed = sentenceInside > Float.NEGATIVE_INFINITY;
+
+            final ShortArrayList tmpCellIndices = new ShortArrayList(cells * 2);
+
+            if (!coarseParsed) {
+                // Leave all cells (and all non-terminals) open
+                for (short span = 1; span <= sentenceLength; span++) {
+                    for (short start = 0; start < sentenceLength - span + 1; start++) {
+                        tmpCellIndices.add(start);
+                        tmpCellIndices.add((short) (start + span));
+                    }
+                }
+
+            } else {
+                final int coarseNonTerms = coarseGrammar.numNonTerms();
+                if (openCellFlags == null || openCellFlags.length < cells) {
+                    openCellFlags = new boolean[cells];
+                    openNonTerminals = new boolean[cells * coarseNonTerms];
+                } else {
+                    Arrays.fill(openCellFlags, 0, cells, false);
+                    Arrays.fill(openNonTerminals, 0, cells * coarseNonTerms, false);
+                }
+
+                // Mark base non-terminals whose max-marginal exceeds the threshold, and open any cell in which at
+                // least one base non-terminal survives
+                for (short span = 1; span <= sentenceLength; span++) {
+                    for (short start = 0; start < sentenceLength - span + 1; start++) {
+                        final short end = (short) (start + span);
+                        final int cellIndex = coarseChart.cellIndex(start, end);
+                        final int offset = coarseChart.offset(cellIndex);
+
+                        for (int i = offset; i < offset + coarseChart.numNonTerminals[cellIndex]; i++) {
+                            final float logMaxMarginal = coarseChart.insideProbabilities[i]
+                                    + coarseChart.outsideProbabilities[i] - sentenceInside;
+                            if (logMaxMarginal >= logThreshold) {
+                                openNonTerminals[cellIndex * coarseNonTerms + coarseChart.nonTerminalIndices[i]] = true;
+                                openCellFlags[cellIndex] = true;
+                            }
+                        }
+
+                        if (openCellFlags[cellIndex]) {
+                            tmpCellIndices.add(start);
+                            tmpCellIndices.add(end);
+                        }
+                    }
+                }
+            }
+
+            this.constrainedCellIndices = tmpCellIndices.toShortArray();
+            this.constrainedTask = task;
+            this.constrainedBeamWidth = coarseBeamWidth;
+        }
+
+        @Override
+        public boolean isCellOpen(final short start, final short end) {
+            if (childCellSelector != null && !childCellSelector.isCellOpen(start, end)) {
+                return false;
+            }
+            return !constraintsEnabled || !coarseParsed
+                    || openCellFlags[Chart.cellIndex(start, end, sentenceLength)];
+        }
+
+        @Override
+        public boolean hasNonTerminalConstraints() {
+            return (constraintsEnabled && coarseParsed) || super.hasNonTerminalConstraints();
+        }
+
+        @Override
+        public boolean isNonTerminalOpen(final short start, final short end, final short nonTerminal) {
+            if (constraintsEnabled && coarseParsed
+                    && !openNonTerminals[Chart.cellIndex(start, end, sentenceLength) * coarseGrammar.numNonTerms()
+                            + fineToCoarse[nonTerminal]]) {
+                return false;
+            }
+            return super.isNonTerminalOpen(start, end, nonTerminal);
+        }
+    }
+
+    /**
+     * Viterbi inside-outside parser for the coarse grammar. Beam-width pruning (if any) is configured per-instance,
+     * rather than from the global beam-width properties, which apply to the fine parser.
+     */
+    private static class CoarseParser extends ViterbiInOutCphSpmlParser {
+
+        public CoarseParser(final ParserDriver opts, final InsideOutsideCscSparseMatrixGrammar grammar,
+                final int beamWidth) {
+            super(opts, grammar);
+            if (beamWidth > 0) {
+                this.beamWidth = this.lexicalRowBeamWidth = beamWidth;
+                this.lexicalRowUnaries = beamWidth / 3;
+                this.maxLocalDelta = 15f;
+                this.exhaustiveSearch = false;
+            }
+        }
+
+        @Override
+        protected void initDefaultPruningParams() {
+            this.beamWidth = grammar.numNonTerms();
+            this.lexicalRowBeamWidth = grammar.numNonTerms();
+            this.lexicalRowUnaries = grammar.numNonTerms();
+            this.maxLocalDelta = 0f;
+            this.exhaustiveSearch = true;
+        }
+
+        /**
+         * Populates inside and outside scores, skipping decoding (we only need the max-marginals).
+         * 
+         * @param parseTask
+         * @return The populated chart
+         */
+        PackedArrayChart parse(final ParseTask parseTask) {
+            initChart(parseTask);
+            insidePass();
+            outsidePass();
+            return chart;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.cellselector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.ohsu.cslu.parser.CphParserTestCase;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+
+/**
+ * Unit tests for {@link CoarseToFineModel}.
+ */
+public class TestCoarseToFineModel extends CphParserTestCase {
+
+    private final static int SENTENCES = 10;
+    private static ArrayList<String> parses = new ArrayList<String>();
+
+    /** Total populated chart entries over all test sentences, parsing without constraints */
+    private static long exhaustiveEntries;
+
+    @BeforeClass
+    public static void parseSentences() {
+        final CartesianProductHashSpmlParser parser = createParser(LeftRightBottomTopTraversal.MODEL);
+        for (final String sentence : sentences.subList(0, SENTENCES)) {
+            parses.add(parser.parseSentence(sentence).binaryParse.toString());
+            exhaustiveEntries += populatedEntries(parser);
+        }
+        parser.shutdown();
+    }
+
+    private static CartesianProductHashSpmlParser createParser(final CellSelectorModel cellSelectorModel) {
+        final ParserDriver opts = parserOptions();
+        opts.cellSelectorModel = cellSelectorModel;
+        return createParser(opts);
+    }
+
+    private static int populatedEntries(final CartesianProductHashSpmlParser parser) {
+        final PackedArrayChart chart = parser.chart;
+        int entries = 0;
+        for (int i = 0; i < chart.size() * (chart.size() + 1) / 2; i++) {
+            entries += chart.numNonTerminals[i];
+        }
+        return entries;
+    }
+
+    /**
+     * With an exhaustive coarse pass and a permissive threshold, every base category populated in the coarse chart
+     * survives, so the fine parses should match unconstrained parses exactly.
+     */
+    @Test
+    public void testPermissiveThreshold() {
+        final CartesianProductHashSpmlParser parser = createParser(new CoarseToFineModel(grammar, -10000f, 0, null));
+        for (int i = 0; i < SENTENCES; i++) {
+            assertEquals("Failed on sentence " + (i + 1), parses.get(i), parser.parseSentence(sentences.get(i))
+                    .binaryParse.toString());
+        }
+        parser.shutdown();
+    }
+
+    /**
+     * At a realistic threshold, we should populate far fewer chart entries, and still find a parse for every sentence
+     */
+    @Test
+    public void testPruning() {
+        final CartesianProductHashSpmlParser parser = createParser(new CoarseToFineModel(grammar, -7f, 20, null));
+        long entries = 0;
+        for (int i = 0; i < SENTENCES; i++) {
+            assertNotNull("Failed on sentence " + (i + 1), parser.parseSentence(sentences.get(i)).binaryParse);
+            assertTrue(parser.cellSelector.hasNonTerminalConstraints());
+            entries += populatedEntries(parser);
+        }
+        parser.shutdown();
+        assertTrue("Expected fewer than " + exhaustiveEntries / 4 + " entries, but found " + entries,
+                entries < exhaustiveEntries / 4);
+    }
+
+    /**
+     * Verifies that a chained child selector is consulted, and that disabling constraints (as for reparsing) opens all
+     * cells and non-terminals
+     */
+    @Test
+    public void testChainingAndReset() {
+        final CartesianProductHashSpmlParser parser = createParser(new CoarseToFineModel(grammar, -7f, 20,
+                new LimitedSpanTraversalModel(4, null)));
+        final ParseTask task = parser.parseSentence(sentences.get(0));
+        assertNotNull(task.binaryParse);
+
+        final CellSelector cellSelector = parser.cellSelector;
+        final short sentenceLength = (short) task.sentenceLength();
+        assertFalse(cellSelector.isCellOpen((short) 1, (short) 6));
+
+        cellSelector.reset(false);
+        assertFalse(cellSelector.hasNonTerminalConstraints());
+        assertEquals(sentenceLength * (sentenceLength + 1) / 2, cellSelector.openCells);
+        for (short nt = 0; nt < grammar.numNonTerms(); nt++) {
+            assertTrue(cellSelector.isNonTerminalOpen((short) 0, sentenceLength, nt));
+        }
+        parser.shutdown();
+    }
+
+    /**
+     * Verifies that re-initializing the cell selector for the same sentence (e.g. for a later parsing stage) reuses the
+     * coarse constraints, and restores them after a reset which disabled constraints
+     */
+    @Test
+    public void testReusedConstraints() {
+        final int[] coarseParses = new int[1];
+        final CoarseToFineModel model = new CoarseToFineModel(grammar, -7f, 20, null) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public CellSelector createCellSelector() {
+                return new CoarseToFineSelector(null) {
+                    @Override
+                    protected void computeConstraints(final ParseTask task) {
+                        coarseParses[0]++;
+                        super.computeConstraints(task);
+                    }
+                };
+            }
+        };
+        final CartesianProductHashSpmlParser parser = createParser(model);
+        final ParseTask task = parser.parseSentence(sentences.get(0));
+        assertEquals(1, coarseParses[0]);
+
+        final CellSelector cellSelector = parser.cellSelector;
+        final short[] constrainedCells = Arrays.copyOf(cellSelector.cellIndices, cellSelector.openCells * 2);
+        cellSelector.reset(false);
+
+        cellSelector.initSentence(parser, task);
+        assertEquals(1, coarseParses[0]);
+        assertArrayEquals(constrainedCells, Arrays.copyOf(cellSelector.cellIndices, cellSelector.openCells * 2));
+        assertTrue(cellSelector.hasNonTerminalConstraints());
+
+        // A new sentence requires a new coarse parse
+        parser.parseSentence(sentences.get(1));
+        assertEquals(2, coarseParses[0]);
+        parser.shutdown();
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.ohsu.cslu.grammar.Production;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+
+/**
+ * A compact binary representation of the pruned parse forest populated in a {@link ParallelArrayChart}, for handing
+ * forests to a downstream rescoring process without a text round-trip (or re-parsing). Each forest records the
+ * populated non-terminals of every chart cell, with their inside and (optionally) outside probabilities and
+ * backpointers. Backpointers are unpacked, so the forest can be interpreted without the grammar's packing function
+ * (although non-terminal and lexical indices refer to the grammar's vocabularies).
+ * 
+ * Note that the chart stores only a single (Viterbi) backpointer per entry, so the forest is not the complete
+ * hypergraph: the other hyperedges are not recorded. Consumers needing alternate derivations can recover them from the
+ * populated entries of each cell and the grammar. Inside-outside parsers accumulate summed inside probabilities and do
+ * not track backpointers at all; their forests omit the backpointer sections (flag bit 1).
+ * 
+ * Forests are written with {@link #write(ParallelArrayChart, boolean, WritableByteChannel)}, and any number of forests
+ * may be concatenated in a single stream or file. A forest is read as a view over a {@link ByteBuffer} (e.g., a
+ * memory-mapped file; see {@link #map(File)}); accessors read directly from the buffer, without copying or
+ * deserializing the forest.
+ * 
+ * Forest layout (all fields following the byte-order flag are in the specified byte order; each array section is
+ * aligned to an 8-byte boundary from the start of the forest):
+ * 
+ * <pre>
+ * magic (8 bytes)             "BUBSFRST"
+ * byte order (byte)           0 = big-endian, 1 = little-endian
+ * flags (byte)                bit 0: outside probabilities present; bit 1: backpointers omitted
+ * reserved (2 bytes)
+ * version (int)
+ * forest length (int)         in bytes, including this header
+ * sentence length (int)       n
+ * entries (int)               E; the total number of populated non-terminals in all cells
+ * non-terminals (int)         the size of the grammar's non-terminal vocabulary
+ * start symbol (int)
+ * (4 bytes padding)
+ * tokens                      int[n]; lexical indices of the sentence tokens
+ * cell offsets                int[n(n+1)/2 + 1]; index of the first entry of each cell, in the order of
+ *                             {@link Chart#cellIndex(int, int, int)}. The last element is E
+ * non-terminals               short[E]; sorted by non-terminal index within each cell
+ * inside probabilities        float[E]
+ * outside probabilities       float[E]; only if flag bit 0 is set
+ * left children               int[E]; non-terminal index, or lexical index for lexical entries. Only if flag
+ *                             bit 1 is clear (as are the right children and midpoints)
+ * right children              short[E]; non-terminal index, or {@link Production#UNARY_PRODUCTION} or
+ *                             {@link Production#LEXICAL_PRODUCTION}
+ * midpoints                   short[E]; the cell end for unary and lexical entries
+ * </pre>
+ * 
+ * A forest with sentence length 0 is written in place of a failed parse, so the i'th forest in a stream always
+ * corresponds to the i'th input sentence.
+ */
+public final class BinaryForest {
+
+    private final static byte[] MAGIC = new byte[] { 'B', 'U', 'B', 'S', 'F', 'R', 'S', 'T' };
+    private final static int VERSION = 1;
+    private final static int HEADER_BYTES = 40;
+    private final static int ALIGNMENT = 8;
+
+    private final static int FLAG_OUTSIDE = 1;
+    private final static int FLAG_NO_BACKPOINTERS = 2;
+
+    private final int sentenceLength;
+    private final int entries;
+    private final int numNonTerms;
+    private final int startSymbol;
+    private final boolean hasOutsideProbabilities;
+    private final boolean hasBackpointers;
+
+    private final IntBuffer tokens;
+    private final IntBuffer cellOffsets;
+    private final ShortBuffer nonTerminals;
+    private final FloatBuffer insideProbabilities;
+    private final FloatBuffer outsideProbabilities;
+    private final IntBuffer leftChildren;
+    private final ShortBuffer rightChildren;
+    private final ShortBuffer midpoints;
+
+    /**
+     * Constructs a view of the forest starting at the current position of the buffer, and advances the buffer's
+     * position to the end of the forest.
+     */
+    private BinaryForest(final ByteBuffer buf) throws IOException {
+        final ByteBuffer forest = buf.slice();
+        if (forest.remaining() < HEADER_BYTES) {
+            throw new EOFException("Truncated forest header");
+        }
+        final byte[] magic = new byte[MAGIC.length];
+        forest.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary parse forest");
+        }
+        final ByteOrder order = forest.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        forest.order(order);
+        final byte flags = forest.get();
+        forest.getShort(); // Reserved
+
+        final int version = forest.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary forest version: " + version + " (expected " + VERSION + ")");
+        }
+        final int length = forest.getInt();
+        if (length > forest.limit()) {
+            throw new EOFException("Truncated forest: " + forest.limit() + " of " + length + " bytes");
+        }
+        this.sentenceLength = forest.getInt();
+        this.entries = forest.getInt();
+        this.numNonTerms = forest.getInt();
+        this.startSymbol = forest.getInt();
+        this.hasOutsideProbabilities = (flags & FLAG_OUTSIDE) != 0;
+        this.hasBackpointers = (flags & FLAG_NO_BACKPOINTERS) == 0;
+
+        final int[] sectionStarts = sectionStarts(sentenceLength, entries, hasOutsideProbabilities, hasBackpointers);
+        final int cells = sentenceLength * (sentenceLength + 1) / 2 + 1;
+        this.tokens = slice(forest, sectionStarts[0], sentenceLength * 4, order).asIntBuffer();
+        this.cellOffsets = slice(forest, sectionStarts[1], cells * 4, order).asIntBuffer();
+        this.nonTerminals = slice(forest, sectionStarts[2], entries * 2, order).asShortBuffer();
+        this.insideProbabilities = slice(forest, sectionStarts[3], entries * 4, order).asFloatBuffer();
+        this.outsideProbabilities = hasOutsideProbabilities ? slice(forest, sectionStarts[4], entries * 4,
+                order).asFloatBuffer() : null;
+        this.leftChildren = hasBackpointers ? slice(forest, sectionStarts[5], entries * 4, order).asIntBuffer() : null;
+        this.rightChildren = hasBackpointers ? slice(forest, sectionStarts[6], entries * 2, order).asShortBuffer()
+                : null;
+        this.midpoints = hasBackpointers ? slice(forest, sectionStarts[7], entries * 2, order).asShortBuffer() : null;
+
+        buf.position(buf.position() + length);
+    }
+
+    /**
+     * Returns the offsets of each section (tokens, cell offsets, non-terminals, inside probabilities, outside
+     * probabilities, left children, right children, midpoints), followed by the total forest length.
+     */
+    private static int[] sectionStarts(final int sentenceLength, final int entries, final boolean outside,
+            final boolean backpointers) {
+        final int[] starts = new int[9];
+        starts[0] = HEADER_BYTES;
+        starts[1] = align(starts[0] + sentenceLength * 4);
+        starts[2] = align(starts[1] + (sentenceLength * (sentenceLength + 1) / 2 + 1) * 4);
+        starts[3] = align(starts[2] + entries * 2);
+        starts[4] = align(starts[3] + entries * 4);
+        starts[5] = outside ? align(starts[4] + entries * 4) : starts[4];
+        if (backpointers) {
+            starts[6] = align(starts[5] + entries * 4);
+            starts[7] = align(starts[6] + entries * 2);
+            starts[8] = align(starts[7] + entries * 2);
+        } else {
+            starts[6] = starts[7] = starts[8] = starts[5];
+        }
+        return starts;
+    }
+
+    /**
+     * Serializes the forest populated in a chart.
+     * 
+     * @param chart
+     * @param includeOutsideProbabilities Include outside probabilities (only meaningful if the parser populated them,
+     *            e.g. in inside-outside parsing)
+     * @param includeBackpointers Include backpointers (only meaningful if the parser populated them, e.g. in Viterbi
+     *            parsing)
+     * @return A buffer containing the serialized forest, positioned at 0
+     */
+    public static ByteBuffer serialize(final ParallelArrayChart chart, final boolean includeOutsideProbabilities,
+            final boolean includeBackpointers) {
+
+        final int sentenceLength = chart.size();
+        final int cells = sentenceLength * (sentenceLength + 1) / 2;
+        final PackedArrayChart packedChart = chart instanceof PackedArrayChart ? (PackedArrayChart) chart : null;
+        final boolean outside = includeOutsideProbabilities && packedChart != null
+                && packedChart.outsideProbabilities != null;
+
+        // Count populated entries. Packed charts record the population of each cell; in other charts, cells are
+        // indexed by non-terminal, and unpopulated entries have an inside probability of negative infinity
+        final int numNonTerms = chart.sparseMatrixGrammar.numNonTerms();
+        final int[] populations = new int[cells];
+        int entries = 0;
+        for (int cellIndex = 0; cellIndex < cells; cellIndex++) {
+            if (packedChart != null) {
+                populations[cellIndex] = packedChart.numNonTerminals[cellIndex];
+            } else {
+                final int offset = chart.offset(cellIndex);
+                for (int nt = 0; nt < numNonTerms; nt++) {
+                    if (chart.insideProbabilities[offset + nt] != Float.NEGATIVE_INFINITY) {
+                        populations[cellIndex]++;
+                    }
+                }
+            }
+            entries += populations[cellIndex];
+        }
+
+        final int[] sectionStarts = sectionStarts(sentenceLength, entries, outside, includeBackpointers);
+        final ByteOrder order = ByteOrder.nativeOrder();
+        final ByteBuffer buf = ByteBuffer.allocate(sectionStarts[8]).order(order);
+
+        writeHeader(buf, order, outside, includeBackpointers, sectionStarts[8], sentenceLength, entries, numNonTerms,
+                chart.sparseMatrixGrammar.startSymbol);
+
+        final IntBuffer tokens = slice(buf, sectionStarts[0], sentenceLength * 4, order).asIntBuffer();
+        if (sentenceLength > 0) {
+            tokens.put(chart.parseTask.tokens, 0, sentenceLength);
+        }
+
+        final IntBuffer cellOffsets = slice(buf, sectionStarts[1], (cells + 1) * 4, order).asIntBuffer();
+        final ShortBuffer nonTerminals = slice(buf, sectionStarts[2], entries * 2, order).asShortBuffer();
+        final FloatBuffer insideProbabilities = slice(buf, sectionStarts[3], entries * 4, order).asFloatBuffer();
+        final FloatBuffer outsideProbabilities = outside ? slice(buf, sectionStarts[4], entries * 4, order)
+                .asFloatBuffer() : null;
+        final IntBuffer leftChildren = includeBackpointers ? slice(buf, sectionStarts[5], entries * 4, order)
+                .asIntBuffer() : null;
+        final ShortBuffer rightChildren = includeBackpointers ? slice(buf, sectionStarts[6], entries * 2, order)
+                .asShortBuffer() : null;
+        final ShortBuffer midpoints = includeBackpointers ? slice(buf, sectionStarts[7], entries * 2, order)
+                .asShortBuffer() : null;
+
+        final PackingFunction pf = chart.sparseMatrixGrammar.packingFunction();
+        int entry = 0;
+        for (int cellIndex = 0; cellIndex < cells; cellIndex++) {
+            cellOffsets.put(entry);
+            final int offset = chart.offset(cellIndex);
+
+            if (packedChart != null) {
+                // Bulk-copy the packed arrays, and unpack backpointers
+                nonTerminals.put(packedChart.nonTerminalIndices, offset, populations[cellIndex]);
+                insideProbabilities.put(chart.insideProbabilities, offset, populations[cellIndex]);
+                if (outside) {
+                    outsideProbabilities.put(packedChart.outsideProbabilities, offset, populations[cellIndex]);
+                }
+                if (includeBackpointers) {
+                    midpoints.put(chart.midpoints, offset, populations[cellIndex]);
+                    for (int i = offset; i < offset + populations[cellIndex]; i++) {
+                        leftChildren.put(pf.unpackLeftChild(chart.packedChildren[i]));
+                        rightChildren.put(pf.unpackRightChild(chart.packedChildren[i]));
+                    }
+                }
+            } else {
+                for (int i = offset; i < offset + numNonTerms; i++) {
+                    if (chart.insideProbabilities[i] != Float.NEGATIVE_INFINITY) {
+                        nonTerminals.put((short) (i - offset));
+                        insideProbabilities.put(chart.insideProbabilities[i]);
+                        if (includeBackpointers) {
+                            midpoints.put(chart.midpoints[i]);
+                            leftChildren.put(pf.unpackLeftChild(chart.packedChildren[i]));
+                            rightChildren.put(pf.unpackRightChild(chart.packedChildren[i]));
+                        }
+                    }
+                }
+            }
+            entry += populations[cellIndex];
+        }
+        cellOffsets.put(entry);
+
+        return buf;
+    }
+
+    /**
+     * Serializes an empty forest (see class documentation), representing a sentence which could not be parsed.
+     * 
+     * @return A buffer containing the serialized forest, positioned at 0
+     */
+    public static ByteBuffer serializeEmpty() {
+        final int[] sectionStarts = sectionStarts(0, 0, false, true);
+        final ByteOrder order = ByteOrder.nativeOrder();
+        final ByteBuffer buf = ByteBuffer.allocate(sectionStarts[8]).order(order);
+        writeHeader(buf, order, false, true, sectionStarts[8], 0, 0, 0, 0);
+        return buf;
+    }
+
+    private static void writeHeader(final ByteBuffer buf, final ByteOrder order, final boolean outside,
+            final boolean backpointers, final int length, final int sentenceLength, final int entries,
+            final int numNonTerms, final int startSymbol) {
+        buf.put(MAGIC);
+        buf.put((byte) (order == ByteOrder.BIG_ENDIAN ? 0 : 1));
+        buf.put((byte) ((outside ? FLAG_OUTSIDE : 0) | (backpointers ? 0 : FLAG_NO_BACKPOINTERS)));
+        buf.putShort((short) 0);
+        buf.putInt(VERSION);
+        buf.putInt(length);
+        buf.putInt(sentenceLength);
+        buf.putInt(entries);
+        buf.putInt(numNonTerms);
+        buf.putInt(startSymbol);
+        buf.position(0);
+    }
+
+    /**
+     * Serializes the forest populated in a chart and writes it to a channel.
+     * 
+     * @param chart
+     * @param includeOutsideProbabilities Include outside probabilities (only meaningful if the parser populated them)
+     * @param includeBackpointers Include backpointers (only meaningful if the parser populated them)
+     * @param channel
+     * @throws IOException if the write fails
+     */
+    public static void write(final ParallelArrayChart chart, final boolean includeOutsideProbabilities,
+            final boolean includeBackpointers, final WritableByteChannel channel) throws IOException {
+        write(serialize(chart, includeOutsideProbabilities, includeBackpointers), channel);
+    }
+
+    /**
+     * Writes a serialized forest (see {@link #serialize(ParallelArrayChart, boolean, boolean)}) to a channel. The
+     * buffer's position is not modified.
+     * 
+     * @param forest
+     * @param channel
+     * @throws IOException if the write fails
+     */
+    public static void write(final ByteBuffer forest, final WritableByteChannel channel) throws IOException {
+        final ByteBuffer buf = forest.duplicate();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Reads a forest from a buffer (e.g., a memory-mapped file), starting at the buffer's current position. The forest
+     * is a view of the buffer (no data is copied), and the buffer's position is advanced to the start of the next
+     * forest, if any.
+     * 
+     * @param buf
+     * @return Forest
+     * @throws IOException if the buffer does not contain a complete forest
+     */
+    public static BinaryForest read(final ByteBuffer buf) throws IOException {
+        return new BinaryForest(buf);
+    }
+
+    /**
+     * Reads the next forest from a channel (e.g., a pipe from the parser process). Forests read from a stream are
+     * copied once, into a heap buffer; to avoid that copy, map a forest file with {@link #map(File)}.
+     * 
+     * @param channel
+     * @return Forest, or null at the end of the stream
+     * @throws IOException if the read fails, or the stream ends within a forest
+     */
+    public static BinaryForest read(final ReadableByteChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (!readFully(channel, header, true)) {
+            return null;
+        }
+        header.order(header.get(MAGIC.length) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        final int length = header.getInt(MAGIC.length + 8);
+        if (length < HEADER_BYTES) {
+            throw new IOException("Not a binary parse forest");
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        header.position(0);
+        buf.put(header);
+        readFully(channel, buf, false);
+        buf.position(0);
+        return new BinaryForest(buf);
+    }
+
+    /**
+     * Reads from a channel until the buffer is full.
+     * 
+     * @return False if the stream ended before any bytes were read (and allowEof is true)
+     */
+    private static boolean readFully(final ReadableByteChannel channel, final ByteBuffer buf, final boolean allowEof)
+            throws IOException {
+        final int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                if (allowEof && buf.position() == start) {
+                    return false;
+                }
+                throw new EOFException("Truncated forest");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a file containing one or more forests.
+     * 
+     * @param file
+     * @return Views of each forest in the file, in the order they were written
+     * @throws IOException if the file cannot be mapped or does not contain valid forests
+     */
+    public static List<BinaryForest> map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping remains valid after the channel is closed
+            final ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            final ArrayList<BinaryForest> forests = new ArrayList<BinaryForest>();
+            while (buf.hasRemaining()) {
+                forests.add(new BinaryForest(buf));
+            }
+            return forests;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buf, final int start, final int length, final ByteOrder order) {
+        final ByteBuffer dup = buf.duplicate();
+        dup.position(start);
+        dup.limit(start + length);
+        return dup.slice().order(order);
+    }
+
+    private static int align(final int offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * @return The sentence length (0 for a failed parse)
+     */
+    public int sentenceLength() {
+        return sentenceLength;
+    }
+
+    /**
+     * @return The total number of populated non-terminals in all cells
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * @return The size of the grammar's non-terminal vocabulary
+     */
+    public int numNonTerms() {
+        return numNonTerms;
+    }
+
+    /**
+     * @return The grammar's start symbol
+     */
+    public int startSymbol() {
+        return startSymbol;
+    }
+
+    /**
+     * @return True if the forest includes outside probabilities
+     */
+    public boolean hasOutsideProbabilities() {
+        return hasOutsideProbabilities;
+    }
+
+    /**
+     * @return True if the forest includes backpointers ({@link #leftChild(int)}, {@link #rightChild(int)}, and
+     *         {@link #midpoint(int)})
+     */
+    public boolean hasBackpointers() {
+        return hasBackpointers;
+    }
+
+    /**
+     * @param i Word index
+     * @return The lexical index of the i'th token
+     */
+    public int token(final int i) {
+        return tokens.get(i);
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @return The index of the first entry in the specified cell
+     */
+    public int cellStart(final int start, final int end) {
+        return cellOffsets.get(Chart.cellIndex(start, end, sentenceLength));
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @return One past the index of the last entry in the specified cell
+     */
+    public int cellEnd(final int start, final int end) {
+        return cellOffsets.get(Chart.cellIndex(start, end, sentenceLength) + 1);
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @param nonTerminal
+     * @return The index of the specified non-terminal in the specified cell, or -1 if it is not populated
+     */
+    public int entryIndex(final int start, final int end, final short nonTerminal) {
+        int low = cellStart(start, end), high = cellEnd(start, end) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final short midNonTerminal = nonTerminals.get(mid);
+            if (midNonTerminal < nonTerminal) {
+                low = mid + 1;
+            } else if (midNonTerminal > nonTerminal) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param entry
+     * @return The non-terminal of the specified entry
+     */
+    public short nonTerminal(final int entry) {
+        return nonTerminals.get(entry);
+    }
+
+    /**
+     * @param entry
+     * @return The inside log probability of the specified entry
+     */
+    public float insideProbability(final int entry) {
+        return insideProbabilities.get(entry);
+    }
+
+    /**
+     * @param entry
+     * @return The outside log probability of the specified entry (negative infinity if the forest does not include
+     *         outside probabilities)
+     */
+    public float outsideProbability(final int entry) {
+        return hasOutsideProbabilities ? outsideProbabilities.get(entry) : Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @param entry
+     * @return The left child (non-terminal) of the specified entry, or the lexical index of the child of a lexical
+     *         entry
+     * @throws IllegalStateException if the forest does not include backpointers
+     */
+    public int leftChild(final int entry) {
+        checkBackpointers();
+        return leftChildren.get(entry);
+    }
+
+    /**
+     * @param entry
+     * @return The right child (non-terminal) of the specified entry, or {@link Production#UNARY_PRODUCTION} or
+     *         {@link Production#LEXICAL_PRODUCTION}
+     * @throws IllegalStateException if the forest does not include backpointers
+     */
+    public short rightChild(final int entry) {
+        checkBackpointers();
+        return rightChildren.get(entry);
+    }
+
+    /**
+     * @param entry
+     * @return The midpoint of the specified entry (the cell end for unary and lexical entries)
+     * @throws IllegalStateException if the forest does not include backpointers
+     */
+    public short midpoint(final int entry) {
+        checkBackpointers();
+        return midpoints.get(entry);
+    }
+
+    private void checkBackpointers() {
+        if (!hasBackpointers) {
+            throw new IllegalStateException("Forest does not include backpointers");
+        }
+    }
+
+    /**
+     * @return A read-only view of the inside probabilities of all entries, for bulk access
+     */
+    public FloatBuffer insideProbabilities() {
+        return insideProbabilities.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return A read-only view of the outside probabilities of all entries, for bulk access (null if the forest does
+     *         not include outside probabilities)
+     */
+    public FloatBuffer outsideProbabilities() {
+        return hasOutsideProbabilities ? outsideProbabilities.asReadOnlyBuffer() : null;
+    }
+}
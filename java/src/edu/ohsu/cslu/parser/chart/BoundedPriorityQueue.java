@@ -178,6 +178,140 @@ public final class BoundedPriorityQueue {
         return true;
     }
 
+    /**
+     * Populates an empty queue (see {@link #clear(int)}) with the highest-priority of the supplied candidates (up to
+     * the current size bound). The resulting queue is identical to that produced by inserting each candidate in turn
+     * with {@link #insert(short, float)} (including the ordering of entries with equal figures-of-merit), but
+     * candidates are not bubble-sorted into place as they arrive. Instead, candidates exceeding a threshold are
+     * compacted to the front of the candidate arrays; whenever the compacted entries reach twice the size bound, they
+     * are reduced to the size bound with quickselect, and the threshold is raised to the lowest remaining entry. Each
+     * candidate is compared only once with the threshold, and the total cost is linear in the number of candidates,
+     * regardless of their order.
+     * 
+     * The candidate arrays are reordered in place.
+     * 
+     * @param candidateNts Candidate non-terminals, in ascending order
+     * @param candidateFoms Figures-of-merit of the candidates (parallel to <code>candidateNts</code>)
+     * @param candidates Number of candidates in <code>candidateNts</code> and <code>candidateFoms</code>
+     */
+    public void select(final short[] candidateNts, final float[] candidateFoms, final int candidates) {
+
+        final int maxSize = maxTail + 1;
+        if (maxSize <= 0 || candidates == 0) {
+            head = -1;
+            tail = -1;
+            return;
+        }
+
+        // Lowest-priority entry retained by the most recent reduction. Since candidate non-terminals are ascending,
+        // any later candidate with an equal FOM is of lower priority, just as insert() would reject it.
+        float thresholdFom = Float.NEGATIVE_INFINITY;
+        boolean thresholdSet = false;
+        final int limit = maxSize << 1;
+
+        int size = 0;
+        for (int i = 0; i < candidates; i++) {
+            final float fom = candidateFoms[i];
+            if (thresholdSet && !(fom > thresholdFom)) {
+                continue;
+            }
+
+            candidateNts[size] = candidateNts[i];
+            candidateFoms[size++] = fom;
+
+            if (size == limit) {
+                quickselect(candidateNts, candidateFoms, 0, size - 1, maxSize);
+                size = maxSize;
+
+                // The new threshold is the lowest-priority of the retained entries
+                int lowest = 0;
+                for (int j = 1; j < size; j++) {
+                    if (precedes(candidateFoms[lowest], candidateNts[lowest], candidateFoms[j], candidateNts[j])) {
+                        lowest = j;
+                    }
+                }
+                thresholdFom = candidateFoms[lowest];
+                thresholdSet = true;
+            }
+        }
+
+        if (size > maxSize) {
+            quickselect(candidateNts, candidateFoms, 0, size - 1, maxSize);
+            size = maxSize;
+        }
+
+        // Sort the selected entries (insertion sort, since the queue size is a beam width)
+        for (int i = 1; i < size; i++) {
+            for (int j = i; j > 0
+                    && precedes(candidateFoms[j], candidateNts[j], candidateFoms[j - 1], candidateNts[j - 1]); j--) {
+                swap(candidateNts, candidateFoms, j, j - 1);
+            }
+        }
+
+        System.arraycopy(candidateNts, 0, nts, 0, size);
+        System.arraycopy(candidateFoms, 0, foms, 0, size);
+        head = 0;
+        tail = size - 1;
+    }
+
+    /**
+     * Partially orders the specified range of the candidate arrays, so that the entries preceding index k are the k
+     * highest-priority entries (in arbitrary order).
+     */
+    private static void quickselect(final short[] candidateNts, final float[] candidateFoms, int left, int right,
+            final int k) {
+
+        while (right > left) {
+            // Median-of-3 pivot, swapped to the right end of the range
+            final int mid = (left + right) >>> 1;
+            if (precedes(candidateFoms[mid], candidateNts[mid], candidateFoms[left], candidateNts[left])) {
+                swap(candidateNts, candidateFoms, mid, left);
+            }
+            if (precedes(candidateFoms[right], candidateNts[right], candidateFoms[left], candidateNts[left])) {
+                swap(candidateNts, candidateFoms, right, left);
+            }
+            if (precedes(candidateFoms[mid], candidateNts[mid], candidateFoms[right], candidateNts[right])) {
+                swap(candidateNts, candidateFoms, mid, right);
+            }
+            final float pivotFom = candidateFoms[right];
+            final short pivotNt = candidateNts[right];
+
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (precedes(candidateFoms[i], candidateNts[i], pivotFom, pivotNt)) {
+                    swap(candidateNts, candidateFoms, i, store++);
+                }
+            }
+            swap(candidateNts, candidateFoms, store, right);
+
+            if (store == k || store == k - 1) {
+                return;
+            } else if (store < k) {
+                left = store + 1;
+            } else {
+                right = store - 1;
+            }
+        }
+    }
+
+    /**
+     * @return True if the first entry precedes the second in queue order: by descending figure-of-merit, and (since
+     *         {@link #insert(short, float)} retains the earlier of two equal entries) by ascending non-terminal
+     */
+    private static boolean precedes(final float fom1, final short nt1, final float fom2, final short nt2) {
+        return fom1 > fom2 || (fom1 == fom2 && nt1 < nt2);
+    }
+
+    private static void swap(final short[] nts, final float[] foms, final int i1, final int i2) {
+        final float t1 = foms[i1];
+        foms[i1] = foms[i2];
+        foms[i2] = t1;
+
+        final short t2 = nts[i1];
+        nts[i1] = nts[i2];
+        nts[i2] = t2;
+    }
+
     protected void sortUp(final int entry) {
         for (int i = entry; i > head && foms[i - 1] < foms[i]; i--) {
             swap(i - 1, i);
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.ParserDriver;
+
+/**
+ * A shared pool of the large parallel arrays backing {@link ParallelArrayChart}s (inside and outside probabilities,
+ * packed children, midpoints, and non-terminal indices). Charts are reused across sentences as long as they are large
+ * enough, but long sentences and reparsing at wider beams (particularly exhaustive reparsing) force allocation of a
+ * new, larger chart. With pooling enabled, those arrays are borrowed from (and the arrays of the chart they replace
+ * are returned to) this pool, so that parser threads share large arrays instead of each allocating (and eventually
+ * garbage-collecting) its own.
+ * 
+ * Arrays are pooled in power-of-2 size classes, so a borrowed array may be longer than requested. The total size of
+ * idle arrays held by the pool is limited to a configurable ceiling (see {@link ParserDriver#OPT_CHART_POOL_MB});
+ * arrays returned when the pool is full are left to the garbage collector.
+ * 
+ * Arrays are not cleared on release or when borrowed, so a borrowed array may contain values from the chart that
+ * previously used it. Callers are responsible for initializing any contents they read before writing (e.g.,
+ * {@link ParallelArrayChart} fills inside and outside probabilities, and {@link PackedArrayChart#reset(ParseTask)}
+ * resets the per-cell bounds which limit reads of the remaining arrays).
+ * 
+ * All methods are thread-safe.
+ */
+public class ChartArrayPool {
+
+    /** Smallest size class (2^10 entries). Charts for very short sentences are cheap to allocate anyway. */
+    private final static int MIN_SIZE_CLASS = 10;
+
+    private static ChartArrayPool sharedPool;
+
+    private final long maxPooledBytes;
+    private long pooledBytes;
+
+    private final SizeClasses<float[]> floatArrays = new SizeClasses<float[]>(4);
+    private final SizeClasses<int[]> intArrays = new SizeClasses<int[]>(4);
+    private final SizeClasses<short[]> shortArrays = new SizeClasses<short[]>(2);
+
+    private long hits, misses, discards;
+
+    /**
+     * @param maxPooledBytes Maximum total size of the idle arrays retained by the pool
+     */
+    public ChartArrayPool(final long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return The pool shared by all charts, or null if pooling is disabled (see
+     *         {@link ParserDriver#OPT_CHART_POOL_MB})
+     */
+    public static ChartArrayPool sharedPool() {
+        final int maxMb = GlobalConfigProperties.singleton().getIntProperty(ParserDriver.OPT_CHART_POOL_MB, 0);
+        if (maxMb <= 0) {
+            return null;
+        }
+        synchronized (ChartArrayPool.class) {
+            if (sharedPool == null) {
+                sharedPool = new ChartArrayPool(maxMb * 1024L * 1024);
+            }
+            return sharedPool;
+        }
+    }
+
+    /**
+     * @param minLength
+     * @return A float array of at least the specified length, with undefined contents (see class documentation).
+     */
+    public synchronized float[] borrowFloatArray(final int minLength) {
+        final int sizeClass = sizeClass(minLength);
+        final float[] a = floatArrays.take(sizeClass);
+        return a != null ? a : new float[1 << sizeClass];
+    }
+
+    /**
+     * @param minLength
+     * @return An int array of at least the specified length, with undefined contents.
+     */
+    public synchronized int[] borrowIntArray(final int minLength) {
+        final int sizeClass = sizeClass(minLength);
+        final int[] a = intArrays.take(sizeClass);
+        return a != null ? a : new int[1 << sizeClass];
+    }
+
+    /**
+     * @param minLength
+     * @return A short array of at least the specified length, with undefined contents (see class documentation).
+     */
+    public synchronized short[] borrowShortArray(final int minLength) {
+        final int sizeClass = sizeClass(minLength);
+        final short[] a = shortArrays.take(sizeClass);
+        return a != null ? a : new short[1 << sizeClass];
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not retain any references to the array.
+     * 
+     * @param a
+     */
+    public synchronized void release(final float[] a) {
+        if (a != null) {
+            floatArrays.put(a, a.length);
+        }
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not retain any references to the array.
+     * 
+     * @param a
+     */
+    public synchronized void release(final int[] a) {
+        if (a != null) {
+            intArrays.put(a, a.length);
+        }
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not retain any references to the array.
+     * 
+     * @param a
+     */
+    public synchronized void release(final short[] a) {
+        if (a != null) {
+            shortArrays.put(a, a.length);
+        }
+    }
+
+    /**
+     * @return Hit, miss, and discard counts, and the current size of the pool, formatted for logging.
+     */
+    public synchronized String statsString() {
+        return String.format("chartPoolHits=%d chartPoolMisses=%d chartPoolDiscards=%d chartPoolMb=%.1f", hits,
+                misses, discards, pooledBytes / 1048576f);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long discards() {
+        return discards;
+    }
+
+    public synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+
+    private static int sizeClass(final int minLength) {
+        return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(minLength - 1));
+    }
+
+    /**
+     * Idle arrays of a single type, indexed by size class (log2 of the array length). Callers must synchronize on the
+     * enclosing pool.
+     */
+    private final class SizeClasses<A> {
+
+        private final int bytesPerEntry;
+
+        private final List<ArrayDeque<A>> arrays = new ArrayList<ArrayDeque<A>>(32);
+
+        public SizeClasses(final int bytesPerEntry) {
+            this.bytesPerEntry = bytesPerEntry;
+            for (int i = 0; i < 32; i++) {
+                arrays.add(new ArrayDeque<A>());
+            }
+        }
+
+        A take(final int sizeClass) {
+            final ArrayDeque<A> deque = arrays.get(sizeClass);
+            if (deque.isEmpty()) {
+                misses++;
+                return null;
+            }
+            hits++;
+            pooledBytes -= (long) bytesPerEntry << sizeClass;
+            return deque.pop();
+        }
+
+        void put(final A a, final int length) {
+            // Only arrays allocated by the pool (i.e., exactly matching a size class) are retained
+            final int sizeClass = sizeClass(length);
+            final long bytes = (long) bytesPerEntry << sizeClass;
+            if ((1 << sizeClass) != length || pooledBytes + bytes > maxPooledBytes) {
+                discards++;
+                return;
+            }
+            arrays.get(sizeClass).push(a);
+            pooledBytes += bytes;
+        }
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
+import edu.ohsu.cslu.grammar.CscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.Production;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+
+/**
+ * Lazily enumerates the k best derivations of a pruned {@link PackedArrayChart}, in order of decreasing score,
+ * following Algorithm 3 of Huang and Chiang (2005), 'Better k-best Parsing'.
+ * 
+ * The chart itself retains only the Viterbi backpointer of each populated non-terminal. Rather than storing alternate
+ * backpointers while parsing (which would slow down the 1-best case), we snapshot the populated entries of the chart
+ * at construction time, and recover the incoming hyperedges of each entry from the grammar when it is first reached
+ * during enumeration: any binary, unary, or lexical rule whose children were themselves retained in the chart. The
+ * hypergraph is thus exactly the pruned forest explored by the parser, and memory consumption is bounded by the beam
+ * width (the snapshot) and by k (each node retains at most k derivations and O(k) candidates).
+ * 
+ * Unary chains within a cell would introduce cycles into the hypergraph. As in the parser's unary pass, we instead
+ * admit a bounded number of unary levels in each cell: each entry is represented by one node per level, in which level
+ * 0 contains only binary and lexical derivations, and level l > 0 contains the derivations of level 0 plus unary edges
+ * from level l - 1 of other entries in the cell. Parents (and the root) consume the top level of each cell. The number
+ * of levels in a cell is the length of the longest Viterbi unary chain in the cell (at least 1), so the Viterbi
+ * derivation is always present in the hypergraph, and is always the first derivation enumerated.
+ * 
+ * Since the snapshot is independent of the chart, the chart may be reused for another sentence as soon as the
+ * extractor is constructed. Enumeration is synchronized, so a single extractor may be shared between threads.
+ */
+public class KBestExtractor {
+
+    /** Marker for lexical edges, in place of a right child entry */
+    private final static int LEXICAL = -1;
+
+    /** Marker for unary edges, in place of a right child entry */
+    private final static int UNARY = -2;
+
+    /** Marker for the edge from a node at level l > 0 to the (unary-free) level-0 node of the same entry */
+    private final static int BASE = -3;
+
+    private final SparseMatrixGrammar grammar;
+    private final int[] tokens;
+    private final int size;
+
+    /** Maximum number of derivations retained for each node */
+    private final int k;
+
+    /** Offset of the first snapshot entry of each cell, indexed by cell index */
+    private final int[] cellOffsets;
+
+    /** Number of snapshot entries in each cell, indexed by cell index */
+    private final int[] cellPopulations;
+
+    /** Snapshot of the populated chart entries, sorted by non-terminal within each cell (as in the chart) */
+    private final short[] nonTerminals;
+    private final float[] insideProbabilities;
+    private final int[] packedChildren;
+    private final short[] midpoints;
+
+    /** Length of the Viterbi unary chain of each snapshot entry */
+    private final short[] unaryChainLengths;
+
+    /** Number of unary levels in each cell, indexed by cell index */
+    private final int[] unaryLevels;
+
+    /**
+     * Nodes of the hypergraph, indexed by snapshot entry and unary level. Populated lazily as enumeration reaches each
+     * entry
+     */
+    private final Node[][] nodes;
+
+    /** True for cells whose binary and lexical edges have been populated */
+    private final boolean[] cellsInitialized;
+
+    /** Maps each non-terminal to its entry in the cell currently being initialized (-1 if not populated) */
+    private final int[] cellEntries;
+
+    /** Entry of the start symbol in the top cell (-1 if the chart does not contain a complete parse) */
+    private final int rootEntry;
+
+    /**
+     * Snapshots the populated entries of a chart.
+     * 
+     * @param chart Chart populated by a Viterbi inside pass
+     * @param startSymbol Root non-terminal
+     * @param k Maximum number of derivations to enumerate
+     */
+    public KBestExtractor(final PackedArrayChart chart, final short startSymbol, final int k) {
+        this.grammar = chart.sparseMatrixGrammar;
+        this.tokens = chart.parseTask.tokens;
+        this.size = chart.size();
+        this.k = k;
+
+        final int cells = size * (size + 1) / 2;
+        this.cellOffsets = new int[cells];
+        this.cellPopulations = new int[cells];
+
+        int entries = 0;
+        for (int cellIndex = 0; cellIndex < cells; cellIndex++) {
+            cellOffsets[cellIndex] = entries;
+            cellPopulations[cellIndex] = chart.numNonTerminals[cellIndex];
+            entries += cellPopulations[cellIndex];
+        }
+
+        this.nonTerminals = new short[entries];
+        this.insideProbabilities = new float[entries];
+        this.packedChildren = new int[entries];
+        this.midpoints = new short[entries];
+        for (int cellIndex = 0; cellIndex < cells; cellIndex++) {
+            final int chartOffset = chart.offset(cellIndex);
+            System.arraycopy(chart.nonTerminalIndices, chartOffset, nonTerminals, cellOffsets[cellIndex],
+                    cellPopulations[cellIndex]);
+            System.arraycopy(chart.insideProbabilities, chartOffset, insideProbabilities, cellOffsets[cellIndex],
+                    cellPopulations[cellIndex]);
+            System.arraycopy(chart.packedChildren, chartOffset, packedChildren, cellOffsets[cellIndex],
+                    cellPopulations[cellIndex]);
+            System.arraycopy(chart.midpoints, chartOffset, midpoints, cellOffsets[cellIndex],
+                    cellPopulations[cellIndex]);
+        }
+
+        this.unaryChainLengths = new short[entries];
+        this.unaryLevels = new int[cells];
+        for (int cellIndex = 0; cellIndex < cells; cellIndex++) {
+            unaryLevels[cellIndex] = 1;
+            final int offset = cellOffsets[cellIndex];
+            for (int entry = offset; entry < offset + cellPopulations[cellIndex]; entry++) {
+                unaryChainLengths[entry] = unaryChainLength(cellIndex, entry);
+                unaryLevels[cellIndex] = Math.max(unaryLevels[cellIndex], unaryChainLengths[entry]);
+            }
+        }
+
+        this.nodes = new Node[entries][];
+        this.cellsInitialized = new boolean[cells];
+        this.cellEntries = new int[grammar.numNonTerms()];
+        Arrays.fill(cellEntries, -1);
+
+        this.rootEntry = size > 0 ? entryIndex(chart.cellIndex(0, size), startSymbol) : -1;
+    }
+
+    /**
+     * Returns the (up to) k best parses, in order of decreasing score. Parses are enumerated lazily, so successive
+     * calls with increasing k extend the enumeration rather than repeating it.
+     * 
+     * @param maxParses Number of parses to return (limited to the k specified at construction)
+     * @return The best parses, in order of decreasing score. Fewer than k if the pruned forest does not contain k
+     *         distinct derivations, and empty if the chart does not contain a complete parse.
+     */
+    public synchronized List<ScoredParse> kBest(final int maxParses) {
+        if (rootEntry < 0) {
+            return Collections.emptyList();
+        }
+
+        final Node root = topNode(rootEntry, (short) 0, (short) size);
+        final ArrayList<ScoredParse> parses = new ArrayList<ScoredParse>(Math.min(maxParses, k));
+        for (int i = 0; i < maxParses && i < k; i++) {
+            final Derivation d = kth(root, i);
+            if (d == null) {
+                break;
+            }
+            parses.add(new ScoredParse(tree(root, d), d.score));
+        }
+        return parses;
+    }
+
+    /**
+     * Returns the (0-indexed) i'th best derivation of a node, extending the node's derivation list as necessary.
+     * 
+     * @param node
+     * @param i
+     * @return The i'th best derivation, or null if the node has i or fewer derivations
+     */
+    private Derivation kth(final Node node, final int i) {
+        findViterbi(node);
+        if (i < node.derivations.size()) {
+            return node.derivations.get(i);
+        }
+
+        if (node.candidates == null) {
+            initialize(node);
+        }
+
+        while (node.derivations.size() <= i) {
+            if (node.expanded < node.derivations.size()) {
+                // Push successors of the last derivation found. When we later retrieve further derivations, those
+                // successors will be candidates
+                pushSuccessors(node, node.derivations.get(node.derivations.size() - 1));
+                node.expanded = node.derivations.size();
+            }
+            final Derivation next = node.candidates.poll();
+            if (next == null) {
+                return null;
+            }
+            node.derivations.add(next);
+        }
+        return node.derivations.get(i);
+    }
+
+    /**
+     * Adds the derivation following the chart's Viterbi backpointer (if that derivation is present at the node's unary
+     * level) as the first derivation of a node.
+     */
+    private void findViterbi(final Node node) {
+        if (!node.viterbiFound) {
+            node.viterbiFound = true;
+            node.viterbi = viterbiDerivation(node);
+            if (node.viterbi != null) {
+                node.derivations.add(node.viterbi);
+            }
+        }
+    }
+
+    /**
+     * Returns the best derivation of a node, following the chart's Viterbi backpointer. This does not require
+     * populating the hyperedges of the node's cell, so we can find the best derivations of all nodes cheaply, and
+     * populate hyperedges only for the (generally few) nodes whose alternate derivations are needed.
+     * 
+     * @return The Viterbi derivation, or null if that derivation contains more unary edges than the node's level
+     *         permits (in which case, the best derivation is found among the node's candidates)
+     */
+    private Derivation viterbiDerivation(final Node node) {
+        final PackingFunction pf = grammar.packingFunction();
+        final int children = packedChildren[node.entry];
+        final short parent = nonTerminals[node.entry];
+        final int rightChild = pf.unpackRightChild(children);
+
+        if (node.level > 0 && rightChild != Production.UNARY_PRODUCTION) {
+            final Derivation base = kth(node(node.entry, node.start, node.end, 0), 0);
+            return base == null ? null : new Derivation(node.entry, BASE, node.end, 0, base.score);
+        }
+
+        if (rightChild == Production.LEXICAL_PRODUCTION) {
+            return new Derivation(-1, LEXICAL, node.end, insideProbabilities[node.entry], 0);
+        }
+
+        final short leftChild = (short) pf.unpackLeftChild(children);
+        if (rightChild == Production.UNARY_PRODUCTION) {
+            if (unaryChainLengths[node.entry] > node.level) {
+                return null;
+            }
+            final int childEntry = entryIndex(Chart.cellIndex(node.start, node.end, size), leftChild);
+            if (childEntry < 0) {
+                return null;
+            }
+            final Derivation child = kth(node(childEntry, node.start, node.end, node.level - 1), 0);
+            return child == null ? null : new Derivation(childEntry, UNARY, node.end, unaryLogProbability(parent,
+                    leftChild), child.score);
+        }
+
+        final short midpoint = midpoints[node.entry];
+        final int leftEntry = entryIndex(Chart.cellIndex(node.start, midpoint, size), leftChild);
+        final int rightEntry = entryIndex(Chart.cellIndex(midpoint, node.end, size), (short) rightChild);
+        if (leftEntry < 0 || rightEntry < 0) {
+            return null;
+        }
+        final Derivation left = kth(topNode(leftEntry, node.start, midpoint), 0);
+        final Derivation right = kth(topNode(rightEntry, midpoint, node.end), 0);
+        if (left == null || right == null) {
+            return null;
+        }
+        return new Derivation(leftEntry, rightEntry, midpoint, binaryLogProbability(parent, children), left.score
+                + right.score);
+    }
+
+    /**
+     * Pushes the neighbors of a derivation onto the candidate heap. To avoid duplicate candidates, we increment the
+     * rank of the left child only while the rank of the right child is 0; every rank pair is then reachable by exactly
+     * one path.
+     */
+    private void pushSuccessors(final Node node, final Derivation d) {
+        if (d.rightEntry == LEXICAL) {
+            return;
+        }
+
+        final Node leftNode = leftNode(node, d);
+        if (d.rightEntry == UNARY || d.rightEntry == BASE) {
+            final Derivation left = kth(leftNode, d.leftRank + 1);
+            if (left != null) {
+                node.candidates.add(new Derivation(d, d.leftRank + 1, 0, d.ruleScore + left.score));
+            }
+            return;
+        }
+
+        final Node rightNode = rightNode(node, d);
+        if (d.rightRank == 0) {
+            final Derivation left = kth(leftNode, d.leftRank + 1);
+            if (left != null) {
+                node.candidates.add(new Derivation(d, d.leftRank + 1, 0, d.ruleScore + left.score
+                        + kth(rightNode, 0).score));
+            }
+        }
+        final Derivation right = kth(rightNode, d.rightRank + 1);
+        if (right != null) {
+            node.candidates.add(new Derivation(d, d.leftRank, d.rightRank + 1, d.ruleScore
+                    + kth(leftNode, d.leftRank).score + right.score));
+        }
+    }
+
+    /**
+     * Populates the initial candidates of a node: the best derivation of each incoming hyperedge. Binary and lexical
+     * edges (at level 0) are populated for all entries in the node's cell at once; edges at higher levels depend on the
+     * derivations of the level below, so we add them node-by-node.
+     */
+    private void initialize(final Node node) {
+        final int cellIndex = Chart.cellIndex(node.start, node.end, size);
+
+        if (node.level == 0) {
+            if (!cellsInitialized[cellIndex]) {
+                initializeCell(cellIndex, node.start, node.end);
+            }
+
+        } else {
+            // Derivations without a unary edge at this level
+            final Derivation base = kth(node(node.entry, node.start, node.end, 0), 0);
+            if (base != null) {
+                offer(node, node.entry, BASE, node.end, 0, base.score);
+            }
+
+            // Unary edges from the level below
+            final int offset = cellOffsets[cellIndex];
+            final short parent = nonTerminals[node.entry];
+            for (int childEntry = offset; childEntry < offset + cellPopulations[cellIndex]; childEntry++) {
+                if (childEntry == node.entry) {
+                    continue;
+                }
+                final float ruleScore = unaryLogProbability(parent, nonTerminals[childEntry]);
+                if (ruleScore != Float.NEGATIVE_INFINITY) {
+                    final Derivation best = kth(node(childEntry, node.start, node.end, node.level - 1), 0);
+                    if (best != null) {
+                        offer(node, childEntry, UNARY, node.end, ruleScore, best.score);
+                    }
+                }
+            }
+        }
+
+        // Move the bounded initial candidates into a max-heap
+        final PriorityQueue<Derivation> candidates = new PriorityQueue<Derivation>(Math.max(node.initial.size(), 1),
+                Collections.reverseOrder(ASCENDING_SCORE));
+        candidates.addAll(node.initial);
+        node.initial = null;
+        node.candidates = candidates;
+    }
+
+    /**
+     * Populates the initial binary and lexical candidates of all level-0 entries in a cell.
+     */
+    private void initializeCell(final int cellIndex, final short start, final short end) {
+        cellsInitialized[cellIndex] = true;
+        final int offset = cellOffsets[cellIndex];
+        final int population = cellPopulations[cellIndex];
+
+        // Find the Viterbi derivation of each entry, so we can exclude it from the initial candidates
+        for (int entry = offset; entry < offset + population; entry++) {
+            findViterbi(node(entry, start, end, 0));
+        }
+
+        final PackingFunction pf = grammar.packingFunction();
+
+        if (end - start == 1) {
+            final int token = tokens[start];
+            final short[] lexicalParents = grammar.lexicalParents(token);
+            final float[] lexicalProbabilities = grammar.lexicalLogProbabilities(token);
+
+            for (int entry = offset; entry < offset + population; entry++) {
+                // The chart entry of a lexical backpointer already contains the lexical probability
+                if (pf.unpackRightChild(packedChildren[entry]) == Production.LEXICAL_PRODUCTION) {
+                    offer(nodes[entry][0], -1, LEXICAL, end, insideProbabilities[entry], 0);
+                } else {
+                    final int i = Arrays.binarySearch(lexicalParents, nonTerminals[entry]);
+                    if (i >= 0) {
+                        offer(nodes[entry][0], -1, LEXICAL, end, lexicalProbabilities[i], 0);
+                    }
+                }
+            }
+            return;
+        }
+
+        // Find the best derivations of all child entries first; that may recursively initialize child cells, which
+        // would overwrite cellEntries
+        for (short midpoint = (short) (start + 1); midpoint < end; midpoint++) {
+            final int leftCellIndex = Chart.cellIndex(start, midpoint, size);
+            for (int leftEntry = cellOffsets[leftCellIndex]; leftEntry < cellOffsets[leftCellIndex]
+                    + cellPopulations[leftCellIndex]; leftEntry++) {
+                kth(topNode(leftEntry, start, midpoint), 0);
+            }
+            final int rightCellIndex = Chart.cellIndex(midpoint, end, size);
+            for (int rightEntry = cellOffsets[rightCellIndex]; rightEntry < cellOffsets[rightCellIndex]
+                    + cellPopulations[rightCellIndex]; rightEntry++) {
+                kth(topNode(rightEntry, midpoint, end), 0);
+            }
+        }
+
+        for (int entry = offset; entry < offset + population; entry++) {
+            cellEntries[nonTerminals[entry]] = entry;
+        }
+
+        final CscSparseMatrixGrammar cscGrammar = grammar instanceof CscSparseMatrixGrammar ? (CscSparseMatrixGrammar) grammar
+                : null;
+
+        for (short midpoint = (short) (start + 1); midpoint < end; midpoint++) {
+            final int leftCellIndex = Chart.cellIndex(start, midpoint, size);
+            final int rightCellIndex = Chart.cellIndex(midpoint, end, size);
+
+            for (int leftEntry = cellOffsets[leftCellIndex]; leftEntry < cellOffsets[leftCellIndex]
+                    + cellPopulations[leftCellIndex]; leftEntry++) {
+
+                final Derivation leftBest = kth(topNode(leftEntry, start, midpoint), 0);
+                if (leftBest == null) {
+                    continue;
+                }
+
+                for (int rightEntry = cellOffsets[rightCellIndex]; rightEntry < cellOffsets[rightCellIndex]
+                        + cellPopulations[rightCellIndex]; rightEntry++) {
+
+                    final int childPair = pf.pack(nonTerminals[leftEntry], nonTerminals[rightEntry]);
+                    if (childPair < 0) {
+                        continue;
+                    }
+
+                    final Derivation rightBest = kth(topNode(rightEntry, midpoint, end), 0);
+                    if (rightBest == null) {
+                        continue;
+                    }
+                    final float childScores = leftBest.score + rightBest.score;
+
+                    if (cscGrammar != null) {
+                        if (childPair >= cscGrammar.cscBinaryColumnOffsets.length - 1) {
+                            continue;
+                        }
+                        // Iterate over the grammar column (parents of the child pair), matching populated parents
+                        for (int i = cscGrammar.cscBinaryColumnOffsets[childPair]; i < cscGrammar.cscBinaryColumnOffsets[childPair + 1]; i++) {
+                            final int parentEntry = cellEntries[cscGrammar.cscBinaryRowIndices[i]];
+                            if (parentEntry >= 0) {
+                                offer(nodes[parentEntry][0], leftEntry, rightEntry, midpoint,
+                                        cscGrammar.cscBinaryProbabilities[i], childScores);
+                            }
+                        }
+                    } else {
+                        for (int parentEntry = offset; parentEntry < offset + population; parentEntry++) {
+                            final float ruleScore = grammar.binaryLogProbability(nonTerminals[parentEntry], childPair);
+                            if (ruleScore != Float.NEGATIVE_INFINITY) {
+                                offer(nodes[parentEntry][0], leftEntry, rightEntry, midpoint, ruleScore, childScores);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int entry = offset; entry < offset + population; entry++) {
+            cellEntries[nonTerminals[entry]] = -1;
+        }
+    }
+
+    /**
+     * Adds an initial candidate to a node, retaining only the k best. Any hyperedge whose best derivation falls outside
+     * the k best edges cannot contribute a derivation to the k best derivations of the node.
+     */
+    private void offer(final Node node, final int leftEntry, final int rightEntry, final short midpoint,
+            final float ruleScore, final float childScores) {
+        // The Viterbi derivation is already the first in the node's derivation list
+        final Derivation viterbi = node.viterbi;
+        if (viterbi != null && viterbi.leftEntry == leftEntry && viterbi.rightEntry == rightEntry
+                && viterbi.midpoint == midpoint) {
+            return;
+        }
+
+        if (node.initial.size() < k) {
+            node.initial.add(new Derivation(leftEntry, rightEntry, midpoint, ruleScore, childScores));
+        } else if (ruleScore + childScores > node.initial.peek().score) {
+            node.initial.poll();
+            node.initial.add(new Derivation(leftEntry, rightEntry, midpoint, ruleScore, childScores));
+        }
+    }
+
+    private BinaryTree<String> tree(final Node node, final Derivation d) {
+        if (d.rightEntry == BASE) {
+            final Node baseNode = leftNode(node, d);
+            return tree(baseNode, kth(baseNode, d.leftRank));
+        }
+
+        final BinaryTree<String> subtree = new BinaryTree<String>(
+                grammar.nonTermSet.getSymbol(nonTerminals[node.entry]));
+
+        if (d.rightEntry == LEXICAL) {
+            subtree.addChild(new BinaryTree<String>(grammar.lexSet.getSymbol(tokens[node.start])));
+
+        } else if (d.rightEntry == UNARY) {
+            final Node leftNode = leftNode(node, d);
+            subtree.addChild(tree(leftNode, kth(leftNode, d.leftRank)));
+
+        } else {
+            final Node leftNode = leftNode(node, d);
+            final Node rightNode = rightNode(node, d);
+            subtree.addChild(tree(leftNode, kth(leftNode, d.leftRank)));
+            subtree.addChild(tree(rightNode, kth(rightNode, d.rightRank)));
+        }
+        return subtree;
+    }
+
+    private float binaryLogProbability(final short parent, final int childPair) {
+        if (grammar instanceof CscSparseMatrixGrammar) {
+            final CscSparseMatrixGrammar cscGrammar = (CscSparseMatrixGrammar) grammar;
+            if (childPair < 0 || childPair >= cscGrammar.cscBinaryColumnOffsets.length - 1) {
+                return Float.NEGATIVE_INFINITY;
+            }
+            for (int i = cscGrammar.cscBinaryColumnOffsets[childPair]; i < cscGrammar.cscBinaryColumnOffsets[childPair + 1]; i++) {
+                if (cscGrammar.cscBinaryRowIndices[i] == parent) {
+                    return cscGrammar.cscBinaryProbabilities[i];
+                }
+            }
+            return Float.NEGATIVE_INFINITY;
+        }
+        return grammar.binaryLogProbability(parent, childPair);
+    }
+
+    private float unaryLogProbability(final short parent, final short child) {
+        for (int i = grammar.cscUnaryColumnOffsets[child]; i < grammar.cscUnaryColumnOffsets[child + 1]; i++) {
+            if (grammar.cscUnaryRowIndices[i] == parent) {
+                return grammar.cscUnaryProbabilities[i];
+            }
+        }
+        return Float.NEGATIVE_INFINITY;
+    }
+
+    private Node leftNode(final Node node, final Derivation d) {
+        switch (d.rightEntry) {
+        case UNARY:
+            return node(d.leftEntry, node.start, node.end, node.level - 1);
+        case BASE:
+            return node(d.leftEntry, node.start, node.end, 0);
+        default:
+            return topNode(d.leftEntry, node.start, d.midpoint);
+        }
+    }
+
+    private Node rightNode(final Node node, final Derivation d) {
+        return topNode(d.rightEntry, d.midpoint, node.end);
+    }
+
+    /**
+     * @return The node of the specified entry at the top unary level of its cell (i.e., the node consumed by parents)
+     */
+    private Node topNode(final int entry, final short start, final short end) {
+        return node(entry, start, end, unaryLevels[Chart.cellIndex(start, end, size)]);
+    }
+
+    private Node node(final int entry, final short start, final short end, final int level) {
+        if (nodes[entry] == null) {
+            nodes[entry] = new Node[unaryLevels[Chart.cellIndex(start, end, size)] + 1];
+        }
+        if (nodes[entry][level] == null) {
+            nodes[entry][level] = new Node(entry, start, end, level);
+        }
+        return nodes[entry][level];
+    }
+
+    /**
+     * @return The number of unary edges in the Viterbi derivation of an entry, from the entry to the first binary or
+     *         lexical backpointer (bounded by the cell population, in case of a cycle in the chart's backpointers)
+     */
+    private short unaryChainLength(final int cellIndex, final int entry) {
+        final PackingFunction pf = grammar.packingFunction();
+        short length = 0;
+        for (int e = entry; e >= 0 && length < cellPopulations[cellIndex]
+                && pf.unpackRightChild(packedChildren[e]) == Production.UNARY_PRODUCTION; length++) {
+            e = entryIndex(cellIndex, (short) pf.unpackLeftChild(packedChildren[e]));
+        }
+        return length;
+    }
+
+    private int entryIndex(final int cellIndex, final short nonTerminal) {
+        final int offset = cellOffsets[cellIndex];
+        final int i = Arrays.binarySearch(nonTerminals, offset, offset + cellPopulations[cellIndex], nonTerminal);
+        return i < 0 ? -1 : i;
+    }
+
+    private final static Comparator<Derivation> ASCENDING_SCORE = new Comparator<Derivation>() {
+        @Override
+        public int compare(final Derivation o1, final Derivation o2) {
+            return Float.compare(o1.score, o2.score);
+        }
+    };
+
+    /**
+     * A chart entry (non-terminal within a cell) at a unary level, with the derivations found so far and the
+     * candidates for the next.
+     */
+    private final class Node {
+
+        final int entry;
+        final short start, end;
+
+        /** Maximum number of unary edges at the top of this node's derivations */
+        final int level;
+
+        /** The derivation following the chart's Viterbi backpointer (null if not present at this level) */
+        Derivation viterbi;
+        boolean viterbiFound;
+
+        /** Derivations found so far, in order of decreasing score */
+        final ArrayList<Derivation> derivations = new ArrayList<Derivation>();
+
+        /** The number of derivations whose successors have been pushed onto the candidate heap */
+        int expanded;
+
+        /** Bounded min-heap of initial candidates, used only during initialization */
+        PriorityQueue<Derivation> initial = new PriorityQueue<Derivation>(k, ASCENDING_SCORE);
+
+        /** Max-heap of candidate derivations; null until the node is initialized */
+        PriorityQueue<Derivation> candidates;
+
+        Node(final int entry, final short start, final short end, final int level) {
+            this.entry = entry;
+            this.start = start;
+            this.end = end;
+            this.level = level;
+        }
+    }
+
+    /**
+     * A derivation of a node: an incoming hyperedge and the ranks of the child derivations used.
+     */
+    private final static class Derivation {
+
+        final int leftEntry;
+        /** Right child entry, or a {@link KBestExtractor#UNARY}, {@link KBestExtractor#BASE}, or lexical marker */
+        final int rightEntry;
+        final short midpoint;
+        final float ruleScore;
+
+        final int leftRank, rightRank;
+        final float score;
+
+        Derivation(final int leftEntry, final int rightEntry, final short midpoint, final float ruleScore,
+                final float childScores) {
+            this.leftEntry = leftEntry;
+            this.rightEntry = rightEntry;
+            this.midpoint = midpoint;
+            this.ruleScore = ruleScore;
+            this.leftRank = 0;
+            this.rightRank = 0;
+            this.score = ruleScore + childScores;
+        }
+
+        /**
+         * Successor of an existing derivation along the same hyperedge
+         */
+        Derivation(final Derivation d, final int leftRank, final int rightRank, final float score) {
+            this.leftEntry = d.leftEntry;
+            this.rightEntry = d.rightEntry;
+            this.midpoint = d.midpoint;
+            this.ruleScore = d.ruleScore;
+            this.leftRank = leftRank;
+            this.rightRank = rightRank;
+            this.score = score;
+        }
+    }
+
+    /**
+     * A parse tree and its log probability
+     */
+    public final static class ScoredParse {
+
+        public final BinaryTree<String> tree;
+        public final float score;
+
+        public ScoredParse(final BinaryTree<String> tree, final float score) {
+            this.tree = tree;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.5f %s", score, tree.toString());
+        }
+    }
+}
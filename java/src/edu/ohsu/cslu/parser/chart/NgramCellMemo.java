@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.HashMap;
+
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
+
+/**
+ * Memoizes the finalized contents of span-1 and span-2 chart cells across sentences, keyed by the token unigram or
+ * bigram each cell covers. Frequent words and word pairs recur constantly in any corpus, and (given the same grammar
+ * and pruning configuration) the lexical and unary / binary productions populated in those cells are identical from
+ * one sentence to the next, so we can copy a memoized cell instead of recomputing it. Enabled by
+ * {@link ParserDriver#OPT_CELL_MEMO_MB}.
+ * 
+ * The caller is responsible for determining whether a cell's contents are a function only of the tokens it covers.
+ * That is generally true in exhaustive search, and in pruned search when the figure of merit is context-free (e.g.
+ * inside probability). It is not true if the figure of merit incorporates sentence-level context (e.g.
+ * boundary-POS), if cell or non-terminal constraints apply to the cell, or if a span-2 cell's children were not
+ * themselves populated canonically. Each lookup and insertion is accompanied by a context object (any object with
+ * value-based {@link Object#equals(Object)} and {@link Object#hashCode()}, e.g., a {@link java.util.List} of the
+ * grammar and pruning parameters), and entries are segregated by context.
+ * 
+ * Memory consumption is bounded approximately by the size specified at construction. When an insertion would exceed
+ * that bound, the entire memo is flushed; frequent n-grams repopulate it quickly, and a flush is much cheaper to
+ * manage than per-entry eviction.
+ * 
+ * All methods are thread-safe.
+ */
+public class NgramCellMemo {
+
+    /** Approximate size of the fixed overhead of each entry (the map entry, value object, and array headers) */
+    private final static int ENTRY_BYTES = 112;
+
+    /** Approximate size of each memoized non-terminal (non-terminal index, probability, children, and midpoint) */
+    private final static int NON_TERMINAL_BYTES = 12;
+
+    private final long maxBytes;
+    private long bytes;
+
+    private final HashMap<Object, Table> tables = new HashMap<Object, Table>();
+
+    /** Lookups and hits, indexed by span (1 or 2) */
+    private final long[] lookups = new long[3], hits = new long[3];
+
+    /** Cells of span 1 or 2 which could not be memoized, because their contents depended on sentence context */
+    private long fallbacks;
+    private long flushes;
+
+    /**
+     * @param maxBytes Approximate upper bound on memory consumption
+     */
+    public NgramCellMemo(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Populates a chart cell from a memoized cell covering the same tokens, if one is available.
+     * 
+     * @param context Grammar and pruning configuration under which the cell is being populated
+     * @param cell Cell to populate
+     * @param tokens Sentence tokens, as mapped into the lexicon
+     * @return True if the cell was populated from the memo
+     */
+    public boolean restore(final Object context, final PackedArrayChartCell cell, final int[] tokens) {
+        final short start = cell.start();
+        final int span = cell.end() - start;
+
+        final Entry entry;
+        synchronized (this) {
+            lookups[span]++;
+            final Table table = tables.get(context);
+            if (table == null) {
+                return false;
+            }
+            entry = span == 1 ? table.unigrams.get(tokens[start]) : table.bigrams.get(bigramKey(tokens, start));
+            if (entry == null) {
+                return false;
+            }
+            hits[span]++;
+        }
+
+        // Entries are immutable once stored, so we can copy outside the lock
+        cell.finalizeCell(entry.nonTerminals, entry.insideProbabilities, entry.packedChildren, entry.midpoints);
+        return true;
+    }
+
+    /**
+     * Memoizes a finalized chart cell.
+     * 
+     * @param context Grammar and pruning configuration under which the cell was populated
+     * @param chart Chart containing the cell
+     * @param cell Finalized span-1 or span-2 cell
+     */
+    public void store(final Object context, final PackedArrayChart chart, final PackedArrayChartCell cell) {
+        final short start = cell.start();
+        final int span = cell.end() - start;
+        final int offset = cell.offset();
+        final int n = chart.numNonTerminals[cell.cellIndex];
+
+        // Copy outside the lock
+        final Entry entry = new Entry(n);
+        System.arraycopy(chart.nonTerminalIndices, offset, entry.nonTerminals, 0, n);
+        System.arraycopy(chart.insideProbabilities, offset, entry.insideProbabilities, 0, n);
+        System.arraycopy(chart.packedChildren, offset, entry.packedChildren, 0, n);
+        for (int i = 0; i < n; i++) {
+            entry.midpoints[i] = (short) (chart.midpoints[offset + i] - start);
+        }
+        final long entryBytes = ENTRY_BYTES + (long) n * NON_TERMINAL_BYTES;
+
+        synchronized (this) {
+            if (bytes + entryBytes > maxBytes) {
+                if (entryBytes > maxBytes) {
+                    return;
+                }
+                tables.clear();
+                bytes = 0;
+                flushes++;
+            }
+
+            Table table = tables.get(context);
+            if (table == null) {
+                table = new Table();
+                tables.put(context, table);
+            }
+            final Entry previous = span == 1 ? table.unigrams.put(chart.parseTask.tokens[start], entry)
+                    : table.bigrams.put(bigramKey(chart.parseTask.tokens, start), entry);
+            bytes += entryBytes;
+            if (previous != null) {
+                bytes -= ENTRY_BYTES + previous.nonTerminals.length * NON_TERMINAL_BYTES;
+            }
+        }
+    }
+
+    /**
+     * Records a span-1 or span-2 cell which could not be memoized (or populated from the memo) because its contents
+     * depended on sentence context.
+     */
+    public synchronized void recordFallback() {
+        fallbacks++;
+    }
+
+    /**
+     * Discards all memoized cells (e.g., when the grammar is replaced)
+     */
+    public synchronized void clear() {
+        tables.clear();
+        bytes = 0;
+    }
+
+    public synchronized String statsString() {
+        return String.format("cellMemoHitRate1=%.3f cellMemoHitRate2=%.3f cellMemoHits=%d cellMemoLookups=%d "
+                + "cellMemoFallbacks=%d cellMemoFlushes=%d cellMemoMb=%.1f", hitRate(1), hitRate(2), hits(), lookups(),
+                fallbacks, flushes, bytes / 1048576f);
+    }
+
+    /**
+     * @return Total memo hits (for both span-1 and span-2 cells)
+     */
+    public synchronized long hits() {
+        return hits[1] + hits[2];
+    }
+
+    /**
+     * @return Total memo lookups (for both span-1 and span-2 cells)
+     */
+    public synchronized long lookups() {
+        return lookups[1] + lookups[2];
+    }
+
+    /**
+     * @param span 1 or 2
+     * @return Fraction of lookups for cells of the specified span which found a memoized cell (0 if no lookups have
+     *         been performed)
+     */
+    public synchronized float hitRate(final int span) {
+        return lookups[span] == 0 ? 0 : (float) hits[span] / lookups[span];
+    }
+
+    public synchronized long fallbacks() {
+        return fallbacks;
+    }
+
+    public synchronized long flushes() {
+        return flushes;
+    }
+
+    /**
+     * @return Approximate memory consumption of the memoized cells, in bytes
+     */
+    public synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    private static long bigramKey(final int[] tokens, final int start) {
+        return ((long) tokens[start] << 32) | (tokens[start + 1] & 0xffffffffL);
+    }
+
+    /**
+     * Memoized cells populated under a single context
+     */
+    private final static class Table {
+        final Int2ObjectOpenHashMap<Entry> unigrams = new Int2ObjectOpenHashMap<Entry>();
+        final Long2ObjectOpenHashMap<Entry> bigrams = new Long2ObjectOpenHashMap<Entry>();
+    }
+
+    /**
+     * The populated entries of a finalized cell, in the parallel-array format of {@link PackedArrayChart}. Midpoints
+     * are stored relative to the start of the cell.
+     */
+    private final static class Entry {
+        final short[] nonTerminals;
+        final float[] insideProbabilities;
+        final int[] packedChildren;
+        final short[] midpoints;
+
+        public Entry(final int size) {
+            this.nonTerminals = new short[size];
+            this.insideProbabilities = new float[size];
+            this.packedChildren = new int[size];
+            this.midpoints = new short[size];
+        }
+    }
+}
@@ -21,7 +21,13 @@
  */
 package edu.ohsu.cslu.parser.chart;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
@@ -165,6 +171,9 @@ public class PackedArrayChart extends ParallelArrayChart {
 
     protected final ThreadLocal<PackedArrayChart.TemporaryChartCell> threadLocalTemporaryCells;
 
+    /** Temporary storage for max-rule decoding, reused for each cell scored by a thread */
+    private final ThreadLocal<MaxRuleScratch> threadLocalMaxRuleScratch;
+
     /**
      * Constructs a chart
      * 
@@ -186,7 +195,7 @@ public class PackedArrayChart extends ParallelArrayChart {
         minRightChildIndex = new int[maxCells];
         maxRightChildIndex = new int[maxCells];
 
-        nonTerminalIndices = new short[chartArraySize];
+        nonTerminalIndices = pool != null ? pool.borrowShortArray(chartArraySize) : new short[chartArraySize];
 
         this.leftChildSegments = leftChildSegments;
         if (leftChildSegments > 0) {
@@ -205,7 +214,7 @@ public class PackedArrayChart extends ParallelArrayChart {
         };
 
         // Initialize outside probabilities to 0.
-        this.outsideProbabilities = new float[chartArraySize];
+        this.outsideProbabilities = pool != null ? pool.borrowFloatArray(chartArraySize) : new float[chartArraySize];
         Arrays.fill(outsideProbabilities, Float.NEGATIVE_INFINITY);
 
         switch (parseTask.decodeMethod) {
@@ -218,6 +227,7 @@ public class PackedArrayChart extends ParallelArrayChart {
             this.maxcMidpoints = new short[maxcArraySize];
             this.maxcUnaryChildren = new short[maxcArraySize];
 
+            this.threadLocalMaxRuleScratch = null;
             this.maxQ = null;
             this.maxQMidpoints = null;
             this.maxQLeftChildren = null;
@@ -225,6 +235,13 @@ public class PackedArrayChart extends ParallelArrayChart {
             break;
 
         case MaxRuleProd:
+            this.threadLocalMaxRuleScratch = new ThreadLocal<MaxRuleScratch>() {
+                @Override
+                protected MaxRuleScratch initialValue() {
+                    return new MaxRuleScratch(sparseMatrixGrammar.numNonTerms(), sparseMatrixGrammar.nonTermSet
+                            .baseVocabulary().size());
+                }
+            };
             this.maxQ = new float[maxCells][maxcVocabulary.size()];
             this.maxQMidpoints = new short[maxCells][maxcVocabulary.size()];
             this.maxQLeftChildren = new short[maxCells][maxcVocabulary.size()];
@@ -237,6 +254,7 @@ public class PackedArrayChart extends ParallelArrayChart {
             break;
 
         case ViterbiMax:
+            this.threadLocalMaxRuleScratch = null;
             this.maxQ = null;
             this.maxQMidpoints = null;
             this.maxQLeftChildren = null;
@@ -304,6 +322,7 @@ public class PackedArrayChart extends ParallelArrayChart {
         this.maxcEntries = null;
         this.maxcUnaryChildren = null;
 
+        this.threadLocalMaxRuleScratch = null;
         this.maxQ = null;
         this.maxQLeftChildren = null;
         this.maxQRightChildren = null;
@@ -311,6 +330,13 @@ public class PackedArrayChart extends ParallelArrayChart {
         this.maxcMidpoints = null;
     }
 
+    @Override
+    protected void releaseArrays(final ChartArrayPool arrayPool) {
+        super.releaseArrays(arrayPool);
+        arrayPool.release(nonTerminalIndices);
+        arrayPool.release(outsideProbabilities);
+    }
+
     @Override
     public void reset(final ParseTask task) {
         this.parseTask = task;
@@ -388,6 +414,17 @@ public class PackedArrayChart extends ParallelArrayChart {
      * @return The extracted binary tree
      */
     public BinaryTree<String> decode() {
+        return decode(null);
+    }
+
+    /**
+     * Decodes the packed parse forest using the specified decoding method, scoring chart cells concurrently where the
+     * decoding method supports it (currently {@link DecodeMethod#MaxRuleProd}).
+     * 
+     * @param executor Executor with which to score cells concurrently (null to decode in the calling thread)
+     * @return The extracted binary tree
+     */
+    public BinaryTree<String> decode(final ExecutorService executor) {
 
         switch (parseTask.decodeMethod) {
 
@@ -400,7 +437,7 @@ public class PackedArrayChart extends ParallelArrayChart {
             return extractMaxcParse(0, size);
 
         case MaxRuleProd:
-            return decodeMaxRuleProductParse((InsideOutsideCscSparseMatrixGrammar) grammar);
+            return decodeMaxRuleProductParse((InsideOutsideCscSparseMatrixGrammar) grammar, executor);
 
         case ViterbiMax:
             // TODO Rename extractBestParse to extractViterbiParse, switch references to use decode() instead.
@@ -694,8 +731,16 @@ public class PackedArrayChart extends ParallelArrayChart {
     /**
      * Computes max-rule-product parse, as described in Figure 3 of Petrov and Klein, 1997, 'Improved Inference for
      * Unlexicalized Parsing'.
+     * 
+     * Cells within a span are independent of one another, so if an executor is supplied, we score the cells of each
+     * span concurrently. All temporary storage is thread-local (see {@link MaxRuleScratch}) and reused across cells and
+     * sentences.
+     * 
+     * @param cscGrammar
+     * @param executor Executor with which to score cells concurrently (null to score cells in the calling thread)
      */
-    private BinaryTree<String> decodeMaxRuleProductParse(final InsideOutsideCscSparseMatrixGrammar cscGrammar) {
+    private BinaryTree<String> decodeMaxRuleProductParse(final InsideOutsideCscSparseMatrixGrammar cscGrammar,
+            final ExecutorService executor) {
 
         maxcVocabulary = cscGrammar.nonTermSet.baseVocabulary();
 
@@ -703,196 +748,248 @@ public class PackedArrayChart extends ParallelArrayChart {
         final float startSymbolInsideProbability = startSymbolInsideProbability();
 
         for (short span = 1; span <= size; span++) {
-            for (short start = 0; start < size - span + 1; start++) {
 
-                final short end = (short) (start + span);
-                final int cellIndex = cellIndex(start, end);
-                Arrays.fill(maxQMidpoints[cellIndex], (short) -1);
-                Arrays.fill(maxQ[cellIndex], Float.NEGATIVE_INFINITY);
-                Arrays.fill(maxQLeftChildren[cellIndex], (short) -1);
-                Arrays.fill(maxQRightChildren[cellIndex], (short) -1);
-
-                // Initialize lexical entries in the score arrays - sum outside probability x production probability
-                // over all nonterminal splits
-                if (end - start == 1) {
-                    final float[] r = new float[maxcVocabulary.size()];
-                    Arrays.fill(r, Float.NEGATIVE_INFINITY);
-
-                    final int offset = offset(cellIndex);
-                    for (int i = offset; i < offset + numNonTerminals[cellIndex]; i++) {
-                        final short parent = nonTerminalIndices[i];
-                        if (grammar.isPos(parent)) {
-                            final short baseParent = cscGrammar.nonTermSet.getBaseIndex(parent);
-                            maxQMidpoints[cellIndex][baseParent] = end;
-                            // Left child is implied by marking the production as lexical. Unaries will be handled
-                            // below.
-                            if (APPROXIMATE_SUM) {
-                                r[baseParent] = edu.ohsu.cslu.util.Math.approximateLogSum(
-                                        r[baseParent],
-                                        outsideProbabilities[i]
-                                                + cscGrammar.lexicalLogProbability(parent, parseTask.tokens[start]),
-                                        SUM_DELTA);
-                            } else {
-                                r[baseParent] = edu.ohsu.cslu.util.Math.logSum(r[baseParent], outsideProbabilities[i]
-                                        + cscGrammar.lexicalLogProbability(parent, parseTask.tokens[start]), SUM_DELTA);
-                            }
-                            maxQRightChildren[cellIndex][baseParent] = Production.LEXICAL_PRODUCTION;
-                        }
-                    }
-                    for (int baseParent = 0; baseParent < maxcVocabulary.size(); baseParent++) {
-                        if (r[baseParent] > Float.NEGATIVE_INFINITY) {
-                            maxQ[cellIndex][baseParent] = r[baseParent] - startSymbolInsideProbability;
-                        }
+            if (executor == null || span == size) {
+                for (short start = 0; start < size - span + 1; start++) {
+                    computeMaxQ(cscGrammar, start, (short) (start + span), startSymbolInsideProbability);
+                }
+                continue;
+            }
+
+            final List<Callable<Void>> cellTasks = new ArrayList<Callable<Void>>(size - span + 1);
+            for (short start = 0; start < size - span + 1; start++) {
+                final short cellStart = start, cellEnd = (short) (start + span);
+                cellTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        computeMaxQ(cscGrammar, cellStart, cellEnd, startSymbolInsideProbability);
+                        return null;
                     }
+                });
+            }
+
+            try {
+                for (final Future<Void> f : executor.invokeAll(cellTasks)) {
+                    f.get();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
+            }
+        }
 
-                final int parentStart = offset(cellIndex);
-                final int parentEnd = parentStart + numNonTerminals[cellIndex];
-
-                // Iterate over all possible midpoints
-                for (short midpoint = (short) (start + 1); midpoint <= end - 1; midpoint++) {
-
-                    // Since Petrov's 'r' is a sum over unsplit categories, we compute a temporary r array for each
-                    // midpoint and then maximize over midpoints
-                    // currentMidpointR is indexed by base parent, base left child, base right child
-                    final float[][][] r = new float[maxcVocabulary.size()][][];
-
-                    final int leftCellIndex = cellIndex(start, midpoint);
-                    final int rightCellIndex = cellIndex(midpoint, end);
-
-                    final int leftStart = minLeftChildIndex(leftCellIndex);
-                    final int leftEnd = maxLeftChildIndex(leftCellIndex);
-
-                    final PackedArrayChartCell rightChildCell = getCell(midpoint, end);
-                    // final int rightCellIndex = rightChildCell.cellIndex;
-
-                    rightChildCell.allocateTemporaryStorage();
-                    final float[] rightChildInsideProbabilities = rightChildCell.tmpCell.insideProbabilities;
-
-                    // Iterate over parents
-                    for (int i = parentStart; i < parentEnd; i++) {
-                        final short parent = nonTerminalIndices[i];
-                        final short baseParent = cscGrammar.nonTermSet.getBaseIndex(parent);
-                        final float parentOutside = outsideProbabilities[i];
-
-                        // And over children in the left child cell
-                        for (int j = leftStart; j <= leftEnd; j++) {
-                            final short leftChild = nonTerminalIndices[j];
-                            final short baseLeftChild = cscGrammar.nonTermSet.getBaseIndex(leftChild);
-
-                            // // If we've already found a q for this parent greater than the left-child maxQ, we can
-                            // // short-circuit without computing r
-                            // if (maxQ[leftCellIndex][baseLeftChild] < maxQ[cellIndex][baseParent]) {
-                            // continue;
-                            // }
-
-                            final int column = cscGrammar.rightChildPackingFunction.pack(parent, leftChild);
-                            if (column == Integer.MIN_VALUE) {
-                                continue;
-                            }
-
-                            final float leftChildInside = insideProbabilities[j];
-
-                            // Iterate over grammar rules
-                            for (int k = cscGrammar.rightChildCscBinaryColumnOffsets[column]; k < cscGrammar.rightChildCscBinaryColumnOffsets[column + 1]; k++) {
-                                final short rightChild = cscGrammar.rightChildCscBinaryRowIndices[k];
-
-                                final float rightChildInside = rightChildInsideProbabilities[rightChild];
-                                if (rightChildInside == Float.NEGATIVE_INFINITY) {
-                                    continue;
-                                }
-
-                                final short baseRightChild = cscGrammar.nonTermSet.getBaseIndex(rightChild);
-
-                                // // Again, we can short-circuit based on the combined child maxQ
-                                // if (maxQ[leftCellIndex][baseLeftChild] + maxQ[rightCellIndex][baseRightChild] <
-                                // maxQ[cellIndex][baseParent]) {
-                                // continue;
-                                // }
-
-                                // Allocate space in current-midpoint r array if needed
-                                allocateChildArray(r, baseParent, baseLeftChild);
-
-                                if (APPROXIMATE_SUM) {
-                                    r[baseParent][baseLeftChild][baseRightChild] = edu.ohsu.cslu.util.Math
-                                            .approximateLogSum(r[baseParent][baseLeftChild][baseRightChild],
-                                                    cscGrammar.rightChildCscBinaryProbabilities[k] + leftChildInside
-                                                            + rightChildInside + parentOutside, SUM_DELTA);
-                                } else {
-                                    r[baseParent][baseLeftChild][baseRightChild] = edu.ohsu.cslu.util.Math.logSum(
-                                            r[baseParent][baseLeftChild][baseRightChild],
-                                            cscGrammar.rightChildCscBinaryProbabilities[k] + leftChildInside
-                                                    + rightChildInside + parentOutside, SUM_DELTA);
-                                }
-
-                                //
-                                // Compute q (just r divided by the start symbol inside probability)
-                                // Scale with the top cell's scaling step
-                                //
-                                // Note: true max-rule decoding incorporates the child cell q's. We've generally found
-                                // that it works better _without_ that (optimizing rule scores for local labels).
-                                // But we have both options.
-                                //
-                                // TODO I think we could defer computing q and maxQ for each 'r' until after iterating
-                                // over all grammar rules. But that might not save much.
-                                final float q;
-                                if (LOCAL_MAXRULE_DECODING) {
-                                    q = r[baseParent][baseLeftChild][baseRightChild] - startSymbolInsideProbability;
-                                } else {
-                                    q = r[baseParent][baseLeftChild][baseRightChild] - startSymbolInsideProbability
-                                            + maxQ[leftCellIndex][baseLeftChild] + maxQ[rightCellIndex][baseRightChild];
-                                }
-
-                                if (q > maxQ[cellIndex][baseParent]) {
-                                    maxQ[cellIndex][baseParent] = q;
-                                    maxQLeftChildren[cellIndex][baseParent] = baseLeftChild;
-                                    maxQRightChildren[cellIndex][baseParent] = baseRightChild;
-                                    maxQMidpoints[cellIndex][baseParent] = midpoint;
-                                }
-                            }
-                        }
+        return extractMaxQParse(0, size, maxcVocabulary.startSymbol(), maxcVocabulary);
+    }
+
+    /**
+     * Populates max-q scores and backpointers for a single cell. All child cells must already be populated.
+     * 
+     * @param cscGrammar
+     * @param start
+     * @param end
+     * @param startSymbolInsideProbability
+     */
+    private void computeMaxQ(final InsideOutsideCscSparseMatrixGrammar cscGrammar, final short start,
+            final short end, final float startSymbolInsideProbability) {
+
+        final MaxRuleScratch scratch = threadLocalMaxRuleScratch.get();
+        final int cellIndex = cellIndex(start, end);
+        final float[] cellMaxQ = maxQ[cellIndex];
+        final short[] cellMaxQMidpoints = maxQMidpoints[cellIndex];
+        final short[] cellMaxQLeftChildren = maxQLeftChildren[cellIndex];
+        final short[] cellMaxQRightChildren = maxQRightChildren[cellIndex];
+
+        Arrays.fill(cellMaxQMidpoints, (short) -1);
+        Arrays.fill(cellMaxQ, Float.NEGATIVE_INFINITY);
+        Arrays.fill(cellMaxQLeftChildren, (short) -1);
+        Arrays.fill(cellMaxQRightChildren, (short) -1);
+
+        final int parentStart = offset(cellIndex);
+        final int parentEnd = parentStart + numNonTerminals[cellIndex];
+
+        // Initialize lexical entries in the score arrays - sum outside probability x production probability over all
+        // nonterminal splits
+        if (end - start == 1) {
+            final float[] r = scratch.lexicalR;
+            Arrays.fill(r, Float.NEGATIVE_INFINITY);
+
+            for (int i = parentStart; i < parentEnd; i++) {
+                final short parent = nonTerminalIndices[i];
+                if (grammar.isPos(parent)) {
+                    final short baseParent = cscGrammar.nonTermSet.getBaseIndex(parent);
+                    cellMaxQMidpoints[baseParent] = end;
+                    // Left child is implied by marking the production as lexical. Unaries will be handled below.
+                    if (APPROXIMATE_SUM) {
+                        r[baseParent] = edu.ohsu.cslu.util.Math.approximateLogSum(r[baseParent],
+                                outsideProbabilities[i]
+                                        + cscGrammar.lexicalLogProbability(parent, parseTask.tokens[start]),
+                                SUM_DELTA);
+                    } else {
+                        r[baseParent] = edu.ohsu.cslu.util.Math.logSum(r[baseParent], outsideProbabilities[i]
+                                + cscGrammar.lexicalLogProbability(parent, parseTask.tokens[start]), SUM_DELTA);
                     }
+                    cellMaxQRightChildren[baseParent] = Production.LEXICAL_PRODUCTION;
+                }
+            }
+            for (int baseParent = 0; baseParent < r.length; baseParent++) {
+                if (r[baseParent] > Float.NEGATIVE_INFINITY) {
+                    cellMaxQ[baseParent] = r[baseParent] - startSymbolInsideProbability;
                 }
+            }
+        }
+
+        final int vocabularySize = maxcVocabulary.size();
+        final float[] rightChildInsideProbabilities = scratch.rightChildInsideProbabilities;
 
-                // Compute unary scores - iterate over populated children (matrix columns). Indexed by base parent and
-                // child
-                final float[][] unaryR = unaryR(cscGrammar, cellIndex);
+        // Iterate over all possible midpoints
+        for (short midpoint = (short) (start + 1); midpoint <= end - 1; midpoint++) {
 
-                // Replace any binary or lexical parent scores which are beat by unaries
-                for (short baseParent = 0; baseParent < unaryR.length; baseParent++) {
-                    final float[] parentUnaryR = unaryR[baseParent];
-                    if (parentUnaryR == null) {
+            // Since Petrov's 'r' is a sum over unsplit categories, we compute a temporary r array for each midpoint
+            // and then maximize over midpoints. Rows of r are indexed by base parent and base left child, and columns
+            // by base right child.
+            final SparseScoreRows r = scratch.binaryR;
+
+            final int leftCellIndex = cellIndex(start, midpoint);
+            final int rightCellIndex = cellIndex(midpoint, end);
+
+            final int leftStart = minLeftChildIndex(leftCellIndex);
+            final int leftEnd = maxLeftChildIndex(leftCellIndex);
+
+            final float[] leftCellMaxQ = maxQ[leftCellIndex];
+            final float[] rightCellMaxQ = maxQ[rightCellIndex];
+
+            // Expand right child inside probabilities into a dense array (indexed by non-terminal)
+            final int rightOffset = offset(rightCellIndex);
+            final int rightPopulation = numNonTerminals[rightCellIndex];
+            for (int i = rightOffset; i < rightOffset + rightPopulation; i++) {
+                rightChildInsideProbabilities[nonTerminalIndices[i]] = insideProbabilities[i];
+            }
+
+            // Iterate over parents
+            for (int i = parentStart; i < parentEnd; i++) {
+                final short parent = nonTerminalIndices[i];
+                final short baseParent = cscGrammar.nonTermSet.getBaseIndex(parent);
+                final float parentOutside = outsideProbabilities[i];
+
+                // And over children in the left child cell
+                for (int j = leftStart; j <= leftEnd; j++) {
+                    final short leftChild = nonTerminalIndices[j];
+                    final short baseLeftChild = cscGrammar.nonTermSet.getBaseIndex(leftChild);
+
+                    final int column = cscGrammar.rightChildPackingFunction.pack(parent, leftChild);
+                    if (column == Integer.MIN_VALUE) {
                         continue;
                     }
-                    for (short baseChild = 0; baseChild < parentUnaryR.length; baseChild++) {
-                        // Preclude unary chains. Not great, but it's one way to prevent infinite unary loops
-                        final float unaryQ;
-                        if (LOCAL_MAXRULE_DECODING) {
-                            unaryQ = parentUnaryR[baseChild] - startSymbolInsideProbability;
+
+                    final float leftChildInside = insideProbabilities[j];
+                    final int rowKey = baseParent * vocabularySize + baseLeftChild;
+
+                    // Iterate over grammar rules
+                    for (int k = cscGrammar.rightChildCscBinaryColumnOffsets[column]; k < cscGrammar.rightChildCscBinaryColumnOffsets[column + 1]; k++) {
+                        final short rightChild = cscGrammar.rightChildCscBinaryRowIndices[k];
+
+                        final float rightChildInside = rightChildInsideProbabilities[rightChild];
+                        if (rightChildInside == Float.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+
+                        final short baseRightChild = cscGrammar.nonTermSet.getBaseIndex(rightChild);
+
+                        // Allocate space in current-midpoint r array if needed
+                        final int rIndex = r.row(rowKey) + baseRightChild;
+
+                        if (APPROXIMATE_SUM) {
+                            r.scores[rIndex] = edu.ohsu.cslu.util.Math.approximateLogSum(r.scores[rIndex],
+                                    cscGrammar.rightChildCscBinaryProbabilities[k] + leftChildInside
+                                            + rightChildInside + parentOutside, SUM_DELTA);
                         } else {
-                            unaryQ = parentUnaryR[baseChild] - startSymbolInsideProbability
-                                    + maxQ[cellIndex][baseChild];
+                            r.scores[rIndex] = edu.ohsu.cslu.util.Math.logSum(r.scores[rIndex],
+                                    cscGrammar.rightChildCscBinaryProbabilities[k] + leftChildInside
+                                            + rightChildInside + parentOutside, SUM_DELTA);
                         }
 
-                        if (unaryQ > maxQ[cellIndex][baseParent]
-                                && maxQRightChildren[cellIndex][baseChild] != Production.UNARY_PRODUCTION) {
+                        //
+                        // Compute q (just r divided by the start symbol inside probability)
+                        // Scale with the top cell's scaling step
+                        //
+                        // Note: true max-rule decoding incorporates the child cell q's. We've generally found that it
+                        // works better _without_ that (optimizing rule scores for local labels). But we have both
+                        // options.
+                        //
+                        final float q;
+                        if (LOCAL_MAXRULE_DECODING) {
+                            q = r.scores[rIndex] - startSymbolInsideProbability;
+                        } else {
+                            q = r.scores[rIndex] - startSymbolInsideProbability + leftCellMaxQ[baseLeftChild]
+                                    + rightCellMaxQ[baseRightChild];
+                        }
 
-                            maxQ[cellIndex][baseParent] = unaryQ;
-                            maxQMidpoints[cellIndex][baseParent] = end;
-                            maxQLeftChildren[cellIndex][baseParent] = baseChild;
-                            maxQRightChildren[cellIndex][baseParent] = Production.UNARY_PRODUCTION;
+                        if (q > cellMaxQ[baseParent]) {
+                            cellMaxQ[baseParent] = q;
+                            cellMaxQLeftChildren[baseParent] = baseLeftChild;
+                            cellMaxQRightChildren[baseParent] = baseRightChild;
+                            cellMaxQMidpoints[baseParent] = midpoint;
                         }
                     }
                 }
             }
+
+            // Reset temporary storage for the next midpoint
+            for (int i = rightOffset; i < rightOffset + rightPopulation; i++) {
+                rightChildInsideProbabilities[nonTerminalIndices[i]] = Float.NEGATIVE_INFINITY;
+            }
+            r.clear();
         }
 
-        return extractMaxQParse(0, size, maxcVocabulary.startSymbol(), maxcVocabulary);
-    }
+        // Compute unary scores. Rows are indexed by base parent, and columns by base child
+        final SparseScoreRows unaryR = scratch.unaryR;
+        computeUnaryR(cscGrammar, cellIndex, unaryR);
 
-    private float[][] unaryR(final LeftCscSparseMatrixGrammar cscGrammar, final int cellIndex) {
+        // Replace any binary or lexical parent scores which are beat by unaries
+        for (short baseParent = 0; baseParent < vocabularySize; baseParent++) {
+            final int row = unaryR.existingRow(baseParent);
+            if (row < 0) {
+                continue;
+            }
+            for (short baseChild = 0; baseChild < vocabularySize; baseChild++) {
+                // Preclude unary chains. Not great, but it's one way to prevent infinite unary loops
+                final float unaryQ;
+                if (LOCAL_MAXRULE_DECODING) {
+                    unaryQ = unaryR.scores[row + baseChild] - startSymbolInsideProbability;
+                } else {
+                    unaryQ = unaryR.scores[row + baseChild] - startSymbolInsideProbability + cellMaxQ[baseChild];
+                }
+
+                if (unaryQ > cellMaxQ[baseParent]
+                        && cellMaxQRightChildren[baseChild] != Production.UNARY_PRODUCTION) {
+
+                    cellMaxQ[baseParent] = unaryQ;
+                    cellMaxQMidpoints[baseParent] = end;
+                    cellMaxQLeftChildren[baseParent] = baseChild;
+                    cellMaxQRightChildren[baseParent] = Production.UNARY_PRODUCTION;
+                }
+            }
+        }
+        unaryR.clear();
+    }
 
-        final float[][] unaryR = new float[maxcVocabulary.size()][];
+    /**
+     * Sums unary scores (parent outside x production probability x child inside) over non-terminal splits for each
+     * base parent and base child
+     * 
+     * @param cscGrammar
+     * @param cellIndex
+     * @param unaryR Rows indexed by base parent, and columns by base child
+     */
+    private void computeUnaryR(final LeftCscSparseMatrixGrammar cscGrammar, final int cellIndex,
+            final SparseScoreRows unaryR) {
 
         // Iterate over children in the cell
         final int offset = offset(cellIndex);
@@ -905,7 +1002,7 @@ public class PackedArrayChart extends ParallelArrayChart {
             for (int j = cscGrammar.cscUnaryColumnOffsets[child]; j < cscGrammar.cscUnaryColumnOffsets[child + 1]; j++) {
 
                 final short parent = cscGrammar.cscUnaryRowIndices[j];
-                final int parentIndex = entryIndex(offset(cellIndex), numNonTerminals[cellIndex], parent);
+                final int parentIndex = entryIndex(offset, numNonTerminals[cellIndex], parent);
                 if (parentIndex < 0) {
                     continue;
                 }
@@ -914,32 +1011,16 @@ public class PackedArrayChart extends ParallelArrayChart {
                         + childInsideProbability;
                 final short baseParent = cscGrammar.nonTermSet.getBaseIndex(parent);
 
-                if (unaryR[baseParent] == null) {
-                    unaryR[baseParent] = new float[maxcVocabulary.size()];
-                    Arrays.fill(unaryR[baseParent], Float.NEGATIVE_INFINITY);
-                }
+                final int index = unaryR.row(baseParent) + baseChild;
                 if (APPROXIMATE_SUM) {
-                    unaryR[baseParent][baseChild] = edu.ohsu.cslu.util.Math.approximateLogSum(
-                            unaryR[baseParent][baseChild], jointScore, SUM_DELTA);
-                } else {
-                    unaryR[baseParent][baseChild] = edu.ohsu.cslu.util.Math.logSum(unaryR[baseParent][baseChild],
+                    unaryR.scores[index] = edu.ohsu.cslu.util.Math.approximateLogSum(unaryR.scores[index],
                             jointScore, SUM_DELTA);
+                } else {
+                    unaryR.scores[index] = edu.ohsu.cslu.util.Math.logSum(unaryR.scores[index], jointScore,
+                            SUM_DELTA);
                 }
             }
         }
-
-        return unaryR;
-    }
-
-    private void allocateChildArray(final float[][][] currentMidpointR, final short baseParent,
-            final short baseLeftChild) {
-        if (currentMidpointR[baseParent] == null) {
-            currentMidpointR[baseParent] = new float[maxcVocabulary.size()][];
-        }
-        if (currentMidpointR[baseParent][baseLeftChild] == null) {
-            currentMidpointR[baseParent][baseLeftChild] = new float[maxcVocabulary.size()];
-            Arrays.fill(currentMidpointR[baseParent][baseLeftChild], Float.NEGATIVE_INFINITY);
-        }
     }
 
     private BinaryTree<String> extractMaxQParse(final int start, final int end, final int parent,
@@ -1147,6 +1228,120 @@ public class PackedArrayChart extends ParallelArrayChart {
             finalizeSegmentStartIndices();
         }
 
+        /**
+         * Populates the cell with a copy of finalized entries (e.g., the contents of a cell covering the same tokens in
+         * an earlier sentence; see {@link NgramCellMemo}), discarding any temporary storage.
+         * 
+         * @param entryNonTerminals Populated non-terminals, in ascending order
+         * @param entryInsideProbabilities
+         * @param entryPackedChildren
+         * @param entryMidpoints Midpoints, relative to the start of the cell
+         */
+        public void finalizeCell(final short[] entryNonTerminals, final float[] entryInsideProbabilities,
+                final int[] entryPackedChildren, final short[] entryMidpoints) {
+
+            boolean foundMinLeftChild = false, foundMinRightChild = false;
+
+            minLeftChildIndex[cellIndex] = offset;
+            maxLeftChildIndex[cellIndex] = offset - 1;
+            minRightChildIndex[cellIndex] = offset;
+            maxRightChildIndex[cellIndex] = offset - 1;
+
+            System.arraycopy(entryNonTerminals, 0, nonTerminalIndices, offset, entryNonTerminals.length);
+            System.arraycopy(entryInsideProbabilities, 0, insideProbabilities, offset, entryNonTerminals.length);
+            System.arraycopy(entryPackedChildren, 0, packedChildren, offset, entryNonTerminals.length);
+
+            for (int i = 0; i < entryNonTerminals.length; i++) {
+                final int index = offset + i;
+                final short nonTerminal = entryNonTerminals[i];
+                midpoints[index] = (short) (entryMidpoints[i] + start);
+
+                if (sparseMatrixGrammar.isValidLeftChild(nonTerminal)) {
+                    if (!foundMinLeftChild) {
+                        minLeftChildIndex[cellIndex] = index;
+                        foundMinLeftChild = true;
+                    }
+                    maxLeftChildIndex[cellIndex] = index;
+                }
+
+                if (sparseMatrixGrammar.isValidRightChild(nonTerminal)) {
+                    if (!foundMinRightChild) {
+                        minRightChildIndex[cellIndex] = index;
+                        foundMinRightChild = true;
+                    }
+                    maxRightChildIndex[cellIndex] = index;
+                }
+            }
+
+            numNonTerminals[cellIndex] = entryNonTerminals.length;
+            this.tmpCell = null;
+            finalizeSegmentStartIndices();
+        }
+
+        /**
+         * Stores outside probabilities for the cell's populated entries, leaving the entries themselves in place (so
+         * other threads may concurrently read this cell's inside probabilities). Entries with 0 outside probability
+         * are retained until {@link #removeUnreachableEntries()}.
+         *
+         * @param tmpOutsideProbabilities Outside probabilities, indexed by non-terminal
+         */
+        public void finalizeOutsideProbabilities(final float[] tmpOutsideProbabilities) {
+            for (int i = offset; i < offset + numNonTerminals[cellIndex]; i++) {
+                outsideProbabilities[i] = tmpOutsideProbabilities[nonTerminalIndices[i]];
+            }
+        }
+
+        /**
+         * Removes entries with 0 outside probability (i.e., entries which cannot participate in a complete parse),
+         * as {@link #finalizeCell()} does when finalizing outside probabilities from temporary storage.
+         */
+        public void removeUnreachableEntries() {
+
+            boolean foundMinLeftChild = false, foundMinRightChild = false;
+            int nonTerminalOffset = offset;
+
+            minLeftChildIndex[cellIndex] = offset;
+            maxLeftChildIndex[cellIndex] = offset - 1;
+            minRightChildIndex[cellIndex] = offset;
+            maxRightChildIndex[cellIndex] = offset - 1;
+
+            for (int i = offset; i < offset + numNonTerminals[cellIndex]; i++) {
+
+                if (outsideProbabilities[i] == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+
+                final short nonTerminal = nonTerminalIndices[i];
+                nonTerminalIndices[nonTerminalOffset] = nonTerminal;
+                insideProbabilities[nonTerminalOffset] = insideProbabilities[i];
+                outsideProbabilities[nonTerminalOffset] = outsideProbabilities[i];
+                packedChildren[nonTerminalOffset] = packedChildren[i];
+                midpoints[nonTerminalOffset] = midpoints[i];
+
+                if (sparseMatrixGrammar.isValidLeftChild(nonTerminal)) {
+                    if (!foundMinLeftChild) {
+                        minLeftChildIndex[cellIndex] = nonTerminalOffset;
+                        foundMinLeftChild = true;
+                    }
+                    maxLeftChildIndex[cellIndex] = nonTerminalOffset;
+                }
+
+                if (sparseMatrixGrammar.isValidRightChild(nonTerminal)) {
+                    if (!foundMinRightChild) {
+                        minRightChildIndex[cellIndex] = nonTerminalOffset;
+                        foundMinRightChild = true;
+                    }
+                    maxRightChildIndex[cellIndex] = nonTerminalOffset;
+                }
+
+                nonTerminalOffset++;
+            }
+
+            numNonTerminals[cellIndex] = nonTerminalOffset - offset;
+            this.tmpCell = null;
+            finalizeSegmentStartIndices();
+        }
+
         @Override
         public void finalizeEmptyCell() {
 
@@ -1511,6 +1706,31 @@ public class PackedArrayChart extends ParallelArrayChart {
             }
         }
 
+        /**
+         * Populates temporary storage using a caller-supplied {@link TemporaryChartCell} (generally thread-local)
+         * instead of allocating a new one. The storage is cleared before use, and must not be used for another cell
+         * until this cell is finalized.
+         * 
+         * @param storage Temporary cell storage (without outside probabilities)
+         */
+        public void allocateTemporaryStorage(final TemporaryChartCell storage) {
+            if (tmpCell != null) {
+                return;
+            }
+
+            storage.clear();
+            Arrays.fill(storage.midpoints, (short) 0);
+            this.tmpCell = storage;
+
+            // Copy from main chart array to temporary parallel array
+            for (int i = offset; i < offset + numNonTerminals[cellIndex]; i++) {
+                final int nonTerminal = nonTerminalIndices[i];
+                tmpCell.packedChildren[nonTerminal] = packedChildren[i];
+                tmpCell.insideProbabilities[nonTerminal] = insideProbabilities[i];
+                tmpCell.midpoints[nonTerminal] = midpoints[i];
+            }
+        }
+
         @Override
         public String toString(final boolean formatFractions) {
             final StringBuilder sb = new StringBuilder(256);
@@ -1795,4 +2015,94 @@ public class PackedArrayChart extends ParallelArrayChart {
             return sb.toString();
         }
     }
+
+    /**
+     * Temporary storage for max-rule decoding of a single cell (see
+     * {@link PackedArrayChart#decodeMaxRuleProductParse(InsideOutsideCscSparseMatrixGrammar, ExecutorService)}).
+     * Allocated once per thread and reused, so decoding allocates no per-cell or per-midpoint arrays.
+     */
+    private final static class MaxRuleScratch {
+
+        /** Lexical scores, indexed by base parent */
+        final float[] lexicalR;
+
+        /** Inside probabilities of the current right child cell, indexed by non-terminal */
+        final float[] rightChildInsideProbabilities;
+
+        /** Binary scores for the current midpoint; rows indexed by base parent x base left child */
+        final SparseScoreRows binaryR;
+
+        /** Unary scores; rows indexed by base parent */
+        final SparseScoreRows unaryR;
+
+        MaxRuleScratch(final int numNonTerms, final int baseVocabularySize) {
+            this.lexicalR = new float[baseVocabularySize];
+            this.rightChildInsideProbabilities = new float[numNonTerms];
+            Arrays.fill(rightChildInsideProbabilities, Float.NEGATIVE_INFINITY);
+            this.binaryR = new SparseScoreRows(baseVocabularySize * baseVocabularySize, baseVocabularySize);
+            this.unaryR = new SparseScoreRows(baseVocabularySize, baseVocabularySize);
+        }
+    }
+
+    /**
+     * A sparse 2-dimensional array of log-probability scores, of which only a few rows are populated. Rows are
+     * allocated on first access from a single backing array (initialized to 0 probability), and {@link #clear()}
+     * resets only the rows in use.
+     */
+    private final static class SparseScoreRows {
+
+        private final int rowLength;
+
+        /** Offset of each row in {@link #scores}, or -1 if the row is not allocated */
+        private final int[] rowOffsets;
+
+        /** Keys of the rows in use, in allocation order */
+        private final int[] rowKeys;
+
+        private int populatedRows;
+
+        float[] scores;
+
+        SparseScoreRows(final int rows, final int rowLength) {
+            this.rowLength = rowLength;
+            this.rowOffsets = new int[rows];
+            Arrays.fill(rowOffsets, -1);
+            this.rowKeys = new int[rows];
+            this.scores = new float[rowLength * 16];
+        }
+
+        /**
+         * @param key
+         * @return The offset of the specified row in {@link #scores}, allocating the row if necessary
+         */
+        int row(final int key) {
+            if (rowOffsets[key] >= 0) {
+                return rowOffsets[key];
+            }
+
+            final int offset = populatedRows * rowLength;
+            if (offset + rowLength > scores.length) {
+                scores = Arrays.copyOf(scores, scores.length * 2);
+            }
+            Arrays.fill(scores, offset, offset + rowLength, Float.NEGATIVE_INFINITY);
+            rowOffsets[key] = offset;
+            rowKeys[populatedRows++] = key;
+            return offset;
+        }
+
+        /**
+         * @param key
+         * @return The offset of the specified row in {@link #scores}, or -1 if the row is not allocated
+         */
+        int existingRow(final int key) {
+            return rowOffsets[key];
+        }
+
+        void clear() {
+            for (int i = 0; i < populatedRows; i++) {
+                rowOffsets[rowKeys[i]] = -1;
+            }
+            populatedRows = 0;
+        }
+    }
 }
@@ -71,8 +71,13 @@ public abstract class ParallelArrayChart extends Chart {
     public final int[] packedChildren;
     public final short[] midpoints;
 
+    /** The pool from which the parallel arrays were borrowed (null if they were allocated directly) */
+    protected final ChartArrayPool pool;
+    private boolean released;
+
     /**
-     * Constructs a chart
+     * Constructs a chart. If chart pooling is enabled (see {@link ChartArrayPool#sharedPool()}), the parallel arrays
+     * are borrowed from the shared pool.
      * 
      * @param parseTask Parser state
      * @param sparseMatrixGrammar Grammar
@@ -89,10 +94,17 @@ public abstract class ParallelArrayChart extends Chart {
         maxCells = size * (size + 1) / 2;
 
         this.chartArraySize = ParallelArrayChart.chartArraySize(this.size, this.beamWidth, this.lexicalRowBeamWidth);
-        this.insideProbabilities = new float[chartArraySize];
+        this.pool = ChartArrayPool.sharedPool();
+        if (pool != null) {
+            this.insideProbabilities = pool.borrowFloatArray(chartArraySize);
+            this.packedChildren = pool.borrowIntArray(chartArraySize);
+            this.midpoints = pool.borrowShortArray(chartArraySize);
+        } else {
+            this.insideProbabilities = new float[chartArraySize];
+            this.packedChildren = new int[chartArraySize];
+            this.midpoints = new short[chartArraySize];
+        }
         Arrays.fill(insideProbabilities, Float.NEGATIVE_INFINITY);
-        this.packedChildren = new int[chartArraySize];
-        this.midpoints = new short[chartArraySize];
 
         this.cellOffsets = new int[maxCells];
 
@@ -133,6 +145,7 @@ public abstract class ParallelArrayChart extends Chart {
         this.insideProbabilities = new float[chartArraySize];
         this.packedChildren = new int[chartArraySize];
         this.midpoints = new short[maxCells];
+        this.pool = null;
     }
 
     @Override
@@ -171,11 +184,42 @@ public abstract class ParallelArrayChart extends Chart {
         return chartArraySize;
     }
 
+    /**
+     * @return The number of entries the parallel chart arrays can hold. May exceed {@link #chartArraySize()} if the
+     *         arrays were borrowed from a {@link ChartArrayPool}.
+     */
+    public int chartArrayCapacity() {
+        return insideProbabilities.length;
+    }
+
     public static int chartArraySize(final int newSize, final int newBeamWidth, final int newLexicalRowBeamWidth) {
         final int newCells = newSize * (newSize + 1) / 2;
         return newSize * newLexicalRowBeamWidth + (newCells - newSize) * newBeamWidth;
     }
 
+    /**
+     * Returns the parallel arrays to the {@link ChartArrayPool} they were borrowed from (if any). The chart must not be
+     * used after it is released.
+     */
+    public final synchronized void release() {
+        if (pool != null && !released) {
+            released = true;
+            releaseArrays(pool);
+        }
+    }
+
+    /**
+     * Returns pooled arrays to the pool. Subclasses which borrow additional arrays should override (and call
+     * super.releaseArrays()).
+     * 
+     * @param arrayPool
+     */
+    protected void releaseArrays(final ChartArrayPool arrayPool) {
+        arrayPool.release(insideProbabilities);
+        arrayPool.release(packedChildren);
+        arrayPool.release(midpoints);
+    }
+
     public int beamWidth() {
         return beamWidth;
     }
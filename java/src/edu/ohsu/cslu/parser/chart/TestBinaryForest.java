@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.InsideOutsideCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.Production;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.CphParserTestCase;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.Parser.DecodeMethod;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+import edu.ohsu.cslu.parser.ml.InsideOutsideCphSpmlParser;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link BinaryForest}.
+ */
+public class TestBinaryForest extends CphParserTestCase {
+
+    private static ParserDriver createOptions(final File forestFile) {
+        setPruningParameters();
+        final ParserDriver opts = parserOptions();
+        opts.forestFile = forestFile;
+        return opts;
+    }
+
+    /**
+     * Verifies that a serialized forest contains every populated entry of the chart, with unpacked backpointers
+     */
+    @Test
+    public void testSerialize() throws Exception {
+        final CartesianProductHashSpmlParser parser = createParser(createOptions(null));
+        final PackingFunction pf = grammar.packingFunction();
+
+        for (final String sentence : sentences.subList(0, 5)) {
+            final ParseTask task = parser.parseSentence(sentence);
+            final PackedArrayChart chart = parser.chart;
+            final BinaryForest forest = BinaryForest.read(BinaryForest.serialize(chart, false, true));
+
+            final int n = task.sentenceLength();
+            assertEquals(n, forest.sentenceLength());
+            assertEquals(grammar.numNonTerms(), forest.numNonTerms());
+            assertEquals(grammar.startSymbol, forest.startSymbol());
+            assertFalse(forest.hasOutsideProbabilities());
+            assertTrue(forest.hasBackpointers());
+            for (int i = 0; i < n; i++) {
+                assertEquals(task.tokens[i], forest.token(i));
+            }
+
+            int entries = 0;
+            for (int start = 0; start < n; start++) {
+                for (int end = start + 1; end <= n; end++) {
+                    final int cellIndex = chart.cellIndex(start, end);
+                    final int offset = chart.offset(cellIndex);
+                    assertEquals(chart.numNonTerminals[cellIndex], forest.cellEnd(start, end)
+                            - forest.cellStart(start, end));
+
+                    for (int i = offset; i < offset + chart.numNonTerminals[cellIndex]; i++) {
+                        final int entry = forest.entryIndex(start, end, chart.nonTerminalIndices[i]);
+                        assertEquals(forest.cellStart(start, end) + i - offset, entry);
+                        assertEquals(chart.insideProbabilities[i], forest.insideProbability(entry), 0f);
+                        assertEquals(chart.midpoints[i], forest.midpoint(entry));
+                        assertEquals(pf.unpackLeftChild(chart.packedChildren[i]), forest.leftChild(entry));
+                        assertEquals(pf.unpackRightChild(chart.packedChildren[i]), forest.rightChild(entry));
+                    }
+                    entries += chart.numNonTerminals[cellIndex];
+                }
+            }
+            assertEquals(entries, forest.entries());
+
+            // The root entry matches the parse
+            final int root = forest.entryIndex(0, n, grammar.startSymbol);
+            assertEquals(task.insideProbability, forest.insideProbability(root), 0f);
+            assertEquals(Production.UNARY_PRODUCTION, forest.rightChild(root));
+        }
+    }
+
+    /**
+     * Writes a sequence of forests (including an empty forest for a failed parse) to a file, and reads them back by
+     * mapping the file and by streaming it
+     */
+    @Test
+    public void testWriteAndMap() throws Exception {
+        final File file = File.createTempFile("forest", ".bin");
+        file.deleteOnExit();
+
+        final CartesianProductHashSpmlParser parser = createParser(createOptions(file));
+        final List<ParseTask> tasks = new ArrayList<ParseTask>();
+        final FileChannel out = new FileOutputStream(file).getChannel();
+        for (final String sentence : sentences.subList(0, 4)) {
+            final ParseTask task = parser.parseSentence(sentence);
+            tasks.add(task);
+            BinaryForest.write(task.forest, out);
+        }
+        BinaryForest.write(BinaryForest.serializeEmpty(), out);
+        out.close();
+
+        final List<BinaryForest> forests = BinaryForest.map(file);
+        assertEquals(5, forests.size());
+        assertEquals(0, forests.get(4).sentenceLength());
+        assertEquals(0, forests.get(4).entries());
+
+        final FileChannel in = new FileInputStream(file).getChannel();
+        for (int i = 0; i < tasks.size(); i++) {
+            final ParseTask task = tasks.get(i);
+            final BinaryForest mapped = forests.get(i);
+            final BinaryForest streamed = BinaryForest.read(in);
+            final BinaryForest serialized = BinaryForest.read(task.forest.duplicate());
+
+            for (final BinaryForest forest : new BinaryForest[] { mapped, streamed }) {
+                assertEquals(task.sentenceLength(), forest.sentenceLength());
+                assertEquals(serialized.entries(), forest.entries());
+                for (int entry = 0; entry < forest.entries(); entry++) {
+                    assertEquals(serialized.nonTerminal(entry), forest.nonTerminal(entry));
+                    assertEquals(serialized.insideProbability(entry), forest.insideProbability(entry), 0f);
+                    assertEquals(serialized.leftChild(entry), forest.leftChild(entry));
+                    assertEquals(serialized.rightChild(entry), forest.rightChild(entry));
+                    assertEquals(serialized.midpoint(entry), forest.midpoint(entry));
+                }
+            }
+        }
+        assertEquals(0, BinaryForest.read(in).sentenceLength());
+        assertNull(BinaryForest.read(in));
+        in.close();
+    }
+
+    /**
+     * Inside-outside parsers include outside probabilities, but do not record backpointers, so the backpointer
+     * sections should be omitted
+     */
+    @Test
+    public void testOutsideProbabilities() throws Exception {
+        final InsideOutsideCscSparseMatrixGrammar ioGrammar = new InsideOutsideCscSparseMatrixGrammar(
+                JUnit.unitTestDataAsReader("grammars/eng.R2.gr.gz"), new DecisionTreeTokenClassifier(),
+                PerfectIntPairHashPackingFunction.class);
+        final ParserDriver opts = createOptions(File.createTempFile("forest", ".bin"));
+        opts.decodeMethod = DecodeMethod.MaxRuleProd;
+        opts.forestFile.deleteOnExit();
+        final InsideOutsideCphSpmlParser parser = new InsideOutsideCphSpmlParser(opts, ioGrammar);
+
+        final ParseTask task = parser.parseSentence(sentences.get(0));
+        final ByteBuffer buf = task.forest;
+        final BinaryForest forest = BinaryForest.read(buf.duplicate());
+        assertTrue(forest.hasOutsideProbabilities());
+
+        // The outside probability of the root is 1, and no entry's posterior exceeds that of the root
+        final int n = forest.sentenceLength();
+        final int root = forest.entryIndex(0, n, ioGrammar.startSymbol);
+        assertEquals(0f, forest.outsideProbability(root), 0f);
+        final float sentenceProbability = forest.insideProbability(root);
+        for (int entry = 0; entry < forest.entries(); entry++) {
+            final float posterior = forest.insideProbability(entry) + forest.outsideProbability(entry);
+            assertTrue(posterior <= sentenceProbability + 1e-3f);
+        }
+        assertEquals(forest.entries(), forest.outsideProbabilities().remaining());
+
+        assertFalse(forest.hasBackpointers());
+        try {
+            forest.leftChild(root);
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException expected) {
+        }
+
+        // Omitting the backpointer sections saves 8 bytes per entry (plus alignment padding)
+        final ByteBuffer withBackpointers = BinaryForest.serialize(parser.chart, true, true);
+        assertEquals(forest.entries() * 8, withBackpointers.remaining() - buf.remaining(), 16);
+        assertTrue(BinaryForest.read(withBackpointers).hasBackpointers());
+    }
+}
@@ -21,6 +21,7 @@
  */
 package edu.ohsu.cslu.parser.chart;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -215,6 +216,59 @@ public class TestBoundedPriorityQueue {
         assertEquals(5, queue.size());
     }
 
+    @Test
+    public void testSelect() {
+        // Pseudo-random numbers, but with the same initial seed, so always the same series
+        final Random r = new Random(1);
+
+        for (int i = 0; i < 1000; i++) {
+            final int maxSize = 1 + r.nextInt(60);
+            final int candidates = r.nextInt(500);
+            final short[] nts = new short[candidates];
+            final float[] foms = new float[candidates];
+            for (int j = 0; j < candidates; j++) {
+                nts[j] = (short) (j * 2);
+                // Quantize FOMs to produce plenty of ties
+                foms[j] = -r.nextInt(100) / 4f;
+            }
+
+            final BoundedPriorityQueue expected = new BoundedPriorityQueue(maxSize);
+            expected.clear(maxSize);
+            for (int j = 0; j < candidates; j++) {
+                expected.insert(nts[j], foms[j]);
+            }
+
+            final BoundedPriorityQueue selected = new BoundedPriorityQueue(maxSize);
+            selected.clear(maxSize);
+            selected.select(nts, foms, candidates);
+
+            assertEquals(expected.size(), selected.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.nts[expected.headIndex() + j], selected.nts[selected.headIndex() + j]);
+                assertEquals(expected.foms[expected.headIndex() + j], selected.foms[selected.headIndex() + j], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testSelectAndReplace() {
+        final short[] nts = new short[] { 1, 2, 3, 4, 5, 6, 7 };
+        final float[] foms = new float[] { -3f, -2f, -1f, -5f, -4f, -6f, -7f };
+
+        final BoundedPriorityQueue q = new BoundedPriorityQueue(5);
+        q.clear(5);
+        q.select(nts, foms, nts.length);
+        assertEquals(5, q.size());
+        assertArrayEquals(new short[] { 3, 2, 1, 5, 4 }, java.util.Arrays.copyOfRange(q.nts, 0, 5));
+
+        // Selected queues behave as if populated with insert()
+        assertFalse(q.replace((short) 6, -5.5f));
+        assertTrue(q.replace((short) 6, -1.5f));
+        assertArrayEquals(new short[] { 3, 6, 2, 1, 5 }, java.util.Arrays.copyOfRange(q.nts, 0, 5));
+        q.popHead();
+        assertEquals(6, q.nts[q.headIndex()]);
+    }
+
     @Test
     @PerformanceTest({ "mbp2012", "1851" })
     public void profileQueue() {
@@ -234,4 +288,67 @@ public class TestBoundedPriorityQueue {
             }
         }
     }
+
+    /**
+     * Microbenchmark of the binary-edge phase of cell pruning: a beam of 30 selected from 3000 non-terminals with
+     * {@link BoundedPriorityQueue#insert(short, float)} (compare to {@link #profileSelect()})
+     */
+    @Test
+    @PerformanceTest
+    public void profileInsert() {
+        final float[][] cellFoms = randomCellFoms();
+        final BoundedPriorityQueue q = new BoundedPriorityQueue(30);
+
+        for (int i = 0; i < 100; i++) {
+            for (final float[] foms : cellFoms) {
+                q.clear(30);
+                for (short nt = 0; nt < foms.length; nt++) {
+                    q.insert(nt, foms[nt]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Microbenchmark of the binary-edge phase of cell pruning: a beam of 30 selected from 3000 non-terminals with
+     * {@link BoundedPriorityQueue#select(short[], float[], int)} (compare to {@link #profileInsert()})
+     */
+    @Test
+    @PerformanceTest
+    public void profileSelect() {
+        final float[][] cellFoms = randomCellFoms();
+        final BoundedPriorityQueue q = new BoundedPriorityQueue(30);
+        final short[] candidateNts = new short[3000];
+        final float[] candidateFoms = new float[3000];
+
+        for (int i = 0; i < 100; i++) {
+            for (final float[] foms : cellFoms) {
+                q.clear(30);
+                for (short nt = 0; nt < foms.length; nt++) {
+                    candidateNts[nt] = nt;
+                    candidateFoms[nt] = foms[nt];
+                }
+                q.select(candidateNts, candidateFoms, foms.length);
+            }
+        }
+    }
+
+    /**
+     * @return FOMs of 3000 non-terminals, for each of 500 cells. In half the cells, FOMs are in random order; in the
+     *         other half, they increase with the non-terminal index (the worst case for insertion)
+     */
+    private float[][] randomCellFoms() {
+        final Random r = new Random(1);
+        final float[][] cellFoms = new float[500][3000];
+        for (int i = 0; i < cellFoms.length; i++) {
+            final float[] foms = cellFoms[i];
+            for (int nt = 0; nt < foms.length; nt++) {
+                foms[nt] = -100f * r.nextFloat();
+            }
+            if (i % 2 == 1) {
+                java.util.Arrays.sort(foms);
+            }
+        }
+        return cellFoms;
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.cjunit.FilteredRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for {@link ChartArrayPool}
+ */
+@RunWith(FilteredRunner.class)
+public class TestChartArrayPool {
+
+    @Test
+    public void testSizeClasses() {
+        final ChartArrayPool pool = new ChartArrayPool(1 << 20);
+
+        // Requests are rounded up to a power of 2, with a minimum of 1024 entries
+        assertEquals(1024, pool.borrowFloatArray(1).length);
+        assertEquals(1024, pool.borrowIntArray(1024).length);
+        assertEquals(2048, pool.borrowShortArray(1025).length);
+        assertEquals(3, pool.misses());
+        assertEquals(0, pool.hits());
+    }
+
+    @Test
+    public void testBorrowAndRelease() {
+        final ChartArrayPool pool = new ChartArrayPool(1 << 20);
+
+        final float[] f = pool.borrowFloatArray(3000);
+        pool.release(f);
+        assertEquals(4096 * 4, pool.pooledBytes());
+
+        // A request in the same size class should reuse the pooled array
+        assertSame(f, pool.borrowFloatArray(2049));
+        assertEquals(1, pool.hits());
+        assertEquals(0, pool.pooledBytes());
+
+        // But arrays of other types or size classes should not
+        pool.release(f);
+        assertEquals(8192, pool.borrowFloatArray(5000).length);
+        assertEquals(4096, pool.borrowIntArray(3000).length);
+        assertEquals(1, pool.hits());
+        assertEquals(3, pool.misses());
+    }
+
+    @Test
+    public void testCeiling() {
+        // Room for 2 4096-entry float arrays
+        final ChartArrayPool pool = new ChartArrayPool(2 * 4096 * 4);
+
+        final float[] f1 = pool.borrowFloatArray(4096), f2 = pool.borrowFloatArray(4096), f3 = pool
+                .borrowFloatArray(4096);
+        pool.release(f1);
+        pool.release(f2);
+        pool.release(f3);
+        assertEquals(1, pool.discards());
+        assertEquals(2 * 4096 * 4, pool.pooledBytes());
+
+        assertNotSame(f3, pool.borrowFloatArray(4096));
+        assertNotSame(f3, pool.borrowFloatArray(4096));
+        assertEquals(0, pool.pooledBytes());
+
+        // Arrays which don't match a size class are never pooled
+        pool.release(new float[3000]);
+        assertEquals(2, pool.discards());
+        assertEquals(0, pool.pooledBytes());
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
+import edu.ohsu.cslu.grammar.CscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.Grammar;
+import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.Production;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.CphParserTestCase;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.Parser;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.chart.KBestExtractor.ScoredParse;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+
+/**
+ * Unit tests for {@link KBestExtractor}.
+ */
+public class TestKBestExtractor extends CphParserTestCase {
+
+    /** Tolerance for comparing scores; equal-probability derivations may differ by float rounding */
+    private final static float DELTA = 1e-3f;
+
+    private static CartesianProductHashSpmlParser createParser(final int k) {
+        setPruningParameters();
+        final ParserDriver opts = parserOptions();
+        opts.kBest = k;
+        return createParser(opts);
+    }
+
+    /**
+     * Verifies that the first parse is the Viterbi parse, and that parses are distinct and in order of decreasing
+     * score.
+     */
+    @Test
+    public void testKBest() {
+        final CartesianProductHashSpmlParser parser = createParser(25);
+
+        for (final String sentence : sentences.subList(0, 8)) {
+            final ParseTask task = parser.parseSentence(sentence);
+            final String viterbiParse = task.binaryParse.toString();
+            final List<ScoredParse> kBest = task.kBest(25);
+
+            assertEquals(sentence, 25, kBest.size());
+            assertEquals(sentence, viterbiParse, kBest.get(0).tree.toString());
+            assertEquals(sentence, task.insideProbability, kBest.get(0).score, DELTA);
+
+            final HashSet<String> parses = new HashSet<String>();
+            for (int i = 0; i < kBest.size(); i++) {
+                parses.add(kBest.get(i).tree.toString());
+                if (i > 0) {
+                    assertTrue(sentence, kBest.get(i).score <= kBest.get(i - 1).score + DELTA);
+                }
+            }
+            assertEquals(sentence, kBest.size(), parses.size());
+        }
+    }
+
+    /**
+     * Successive requests should extend the enumeration consistently, and never return more than the configured k
+     */
+    @Test
+    public void testLazyEnumeration() {
+        final CartesianProductHashSpmlParser parser = createParser(10);
+        final ParseTask task = parser.parseSentence(sentences.get(1));
+
+        final List<ScoredParse> top3 = task.kBest(3);
+        final List<ScoredParse> top10 = task.kBest(10);
+        assertEquals(3, top3.size());
+        assertEquals(10, top10.size());
+        for (int i = 0; i < top3.size(); i++) {
+            assertEquals(top3.get(i).tree.toString(), top10.get(i).tree.toString());
+            assertEquals(top3.get(i).score, top10.get(i).score, 0f);
+        }
+
+        assertEquals(10, task.kBest(20).size());
+    }
+
+    /**
+     * Without k-best configuration, {@link ParseTask#kBest(int)} returns only the 1-best parse
+     */
+    @Test
+    public void testOneBest() {
+        final CartesianProductHashSpmlParser parser = createParser(1);
+        final ParseTask task = parser.parseSentence(sentences.get(0));
+        final List<ScoredParse> kBest = task.kBest(10);
+        assertEquals(1, kBest.size());
+        assertEquals(task.insideProbability, kBest.get(0).score, 0f);
+    }
+
+    /**
+     * On a small grammar with competing unary rules, the k-best list (with k larger than the forest) should match an
+     * exhaustive enumeration of the derivations in the chart, admitting (as {@link KBestExtractor} does) as many unary
+     * levels in each cell as the longest Viterbi unary chain in that cell (and at least one)
+     */
+    @Test
+    public void testExhaustiveEnumeration() throws Exception {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("format=CSLU start=ROOT\n");
+        sb.append("ROOT => S 0\n");
+        sb.append("ROOT => NP -2.302585093\n");
+        sb.append("S => NP VP 0\n");
+        sb.append("S => VP -1.609437912\n");
+        sb.append("NP => DT NP -1.386294361\n");
+        sb.append("NP => DT NN -1.386294361\n");
+        sb.append("NP => NN NN -1.791759469\n");
+        sb.append("NP => NN NP|NN -1.791759469\n");
+        sb.append("NP => NN RB -1.791759469\n");
+        sb.append("NP => NN -2.302585093\n");
+        sb.append("NP => NP NP -2.995732274\n");
+        sb.append("NP => NP RB -2.302585093\n");
+        sb.append("NP|NN => NN NN 0\n");
+        sb.append("VP => VB RB -0.693147181\n");
+        sb.append("VP => VB VP|VB -1.386294361\n");
+        sb.append("VP => VB -1.386294361\n");
+        sb.append("VP => VP RB -1.609437912\n");
+        sb.append("VP => VP NP -1.609437912\n");
+        sb.append("VP|VB => NP 0\n");
+        sb.append(Grammar.LEXICON_DELIMITER);
+        sb.append('\n');
+        sb.append("DT => The 0\n");
+        sb.append("NN => fish 0\n");
+        sb.append("NN => market -0.405465108\n");
+        sb.append("VB => market -1.098612289\n");
+        sb.append("NN => stands -0.693147181\n");
+        sb.append("VB => stands -0.693147181\n");
+        sb.append("RB => last -0.405465108\n");
+        sb.append("VB => last -1.098612289\n");
+        sb.append("NN => UNK 0\n");
+        final LeftCscSparseMatrixGrammar smallGrammar = new LeftCscSparseMatrixGrammar(new StringReader(sb.toString()),
+                new DecisionTreeTokenClassifier(), PerfectIntPairHashPackingFunction.class);
+
+        // Parse exhaustively
+        GlobalConfigProperties.singleton().setProperty(Parser.PROPERTY_MAX_BEAM_WIDTH, "0");
+        final ParserDriver opts = parserOptions();
+        opts.kBest = 1000;
+        final CartesianProductHashSpmlParser parser = new CartesianProductHashSpmlParser(opts, smallGrammar);
+        final ParseTask task = parser.parseSentence("The fish market stands last");
+
+        final PackedArrayChart chart = parser.chart;
+        final short size = (short) chart.size();
+        final List<ScoredParse> expected = enumerate(chart, (short) 0, size, smallGrammar.startSymbol,
+                unaryLevels(chart, (short) 0, size));
+        Collections.sort(expected, new Comparator<ScoredParse>() {
+            @Override
+            public int compare(final ScoredParse o1, final ScoredParse o2) {
+                return Float.compare(o2.score, o1.score);
+            }
+        });
+        parser.shutdown();
+
+        final List<ScoredParse> kBest = task.kBest(1000);
+        assertTrue(expected.size() > 10);
+        assertEquals(expected.size(), kBest.size());
+        assertEquals(task.binaryParse.toString(), kBest.get(0).tree.toString());
+
+        final HashSet<String> expectedTrees = new HashSet<String>();
+        final HashSet<String> kBestTrees = new HashSet<String>();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).score, kBest.get(i).score, DELTA);
+            expectedTrees.add(expected.get(i).tree.toString());
+            kBestTrees.add(kBest.get(i).tree.toString());
+        }
+        assertEquals(expectedTrees, kBestTrees);
+    }
+
+    /**
+     * Enumerates every derivation of a non-terminal from the populated entries of a chart
+     * 
+     * @param unaryLevels Maximum number of unary edges at the top of each derivation
+     */
+    private static List<ScoredParse> enumerate(final PackedArrayChart chart, final short start, final short end,
+            final short parent, final int unaryLevels) {
+
+        final CscSparseMatrixGrammar g = (CscSparseMatrixGrammar) chart.sparseMatrixGrammar;
+        final String label = g.nonTermSet.getSymbol(parent);
+        final ArrayList<ScoredParse> derivations = new ArrayList<ScoredParse>();
+
+        if (end - start == 1) {
+            final int token = chart.parseTask.tokens[start];
+            for (final Production p : g.getLexicalProductions()) {
+                if (p.parent == parent && p.leftChild == token) {
+                    final BinaryTree<String> tree = new BinaryTree<String>(label);
+                    tree.addChild(new BinaryTree<String>(g.lexSet.getSymbol(token)));
+                    derivations.add(new ScoredParse(tree, p.prob));
+                }
+            }
+        }
+
+        for (final Production p : g.getBinaryProductions()) {
+            if (p.parent != parent) {
+                continue;
+            }
+            for (short midpoint = (short) (start + 1); midpoint < end; midpoint++) {
+                if (!populatedNonTerminals(chart, start, midpoint).contains((short) p.leftChild)
+                        || !populatedNonTerminals(chart, midpoint, end).contains((short) p.rightChild)) {
+                    continue;
+                }
+                for (final ScoredParse left : enumerate(chart, start, midpoint, (short) p.leftChild,
+                        unaryLevels(chart, start, midpoint))) {
+                    for (final ScoredParse right : enumerate(chart, midpoint, end, (short) p.rightChild,
+                            unaryLevels(chart, midpoint, end))) {
+                        final BinaryTree<String> tree = new BinaryTree<String>(label);
+                        tree.addChild(left.tree);
+                        tree.addChild(right.tree);
+                        derivations.add(new ScoredParse(tree, p.prob + left.score + right.score));
+                    }
+                }
+            }
+        }
+
+        if (unaryLevels > 0) {
+            for (final Production p : g.getUnaryProductions()) {
+                if (p.parent != parent || p.leftChild == parent
+                        || !populatedNonTerminals(chart, start, end).contains((short) p.leftChild)) {
+                    continue;
+                }
+                for (final ScoredParse child : enumerate(chart, start, end, (short) p.leftChild, unaryLevels - 1)) {
+                    final BinaryTree<String> tree = new BinaryTree<String>(label);
+                    tree.addChild(child.tree);
+                    derivations.add(new ScoredParse(tree, p.prob + child.score));
+                }
+            }
+        }
+        return derivations;
+    }
+
+    private static List<Short> populatedNonTerminals(final PackedArrayChart chart, final short start,
+            final short end) {
+        final int cellIndex = chart.cellIndex(start, end);
+        final ArrayList<Short> nonTerminals = new ArrayList<Short>();
+        for (int i = chart.offset(cellIndex); i < chart.offset(cellIndex) + chart.numNonTerminals[cellIndex]; i++) {
+            nonTerminals.add(chart.nonTerminalIndices[i]);
+        }
+        return nonTerminals;
+    }
+
+    /**
+     * @return The length of the longest Viterbi unary chain in a cell (at least 1)
+     */
+    private static int unaryLevels(final PackedArrayChart chart, final short start, final short end) {
+        final PackingFunction pf = chart.sparseMatrixGrammar.packingFunction();
+        final int cellIndex = chart.cellIndex(start, end);
+        final int offset = chart.offset(cellIndex);
+        final int population = chart.numNonTerminals[cellIndex];
+
+        int levels = 1;
+        for (int i = offset; i < offset + population; i++) {
+            int length = 0;
+            for (int entry = i; length < population
+                    && pf.unpackRightChild(chart.packedChildren[entry]) == Production.UNARY_PRODUCTION; length++) {
+                final short child = (short) pf.unpackLeftChild(chart.packedChildren[entry]);
+                entry = Arrays.binarySearch(chart.nonTerminalIndices, offset, offset + population, child);
+            }
+            levels = Math.max(levels, length);
+        }
+        return levels;
+    }
+}
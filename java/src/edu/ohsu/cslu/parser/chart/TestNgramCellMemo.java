@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.chart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.parser.CphParserTestCase;
+import edu.ohsu.cslu.parser.ParseTask;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.fom.BoundaryPosModel;
+import edu.ohsu.cslu.parser.fom.FigureOfMeritModel;
+import edu.ohsu.cslu.parser.fom.FigureOfMeritModel.FOMType;
+import edu.ohsu.cslu.parser.fom.InsideProb;
+import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link NgramCellMemo}. Parses with memoization enabled should be identical to those without.
+ */
+public class TestNgramCellMemo extends CphParserTestCase {
+
+    @After
+    public void tearDown() {
+        GlobalConfigProperties.singleton().remove(ParserDriver.OPT_CELL_MEMO_MB);
+    }
+
+    private static CartesianProductHashSpmlParser createParser(final float memoMb, final FigureOfMeritModel fomModel) {
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_CELL_MEMO_MB, Float.toString(memoMb));
+        final ParserDriver opts = parserOptions();
+        opts.fomModel = fomModel;
+        return createParser(opts);
+    }
+
+    /**
+     * Parses each sentence with and without memoization and verifies that the parses are identical
+     */
+    private static void assertIdenticalParses(final CartesianProductHashSpmlParser memoParser,
+            final CartesianProductHashSpmlParser baselineParser, final List<String> input) {
+        for (final String sentence : input) {
+            final ParseTask expected = baselineParser.parseSentence(sentence);
+            final ParseTask actual = memoParser.parseSentence(sentence);
+            assertEquals(sentence, expected.parseBracketString(false), actual.parseBracketString(false));
+            assertEquals(sentence, expected.insideProbability, actual.insideProbability, 0f);
+        }
+    }
+
+    @Test
+    public void testExhaustive() {
+        final List<String> input = sentences.subList(0, 6);
+        final CartesianProductHashSpmlParser memoParser = createParser(64, new InsideProb());
+        final CartesianProductHashSpmlParser baselineParser = createParser(0, new InsideProb());
+        final NgramCellMemo memo = memoParser.opts.cellMemo();
+        assertNotNull(memo);
+        assertNull(baselineParser.opts.cellMemo());
+
+        assertIdenticalParses(memoParser, baselineParser, input);
+        // Common words ('the', 'of', etc.) recur even in a handful of sentences
+        assertTrue(memo.hits() > 0);
+        assertTrue(memo.estimatedBytes() > 0);
+        assertEquals(0, memo.fallbacks());
+
+        // Every cell should be found on a second pass
+        final long lookups = memo.lookups(), hits = memo.hits();
+        assertIdenticalParses(memoParser, baselineParser, input);
+        assertEquals(memo.lookups() - lookups, memo.hits() - hits);
+        assertEquals(0, memo.flushes());
+
+        memoParser.shutdown();
+        baselineParser.shutdown();
+    }
+
+    @Test
+    public void testPrunedInsideFom() {
+        setPruningParameters();
+        final CartesianProductHashSpmlParser memoParser = createParser(64, new InsideProb());
+        final CartesianProductHashSpmlParser baselineParser = createParser(0, new InsideProb());
+        final NgramCellMemo memo = memoParser.opts.cellMemo();
+
+        assertIdenticalParses(memoParser, baselineParser, sentences);
+        assertIdenticalParses(memoParser, baselineParser, sentences);
+        assertTrue(memo.hitRate(1) > .5f);
+        assertTrue(memo.hitRate(2) > .5f);
+
+        memoParser.shutdown();
+        baselineParser.shutdown();
+    }
+
+    /**
+     * A boundary-POS FOM incorporates sentence context into pruning decisions, so memoization should be disabled
+     */
+    @Test
+    public void testContextDependentFom() throws Exception {
+        setPruningParameters();
+        final FigureOfMeritModel fomModel = new BoundaryPosModel(FOMType.BoundaryPOS, grammar, new BufferedReader(
+                JUnit.unitTestDataAsReader("fom/eng.R2.fom.gz")));
+        final CartesianProductHashSpmlParser memoParser = createParser(64, fomModel);
+        final CartesianProductHashSpmlParser baselineParser = createParser(0, fomModel);
+        final NgramCellMemo memo = memoParser.opts.cellMemo();
+
+        assertIdenticalParses(memoParser, baselineParser, sentences.subList(0, 5));
+        assertEquals(0, memo.lookups());
+        assertEquals(0, memo.estimatedBytes());
+
+        memoParser.shutdown();
+        baselineParser.shutdown();
+    }
+
+    /**
+     * A memo too small to hold all cells should be flushed as needed, without affecting the parses
+     */
+    @Test
+    public void testFlush() {
+        final List<String> input = sentences.subList(0, 6);
+        final CartesianProductHashSpmlParser memoParser = createParser(.1f, new InsideProb());
+        final CartesianProductHashSpmlParser baselineParser = createParser(0, new InsideProb());
+        final NgramCellMemo memo = memoParser.opts.cellMemo();
+
+        assertIdenticalParses(memoParser, baselineParser, input);
+        assertTrue(memo.flushes() > 0);
+        assertTrue(memo.estimatedBytes() <= 1024 * 1024 / 10);
+
+        memoParser.opts.setGrammar(grammar);
+        assertEquals(0, memo.estimatedBytes());
+
+        memoParser.shutdown();
+        baselineParser.shutdown();
+    }
+}
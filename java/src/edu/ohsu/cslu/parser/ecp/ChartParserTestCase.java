@@ -24,6 +24,7 @@ package edu.ohsu.cslu.parser.ecp;
 
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 
@@ -194,6 +195,22 @@ public abstract class ChartParserTestCase<P extends ChartParser<? extends Gramma
      */
     @SuppressWarnings("unchecked")
     protected final Class<? extends Grammar> grammarClass() {
+        final Class<? extends Grammar> declaredGrammarClass = declaredGrammarClass();
+
+        // A parser subclass may require a more specific grammar than its (inherited) type parameter declares
+        for (final Constructor<?> c : parserClass().getConstructors()) {
+            final Class<?>[] parameterTypes = c.getParameterTypes();
+            if (parameterTypes.length == 2 && parameterTypes[0] == ParserDriver.class
+                    && parameterTypes[1] != declaredGrammarClass
+                    && declaredGrammarClass.isAssignableFrom(parameterTypes[1])) {
+                return (Class<? extends Grammar>) parameterTypes[1];
+            }
+        }
+        return declaredGrammarClass;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Grammar> declaredGrammarClass() {
         Class<P> parserClass = ((Class<P>) ((ParameterizedType) getClass().getGenericSuperclass())
                 .getActualTypeArguments()[0]);
         try {
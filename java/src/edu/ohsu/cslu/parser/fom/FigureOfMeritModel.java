@@ -35,6 +35,7 @@ import edu.ohsu.cslu.parser.ParseTask;
 import edu.ohsu.cslu.parser.Parser.ResearchParserType;
 import edu.ohsu.cslu.parser.ParserDriver;
 import edu.ohsu.cslu.parser.chart.Chart;
+import edu.ohsu.cslu.parser.chart.NgramCellMemo;
 import edu.ohsu.cslu.parser.spmv.SparseMatrixVectorParser.PackingFunctionType;
 
 /**
@@ -106,6 +107,15 @@ public abstract class FigureOfMeritModel {
         public void initSentence(final ParseTask parseTask, final Chart chart) {
         }
 
+        /**
+         * @return True if the figure of merit of an edge depends only on the edge itself (its span, non-terminal, and
+         *         inside probability), and not on the surrounding sentence. Parsers may reuse pruning decisions made
+         *         with a context-free figure of merit across sentences (see {@link NgramCellMemo}).
+         */
+        public boolean isContextFree() {
+            return false;
+        }
+
         protected final float normInside(final int start, final int end, final float insideProb) {
             if (GEOMETRIC_INSIDE_NORM) {
                 // Geometric mean normalization (used by C&C)
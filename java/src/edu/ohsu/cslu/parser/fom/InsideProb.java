@@ -53,5 +53,10 @@ public final class InsideProb extends FigureOfMeritModel {
         public float calcLexicalFOM(final int start, final int end, final short parent, final float insideProbability) {
             return insideProbability;
         }
+
+        @Override
+        public boolean isContextFree() {
+            return true;
+        }
     }
 }
@@ -34,6 +34,7 @@ import org.junit.runners.Suite;
         TestCartesianProductBinarySearchSpmlParser.class, TestCartesianProductBinarySearchLeftChildSpmlParser.class,
         TestCartesianProductHashSpmlParser.class, TestGrammarLoopSpmlParser.class,
         TestPrunedCartesianProductHashSpmlParser.class, TestInsideOutsideCphSpmlParser.class,
-        TestConstrainedCphSpmlParser.class })
+        TestConstrainedCphSpmlParser.class, TestCellParallelCartesianProductHashSpmlParser.class,
+        TestLaneCphSpmlParser.class, TestPrunedLaneCphSpmlParser.class, TestBlockedCphSpmlParser.class })
 public class AllMatrixLoopParserTests {
 }
@@ -24,7 +24,12 @@ package edu.ohsu.cslu.parser.ml;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import cltool4j.ConfigProperties;
 import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.datastructs.narytree.BinaryTree;
 import edu.ohsu.cslu.grammar.InsideOutsideCscSparseMatrixGrammar;
@@ -38,6 +43,10 @@ import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
  * a chart containing inside or inside-outside (posterior) probabilities, we have a choice of decoding methods (see
  * {@link edu.ohsu.cslu.parser.Parser.DecodeMethod} and {@link PackedArrayChart}).
  * 
+ * Supports reparsing (see {@link edu.ohsu.cslu.parser.Parser.ReparseStrategy}): if a pruned inside pass fails to
+ * find a complete parse, we escalate the beam and reuse the chart for another inside pass, so decoding can be run at
+ * normal (narrow) beam widths.
+ * 
  * @author Aaron Dunlop
  */
 public abstract class BaseIoCphSpmlParser extends
@@ -62,47 +71,201 @@ public abstract class BaseIoCphSpmlParser extends
     protected final static boolean HEURISTIC_OUTSIDE = GlobalConfigProperties.singleton().getBooleanProperty(
             ParserDriver.OPT_HEURISTIC_OUTSIDE, false);
 
+    /**
+     * Populates outside probabilities concurrently. Null unless {@link ParserDriver#OPT_CELL_THREAD_COUNT} is &gt; 1.
+     */
+    private final ForkJoinPool cellThreadPool;
+
+    /** Temporary outside-probability storage, reused for each cell populated by a thread */
+    private final ThreadLocal<OutsideStorage> threadLocalOutsideStorage;
+
     public BaseIoCphSpmlParser(final ParserDriver opts, final InsideOutsideCscSparseMatrixGrammar grammar) {
         super(opts, grammar);
+
+        final ConfigProperties props = GlobalConfigProperties.singleton();
+        final int cellThreads = props.getIntProperty(ParserDriver.OPT_CELL_THREAD_COUNT, 1);
+        if (cellThreads > 1) {
+            this.cellThreadPool = new ForkJoinPool(cellThreads);
+            props.setProperty(ParserDriver.RUNTIME_CONFIGURED_THREAD_COUNT, Integer.toString(cellThreads));
+        } else {
+            this.cellThreadPool = null;
+        }
+
+        this.threadLocalOutsideStorage = new ThreadLocal<OutsideStorage>() {
+            @Override
+            protected OutsideStorage initialValue() {
+                return new OutsideStorage(grammar.numNonTerms());
+            }
+        };
+    }
+
+    /**
+     * Performs the outside pass and decodes. The reparse stages of {@link #findBestParse(ParseTask)} execute only the
+     * inside pass, escalating the beam until the inside pass finds a complete parse; we perform the (more expensive)
+     * outside pass only for the successful stage. If cell-level threading is enabled, decoding shares the outside
+     * pass's thread pool.
+     */
+    @Override
+    protected BinaryTree<String> decodeCompleteParse(final ParseTask parseTask) {
+        outsidePass();
+
+        if (collectDetailedStatistics) {
+            final long t3 = System.currentTimeMillis();
+            final BinaryTree<String> parseTree = chart.decode(cellThreadPool);
+            parseTask.extractTimeMs = System.currentTimeMillis() - t3;
+            return parseTree;
+        }
+
+        return chart.decode(cellThreadPool);
     }
 
     @Override
-    public BinaryTree<String> findBestParse(final ParseTask parseTask) {
-        initChart(parseTask);
-        insidePass();
+    protected boolean outsideProbabilitiesComputed() {
+        // The heuristic and inside-only configurations populate only estimates or placeholders
+        return !HEURISTIC_OUTSIDE && !INSIDE_ONLY;
+    }
 
-        // TODO Support reparsing in inside-outside parsers (BaseIoCph and RealIo)
+    @Override
+    protected boolean backpointersComputed() {
+        // The inside pass accumulates sums (or maxima) by non-terminal, without recording children or midpoints
+        return false;
+    }
+
+    /**
+     * Populates outside probabilities for all open cells, following the inside pass. If cell-level threading is
+     * enabled, cells are populated in top-down 'wavefront' order (see {@link WavefrontOutsidePass}).
+     */
+    protected void outsidePass() {
 
         // If we're using the FOM estimate of outside probabilities, we already populated it during the inside pass
-        if (!HEURISTIC_OUTSIDE) {
+        if (HEURISTIC_OUTSIDE) {
+            return;
+        }
 
-            if (INSIDE_ONLY) {
-                // Skip outside pass, and just populate all outside probabilities with 1
-                Arrays.fill(chart.outsideProbabilities, 0, chart.chartArraySize(), 0f);
+        if (INSIDE_ONLY) {
+            // Skip outside pass, and just populate all outside probabilities with 1
+            Arrays.fill(chart.outsideProbabilities, 0, chart.chartArraySize(), 0f);
 
-            } else {
-                // Outside pass
+        } else if (cellThreadPool == null) {
+            // To compute the outside probability of a non-terminal in a cell, we need the outside probability of the
+            // cell's parent, so we process downward from the top of the chart.
+            final Iterator<short[]> reverseIterator = cellSelector.reverseIterator();
+            final OutsideStorage storage = threadLocalOutsideStorage.get();
 
-                // To compute the outside probability of a non-terminal in a cell, we need the outside probability of
-                // the cell's parent, so we process downward from the top of the chart.
-                final Iterator<short[]> reverseIterator = cellSelector.reverseIterator();
+            while (reverseIterator.hasNext()) {
+                final short[] startAndEnd = reverseIterator.next();
+                final PackedArrayChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
+                computeOutsideProbabilities(cell, storage);
+                cell.finalizeOutsideProbabilities(storage.outsideProbabilities);
+                cell.removeUnreachableEntries();
+            }
+
+        } else {
+            final int sentenceLength = chart.size();
+            final boolean[] openCells = new boolean[sentenceLength * (sentenceLength + 1) / 2];
+            final Iterator<short[]> reverseIterator = cellSelector.reverseIterator();
+            while (reverseIterator.hasNext()) {
+                final short[] startAndEnd = reverseIterator.next();
+                openCells[chart.cellIndex(startAndEnd[0], startAndEnd[1])] = true;
+            }
+
+            new WavefrontOutsidePass(sentenceLength, openCells).run();
 
-                while (reverseIterator.hasNext()) {
-                    final short[] startAndEnd = reverseIterator.next();
-                    final PackedArrayChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
-                    computeOutsideProbabilities(cell);
+            // Now that no other cell will read them as siblings, we can remove unreachable entries from each cell
+            for (short start = 0; start < sentenceLength; start++) {
+                for (short end = (short) (start + 1); end <= sentenceLength; end++) {
+                    if (openCells[chart.cellIndex(start, end)]) {
+                        chart.getCell(start, end).removeUnreachableEntries();
+                    }
                 }
             }
         }
+    }
+
+    /**
+     * Computes outside probabilities for the target cell into temporary (generally thread-local) storage. The outside
+     * probabilities of all parent cells must be finalized.
+     * 
+     * @param cell
+     * @param storage Temporary storage
+     */
+    protected final void computeOutsideProbabilities(final PackedArrayChartCell cell, final OutsideStorage storage) {
+
+        final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
+
+        final short start = cell.start();
+        final short end = cell.end();
+        final float[] outsideProbabilities = storage.outsideProbabilities;
+        final float[] parentOutsideProbabilities = storage.parentOutsideProbabilities;
+
+        // Populate start-symbol probability in the top cell
+        Arrays.fill(outsideProbabilities, Float.NEGATIVE_INFINITY);
+        if (start == 0 && end == chart.size()) {
+            outsideProbabilities[grammar.startSymbol] = 0;
+        }
 
+        // Left-side siblings first
+
+        // foreach parent-start in {0..start - 1}
+        for (int parentStart = 0; parentStart < start; parentStart++) {
+            final int parentCellIndex = chart.cellIndex(parentStart, end);
+            expandOutsideProbabilities(parentCellIndex, parentOutsideProbabilities, true);
+
+            // Sibling (left) cell
+            final int siblingCellIndex = chart.cellIndex(parentStart, start);
+            final int siblingStartIndex = chart.minLeftChildIndex(siblingCellIndex);
+            final int siblingEndIndex = chart.maxLeftChildIndex(siblingCellIndex);
+
+            computeLeftSiblingOutsideProbabilities(outsideProbabilities, cell.minRightChildIndex(),
+                    cell.maxRightChildIndex(), siblingStartIndex, siblingEndIndex, parentOutsideProbabilities);
+            expandOutsideProbabilities(parentCellIndex, parentOutsideProbabilities, false);
+        }
+
+        // Right-side siblings
+
+        // foreach parent-end in {end + 1..n}
+        for (int parentEnd = end + 1; parentEnd <= chart.size(); parentEnd++) {
+            final int parentCellIndex = chart.cellIndex(start, parentEnd);
+            expandOutsideProbabilities(parentCellIndex, parentOutsideProbabilities, true);
+
+            // Sibling (right) cell
+            final int siblingCellIndex = chart.cellIndex(end, parentEnd);
+            final int siblingStartIndex = chart.minRightChildIndex(siblingCellIndex);
+            final int siblingEndIndex = chart.maxRightChildIndex(siblingCellIndex);
+
+            computeRightSiblingOutsideProbabilities(outsideProbabilities, cell.minLeftChildIndex(),
+                    cell.maxLeftChildIndex(), siblingStartIndex, siblingEndIndex, parentOutsideProbabilities);
+            expandOutsideProbabilities(parentCellIndex, parentOutsideProbabilities, false);
+        }
+
+        // Unary outside probabilities
         if (collectDetailedStatistics) {
-            final long t3 = System.currentTimeMillis();
-            final BinaryTree<String> parseTree = chart.decode();
-            parseTask.extractTimeMs = System.currentTimeMillis() - t3;
-            return parseTree;
+            final long t1 = System.nanoTime();
+            chart.parseTask.outsideBinaryNs += t1 - t0;
+            computeUnaryOutsideProbabilities(outsideProbabilities);
+            chart.parseTask.outsideUnaryNs += System.nanoTime() - t1;
+        } else {
+            computeUnaryOutsideProbabilities(outsideProbabilities);
         }
+    }
 
-        return chart.decode();
+    /**
+     * Copies the finalized outside probabilities of a parent cell into a dense array (indexed by non-terminal), or
+     * resets the entries copied. Resetting only the parent's populated entries is much cheaper than clearing the
+     * entire array for each parent cell.
+     * 
+     * @param parentCellIndex
+     * @param parentOutsideProbabilities Dense array, in which all entries not populated by this method are 0
+     *            probability
+     * @param copy Copy the parent's entries if true, reset them to 0 probability if false
+     */
+    private void expandOutsideProbabilities(final int parentCellIndex, final float[] parentOutsideProbabilities,
+            final boolean copy) {
+        final int offset = chart.offset(parentCellIndex);
+        for (int i = offset; i < offset + chart.numNonTerminals[parentCellIndex]; i++) {
+            parentOutsideProbabilities[chart.nonTerminalIndices[i]] = copy ? chart.outsideProbabilities[i]
+                    : Float.NEGATIVE_INFINITY;
+        }
     }
 
     /**
@@ -131,9 +294,151 @@ public abstract class BaseIoCphSpmlParser extends
     }
 
     /**
-     * Populates outside probabilities in the target cell
+     * Adds the outside probability contributed to each entry in a target cell by a left sibling cell
      * 
-     * @param cell
+     * @param outsideProbabilities Outside probabilities of the target cell, indexed by non-terminal
+     * @param targetStart Index of the first valid right child in the target cell
+     * @param targetEnd Index of the last valid right child in the target cell
+     * @param siblingStart Index of the first valid left child in the sibling cell
+     * @param siblingEnd Index of the last valid left child in the sibling cell
+     * @param parentOutsideProbabilities Outside probabilities of the parent cell, indexed by non-terminal
+     */
+    protected abstract void computeLeftSiblingOutsideProbabilities(final float[] outsideProbabilities,
+            final int targetStart, final int targetEnd, final int siblingStart, final int siblingEnd,
+            final float[] parentOutsideProbabilities);
+
+    /**
+     * Adds the outside probability contributed to each entry in a target cell by a right sibling cell
+     * 
+     * @param outsideProbabilities Outside probabilities of the target cell, indexed by non-terminal
+     * @param targetStart Index of the first valid left child in the target cell
+     * @param targetEnd Index of the last valid left child in the target cell
+     * @param siblingStart Index of the first valid right child in the sibling cell
+     * @param siblingEnd Index of the last valid right child in the sibling cell
+     * @param parentOutsideProbabilities Outside probabilities of the parent cell, indexed by non-terminal
      */
-    protected abstract void computeOutsideProbabilities(final PackedArrayChartCell cell);
+    protected abstract void computeRightSiblingOutsideProbabilities(final float[] outsideProbabilities,
+            final int targetStart, final int targetEnd, final int siblingStart, final int siblingEnd,
+            final float[] parentOutsideProbabilities);
+
+    @Override
+    public void shutdown() {
+        if (cellThreadPool != null) {
+            cellThreadPool.shutdown();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Temporary storage for a single thread's outside computation: the target cell's outside probabilities and those
+     * of the current parent cell, both indexed by non-terminal.
+     */
+    protected final static class OutsideStorage {
+
+        final float[] outsideProbabilities;
+        final float[] parentOutsideProbabilities;
+
+        OutsideStorage(final int numNonTerms) {
+            this.outsideProbabilities = new float[numNonTerms];
+            this.parentOutsideProbabilities = new float[numNonTerms];
+            Arrays.fill(parentOutsideProbabilities, Float.NEGATIVE_INFINITY);
+        }
+    }
+
+    /**
+     * State for a single cell-parallel outside pass. A cell (start, end) depends on the outside probabilities of
+     * all cells containing it, so it can be populated as soon as cells (start - 1, end) and (start, end + 1) are
+     * finalized. Each task reads the inside probabilities of sibling cells which may themselves be in progress, so
+     * tasks store outside probabilities in place without pruning cell entries; the caller removes unreachable entries
+     * after the pass completes.
+     */
+    private final class WavefrontOutsidePass {
+
+        private final int sentenceLength;
+        private final boolean[] openCells;
+
+        /** Enclosing cells (start - 1, end) and (start, end + 1) not yet finalized, indexed by cell index */
+        private final AtomicIntegerArray pendingParents;
+
+        /** Counts down as each cell (open or closed) completes */
+        private final CountDownLatch remainingCells;
+
+        private volatile Throwable failure;
+
+        public WavefrontOutsidePass(final int sentenceLength, final boolean[] openCells) {
+            this.sentenceLength = sentenceLength;
+            this.openCells = openCells;
+            this.pendingParents = new AtomicIntegerArray(openCells.length);
+            for (int start = 0; start < sentenceLength; start++) {
+                for (int end = start + 1; end <= sentenceLength; end++) {
+                    pendingParents.set(chart.cellIndex(start, end), (start > 0 ? 1 : 0)
+                            + (end < sentenceLength ? 1 : 0));
+                }
+            }
+            this.remainingCells = new CountDownLatch(openCells.length);
+        }
+
+        public void run() {
+            // The top cell has no dependencies
+            cellThreadPool.execute(new CellTask((short) 0, (short) sentenceLength));
+
+            try {
+                remainingCells.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        }
+
+        private void parentFinalized(final int start, final int end) {
+            if (pendingParents.decrementAndGet(chart.cellIndex(start, end)) == 0) {
+                new CellTask((short) start, (short) end).fork();
+            }
+        }
+
+        private final class CellTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final short start;
+            private final short end;
+
+            public CellTask(final short start, final short end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    // Closed cells are empty, but still count as finalized for the purpose of scheduling their
+                    // children
+                    if (failure == null && openCells[chart.cellIndex(start, end)]) {
+                        final PackedArrayChartCell cell = chart.getCell(start, end);
+                        final OutsideStorage storage = threadLocalOutsideStorage.get();
+                        computeOutsideProbabilities(cell, storage);
+                        cell.finalizeOutsideProbabilities(storage.outsideProbabilities);
+                    }
+                } catch (final Throwable t) {
+                    failure = t;
+                }
+
+                remainingCells.countDown();
+
+                // Notify the 2 cells which depend directly on this cell (start + 1, end) and (start, end - 1)
+                if (end - start > 1) {
+                    parentFinalized(start + 1, end);
+                    parentFinalized(start, end - 1);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.ml;
+
+import edu.ohsu.cslu.grammar.BlockedCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.BlockedCscSparseMatrixGrammar.BlockedMatrix;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.chart.Chart.ChartCell;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart.TemporaryChartCell;
+
+/**
+ * Variant of {@link CartesianProductHashSpmlParser} which performs binary grammar intersection one tile at a time,
+ * over a {@link BlockedCscSparseMatrixGrammar}.
+ * 
+ * For each midpoint, the children of the left child cell are split by left-child block. The cartesian product of each
+ * such group with the right child cell is computed once (packing each child pair and summing child probabilities),
+ * and then intersected with the grammar rules of each parent block in turn. The working set of each tile is the
+ * tile's contiguous range of rules and the parent block's range of the temporary cell, instead of the entire rule
+ * matrix and temporary cell.
+ * 
+ * Within each parent block, child pairs are considered in the same order as in {@link CartesianProductHashSpmlParser}
+ * (by midpoint, then by left child, then by right child), so ties are broken identically and the resulting chart is
+ * the same.
+ */
+public class BlockedCphSpmlParser extends CartesianProductHashSpmlParser {
+
+    private final BlockedCscSparseMatrixGrammar blockedGrammar;
+
+    /** Cartesian product of the current tile's left children with the right child cell */
+    private final ThreadLocal<TileBuffer> threadLocalTileBuffers = new ThreadLocal<TileBuffer>() {
+        @Override
+        protected TileBuffer initialValue() {
+            return new TileBuffer();
+        }
+    };
+
+    public BlockedCphSpmlParser(final ParserDriver opts, final BlockedCscSparseMatrixGrammar grammar) {
+        super(opts, grammar);
+        this.blockedGrammar = grammar;
+    }
+
+    @Override
+    protected void computeInsideProbabilities(final ChartCell cell) {
+
+        final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
+
+        final PackedArrayChartCell targetCell = (PackedArrayChartCell) cell;
+        final short start = cell.start();
+        final short end = cell.end();
+        targetCell.allocateTemporaryStorage(threadLocalTemporaryCells.get());
+        final TemporaryChartCell tmpCell = targetCell.tmpCell;
+        final float[] tmpInsideProbabilities = tmpCell.insideProbabilities;
+        final int[] tmpPackedChildren = tmpCell.packedChildren;
+        final short[] tmpMidpoints = tmpCell.midpoints;
+
+        final boolean factoredOnly = cellSelector.hasCellConstraints() && cellSelector.isCellOnlyFactored(start, end);
+
+        final BlockedMatrix matrix = factoredOnly ? blockedGrammar.factoredBlockedBinaryMatrix
+                : blockedGrammar.blockedBinaryMatrix;
+        final int[] columnOffsets = matrix.columnOffsets;
+        final short[] rowIndices = matrix.rowIndices;
+        final float[] probabilities = matrix.probabilities;
+        final int[] tileRules = matrix.tileRules;
+        final int blockColumns = matrix.columns + 1;
+        final int[] populatedColumnIndices = blockedGrammar.populatedColumnIndices;
+
+        final int parentBlocks = blockedGrammar.parentBlocks();
+        final int leftChildBlocks = blockedGrammar.leftChildBlocks();
+        final int leftChildBlockSize = blockedGrammar.leftChildBlockSize;
+
+        final PackingFunction pf = grammar.packingFunction();
+        final TileBuffer tileBuffer = threadLocalTileBuffers.get();
+
+        // Iterate over all possible midpoints
+        for (short midpoint = (short) (start + 1); midpoint <= end - 1; midpoint++) {
+            if (end - start > cellSelector.getMaxSpan(start, end)) {
+                continue;
+            }
+
+            final int leftCellIndex = chart.cellIndex(start, midpoint);
+            final int rightCellIndex = chart.cellIndex(midpoint, end);
+
+            final int leftStart = chart.minLeftChildIndex(leftCellIndex);
+            final int leftEnd = chart.maxLeftChildIndex(leftCellIndex);
+
+            final int rightStart = chart.minRightChildIndex(rightCellIndex);
+            final int rightEnd = chart.maxRightChildIndex(rightCellIndex);
+
+            tileBuffer.ensureCapacity(leftChildBlockSize * (rightEnd - rightStart + 1));
+            final int[] tileColumns = tileBuffer.columns;
+            final int[] tilePopulatedColumns = tileBuffer.populatedColumns;
+            final float[] tileChildProbabilities = tileBuffer.childProbabilities;
+
+            // Left children are sorted by non-terminal index, so each left-child block is a contiguous range
+            for (int i = leftStart; i <= leftEnd;) {
+                final int leftChildBlock = chart.nonTerminalIndices[i] / leftChildBlockSize;
+                final int leftChildBlockLimit = (leftChildBlock + 1) * leftChildBlockSize;
+
+                // Pack the cartesian product of the left children in this block with the right child cell
+                int tileSize = 0;
+                for (; i <= leftEnd && chart.nonTerminalIndices[i] < leftChildBlockLimit; i++) {
+                    final short leftChild = chart.nonTerminalIndices[i];
+                    final float leftProbability = chart.insideProbabilities[i];
+
+                    for (int j = rightStart; j <= rightEnd; j++) {
+                        final int column = pf.pack(leftChild, chart.nonTerminalIndices[j]);
+                        if (column == Integer.MIN_VALUE) {
+                            continue;
+                        }
+                        // Skip child pairs which occur in no binary rule
+                        final int populatedColumn = populatedColumnIndices[column];
+                        if (populatedColumn < 0) {
+                            continue;
+                        }
+                        tileColumns[tileSize] = column;
+                        tilePopulatedColumns[tileSize] = populatedColumn;
+                        tileChildProbabilities[tileSize++] = leftProbability + chart.insideProbabilities[j];
+                    }
+                }
+
+                // Intersect the packed child pairs with the rules of each parent block
+                for (int parentBlock = 0; parentBlock < parentBlocks; parentBlock++) {
+                    if (tileRules[parentBlock * leftChildBlocks + leftChildBlock] == 0) {
+                        continue;
+                    }
+                    final int blockOffset = parentBlock * blockColumns;
+
+                    for (int t = 0; t < tileSize; t++) {
+                        final int column = tileColumns[t];
+                        final int populatedColumn = blockOffset + tilePopulatedColumns[t];
+                        final float childProbability = tileChildProbabilities[t];
+
+                        final int columnEnd = columnOffsets[populatedColumn + 1];
+
+                        for (int k = columnOffsets[populatedColumn]; k < columnEnd; k++) {
+
+                            final float jointProbability = probabilities[k] + childProbability;
+                            final short parent = rowIndices[k];
+
+                            if (jointProbability > tmpInsideProbabilities[parent]) {
+                                tmpPackedChildren[parent] = column;
+                                tmpInsideProbabilities[parent] = jointProbability;
+                                tmpMidpoints[parent] = midpoint;
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (collectDetailedStatistics) {
+                chart.parseTask.nBinaryConsidered += (leftEnd - leftStart + 1) * (rightEnd - rightStart + 1);
+            }
+        }
+
+        if (collectDetailedStatistics) {
+            chart.parseTask.insideBinaryNs += System.nanoTime() - t0;
+        }
+
+        // Apply unary rules
+        if (exhaustiveSearch) {
+            unarySpmv(targetCell);
+            targetCell.finalizeCell();
+        } else {
+            // unaryAndPruning finalizes the cell
+            unaryAndPruning(targetCell, start, end);
+        }
+
+        if (collectDetailedStatistics) {
+            chart.parseTask.totalPopulatedEdges += targetCell.getNumNTs();
+        }
+    }
+
+    /**
+     * Packed child pairs, their populated-column indices, and child probabilities of a single tile. Grown as needed,
+     * and reused across cells.
+     */
+    private final static class TileBuffer {
+
+        int[] columns = new int[0];
+        int[] populatedColumns = new int[0];
+        float[] childProbabilities = new float[0];
+
+        void ensureCapacity(final int size) {
+            if (columns.length < size) {
+                columns = new int[size];
+                populatedColumns = new int[size];
+                childProbabilities = new float[size];
+            }
+        }
+    }
+}
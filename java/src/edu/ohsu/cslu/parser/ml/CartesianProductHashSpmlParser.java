@@ -21,10 +21,21 @@
  */
 package edu.ohsu.cslu.parser.ml;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cltool4j.ConfigProperties;
+import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.parser.ChartParser;
 import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.cellselector.CellSelector;
 import edu.ohsu.cslu.parser.chart.Chart.ChartCell;
+import edu.ohsu.cslu.parser.chart.NgramCellMemo;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart.TemporaryChartCell;
@@ -34,13 +45,169 @@ import edu.ohsu.cslu.parser.chart.PackedArrayChart.TemporaryChartCell;
  * observed child pairs in the cartesian product of non-terminals observed in child cells. Queries grammar using a
  * perfect hash.
  * 
+ * If {@link ParserDriver#OPT_CELL_THREAD_COUNT} is specified, populates chart cells in parallel, in dependency order
+ * rather than row-by-row: each cell is scheduled on a work-stealing pool as soon as all of its child cells are
+ * finalized (see {@link #insidePass()}).
+ * 
+ * If {@link ParserDriver#OPT_CELL_MEMO_MB} is specified, span-1 and span-2 cells are copied from a memo of earlier
+ * sentences when their contents are independent of the rest of the sentence (see {@link NgramCellMemo}).
+ * 
  * @author Aaron Dunlop
  */
 public class CartesianProductHashSpmlParser extends
         SparseMatrixLoopParser<LeftCscSparseMatrixGrammar, PackedArrayChart> {
 
+    /** Populates chart cells concurrently. Null unless {@link ParserDriver#OPT_CELL_THREAD_COUNT} is &gt; 1. */
+    private final ForkJoinPool cellThreadPool;
+
+    /** Temporary cell storage, reused for each cell populated by a thread */
+    protected final ThreadLocal<TemporaryChartCell> threadLocalTemporaryCells;
+
+    /** Memoized span-1 and span-2 cells shared by all parser threads (null if disabled) */
+    private final NgramCellMemo cellMemo;
+
+    /**
+     * The memo context of the current inside pass, or null if memoized cells are not valid for the current sentence
+     * (see {@link #initCellMemo()})
+     */
+    private Object memoContext;
+
+    /**
+     * Span-1 cells populated in the current inside pass whose contents depend only on their token (indexed by start).
+     * A span-2 cell can be memoized only if both of its children are.
+     */
+    private boolean[] contextFreeLexicalCells = new boolean[0];
+
     public CartesianProductHashSpmlParser(final ParserDriver opts, final LeftCscSparseMatrixGrammar grammar) {
         super(opts, grammar);
+
+        final ConfigProperties props = GlobalConfigProperties.singleton();
+        final int cellThreads = props.getIntProperty(ParserDriver.OPT_CELL_THREAD_COUNT, 1);
+        if (cellThreads > 1) {
+            this.cellThreadPool = new ForkJoinPool(cellThreads);
+            props.setProperty(ParserDriver.RUNTIME_CONFIGURED_THREAD_COUNT, Integer.toString(cellThreads));
+        } else {
+            this.cellThreadPool = null;
+        }
+
+        this.threadLocalTemporaryCells = new ThreadLocal<TemporaryChartCell>() {
+            @Override
+            protected TemporaryChartCell initialValue() {
+                return new TemporaryChartCell(grammar, false);
+            }
+        };
+
+        this.cellMemo = opts.cellMemo();
+    }
+
+    /**
+     * Executes the inside pass. If cell-level threading is enabled, drains the {@link CellSelector} to find the open
+     * cells, and populates them in 'wavefront' order. A cell (start, end) can be populated as soon as cells (start,
+     * end - 1) and (start + 1, end) are finalized, since those cells in turn depend on all smaller cells spanning
+     * start..end. So cells on the left side of the chart can proceed to higher rows while long-running cells further
+     * right are still in progress, instead of each row waiting for the slowest cell in the row below (as in
+     * {@link ChartParser#insidePass()}).
+     */
+    @Override
+    protected void insidePass() {
+        initCellMemo();
+
+        if (cellThreadPool == null) {
+            super.insidePass();
+            return;
+        }
+
+        final int sentenceLength = chart.size();
+        final boolean[] openCells = new boolean[sentenceLength * (sentenceLength + 1) / 2];
+        while (cellSelector.hasNext()) {
+            final short[] startAndEnd = cellSelector.next();
+            openCells[chart.cellIndex(startAndEnd[0], startAndEnd[1])] = true;
+        }
+
+        new WavefrontInsidePass(sentenceLength, openCells).run();
+    }
+
+    /**
+     * Determines whether memoized cells are valid for the current sentence, and if so, the memo context (grammar and
+     * pruning configuration) in which to store and look them up. Cell contents depend on the surrounding sentence if
+     * the FOM is context-dependent, if cells are constrained to input tags, or if the cell selector constrains
+     * individual non-terminals.
+     */
+    private void initCellMemo() {
+        memoContext = null;
+        if (cellMemo == null || ParserDriver.parseFromInputTags || cellSelector.hasNonTerminalConstraints()) {
+            return;
+        }
+        if (!exhaustiveSearch && (figureOfMerit == null || !figureOfMerit.isContextFree())) {
+            return;
+        }
+
+        memoContext = Arrays.asList(grammar, getClass(), exhaustiveSearch ? null : figureOfMerit.getClass(),
+                beamWidth, lexicalRowBeamWidth, lexicalRowUnaries, maxLocalDelta);
+
+        if (contextFreeLexicalCells.length < chart.size()) {
+            contextFreeLexicalCells = new boolean[chart.size()];
+        } else {
+            Arrays.fill(contextFreeLexicalCells, false);
+        }
+    }
+
+    /**
+     * @return True if the contents of the specified span-1 or span-2 cell depend only on the tokens it covers (i.e.,
+     *         the cell selector imposes no constraints on the cell and, for a span-2 cell, both children are context-free
+     *         as well)
+     */
+    private boolean isContextFreeCell(final short start, final short end) {
+        if (cellSelector.hasCellConstraints()
+                && (!cellSelector.isUnaryOpen(start, end) || cellSelector.isCellOnlyFactored(start, end))) {
+            return false;
+        }
+        if (!exhaustiveSearch
+                && cellSelector.getBeamWidth(chart.cellIndex(start, end)) < (end - start == 1 ? lexicalRowBeamWidth
+                        : beamWidth)) {
+            return false;
+        }
+        if (end - start == 1) {
+            return true;
+        }
+        return cellSelector.getMaxSpan(start, end) >= 2 && contextFreeLexicalCells[start]
+                && contextFreeLexicalCells[start + 1];
+    }
+
+    /**
+     * Populates span-1 and span-2 cells from the memo when possible, and memoizes them otherwise.
+     */
+    @Override
+    protected void populateCell(final ChartCell cell) {
+        final PackedArrayChartCell packedCell = (PackedArrayChartCell) cell;
+        final short start = cell.start();
+        final short end = cell.end();
+
+        if (memoContext == null || end - start > 2) {
+            packedCell.allocateTemporaryStorage(threadLocalTemporaryCells.get());
+            super.populateCell(cell);
+            return;
+        }
+
+        final boolean contextFree = isContextFreeCell(start, end);
+        if (contextFree && cellMemo.restore(memoContext, packedCell, chart.parseTask.tokens)) {
+            if (end - start == 1) {
+                contextFreeLexicalCells[start] = true;
+            }
+            return;
+        }
+
+        packedCell.allocateTemporaryStorage(threadLocalTemporaryCells.get());
+        super.populateCell(cell);
+
+        if (contextFree) {
+            cellMemo.store(memoContext, chart, packedCell);
+            if (end - start == 1) {
+                contextFreeLexicalCells[start] = true;
+            }
+        } else {
+            cellMemo.recordFallback();
+        }
     }
 
     @Override
@@ -51,7 +218,7 @@ public class CartesianProductHashSpmlParser extends
         final PackedArrayChartCell targetCell = (PackedArrayChartCell) cell;
         final short start = cell.start();
         final short end = cell.end();
-        targetCell.allocateTemporaryStorage();
+        targetCell.allocateTemporaryStorage(threadLocalTemporaryCells.get());
         final TemporaryChartCell tmpCell = targetCell.tmpCell;
 
         final boolean factoredOnly = cellSelector.hasCellConstraints() && cellSelector.isCellOnlyFactored(start, end);
@@ -130,4 +297,108 @@ public class CartesianProductHashSpmlParser extends
             chart.parseTask.totalPopulatedEdges += targetCell.getNumNTs();
         }
     }
+
+    @Override
+    public void shutdown() {
+        if (cellThreadPool != null) {
+            cellThreadPool.shutdown();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * State for a single cell-parallel inside pass. Tracks the number of unfinished children of each cell; the task
+     * completing the last child of a cell forks the task for that cell.
+     */
+    private final class WavefrontInsidePass {
+
+        private final int sentenceLength;
+        private final boolean[] openCells;
+
+        /** Child cells (start, end - 1) and (start + 1, end) not yet finalized, indexed by cell index */
+        private final AtomicIntegerArray pendingChildren;
+
+        /** Counts down as each cell (open or closed) completes */
+        private final CountDownLatch remainingCells;
+
+        private volatile Throwable failure;
+
+        public WavefrontInsidePass(final int sentenceLength, final boolean[] openCells) {
+            this.sentenceLength = sentenceLength;
+            this.openCells = openCells;
+            this.pendingChildren = new AtomicIntegerArray(openCells.length);
+            for (int start = 0; start < sentenceLength - 1; start++) {
+                for (int end = start + 2; end <= sentenceLength; end++) {
+                    pendingChildren.set(chart.cellIndex(start, end), 2);
+                }
+            }
+            this.remainingCells = new CountDownLatch(openCells.length);
+        }
+
+        public void run() {
+            // Span-1 cells have no dependencies
+            for (short start = 0; start < sentenceLength; start++) {
+                cellThreadPool.execute(new CellTask(start, (short) (start + 1)));
+            }
+
+            try {
+                remainingCells.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        }
+
+        private void childFinalized(final int start, final int end) {
+            if (pendingChildren.decrementAndGet(chart.cellIndex(start, end)) == 0) {
+                new CellTask((short) start, (short) end).fork();
+            }
+        }
+
+        private final class CellTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final short start;
+            private final short end;
+
+            public CellTask(final short start, final short end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    // Closed cells are left empty (as they would be by a sequential inside pass), but still count
+                    // as finalized for the purpose of scheduling their parents. Once the parse deadline has expired,
+                    // we treat all remaining cells as closed.
+                    if (failure == null && openCells[chart.cellIndex(start, end)]
+                            && !chart.parseTask.deadlineExpired()) {
+                        populateCell(chart.getCell(start, end));
+                    }
+                } catch (final Throwable t) {
+                    failure = t;
+                }
+
+                remainingCells.countDown();
+
+                // Notify the 2 parent cells of which this cell is the right and left child, respectively
+                if (start > 0) {
+                    childFinalized(start - 1, end);
+                }
+                if (end < sentenceLength) {
+                    childFinalized(start, end + 1);
+                }
+            }
+        }
+    }
 }
@@ -127,6 +127,10 @@ public class InsideOutsideCphSpmlParser extends BaseIoCphSpmlParser {
 
         final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
 
+        if (cellSelector.hasNonTerminalConstraints()) {
+            applyNonTerminalConstraints(spvChartCell.tmpCell.insideProbabilities, 0, start, end);
+        }
+
         // For the moment, at least, we ignore factored-only cell constraints in span-1 cells
         final boolean factoredOnly = cellSelector.hasCellConstraints() && cellSelector.isCellOnlyFactored(start, end)
                 && (end - start > 1);
@@ -230,68 +234,9 @@ public class InsideOutsideCphSpmlParser extends BaseIoCphSpmlParser {
     }
 
     @Override
-    protected final void computeOutsideProbabilities(final PackedArrayChartCell cell) {
-
-        final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
-
-        final short start = cell.start();
-        final short end = cell.end();
-
-        // Allocate temporary storage and populate start-symbol probability in the top cell
-        cell.allocateTemporaryStorage(true, false);
-        if (start == 0 && end == chart.size()) {
-            cell.tmpCell.outsideProbabilities[grammar.startSymbol] = 0;
-        }
-
-        // Left-side siblings first
-
-        // foreach parent-start in {0..start - 1}
-        for (int parentStart = 0; parentStart < start; parentStart++) {
-            final PackedArrayChartCell parentCell = chart.getCell(parentStart, end);
-            parentCell.allocateTemporaryStorage(true, true);
-            final float[] parentOutsideProbabilities = parentCell.tmpCell.outsideProbabilities;
-
-            // Sibling (left) cell
-            final int siblingCellIndex = chart.cellIndex(parentStart, start);
-            final int siblingStartIndex = chart.minLeftChildIndex(siblingCellIndex);
-            final int siblingEndIndex = chart.maxLeftChildIndex(siblingCellIndex);
-
-            computeLeftSiblingOutsideProbabilities(cell.tmpCell.outsideProbabilities, cell.minRightChildIndex(),
-                    cell.maxRightChildIndex(), siblingStartIndex, siblingEndIndex, parentOutsideProbabilities);
-        }
-
-        // Right-side siblings
-
-        // foreach parent-end in {end + 1..n}
-        for (int parentEnd = end + 1; parentEnd <= chart.size(); parentEnd++) {
-            final PackedArrayChartCell parentCell = chart.getCell(start, parentEnd);
-            parentCell.allocateTemporaryStorage(true, true);
-            final float[] parentOutsideProbabilities = parentCell.tmpCell.outsideProbabilities;
-
-            // Sibling (right) cell
-            final int siblingCellIndex = chart.cellIndex(end, parentEnd);
-            final int siblingStartIndex = chart.minRightChildIndex(siblingCellIndex);
-            final int siblingEndIndex = chart.maxRightChildIndex(siblingCellIndex);
-
-            computeRightSiblingOutsideProbabilities(cell.tmpCell.outsideProbabilities, cell.minLeftChildIndex(),
-                    cell.maxLeftChildIndex(), siblingStartIndex, siblingEndIndex, parentOutsideProbabilities);
-        }
-
-        // Unary outside probabilities
-        if (collectDetailedStatistics) {
-            final long t1 = System.nanoTime();
-            chart.parseTask.outsideBinaryNs += t1 - t0;
-            computeUnaryOutsideProbabilities(cell.tmpCell.outsideProbabilities);
-            chart.parseTask.outsideUnaryNs += System.nanoTime() - t1;
-        } else {
-            computeUnaryOutsideProbabilities(cell.tmpCell.outsideProbabilities);
-        }
-
-        cell.finalizeCell();
-    }
-
-    private void computeLeftSiblingOutsideProbabilities(final float[] outsideProbabilities, final int targetStart,
-            final int targetEnd, final int siblingStart, final int siblingEnd, final float[] parentOutsideProbabilities) {
+    protected final void computeLeftSiblingOutsideProbabilities(final float[] outsideProbabilities,
+            final int targetStart, final int targetEnd, final int siblingStart, final int siblingEnd,
+            final float[] parentOutsideProbabilities) {
 
         final PackingFunction pf = grammar.packingFunction();
 
@@ -331,8 +276,10 @@ public class InsideOutsideCphSpmlParser extends BaseIoCphSpmlParser {
         }
     }
 
-    private void computeRightSiblingOutsideProbabilities(final float[] outsideProbabilities, final int targetStart,
-            final int targetEnd, final int siblingStart, final int siblingEnd, final float[] parentOutsideProbabilities) {
+    @Override
+    protected final void computeRightSiblingOutsideProbabilities(final float[] outsideProbabilities,
+            final int targetStart, final int targetEnd, final int siblingStart, final int siblingEnd,
+            final float[] parentOutsideProbabilities) {
 
         final PackingFunction pf = grammar.packingFunction();
 
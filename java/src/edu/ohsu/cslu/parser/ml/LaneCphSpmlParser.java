@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.ml;
+
+import edu.ohsu.cslu.grammar.LaneCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.LaneCscSparseMatrixGrammar.LaneMatrix;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.parser.Parser.ResearchParserType;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.chart.Chart.ChartCell;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart.PackedArrayChartCell;
+import edu.ohsu.cslu.parser.chart.PackedArrayChart.TemporaryChartCell;
+
+/**
+ * Variant of {@link CartesianProductHashSpmlParser} which performs binary and unary grammar intersection over a
+ * lane-blocked grammar (see {@link LaneCscSparseMatrixGrammar}). Dense blocks of adjacent parents are processed with a
+ * fixed-width loop, without a row-index lookup per rule; remaining rules are processed as in
+ * {@link CartesianProductHashSpmlParser}.
+ * 
+ * Each parent is updated at most once per child pair, and padded lanes (with negative infinity probability) never
+ * replace an entry, so the resulting chart (and parse) is identical to that of {@link CartesianProductHashSpmlParser}.
+ * 
+ * Experimental: this implementation has not yet shown a consistent speedup over
+ * {@link CartesianProductHashSpmlParser}, so it is not exposed as a {@link ResearchParserType}; construct it directly
+ * with a {@link LaneCscSparseMatrixGrammar}.
+ */
+public class LaneCphSpmlParser extends CartesianProductHashSpmlParser {
+
+    private final LaneCscSparseMatrixGrammar laneGrammar;
+
+    public LaneCphSpmlParser(final ParserDriver opts, final LaneCscSparseMatrixGrammar grammar) {
+        super(opts, grammar);
+        this.laneGrammar = grammar;
+    }
+
+    @Override
+    protected void computeInsideProbabilities(final ChartCell cell) {
+
+        final long t0 = collectDetailedStatistics ? System.nanoTime() : 0;
+
+        final PackedArrayChartCell targetCell = (PackedArrayChartCell) cell;
+        final short start = cell.start();
+        final short end = cell.end();
+        targetCell.allocateTemporaryStorage(threadLocalTemporaryCells.get());
+        final TemporaryChartCell tmpCell = targetCell.tmpCell;
+        final float[] tmpInsideProbabilities = tmpCell.insideProbabilities;
+        final int[] tmpPackedChildren = tmpCell.packedChildren;
+        final short[] tmpMidpoints = tmpCell.midpoints;
+
+        final boolean factoredOnly = cellSelector.hasCellConstraints() && cellSelector.isCellOnlyFactored(start, end);
+
+        final LaneMatrix matrix = factoredOnly ? laneGrammar.factoredLaneBinaryMatrix : laneGrammar.laneBinaryMatrix;
+        final int[] blockOffsets = matrix.blockOffsets;
+        final short[] blockParents = matrix.blockParents;
+        final float[] blockProbabilities = matrix.blockProbabilities;
+        final int[] ruleOffsets = matrix.ruleOffsets;
+        final short[] rowIndices = matrix.rowIndices;
+        final float[] probabilities = matrix.probabilities;
+
+        final PackingFunction pf = grammar.packingFunction();
+
+        // Iterate over all possible midpoints
+        for (short midpoint = (short) (start + 1); midpoint <= end - 1; midpoint++) {
+            if (end - start > cellSelector.getMaxSpan(start, end)) {
+                continue;
+            }
+
+            final int leftCellIndex = chart.cellIndex(start, midpoint);
+            final int rightCellIndex = chart.cellIndex(midpoint, end);
+
+            // Iterate over children in the left child cell
+            final int leftStart = chart.minLeftChildIndex(leftCellIndex);
+            final int leftEnd = chart.maxLeftChildIndex(leftCellIndex);
+
+            final int rightStart = chart.minRightChildIndex(rightCellIndex);
+            final int rightEnd = chart.maxRightChildIndex(rightCellIndex);
+
+            for (int i = leftStart; i <= leftEnd; i++) {
+                final short leftChild = chart.nonTerminalIndices[i];
+                final float leftProbability = chart.insideProbabilities[i];
+
+                // And over children in the right child cell
+                for (int j = rightStart; j <= rightEnd; j++) {
+                    final int column = pf.pack(leftChild, chart.nonTerminalIndices[j]);
+                    if (column == Integer.MIN_VALUE) {
+                        continue;
+                    }
+
+                    final float childProbability = leftProbability + chart.insideProbabilities[j];
+
+                    // Dense blocks of adjacent parents
+                    for (int b = blockOffsets[column]; b < blockOffsets[column + 1]; b++) {
+                        final int firstParent = blockParents[b];
+                        final int blockOffset = b * LaneCscSparseMatrixGrammar.LANES;
+
+                        for (int lane = 0; lane < LaneCscSparseMatrixGrammar.LANES; lane++) {
+                            final float jointProbability = blockProbabilities[blockOffset + lane] + childProbability;
+                            final int parent = firstParent + lane;
+
+                            if (jointProbability > tmpInsideProbabilities[parent]) {
+                                tmpPackedChildren[parent] = column;
+                                tmpInsideProbabilities[parent] = jointProbability;
+                                tmpMidpoints[parent] = midpoint;
+                            }
+                        }
+                    }
+
+                    // Remaining rules
+                    for (int k = ruleOffsets[column]; k < ruleOffsets[column + 1]; k++) {
+
+                        final float jointProbability = probabilities[k] + childProbability;
+                        final short parent = rowIndices[k];
+
+                        if (jointProbability > tmpInsideProbabilities[parent]) {
+                            tmpPackedChildren[parent] = column;
+                            tmpInsideProbabilities[parent] = jointProbability;
+                            tmpMidpoints[parent] = midpoint;
+                        }
+                    }
+                }
+            }
+
+            if (collectDetailedStatistics) {
+                chart.parseTask.nBinaryConsidered += (leftEnd - leftStart + 1) * (rightEnd - rightStart + 1);
+            }
+        }
+
+        if (collectDetailedStatistics) {
+            chart.parseTask.insideBinaryNs += System.nanoTime() - t0;
+        }
+
+        // Apply unary rules
+        if (exhaustiveSearch) {
+            unarySpmv(targetCell);
+            targetCell.finalizeCell();
+        } else {
+            // unaryAndPruning finalizes the cell
+            unaryAndPruning(targetCell, start, end);
+        }
+
+        if (collectDetailedStatistics) {
+            chart.parseTask.totalPopulatedEdges += targetCell.getNumNTs();
+        }
+    }
+
+    /**
+     * Applies unary rules using the lane-blocked unary matrix. As in
+     * {@link edu.ohsu.cslu.parser.SparseMatrixParser#unarySpmv(int[], float[], short[], int, short)}, parents
+     * populated during an iteration may be used as children later in the same iteration.
+     */
+    @Override
+    protected void unarySpmv(final int[] chartCellChildren, final float[] chartCellProbabilities,
+            final short[] chartCellMidpoints, final int offset, final short chartCellEnd) {
+
+        final PackingFunction cpf = grammar.packingFunction();
+        final LaneMatrix matrix = laneGrammar.laneUnaryMatrix;
+
+        for (int iteration = 0; iteration < UNARY_ITERATIONS; iteration++) {
+            // Iterate over populated children (matrix columns)
+            for (short child = 0; child < grammar.numNonTerms(); child++) {
+
+                final int childOffset = offset + child;
+                if (chartCellProbabilities[childOffset] == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+
+                // Dense blocks of adjacent parents
+                for (int b = matrix.blockOffsets[child]; b < matrix.blockOffsets[child + 1]; b++) {
+                    final int firstParentOffset = offset + matrix.blockParents[b];
+                    final int blockOffset = b * LaneCscSparseMatrixGrammar.LANES;
+
+                    for (int lane = 0; lane < LaneCscSparseMatrixGrammar.LANES; lane++) {
+                        final int parentOffset = firstParentOffset + lane;
+                        final float jointProbability = matrix.blockProbabilities[blockOffset + lane]
+                                + chartCellProbabilities[childOffset];
+                        if (jointProbability > chartCellProbabilities[parentOffset]) {
+                            chartCellProbabilities[parentOffset] = jointProbability;
+                            chartCellChildren[parentOffset] = cpf.packUnary(child);
+                            chartCellMidpoints[parentOffset] = chartCellEnd;
+                        }
+                    }
+                }
+
+                // Remaining rules
+                for (int i = matrix.ruleOffsets[child]; i < matrix.ruleOffsets[child + 1]; i++) {
+
+                    final int parentOffset = offset + matrix.rowIndices[i];
+                    final float jointProbability = matrix.probabilities[i] + chartCellProbabilities[childOffset];
+                    if (jointProbability > chartCellProbabilities[parentOffset]) {
+                        chartCellProbabilities[parentOffset] = jointProbability;
+                        chartCellChildren[parentOffset] = cpf.packUnary(child);
+                        chartCellMidpoints[parentOffset] = chartCellEnd;
+                    }
+                }
+
+                if (collectDetailedStatistics) {
+                    chart.parseTask.nUnaryConsidered += grammar.cscUnaryColumnOffsets[child + 1]
+                            - grammar.cscUnaryColumnOffsets[child];
+                }
+            }
+        }
+    }
+}
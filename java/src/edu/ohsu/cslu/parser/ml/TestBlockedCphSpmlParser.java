@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.parser.ml;
+
+import java.io.Reader;
+
+import org.cjunit.PerformanceTest;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import cltool4j.GlobalConfigProperties;
+import edu.ohsu.cslu.grammar.BlockedCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.Grammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
+import edu.ohsu.cslu.parser.ParserDriver;
+import edu.ohsu.cslu.parser.ecp.ExhaustiveChartParserTestCase;
+
+/**
+ * Tests exhaustive parsing with {@link BlockedCphSpmlParser}. Expected parses are identical to those of
+ * {@link CartesianProductHashSpmlParser}. We use small blocks, so even the simple test grammars are split into several
+ * tiles.
+ */
+public class TestBlockedCphSpmlParser extends ExhaustiveChartParserTestCase<BlockedCphSpmlParser> {
+
+    private final static Class<? extends PackingFunction> PACKING_FUNCTION_CLASS = SparseMatrixGrammar.PerfectIntPairHashPackingFunction.class;
+
+    @Override
+    @Test
+    @PerformanceTest
+    public void profileSentences11Through20() throws Exception {
+        internalProfileSentences11Through20();
+    }
+
+    @BeforeClass
+    public static void configureBlockSizes() {
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_PARENT_BLOCK_SIZE, "4");
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_LEFT_CHILD_BLOCK_SIZE, "4");
+    }
+
+    @Override
+    public Grammar createGrammar(final Reader grammarReader) throws Exception {
+        return new BlockedCscSparseMatrixGrammar(grammarReader, new DecisionTreeTokenClassifier(), PACKING_FUNCTION_CLASS);
+    }
+
+    /**
+     * Ensure the grammar is constructed with the Constructs the grammar (if necessary) and a new parser instance. Run
+     * prior to each test method.
+     * 
+     * @throws Exception if unable to construct grammar or parser.
+     */
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        if (f2_21_grammar != null
+                && (f2_21_grammar.getClass() != grammarClass() || ((SparseMatrixGrammar) f2_21_grammar)
+                        .packingFunction().getClass() != PACKING_FUNCTION_CLASS)) {
+            f2_21_grammar = null;
+        }
+
+        if (simpleGrammar1 != null
+                && (simpleGrammar1.getClass() != grammarClass() || ((SparseMatrixGrammar) simpleGrammar1)
+                        .packingFunction().getClass() != PACKING_FUNCTION_CLASS)) {
+            simpleGrammar1 = null;
+        }
+
+        if (simpleGrammar2 != null
+                && (simpleGrammar2.getClass() != grammarClass() || ((SparseMatrixGrammar) simpleGrammar2)
+                        .packingFunction().getClass() != PACKING_FUNCTION_CLASS)) {
+            simpleGrammar2 = null;
+        }
+
+        super.setUp();
+    }
+}
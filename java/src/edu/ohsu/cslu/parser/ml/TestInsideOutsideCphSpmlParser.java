@@ -22,6 +22,8 @@
 package edu.ohsu.cslu.parser.ml;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -45,7 +47,9 @@ import edu.ohsu.cslu.grammar.Grammar;
 import edu.ohsu.cslu.grammar.InsideOutsideCscSparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
 import edu.ohsu.cslu.parser.Parser;
+import edu.ohsu.cslu.parser.ParseTask;
 import edu.ohsu.cslu.parser.Parser.DecodeMethod;
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy;
 import edu.ohsu.cslu.parser.ParserDriver;
 import edu.ohsu.cslu.parser.SparseMatrixParser;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart;
@@ -269,6 +273,66 @@ public class TestInsideOutsideCphSpmlParser {
                 parser.parseSentence(sentences.get(1)[0]).parseBracketString(false));
     }
 
+    /**
+     * Verifies that a pruned pass which fails to find a parse escalates through the reparse stages, and that the
+     * outside pass and decoding are performed on the successful stage
+     */
+    @Test
+    public void testReparsing() throws Exception {
+        final ConfigProperties props = GlobalConfigProperties.singleton();
+        props.put(Parser.PROPERTY_MAX_BEAM_WIDTH, "1");
+        props.put(Parser.PROPERTY_LEXICAL_ROW_BEAM_WIDTH, "1");
+        props.put(Parser.PROPERTY_LEXICAL_ROW_UNARIES, "0");
+
+        final ParserDriver opts = new ParserDriver();
+        opts.decodeMethod = DecodeMethod.MaxRuleProd;
+        opts.fomModel = new InsideProb();
+
+        // Without reparsing, the narrow beam should fail
+        opts.reparseStrategy = ReparseStrategy.None;
+        parser = new InsideOutsideCphSpmlParser(opts, grammar);
+        ParseTask parseTask = parser.parseSentence(sentences.get(1)[0]);
+        assertTrue(parseTask.parseFailed());
+        assertEquals(0, parseTask.reparseStages);
+        parser.shutdown();
+
+        opts.reparseStrategy = ReparseStrategy.Escalate;
+        parser = new InsideOutsideCphSpmlParser(opts, grammar);
+        parseTask = parser.parseSentence(sentences.get(1)[0]);
+        assertFalse(parseTask.parseFailed());
+        assertTrue(parseTask.reparseStages > 0);
+        assertTrue(parseTask.parseBracketString(false).startsWith("(ROOT (S (NP (DT The)"));
+    }
+
+    /**
+     * Verifies that the cell-parallel outside pass and max-rule decoding produce the same parses as the sequential
+     * implementations
+     */
+    @Test
+    public void testCellParallelOutsidePass() throws Exception {
+        final ParserDriver opts = new ParserDriver();
+        opts.decodeMethod = DecodeMethod.MaxRuleProd;
+        opts.fomModel = new InsideProb();
+
+        parser = new InsideOutsideCphSpmlParser(opts, grammar);
+        final String[] expected = new String[sentences.size()];
+        for (int i = 0; i < sentences.size(); i++) {
+            expected[i] = parser.parseSentence(sentences.get(i)[0]).parseBracketString(false);
+        }
+        parser.shutdown();
+
+        GlobalConfigProperties.singleton().setProperty(ParserDriver.OPT_CELL_THREAD_COUNT, "4");
+        try {
+            parser = new InsideOutsideCphSpmlParser(opts, grammar);
+            for (int i = 0; i < sentences.size(); i++) {
+                assertEquals("Failed on sentence " + (i + 1), expected[i],
+                        parser.parseSentence(sentences.get(i)[0]).parseBracketString(false));
+            }
+        } finally {
+            GlobalConfigProperties.singleton().remove(ParserDriver.OPT_CELL_THREAD_COUNT);
+        }
+    }
+
     @Test
     @PerformanceTest({ "mbp", "5701", "mbp2012", "2850" })
     public void profileMaxRule() throws Exception {
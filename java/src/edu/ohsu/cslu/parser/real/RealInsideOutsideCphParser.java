@@ -183,23 +183,22 @@ public class RealInsideOutsideCphParser extends
 
             insidePass();
 
-            // To compute the outside probability of a non-terminal in a cell, we need the outside probability of the
-            // cell's parent, so we process downward from the top of the chart.
-
-            // Outside pass
-            final Iterator<short[]> reverseIterator = cellSelector.reverseIterator();
-
-            while (reverseIterator.hasNext()) {
-                final short[] startAndEnd = reverseIterator.next();
-                final RealPackedArrayChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
-                computeOutsideProbabilities(cell);
-            }
+            if (chart.hasCompleteParse(grammar.startSymbol)) {
+                // Run the outside pass only for the successful stage. To compute the outside probability of a
+                // non-terminal in a cell, we need the outside probability of the cell's parent, so we process downward
+                // from the top of the chart.
+                final Iterator<short[]> reverseIterator = cellSelector.reverseIterator();
+
+                while (reverseIterator.hasNext()) {
+                    final short[] startAndEnd = reverseIterator.next();
+                    final RealPackedArrayChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
+                    computeOutsideProbabilities(cell);
+                }
 
-            if (BaseLogger.singleton().isLoggable(Level.ALL)) {
-                BaseLogger.singleton().finest(chart.toString());
-            }
+                if (BaseLogger.singleton().isLoggable(Level.ALL)) {
+                    BaseLogger.singleton().finest(chart.toString());
+                }
 
-            if (chart.hasCompleteParse(grammar.startSymbol)) {
                 BaseLogger.singleton().finer(
                         String.format("INFO: stage=%s time=%d success=true", stage.toString(),
                                 System.currentTimeMillis() - stageStartTime));
@@ -208,6 +207,12 @@ public class RealInsideOutsideCphParser extends
             BaseLogger.singleton().finer(
                     String.format("INFO: stage=%s time=%d success=false", stage.toString(), System.currentTimeMillis()
                             - stageStartTime));
+
+            // Stop escalating once the deadline has passed, and fall back to the recovery strategy (if any)
+            if (parseTask.deadlineExpired()) {
+                parseTask.deadlineStage = stage;
+                break;
+            }
         }
 
         return extract(parseTask.recoveryStrategy);
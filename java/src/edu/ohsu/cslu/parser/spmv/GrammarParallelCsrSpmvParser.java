@@ -261,5 +261,6 @@ public final class GrammarParallelCsrSpmvParser extends CsrSpmvParser {
             executor.shutdown();
         } catch (final Exception ignore) {
         }
+        super.shutdown();
     }
 }
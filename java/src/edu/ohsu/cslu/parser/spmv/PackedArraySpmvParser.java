@@ -108,8 +108,16 @@ public abstract class PackedArraySpmvParser<G extends SparseMatrixGrammar> exten
      */
     @Override
     protected final void insidePass() {
+        int currentSpan = 1;
         while (cellSelector.hasNext()) {
             final short[] startAndEnd = cellSelector.next();
+            if (startAndEnd[1] - startAndEnd[0] > currentSpan) {
+                if (chart.parseTask.deadlineExpired()) {
+                    waitForActiveTasks();
+                    return;
+                }
+                currentSpan = startAndEnd[1] - startAndEnd[0];
+            }
             final ChartCell cell = chart.getCell(startAndEnd[0], startAndEnd[1]);
             computeInsideProbabilities(cell);
         }
@@ -360,6 +368,7 @@ public abstract class PackedArraySpmvParser<G extends SparseMatrixGrammar> exten
         if (threadPool != null) {
             threadPool.shutdown();
         }
+        super.shutdown();
     }
 
     @Override
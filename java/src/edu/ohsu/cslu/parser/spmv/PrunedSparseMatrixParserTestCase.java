@@ -22,6 +22,8 @@
 package edu.ohsu.cslu.parser.spmv;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -41,9 +43,12 @@ import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PackingFunction;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.ParseTask;
 import edu.ohsu.cslu.parser.Parser;
+import edu.ohsu.cslu.parser.Parser.ReparseStrategy.Stage;
 import edu.ohsu.cslu.parser.ParserDriver;
 import edu.ohsu.cslu.parser.SparseMatrixParser;
+import edu.ohsu.cslu.parser.chart.Chart.RecoveryStrategy;
 import edu.ohsu.cslu.parser.chart.PackedArrayChart;
 import edu.ohsu.cslu.parser.ecp.ChartParserTestCase;
 import edu.ohsu.cslu.parser.fom.BoundaryPosModel;
@@ -123,4 +128,26 @@ public abstract class PrunedSparseMatrixParserTestCase<G extends SparseMatrixGra
             i++;
         }
     }
+
+    /**
+     * Verifies that parsing stops once the per-sentence deadline expires, and falls back to the recovery strategy.
+     */
+    @Test
+    public void testParseDeadline() throws IOException {
+
+        final BufferedReader tokenizedReader = new BufferedReader(new InputStreamReader(
+                JUnit.unitTestDataAsStream("parsing/wsj.24.tokens.1-20")));
+        final String sentence = tokenizedReader.readLine();
+
+        // A deadline which has already passed expires at the first check, regardless of parsing speed
+        ParseTask parseTask = parser.parseSentence(sentence, RecoveryStrategy.RightBiased, 1);
+        assertNull(parseTask.binaryParse);
+        assertEquals(Stage.NORMAL, parseTask.deadlineStage);
+        assertNotNull(parseTask.recoveryParse);
+
+        // And without a deadline
+        parseTask = parser.parseSentence(sentence);
+        assertNotNull(parseTask.binaryParse);
+        assertNull(parseTask.deadlineStage);
+    }
 }
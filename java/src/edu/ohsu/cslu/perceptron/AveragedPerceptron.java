@@ -286,7 +286,7 @@ public class AveragedPerceptron extends Perceptron {
         rawGuess.inPlaceAdd(featureVector, -alpha);
     }
 
-    void averageAllFeatures() {
+    public void averageAllFeatures() {
 
         if (lastAveraged instanceof LargeVector) {
             final LargeVector largeLastAveraged = (LargeVector) lastAveraged;
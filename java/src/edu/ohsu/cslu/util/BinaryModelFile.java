@@ -0,0 +1,481 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A versioned binary model format, designed for fast loading of large models (grammars, FOM models, etc.) and for
+ * sharing model data between multiple JVMs on the same host (via the OS page cache).
+ * 
+ * The model objects are written with standard Java serialization, except that large primitive arrays (e.g., the CSC
+ * and CSR grammar matrices and the packing-function hashtables) are replaced in the object stream with references to
+ * 'sections' stored separately in the file, in native byte order and aligned to cache-line boundaries. When reading,
+ * each section is memory-mapped and bulk-copied into a heap array, so the cost of loading those arrays is dominated by
+ * I/O (or by a memory copy, if the file is already in the page cache), rather than by deserialization.
+ * 
+ * File layout (header fields are big-endian):
+ * 
+ * <pre>
+ * magic (8 bytes)             "BUBSMODL"
+ * version (int)
+ * section byte order (byte)   0 = big-endian, 1 = little-endian
+ * section count (int)
+ * object stream offset (long)
+ * object stream length (long)
+ * section table               section count x { type (byte; a JVM type descriptor - 'F', 'I', etc.),
+ *                                               length (int; in array entries), offset (long) }
+ * object stream
+ * sections
+ * </pre>
+ * 
+ * Usage mirrors {@link ObjectOutputStream} and {@link ObjectInputStream}: write with a {@link Writer} (the file is
+ * written when the stream is closed) and read with {@link #open(File)}.
+ */
+public class BinaryModelFile {
+
+    private final static byte[] MAGIC = new byte[] { 'B', 'U', 'B', 'S', 'M', 'O', 'D', 'L' };
+
+    /** Increment when the file layout changes */
+    public final static int VERSION = 1;
+
+    /** Smaller arrays are written inline in the object stream */
+    private final static int MIN_SECTION_BYTES = 4096;
+
+    /** Sections are aligned to cache-line boundaries */
+    private final static int SECTION_ALIGNMENT = 64;
+
+    private final static int HEADER_BYTES = MAGIC.length + 4 + 1 + 4 + 8 + 8;
+    private final static int SECTION_TABLE_ENTRY_BYTES = 1 + 4 + 8;
+
+    /**
+     * @param file
+     * @return True if the specified file begins with the binary model file signature
+     * @throws IOException
+     */
+    public static boolean isBinaryModelFile(final File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return false;
+        }
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[MAGIC.length];
+            int read = 0;
+            while (read < buf.length) {
+                final int n = is.read(buf, read, buf.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return java.util.Arrays.equals(buf, MAGIC);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Opens a binary model file for reading.
+     * 
+     * @param file
+     * @return An {@link ObjectInputStream} from which the model objects can be read in the order they were written
+     * @throws IOException if the file is not a binary model file, or was written with an unsupported format version
+     */
+    public static ObjectInputStream open(final File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * @return The number of bytes in a single entry of the specified primitive array, or 0 if the object is not an
+     *         array of a supported type.
+     */
+    private static int entryBytes(final Object o) {
+        if (o instanceof float[] || o instanceof int[]) {
+            return 4;
+        } else if (o instanceof short[] || o instanceof char[]) {
+            return 2;
+        } else if (o instanceof long[] || o instanceof double[]) {
+            return 8;
+        } else if (o instanceof byte[]) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static int entryBytes(final byte type) {
+        switch (type) {
+        case 'B':
+            return 1;
+        case 'S':
+        case 'C':
+            return 2;
+        case 'I':
+        case 'F':
+            return 4;
+        case 'J':
+        case 'D':
+            return 8;
+        default:
+            throw new IllegalArgumentException("Unsupported section type: " + (char) type);
+        }
+    }
+
+    private static byte type(final Object array) {
+        if (array instanceof float[]) {
+            return 'F';
+        } else if (array instanceof int[]) {
+            return 'I';
+        } else if (array instanceof short[]) {
+            return 'S';
+        } else if (array instanceof char[]) {
+            return 'C';
+        } else if (array instanceof long[]) {
+            return 'J';
+        } else if (array instanceof double[]) {
+            return 'D';
+        }
+        return 'B';
+    }
+
+    private static int length(final Object array) {
+        switch (type(array)) {
+        case 'F':
+            return ((float[]) array).length;
+        case 'I':
+            return ((int[]) array).length;
+        case 'S':
+            return ((short[]) array).length;
+        case 'C':
+            return ((char[]) array).length;
+        case 'J':
+            return ((long[]) array).length;
+        case 'D':
+            return ((double[]) array).length;
+        default:
+            return ((byte[]) array).length;
+        }
+    }
+
+    private static long align(final long offset) {
+        return (offset + SECTION_ALIGNMENT - 1) / SECTION_ALIGNMENT * SECTION_ALIGNMENT;
+    }
+
+    /**
+     * Placeholder for an array stored in a separate section of the file.
+     */
+    private final static class SectionReference implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int section;
+
+        public SectionReference(final int section) {
+            this.section = section;
+        }
+    }
+
+    /**
+     * Writes a binary model file. Objects are buffered in memory (with large arrays replaced by section references),
+     * and the file is written when the stream is closed.
+     */
+    public static class Writer extends ObjectOutputStream {
+
+        private final File file;
+        private final ByteArrayOutputStream objectStream;
+        private final ArrayList<Object> sections = new ArrayList<Object>();
+
+        public Writer(final File file) throws IOException {
+            this(file, new ByteArrayOutputStream());
+        }
+
+        private Writer(final File file, final ByteArrayOutputStream objectStream) throws IOException {
+            super(objectStream);
+            this.file = file;
+            this.objectStream = objectStream;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(final Object obj) throws IOException {
+            final int entryBytes = entryBytes(obj);
+            if (entryBytes == 0 || (long) length(obj) * entryBytes < MIN_SECTION_BYTES) {
+                return obj;
+            }
+            // ObjectOutputStream only calls replaceObject() once per object, so arrays referenced multiple times are
+            // stored in a single section
+            sections.add(obj);
+            return new SectionReference(sections.size() - 1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+
+            final ByteOrder order = ByteOrder.nativeOrder();
+            final long objectStreamOffset = HEADER_BYTES + (long) sections.size() * SECTION_TABLE_ENTRY_BYTES;
+            final long[] sectionOffsets = new long[sections.size()];
+            long offset = objectStreamOffset + objectStream.size();
+            for (int i = 0; i < sections.size(); i++) {
+                sectionOffsets[i] = align(offset);
+                offset = sectionOffsets[i] + (long) length(sections.get(i)) * entryBytes(sections.get(i));
+            }
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                final FileChannel channel = raf.getChannel();
+
+                // Header and section table
+                final ByteBuffer header = ByteBuffer.allocate((int) objectStreamOffset);
+                header.put(MAGIC);
+                header.putInt(VERSION);
+                header.put((byte) (order == ByteOrder.BIG_ENDIAN ? 0 : 1));
+                header.putInt(sections.size());
+                header.putLong(objectStreamOffset);
+                header.putLong(objectStream.size());
+                for (int i = 0; i < sections.size(); i++) {
+                    header.put(type(sections.get(i)));
+                    header.putInt(length(sections.get(i)));
+                    header.putLong(sectionOffsets[i]);
+                }
+                header.flip();
+                writeFully(channel, header, 0);
+
+                writeFully(channel, ByteBuffer.wrap(objectStream.toByteArray()), objectStreamOffset);
+
+                // Sections, in chunks of at most 1 MB
+                final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(order);
+                for (int i = 0; i < sections.size(); i++) {
+                    final Object array = sections.get(i);
+                    final int entryBytes = entryBytes(array);
+                    final int length = length(array);
+                    final int chunkEntries = buf.capacity() / entryBytes;
+                    long position = sectionOffsets[i];
+
+                    for (int start = 0; start < length; start += chunkEntries) {
+                        final int n = java.lang.Math.min(chunkEntries, length - start);
+                        buf.clear();
+                        switch (type(array)) {
+                        case 'F':
+                            buf.asFloatBuffer().put((float[]) array, start, n);
+                            break;
+                        case 'I':
+                            buf.asIntBuffer().put((int[]) array, start, n);
+                            break;
+                        case 'S':
+                            buf.asShortBuffer().put((short[]) array, start, n);
+                            break;
+                        case 'C':
+                            buf.asCharBuffer().put((char[]) array, start, n);
+                            break;
+                        case 'J':
+                            buf.asLongBuffer().put((long[]) array, start, n);
+                            break;
+                        case 'D':
+                            buf.asDoubleBuffer().put((double[]) array, start, n);
+                            break;
+                        default:
+                            buf.put((byte[]) array, start, n);
+                        }
+                        buf.position(0).limit(n * entryBytes);
+                        writeFully(channel, buf, position);
+                        position += n * entryBytes;
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        private static void writeFully(final FileChannel channel, final ByteBuffer buf, final long position)
+                throws IOException {
+            long p = position;
+            while (buf.hasRemaining()) {
+                p += channel.write(buf, p);
+            }
+        }
+    }
+
+    /**
+     * Reads a binary model file. Section references in the object stream are resolved by memory-mapping the section
+     * and copying it into a heap array.
+     */
+    private static class Reader extends ObjectInputStream {
+
+        private final FileChannel channel;
+        private final ByteOrder order;
+        private final byte[] sectionTypes;
+        private final int[] sectionLengths;
+        private final long[] sectionOffsets;
+
+        private Reader(final File file) throws IOException {
+            this(new RandomAccessFile(file, "r").getChannel());
+        }
+
+        private Reader(final FileChannel channel) throws IOException {
+            this(channel, readHeader(channel));
+        }
+
+        private Reader(final FileChannel channel, final ByteBuffer header) throws IOException {
+            super(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.getLong(HEADER_BYTES - 16), header.getLong(HEADER_BYTES - 8))));
+            this.channel = channel;
+
+            header.position(MAGIC.length + 4);
+            this.order = header.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            final int sectionCount = header.getInt();
+            header.position(HEADER_BYTES);
+
+            this.sectionTypes = new byte[sectionCount];
+            this.sectionLengths = new int[sectionCount];
+            this.sectionOffsets = new long[sectionCount];
+            for (int i = 0; i < sectionCount; i++) {
+                sectionTypes[i] = header.get();
+                sectionLengths[i] = header.getInt();
+                sectionOffsets[i] = header.getLong();
+            }
+            enableResolveObject(true);
+        }
+
+        /**
+         * Reads and validates the header and section table
+         */
+        private static ByteBuffer readHeader(final FileChannel channel) throws IOException {
+            final ByteBuffer fixedHeader = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    java.lang.Math.min(HEADER_BYTES, channel.size()));
+            final byte[] magic = new byte[MAGIC.length];
+            if (fixedHeader.remaining() < HEADER_BYTES) {
+                channel.close();
+                throw new IOException("Not a binary model file");
+            }
+            fixedHeader.get(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+                channel.close();
+                throw new IOException("Not a binary model file");
+            }
+            final int version = fixedHeader.getInt();
+            if (version != VERSION) {
+                channel.close();
+                throw new IOException("Unsupported binary model file version: " + version + " (expected " + VERSION
+                        + ")");
+            }
+            fixedHeader.get();
+            final int sectionCount = fixedHeader.getInt();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES + (long) sectionCount
+                    * SECTION_TABLE_ENTRY_BYTES);
+        }
+
+        @Override
+        protected Object resolveObject(final Object obj) throws IOException {
+            if (!(obj instanceof SectionReference)) {
+                return obj;
+            }
+            final int section = ((SectionReference) obj).section;
+            final int length = sectionLengths[section];
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, sectionOffsets[section],
+                    (long) length * entryBytes(sectionTypes[section]));
+            buf.order(order);
+
+            switch (sectionTypes[section]) {
+            case 'F':
+                final float[] f = new float[length];
+                buf.asFloatBuffer().get(f);
+                return f;
+            case 'I':
+                final int[] i = new int[length];
+                buf.asIntBuffer().get(i);
+                return i;
+            case 'S':
+                final short[] s = new short[length];
+                buf.asShortBuffer().get(s);
+                return s;
+            case 'C':
+                final char[] c = new char[length];
+                buf.asCharBuffer().get(c);
+                return c;
+            case 'J':
+                final long[] l = new long[length];
+                buf.asLongBuffer().get(l);
+                return l;
+            case 'D':
+                final double[] d = new double[length];
+                buf.asDoubleBuffer().get(d);
+                return d;
+            default:
+                final byte[] b = new byte[length];
+                buf.get(b);
+                return b;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * Exposes a {@link ByteBuffer} as an {@link InputStream}
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buf;
+
+        public ByteBufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = java.lang.Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
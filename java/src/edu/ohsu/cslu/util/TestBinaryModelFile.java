@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010-2014, Oregon Health & Science University
+ * 
+ * This file is part of the BUBS Parser.
+ * 
+ * The BUBS Parser is free software: you can redistribute it and/or 
+ * modify  it under the terms of the GNU Affero General Public License 
+ * as published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ * 
+ * The BUBS Parser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with the BUBS Parser. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Further documentation and contact information is available at
+ *   https://code.google.com/p/bubs-parser/ 
+ */
+package edu.ohsu.cslu.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.cjunit.FilteredRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
+import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
+import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.tests.JUnit;
+
+/**
+ * Unit tests for {@link BinaryModelFile}
+ */
+@RunWith(FilteredRunner.class)
+public class TestBinaryModelFile {
+
+    @Test
+    public void testArrays() throws Exception {
+        final ArrayHolder holder = new ArrayHolder();
+        final File f = File.createTempFile("model", ".bin");
+        f.deleteOnExit();
+
+        final ObjectOutputStream oos = new BinaryModelFile.Writer(f);
+        oos.writeObject("metadata");
+        oos.writeObject(holder);
+        oos.close();
+
+        assertTrue(BinaryModelFile.isBinaryModelFile(f));
+
+        final ObjectInputStream ois = BinaryModelFile.open(f);
+        assertEquals("metadata", ois.readObject());
+        final ArrayHolder copy = (ArrayHolder) ois.readObject();
+        ois.close();
+
+        assertArrayEquals(holder.floats, copy.floats, 0f);
+        assertArrayEquals(holder.ints, copy.ints);
+        assertArrayEquals(holder.shorts, copy.shorts);
+        assertArrayEquals(holder.longs, copy.longs);
+        assertArrayEquals(holder.doubles, copy.doubles, 0);
+        assertArrayEquals(holder.bytes, copy.bytes);
+        assertArrayEquals(holder.smallInts, copy.smallInts);
+        assertArrayEquals(holder.nested[0], copy.nested[0], 0f);
+        assertArrayEquals(holder.nested[1], copy.nested[1], 0f);
+
+        // Shared references should be preserved
+        assertSame(copy.floats, copy.sharedFloats);
+        assertSame(copy.floats, copy.nested[1]);
+    }
+
+    @Test
+    public void testIsBinaryModelFile() throws Exception {
+        final File f = File.createTempFile("model", ".ser");
+        f.deleteOnExit();
+        final ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f));
+        oos.writeObject(new ArrayHolder());
+        oos.close();
+
+        assertFalse(BinaryModelFile.isBinaryModelFile(f));
+        assertFalse(BinaryModelFile.isBinaryModelFile(new File(f.getPath() + ".missing")));
+    }
+
+    @Test
+    public void testGrammar() throws Exception {
+        final LeftCscSparseMatrixGrammar g = new LeftCscSparseMatrixGrammar(
+                JUnit.unitTestDataAsReader("grammars/eng.R2.gr.gz"), new DecisionTreeTokenClassifier(),
+                PerfectIntPairHashPackingFunction.class);
+
+        final File f = File.createTempFile("grammar", ".bin");
+        f.deleteOnExit();
+        final ObjectOutputStream oos = new BinaryModelFile.Writer(f);
+        oos.writeObject(g);
+        oos.close();
+
+        final ObjectInputStream ois = BinaryModelFile.open(f);
+        final LeftCscSparseMatrixGrammar copy = (LeftCscSparseMatrixGrammar) ois.readObject();
+        ois.close();
+
+        assertEquals(g.numNonTerms(), copy.numNonTerms());
+        assertEquals(g.numBinaryProds(), copy.numBinaryProds());
+        assertArrayEquals(g.cscBinaryColumnOffsets, copy.cscBinaryColumnOffsets);
+        assertArrayEquals(g.cscBinaryRowIndices, copy.cscBinaryRowIndices);
+        assertArrayEquals(g.cscBinaryProbabilities, copy.cscBinaryProbabilities, 0f);
+        assertArrayEquals(g.cscUnaryProbabilities, copy.cscUnaryProbabilities, 0f);
+
+        final int packed = g.packingFunction().pack(g.leftChildrenStart, g.rightChildrenStart);
+        assertEquals(packed, copy.packingFunction().pack(g.leftChildrenStart, g.rightChildrenStart));
+        assertEquals(g.binaryLogProbability("NP", "DT", "NN"), copy.binaryLogProbability("NP", "DT", "NN"), 0f);
+    }
+
+    private static class ArrayHolder implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final float[] floats = new float[5000];
+        final int[] ints = new int[2000];
+        final short[] shorts = new short[3000];
+        final long[] longs = new long[1000];
+        final double[] doubles = new double[1000];
+        final byte[] bytes = new byte[10000];
+        final int[] smallInts = new int[] { 1, 2, 3 };
+        final float[] sharedFloats = floats;
+        final float[][] nested = new float[2][];
+
+        public ArrayHolder() {
+            for (int i = 0; i < floats.length; i++) {
+                floats[i] = i * .5f;
+            }
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = -i;
+            }
+            for (int i = 0; i < shorts.length; i++) {
+                shorts[i] = (short) (i * 3);
+            }
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = i * 1000000000L;
+            }
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = java.lang.Math.sqrt(i);
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) i;
+            }
+            nested[0] = new float[] { 1f, 2f };
+            nested[1] = floats;
+        }
+    }
+}
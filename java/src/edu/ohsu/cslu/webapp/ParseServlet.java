@@ -39,6 +39,7 @@ import cltool4j.GlobalConfigProperties;
 import edu.ohsu.cslu.grammar.DecisionTreeTokenClassifier;
 import edu.ohsu.cslu.grammar.LeftCscSparseMatrixGrammar;
 import edu.ohsu.cslu.grammar.SparseMatrixGrammar.PerfectIntPairHashPackingFunction;
+import edu.ohsu.cslu.parser.ParseServer;
 import edu.ohsu.cslu.parser.ParserDriver;
 import edu.ohsu.cslu.parser.SparseMatrixParser;
 import edu.ohsu.cslu.parser.cellselector.CompleteClosureModel;
@@ -51,6 +52,8 @@ import edu.ohsu.cslu.parser.ml.CartesianProductHashSpmlParser;
  * in standard 1-line bracketed format. Loads the grammar, prioritization, and pruning models at servlet initialization,
  * so subsequent parsing should execute quickly.
  * 
+ * For a standalone service without a servlet container, see {@link ParseServer}.
+ * 
  * TODO Cleanup the {@link ThreadLocal} instances in {@link SparseMatrixParser} if the webapp is reloaded (maybe with a
  * context listener?)
  * 
@@ -65,14 +68,22 @@ public class ParseServlet extends HttpServlet {
     // The grammar, FOM, and pruning model are thread-safe, so we can create them 1-time at
     private LeftCscSparseMatrixGrammar grammar;
 
+    /**
+     * The parser implementation is _not_ thread-safe, but the container reuses a bounded set of request threads, so we
+     * create one parser (and chart) per request thread and reuse it for all subsequent requests on that thread.
+     */
+    private final ThreadLocal<CartesianProductHashSpmlParser> threadLocalParser = new ThreadLocal<CartesianProductHashSpmlParser>() {
+        @Override
+        protected CartesianProductHashSpmlParser initialValue() {
+            return new CartesianProductHashSpmlParser(opts, grammar);
+        }
+    };
+
     @Override
     protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException,
             IOException {
 
-        // The parser implementation is _not_ thread-safe, so we have to recreate it for each request. That entails
-        // creating a new chart object as well; we could probably use a thread-local to reuse the parser and chart
-        // instances, but creating them at request time isn't too terribly expensive.
-        final CartesianProductHashSpmlParser parser = new CartesianProductHashSpmlParser(opts, grammar);
+        final CartesianProductHashSpmlParser parser = threadLocalParser.get();
 
         final BufferedReader br = new BufferedReader(new InputStreamReader(req.getInputStream()));
         final BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream()));